@@ -20,9 +20,12 @@ package fr.cnes.sitools.extensions.astro.application.uws.client;
 
 import fr.cnes.sitools.extensions.astro.application.uws.common.Util;
 import fr.jmmc.jmcs.util.FileUtils;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -42,10 +45,14 @@ import net.ivoa.xml.uws.v1.ShortJobDescription;
 import org.restlet.Client;
 import org.restlet.Context;
 import org.restlet.data.Form;
+import org.restlet.data.MediaType;
 import org.restlet.data.Method;
 import org.restlet.data.Protocol;
+import org.restlet.data.Range;
 import org.restlet.data.Reference;
+import org.restlet.data.Status;
 import org.restlet.ext.html.FormDataSet;
+import org.restlet.representation.FileRepresentation;
 import org.restlet.representation.Representation;
 import org.restlet.resource.ClientResource;
 import org.restlet.resource.ResourceException;
@@ -122,6 +129,13 @@ public final class ClientUWS {
         getClient();
     }
 
+    /**
+     * @return URL of the UWS server
+     */
+    public String getServerURL() {
+        return serverUWS.toString();
+    }
+
     private static void initClient(final ClientResource resource, final boolean followRedirect) {
         resource.setRetryOnError(false);
         resource.setFollowingRedirects(followRedirect);
@@ -495,6 +509,33 @@ public final class ClientUWS {
         }
     }
 
+    /**
+     * Wait for a phase change of a job using UWS 1.1 blocking behaviour:
+     * the server returns the job representation as soon as the job phase differs from the given phase
+     * or once the given wait duration expires.
+     * Note: UWS 1.0 servers ignore the WAIT parameter and return immediately
+     * @param jobId Job ID
+     * @param phase current phase known by the caller or null to let the server use the current job phase
+     * @param waitSeconds maximum wait duration in seconds
+     * @return Returns ExecutionPhase
+     * @exception ClientUWSException
+     */
+    @SuppressWarnings("unchecked")
+    public ExecutionPhase waitJobPhase(final String jobId, final ExecutionPhase phase, final int waitSeconds) throws ClientUWSException {
+        checkJobId(jobId);
+        final String query = "?WAIT=" + waitSeconds + ((phase != null) ? "&PHASE=" + phase.value() : "");
+        final ClientResource resource = createJobResource(Method.GET, jobId, query, true);
+        Representation representation = null;
+        try {
+            return ((JAXBElement<JobSummary>) unmarshal(getText(resource, representation = resource.get(),
+                    "waitJobPhase: Cannot get information about job ", jobId))).getValue().getPhase();
+        } catch (ResourceException re) {
+            throw new ClientUWSException(re);
+        } finally {
+            release(resource, representation);
+        }
+    }
+
     /**
      * Set the phase of a job
      * @param jobId Job ID
@@ -639,6 +680,68 @@ public final class ClientUWS {
         }
     }
 
+    /**
+     * Get the content of a job result available after the given offset (partial result while the job is running)
+     * using a HTTP range request; if the server ignores the range, the first offset bytes are skipped.
+     * @param jobId Job ID
+     * @param resultId result identifier (logfile)
+     * @param offset number of bytes already retrieved
+     * @return new bytes (empty if none) or null if the result is not available yet
+     * @exception ClientUWSException
+     */
+    public byte[] getPartialResult(final String jobId, final String resultId, final long offset) throws ClientUWSException {
+        checkJobId(jobId);
+        final ClientResource resource = createJobResource(Method.GET, jobId, "/results/" + resultId, true);
+        resource.getRequest().getRanges().add(new Range(offset, Range.SIZE_MAX));
+        Representation representation = null;
+        try {
+            representation = resource.get();
+
+            final byte[] bytes = readBytes(representation);
+
+            if (Status.SUCCESS_PARTIAL_CONTENT.equals(resource.getStatus())) {
+                return bytes;
+            }
+            // full content:
+            if (bytes.length <= offset) {
+                return new byte[0];
+            }
+            return Arrays.copyOfRange(bytes, (int) offset, bytes.length);
+        } catch (IOException ioe) {
+            throw new ClientUWSException(ioe);
+        } catch (ResourceException re) {
+            final Status status = re.getStatus();
+            if (Status.CLIENT_ERROR_REQUESTED_RANGE_NOT_SATISFIABLE.equals(status)) {
+                // no new content:
+                return new byte[0];
+            }
+            if (Status.CLIENT_ERROR_NOT_FOUND.equals(status)) {
+                // not available yet:
+                return null;
+            }
+            throw new ClientUWSException(re);
+        } finally {
+            release(resource, representation);
+        }
+    }
+
+    private static byte[] readBytes(final Representation representation) throws IOException {
+        if (representation == null) {
+            return new byte[0];
+        }
+        final InputStream in = representation.getStream();
+        if (in == null) {
+            return new byte[0];
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
     public boolean downloadFile(final String url, final File outputFile) throws ClientUWSException {
         if (!Util.isSet(url) || !Util.isSet(outputFile)) {
             throw new IllegalArgumentException("downloadFile: url and outputFile are required");
@@ -667,6 +770,57 @@ public final class ClientUWS {
         }
     }
 
+    /**
+     * Test if the given resource exists (HEAD request)
+     * @param url resource URL
+     * @return true if the resource exists; false if not found
+     * @exception ClientUWSException if the request failed (other status)
+     */
+    public boolean exists(final String url) throws ClientUWSException {
+        if (!Util.isSet(url)) {
+            throw new IllegalArgumentException("exists: url is required");
+        }
+        final ClientResource resource = createResource(Method.HEAD, url, true);
+        Representation representation = null;
+        try {
+            representation = resource.head();
+            return resource.getStatus().isSuccess();
+        } catch (ResourceException re) {
+            if (Status.CLIENT_ERROR_NOT_FOUND.equals(re.getStatus())) {
+                return false;
+            }
+            throw new ClientUWSException(re);
+        } finally {
+            release(resource, representation);
+        }
+    }
+
+    /**
+     * Upload the given file (PUT request)
+     * @param url resource URL
+     * @param file file to upload
+     * @exception ClientUWSException
+     */
+    public void uploadFile(final String url, final File file) throws ClientUWSException {
+        if (!Util.isSet(url) || !Util.isSet(file)) {
+            throw new IllegalArgumentException("uploadFile: url and file are required");
+        }
+        final ClientResource resource = createResource(Method.PUT, url, true);
+        Representation representation = null;
+        try {
+            representation = resource.put(new FileRepresentation(file, MediaType.APPLICATION_OCTET_STREAM));
+            checkStatus(resource, "uploadFile: Cannot upload the file ", file.getName());
+
+            if (_logger.isDebugEnabled()) {
+                _logger.debug("File '{}' uploaded ({} bytes).", file, file.length());
+            }
+        } catch (ResourceException re) {
+            throw new ClientUWSException(re);
+        } finally {
+            release(resource, representation);
+        }
+    }
+
     private static void checkJobId(final String jobId) {
         if (!Util.isSet(jobId)) {
             throw new IllegalArgumentException("jobId is required");
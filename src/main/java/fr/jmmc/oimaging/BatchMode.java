@@ -0,0 +1,595 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging;
+
+import fr.jmmc.jmcs.util.CommandLineUtils;
+import fr.jmmc.jmcs.util.FileUtils;
+import fr.jmmc.jmcs.util.StringUtils;
+import fr.jmmc.oimaging.model.IRModel;
+import fr.jmmc.oimaging.model.ResultSetTableModel;
+import fr.jmmc.oimaging.services.JobScheduler;
+import fr.jmmc.oimaging.services.ResultAttachment;
+import fr.jmmc.oimaging.services.Service;
+import fr.jmmc.oimaging.services.ServiceJob;
+import fr.jmmc.oimaging.services.ServiceJobListener;
+import fr.jmmc.oimaging.services.ServiceList;
+import fr.jmmc.oimaging.services.ServiceResult;
+import fr.jmmc.oimaging.services.Workspace;
+import static fr.jmmc.oimaging.services.ServiceResult.LOG_FILE_EXT;
+import static fr.jmmc.oimaging.services.ServiceResult.RESULT_FILE_EXT;
+import fr.jmmc.oitools.fits.FitsHeaderCard;
+import fr.jmmc.oitools.fits.FitsUtils;
+import fr.jmmc.oitools.image.ImageOiConstants;
+import fr.jmmc.oitools.image.ImageOiInputParam;
+import fr.jmmc.oitools.meta.KeywordMeta;
+import fr.jmmc.oitools.model.OIFitsFile;
+import fr.jmmc.oitools.model.OIFitsLoader;
+import fr.jmmc.oitools.model.OIFitsStandard;
+import fr.nom.tam.fits.FitsException;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Headless batch reconstruction (shell mode): every input OIFits file is loaded into its own IRModel,
+ * the input parameter template is applied, then all runs are submitted to the JobScheduler
+ * (service execution mode) with a bounded parallelism.
+ * Result OIFits files, execution logs, additional products (attachments) and a summary table
+ * (ResultSetTableModel columns) are written into the output directory.
+ *
+ * Note: it never uses the Swing EDT, the StatusBar or the MessagePane (shell mode).
+ */
+public final class BatchMode {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(BatchMode.class.getName());
+
+    /* command line arguments */
+    /** output directory (enables the batch mode) */
+    public static final String ARG_BATCH = "batch";
+    /** input OIFits files or directories */
+    public static final String ARG_INPUTS = "inputs";
+    /** input parameter template */
+    public static final String ARG_PARAMS = "params";
+    /** service name */
+    public static final String ARG_SOFTWARE = "software";
+    /** software options on command line */
+    public static final String ARG_CLI_OPTIONS = "cliOptions";
+    /** maximum number of parallel runs */
+    public static final String ARG_PARALLEL = "parallel";
+
+    /* exit status codes */
+    /** all runs succeeded */
+    public static final int EXIT_OK = 0;
+    /** at least one run failed (or was cancelled) */
+    public static final int EXIT_FAILED = 1;
+
+    /** maximum time (ms) to wait for the local service discovery */
+    private static final long DISCOVERY_TIMEOUT = 60000L;
+    /** summary table file name (tab separated values) */
+    public static final String SUMMARY_FILE = "summary.tsv";
+    /** input file extensions */
+    private static final String[] INPUT_EXTENSIONS = new String[]{".fits", ".oifits", ".fits.gz", ".oifits.gz"};
+    /** template keywords ignored as they depend on the input data */
+    private static final Set<String> DATA_KEYWORDS = new HashSet<String>(Arrays.asList(
+            ImageOiConstants.KEYWORD_TARGET, ImageOiConstants.KEYWORD_WAVE_MIN, ImageOiConstants.KEYWORD_WAVE_MAX,
+            ImageOiConstants.KEYWORD_INIT_IMG, ImageOiConstants.KEYWORD_RGL_PRIO));
+
+    /* members */
+    /** output directory */
+    private final File outputDir;
+    /** input OIFits files */
+    private final List<File> inputs;
+    /** input parameter values (keyword name / value) */
+    private final Map<String, Object> params;
+    /** selected service or null to guess it from every input */
+    private final Service service;
+    /** software options on command line or null */
+    private final String cliOptions;
+    /** maximum number of parallel runs */
+    private final int parallel;
+    /** runs (submission order) */
+    private final List<Run> runs = new ArrayList<Run>();
+
+    /**
+     * Run the batch reconstruction given by the command line arguments (blocking)
+     * @param argValues command line arguments
+     * @return exit status code (EXIT_OK or EXIT_FAILED)
+     * @throws IllegalArgumentException if one (or several) argument is missing or invalid
+     */
+    public static int run(final Map<String, String> argValues) throws IllegalArgumentException {
+        return new BatchMode(argValues).execute();
+    }
+
+    /**
+     * @param argValues command line arguments
+     * @return true if the batch mode is requested
+     */
+    public static boolean isRequested(final Map<String, String> argValues) {
+        return argValues.containsKey(ARG_BATCH);
+    }
+
+    private BatchMode(final Map<String, String> argValues) throws IllegalArgumentException {
+        // output directory:
+        final String outputArg = argValues.get(ARG_BATCH);
+        if (StringUtils.isEmpty(outputArg)) {
+            throw new IllegalArgumentException("Missing output directory (-" + ARG_BATCH + ") !");
+        }
+        this.outputDir = new File(outputArg);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create the output directory: " + outputDir.getAbsolutePath());
+        }
+
+        // inputs:
+        this.inputs = new ArrayList<File>();
+        final String inputsArg = argValues.get(ARG_INPUTS);
+        if (inputsArg != null) {
+            for (String path : inputsArg.split(File.pathSeparator)) {
+                if (!path.trim().isEmpty()) {
+                    addInput(new File(path.trim()));
+                }
+            }
+        }
+        final String openArg = argValues.get(CommandLineUtils.CLI_OPEN_KEY);
+        if (openArg != null) {
+            addInput(new File(openArg));
+        }
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("Missing input OIFits files (-" + ARG_INPUTS + " or -" + CommandLineUtils.CLI_OPEN_KEY + ") !");
+        }
+
+        // service (local services included):
+        ServiceList.waitForDiscovery(DISCOVERY_TIMEOUT);
+
+        final String software = argValues.get(ARG_SOFTWARE);
+        if (StringUtils.isEmpty(software)) {
+            this.service = null;
+        } else {
+            this.service = ServiceList.getAvailableService(software);
+            if (service == null) {
+                throw new IllegalArgumentException("Unsupported software '" + software + "' (available: " + getServiceNames() + ") !");
+            }
+        }
+        this.cliOptions = StringUtils.isEmpty(argValues.get(ARG_CLI_OPTIONS)) ? null : argValues.get(ARG_CLI_OPTIONS);
+
+        // parameter template:
+        final String paramsArg = argValues.get(ARG_PARAMS);
+        if (paramsArg == null) {
+            this.params = Collections.emptyMap();
+        } else {
+            final File paramsFile = new File(paramsArg);
+            if (!paramsFile.isFile()) {
+                throw new IllegalArgumentException("Could not load the parameter template: " + paramsFile.getAbsolutePath());
+            }
+            try {
+                this.params = loadParams(paramsFile);
+            } catch (IOException ioe) {
+                throw new IllegalArgumentException("Could not load the parameter template: " + paramsFile.getAbsolutePath(), ioe);
+            }
+        }
+
+        // parallelism:
+        final String parallelArg = argValues.get(ARG_PARALLEL);
+        if (parallelArg == null) {
+            final Service defService = (service != null) ? service : ServiceList.getPreferedService();
+            this.parallel = defService.getExecMode().getMaxParallelJobs();
+        } else {
+            try {
+                this.parallel = Integer.parseInt(parallelArg.trim());
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("Invalid parallelism (-" + ARG_PARALLEL + "): " + parallelArg);
+            }
+            if (parallel < 1) {
+                throw new IllegalArgumentException("Invalid parallelism (-" + ARG_PARALLEL + "): " + parallelArg);
+            }
+        }
+        logger.info("BatchMode: {} input(s), service = {}, parallel = {}, params = {}, output = '{}'",
+                inputs.size(), (service != null) ? service : "auto", parallel, params, outputDir.getAbsolutePath());
+    }
+
+    /**
+     * Add the given input file or all OIFits files of the given directory
+     * @param file file or directory
+     * @throws IllegalArgumentException if the file does not exist
+     */
+    private void addInput(final File file) throws IllegalArgumentException {
+        if (file.isDirectory()) {
+            final File[] files = file.listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (File child : files) {
+                    if (child.isFile() && isInputFile(child)) {
+                        inputs.add(child);
+                    }
+                }
+            }
+        } else if (file.isFile()) {
+            inputs.add(file);
+        } else {
+            throw new IllegalArgumentException("Could not load the file: " + file.getAbsolutePath());
+        }
+    }
+
+    private static boolean isInputFile(final File file) {
+        final String name = file.getName().toLowerCase();
+        for (String ext : INPUT_EXTENSIONS) {
+            if (name.endsWith(ext)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getServiceNames() {
+        final StringBuilder sb = new StringBuilder(64);
+        for (int i = 0, len = ServiceList.getAvailableServices().getSize(); i < len; i++) {
+            if (i != 0) {
+                sb.append(", ");
+            }
+            sb.append(((Service) ServiceList.getAvailableServices().getElementAt(i)).getName());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Load the input parameter values from the given template:
+     * either an OIFits file (IMAGE-OI INPUT PARAM keywords except data-dependent ones)
+     * or a text file giving one 'KEYWORD=value' per line ('#' starts a comment line)
+     * @param file template file
+     * @return keyword values (keyword name / value)
+     * @throws IOException if the template can not be read
+     * @throws IllegalArgumentException if a line is invalid
+     */
+    static Map<String, Object> loadParams(final File file) throws IOException, IllegalArgumentException {
+        final Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+        if (isInputFile(file)) {
+            final OIFitsFile template;
+            try {
+                template = OIFitsLoader.loadOIFits(OIFitsStandard.VERSION_1, null, file.getAbsolutePath());
+            } catch (FitsException fe) {
+                throw new IOException("Could not load the file : " + file.getAbsolutePath(), fe);
+            }
+            final ImageOiInputParam inputParam = template.getImageOiData().getInputParam();
+
+            for (KeywordMeta keywordMeta : inputParam.getKeywordsDesc().values()) {
+                final String keyword = keywordMeta.getName();
+                if (!FitsUtils.isStandardKeyword(keyword) && !DATA_KEYWORDS.contains(keyword)) {
+                    final Object value = inputParam.getKeywordValue(keyword);
+                    if (value != null) {
+                        values.put(keyword, value);
+                    }
+                }
+            }
+            if (inputParam.hasHeaderCards()) {
+                // software specific keywords:
+                for (FitsHeaderCard card : inputParam.getHeaderCards()) {
+                    final String keyword = card.getKey();
+                    if (!FitsUtils.isStandardKeyword(keyword) && !DATA_KEYWORDS.contains(keyword) && !values.containsKey(keyword)) {
+                        final Object value = card.parseValue();
+                        if (value != null) {
+                            values.put(keyword, value);
+                        }
+                    }
+                }
+            }
+        } else {
+            for (String line : FileUtils.readFile(file).split("\n")) {
+                line = line.trim();
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                final int pos = line.indexOf('=');
+                if (pos <= 0) {
+                    throw new IllegalArgumentException("Invalid parameter '" + line + "' (KEYWORD=value expected)");
+                }
+                values.put(line.substring(0, pos).trim().toUpperCase(), line.substring(pos + 1).trim());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Prepare and submit all runs, wait for their termination then write the result files and the summary table
+     * @return exit status code
+     */
+    private int execute() {
+        final long start = System.nanoTime();
+        final Semaphore slots = new Semaphore(parallel);
+        final Set<String> names = new HashSet<String>();
+
+        for (File input : inputs) {
+            final Run run = new Run(runs.size() + 1, input, getUniqueName(input, names));
+            runs.add(run);
+
+            try {
+                prepare(run);
+            } catch (IOException | FitsException | IllegalArgumentException e) {
+                logger.error("Run[{}] unable to prepare the input file '{}': ", run.index, input.getAbsolutePath(), e);
+                run.failure = e;
+                continue;
+            }
+            try {
+                slots.acquire();
+            } catch (InterruptedException ie) {
+                logger.warn("BatchMode interrupted: cancel all runs");
+                JobScheduler.getInstance().cancelAll();
+                Thread.currentThread().interrupt();
+                return EXIT_FAILED;
+            }
+            try {
+                logger.info("Run[{}] submit '{}' using {}", run.index, input.getName(), run.service);
+                JobScheduler.getInstance().submit(run.service, cliOptions, run.inputFile, new BatchJobListener(run, slots), false);
+            } catch (IllegalStateException ise) {
+                logger.error("Run[{}] unable to submit the job: ", run.index, ise);
+                run.failure = ise;
+                slots.release();
+            }
+        }
+
+        // wait for all runs:
+        try {
+            slots.acquire(parallel);
+        } catch (InterruptedException ie) {
+            logger.warn("BatchMode interrupted: cancel all runs");
+            JobScheduler.getInstance().cancelAll();
+            Thread.currentThread().interrupt();
+            return EXIT_FAILED;
+        }
+
+        int failures = 0;
+        final List<ServiceResult> results = new ArrayList<ServiceResult>(runs.size());
+        for (Run run : runs) {
+            if (!run.isSuccess()) {
+                failures++;
+            }
+            results.add(run.getResult());
+        }
+        try {
+            writeSummary(results);
+        } catch (IOException ioe) {
+            logger.error("Unable to write the summary table: ", ioe);
+            failures++;
+        }
+        logger.info("BatchMode: {} run(s), {} failure(s): duration = {} s.",
+                runs.size(), failures, 1e-9d * (System.nanoTime() - start));
+
+        return (failures == 0) ? EXIT_OK : EXIT_FAILED;
+    }
+
+    /**
+     * Load the input OIFits file into a standalone IRModel, apply the parameter template and write the run input file
+     * @param run run to prepare
+     * @throws IOException if the input file can not be read or written
+     * @throws FitsException if the input file can not be read or written
+     * @throws IllegalArgumentException if a parameter is not supported by the service
+     */
+    private void prepare(final Run run) throws IOException, FitsException, IllegalArgumentException {
+        final OIFitsFile oifitsFile = OIFitsLoader.loadOIFits(OIFitsStandard.VERSION_1, null, run.input.getAbsolutePath());
+
+        final IRModel irModel = new IRModel(oifitsFile);
+        if (service != null) {
+            irModel.setSelectedService(service);
+            irModel.initSpecificParams(false);
+        }
+        irModel.setCliOptions(cliOptions);
+        run.service = irModel.getSelectedService();
+
+        final File tmpFile = (params.isEmpty()) ? irModel.prepareTempFile() : irModel.prepareTempFile(params);
+
+        // use the input name (shown in the FILE column) in the same job directory:
+        final File inputFile = Workspace.getInstance().getJobFile(tmpFile, run.name + ServiceResult.FITS_FILE_EXT);
+        Files.move(tmpFile.toPath(), inputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        run.inputFile = inputFile;
+    }
+
+    /**
+     * Copy the result OIFits file and the execution log of the given run into the output directory
+     * @param run terminated run
+     */
+    private void storeResult(final Run run) {
+        final ServiceResult result = run.result;
+        result.setIndex(run.index);
+        try {
+            result.loadOIFitsFile();
+        } catch (IOException | FitsException e) {
+            logger.warn("Run[{}] unable to load the result file: ", run.index, e);
+        }
+        try {
+            if (result.getOifitsResultFile() != null && result.getOifitsResultFile().exists()) {
+                Files.copy(result.getOifitsResultFile().toPath(), new File(outputDir, run.name + RESULT_FILE_EXT).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (result.getExecutionLogResultFile() != null && result.getExecutionLogResultFile().exists()) {
+                Files.copy(result.getExecutionLogResultFile().toPath(), new File(outputDir, run.name + LOG_FILE_EXT).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            // additional products (intermediate images, convergence tables ...):
+            final String prefix = run.inputFile.getName() + '.';
+            for (ResultAttachment attachment : result.getAttachments()) {
+                final String fileName = attachment.getFile().getName();
+                Files.copy(attachment.getFile().toPath(), new File(outputDir, run.name + '.'
+                        + (fileName.startsWith(prefix) ? fileName.substring(prefix.length()) : fileName)).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ioe) {
+            logger.error("Run[{}] unable to store the result files: ", run.index, ioe);
+            run.failure = ioe;
+        }
+    }
+
+    /**
+     * Write the summary table (one line per run, ResultSetTableModel columns) as tab separated values
+     * @param results results (submission order)
+     * @throws IOException if the file can not be written
+     */
+    private void writeSummary(final List<ServiceResult> results) throws IOException {
+        final ResultSetTableModel tableModel = new ResultSetTableModel();
+        tableModel.setResults(results, Collections.<String>emptyList());
+
+        final File summaryFile = new File(outputDir, SUMMARY_FILE);
+        final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                Files.newOutputStream(summaryFile.toPath()), StandardCharsets.UTF_8));
+        try {
+            final int nCols = tableModel.getColumnCount();
+            for (int c = 0; c < nCols; c++) {
+                if (c != 0) {
+                    writer.write('\t');
+                }
+                writer.write(tableModel.getColumnDesc(c).getName());
+            }
+            writer.write('\n');
+
+            for (int r = 0, nRows = tableModel.getRowCount(); r < nRows; r++) {
+                for (int c = 0; c < nCols; c++) {
+                    if (c != 0) {
+                        writer.write('\t');
+                    }
+                    final Object value = tableModel.getValueAt(r, c);
+                    if (value != null) {
+                        writer.write(value.toString().replace('\t', ' ').replace('\n', ' '));
+                    }
+                }
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        logger.info("Summary table written: {}", summaryFile.getAbsolutePath());
+    }
+
+    /**
+     * @param input input file
+     * @param names names already used
+     * @return unique run name based on the input file name (without extension)
+     */
+    private static String getUniqueName(final File input, final Set<String> names) {
+        String base = input.getName();
+        final String lower = base.toLowerCase();
+        for (String ext : INPUT_EXTENSIONS) {
+            if (lower.endsWith(ext)) {
+                base = base.substring(0, base.length() - ext.length());
+                break;
+            }
+        }
+        String name = base;
+        for (int i = 2; !names.add(name); i++) {
+            name = base + "_" + i;
+        }
+        return name;
+    }
+
+    /**
+     * One batch run (one input file)
+     */
+    private static final class Run {
+
+        /** run index (1..n) */
+        final int index;
+        /** original input file */
+        final File input;
+        /** unique run name used by output files */
+        final String name;
+        /** service (selected or guessed) */
+        Service service = null;
+        /** run input file (template applied) */
+        File inputFile = null;
+        /** service result or null */
+        volatile ServiceResult result = null;
+        /** failure or null */
+        volatile Exception failure = null;
+
+        Run(final int index, final File input, final String name) {
+            this.index = index;
+            this.input = input;
+            this.name = name;
+        }
+
+        boolean isSuccess() {
+            return (failure == null) && (result != null) && result.isValid() && !result.isCancelled();
+        }
+
+        /**
+         * @return service result or a failed result giving the error message
+         */
+        ServiceResult getResult() {
+            if (result != null) {
+                return result;
+            }
+            final ServiceResult failed = new ServiceResult((inputFile != null) ? inputFile : input);
+            failed.setService(service);
+            failed.setIndex(index);
+            failed.setValid(false);
+            failed.setErrorMessage((failure != null) ? failure.getMessage() : "Cancelled");
+            return failed;
+        }
+    }
+
+    /**
+     * Job listener storing run results (called by a scheduler worker thread)
+     */
+    private final class BatchJobListener implements ServiceJobListener {
+
+        private final Run run;
+        private final Semaphore slots;
+
+        BatchJobListener(final Run run, final Semaphore slots) {
+            this.run = run;
+            this.slots = slots;
+        }
+
+        @Override
+        public void jobDone(final ServiceJob job, final ServiceResult result) {
+            try {
+                run.result = result;
+                storeResult(run);
+                if (result.isValid()) {
+                    logger.info("Run[{}] done: {} s.", run.index, result.getJobDuration());
+                } else {
+                    logger.error("Run[{}] failed: {}", run.index, result.getErrorMessage());
+                }
+            } finally {
+                slots.release();
+            }
+        }
+
+        @Override
+        public void jobCancelled(final ServiceJob job, final ServiceResult result) {
+            try {
+                logger.warn("Run[{}] cancelled.", run.index);
+                if (result != null) {
+                    run.result = result;
+                    storeResult(run);
+                }
+            } finally {
+                slots.release();
+            }
+        }
+
+        @Override
+        public void jobFailed(final ServiceJob job, final Exception e) {
+            try {
+                logger.error("Run[{}] failed: ", run.index, e);
+                run.failure = e;
+            } finally {
+                slots.release();
+            }
+        }
+    }
+}
@@ -26,10 +26,12 @@ import fr.jmmc.oimaging.gui.MainPanel;
 import fr.jmmc.oimaging.gui.PreferencePanel;
 import fr.jmmc.oimaging.gui.ViewerPanel.ProcessImageOperation;
 import fr.jmmc.oimaging.gui.action.LoadResultAsInputAction;
+import fr.jmmc.oimaging.gui.action.CancelRunAction;
 import fr.jmmc.oimaging.gui.action.CreateImageAction;
 import fr.jmmc.oimaging.gui.action.DeleteSelectionAction;
 import fr.jmmc.oimaging.gui.action.ExportFitsImageAction;
 import fr.jmmc.oimaging.gui.action.ExportOIFitsAction;
+import fr.jmmc.oimaging.gui.action.ForceRunAction;
 import fr.jmmc.oimaging.gui.action.LoadFitsImageAction;
 import fr.jmmc.oimaging.gui.action.LoadOIFitsAction;
 import fr.jmmc.oimaging.gui.action.RunMoreIterationsAction;
@@ -38,11 +40,16 @@ import fr.jmmc.oimaging.gui.action.ProcessImageAction;
 import fr.jmmc.oimaging.gui.action.OIFitsBrowserAction;
 import fr.jmmc.oimaging.gui.action.RunAction;
 import fr.jmmc.oimaging.gui.action.SetAsInitImgAction;
+import fr.jmmc.oimaging.gui.action.SweepAction;
 import fr.jmmc.oimaging.gui.action.SwitchTabAction;
 import fr.jmmc.oimaging.gui.action.TableEditorAction;
 import fr.jmmc.oimaging.interop.SendFitsAction;
 import fr.jmmc.oimaging.interop.SendOIFitsAction;
 import fr.jmmc.oimaging.model.IRModelManager;
+import fr.jmmc.oimaging.services.JobScheduler;
+import fr.jmmc.oimaging.services.RemoteExecutionMode;
+import fr.jmmc.oimaging.services.ServiceList;
+import fr.jmmc.oimaging.services.Workspace;
 import fr.jmmc.oitools.image.FitsImageWriter;
 import fr.jmmc.oitools.model.DataModel;
 import java.awt.BorderLayout;
@@ -59,6 +66,8 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -123,7 +132,8 @@ public final class OImaging extends App {
     @Override
     protected void initServices() throws IllegalStateException, IllegalArgumentException {
         // Initialize tasks and the task executor :
-        TaskSwingWorkerExecutor.start(2); // 2 threads (1 compute reconstruction and 1 image viewer)
+        // note: reconstructions are executed by the JobScheduler (its own pools)
+        TaskSwingWorkerExecutor.start(2); // 2 threads (1 background task and 1 image viewer)
 
         // Initialize the parallel job executor:
         ParallelJobExecutor.getInstance();
@@ -136,6 +146,19 @@ public final class OImaging extends App {
 
         // disable update of fitsImage identifiers when writing oiFitsFile
         FitsImageWriter.setUpdateFitsImageIdentifierOnWrite(false);
+
+        // remote servers (load balancing) given by preferences:
+        final Preferences preferences = Preferences.getInstance();
+        RemoteExecutionMode.setEndpoints(preferences.getRemoteEndpoints());
+        preferences.addObserver(new Observer() {
+            @Override
+            public void update(final Observable o, final Object arg) {
+                RemoteExecutionMode.setEndpoints(preferences.getRemoteEndpoints());
+            }
+        });
+
+        // probe local software programs in background:
+        ServiceList.start();
     }
 
     /**
@@ -186,6 +209,9 @@ public final class OImaging extends App {
                 // reset IRModelManager to fire an IRMODEL changed event to all registered listeners:
                 IRModelManager.getInstance().start();
 
+                // re-attach remote jobs still running (or terminated) since the previous session:
+                RunAction.reattachJobs();
+
                 // headless mode:
                 final JFrame appFrame = App.getExistingFrame();
                 if (appFrame != null) {
@@ -252,10 +278,16 @@ public final class OImaging extends App {
      */
     @Override
     public void cleanup() {
+        // cancel any pending job:
+        JobScheduler.getInstance().shutdown();
+
         // dispose GUI:
         if (this.mainPanel != null) {
             this.mainPanel.dispose();
         }
+
+        // delete temporary job files:
+        Workspace.getInstance().shutdown();
     }
 
     /**
@@ -336,6 +368,9 @@ public final class OImaging extends App {
 
         // Processing menu :
         new RunAction();
+        new ForceRunAction();
+        new CancelRunAction();
+        new SweepAction();
         new LoadResultAsInputAction();
         new RunMoreIterationsAction();
         new SetAsInitImgAction();
@@ -452,9 +487,28 @@ public final class OImaging extends App {
         };
     }
 
+    /**
+     * Add custom command line arguments (batch mode)
+     */
+    @Override
+    protected void defineCustomCommandLineArgumentsAndHelp() {
+        addCustomCommandLineArgument(BatchMode.ARG_BATCH, true,
+                "run the batch reconstruction and write results into the given output directory", ExecMode.TTY);
+        addCustomCommandLineArgument(BatchMode.ARG_INPUTS, true,
+                "input OIFits files or directories (separated by '" + File.pathSeparator + "')", ExecMode.TTY);
+        addCustomCommandLineArgument(BatchMode.ARG_PARAMS, true,
+                "input parameter template (OIFits file or text file giving KEYWORD=value lines)", ExecMode.TTY);
+        addCustomCommandLineArgument(BatchMode.ARG_SOFTWARE, true,
+                "software to use (guessed from every input file if missing)", ExecMode.TTY);
+        addCustomCommandLineArgument(BatchMode.ARG_CLI_OPTIONS, true,
+                "software options on command line", ExecMode.TTY);
+        addCustomCommandLineArgument(BatchMode.ARG_PARALLEL, true,
+                "maximum number of parallel runs (execution mode limit by default)", ExecMode.TTY);
+    }
+
     /**
      * check the arguments given by the user in TTY mode
-     * and begin the exportation in pdf ,png, jpg or all if possible
+     * and run the batch reconstruction if requested (exit status 1 if any run failed)
      * Note: executed by the thread [main]: must block until asynchronous task finishes !
      * @throws IllegalArgumentException if one (or several) argument is missing or invalid
      */
@@ -463,6 +517,16 @@ public final class OImaging extends App {
         final Map<String, String> argValues = getCommandLineArguments();
         logger.debug("processShellCommandLine: {}", argValues);
 
+        if (BatchMode.isRequested(argValues)) {
+            final int status = BatchMode.run(argValues);
+            logger.debug("processShellCommandLine: done (status = {}).", status);
+
+            if (status != BatchMode.EXIT_OK) {
+                App.exit(status);
+            }
+            return;
+        }
+
         // note: open file is NOT done in background ...
         final String fileArgument = argValues.get(CommandLineUtils.CLI_OPEN_KEY);
 
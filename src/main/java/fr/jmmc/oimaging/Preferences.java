@@ -27,6 +27,10 @@ public class Preferences extends fr.jmmc.oiexplorer.core.Preferences {
     public static final String RESULTS_COLUMNS_ALL = "results.columns.all";
     /** prefix for visible results columns */
     public static final String RESULTS_COLUMNS_VISIBLE = "results.columns.visible";
+    /** convergence threshold (relative change between intermediate images) to stop running jobs (0 = disabled) */
+    public static final String CONVERGENCE_THRESHOLD = "run.convergence.threshold";
+    /** remote UWS endpoints ('url' or 'url|maxJobs' separated by commas) or empty to use the default server */
+    public static final String REMOTE_ENDPOINTS = "run.remote.endpoints";
 
     /* following names are raw string values, not constants (may be deprecated or unknown values) */
     public static final List<String> COLUMNS_DEFAULT_ALL = generateAllColumns();
@@ -92,6 +96,12 @@ public class Preferences extends fr.jmmc.oiexplorer.core.Preferences {
 
         setDefaultPreference(RESULTS_COLUMNS_ALL, COLUMNS_DEFAULT_ALL);
         setDefaultPreference(RESULTS_COLUMNS_VISIBLE, COLUMNS_DEFAULT_VISIBLE);
+
+        // automatic stop of converged runs is disabled by default:
+        setDefaultPreference(CONVERGENCE_THRESHOLD, Double.valueOf(0.0));
+
+        // default server only:
+        setDefaultPreference(REMOTE_ENDPOINTS, "");
     }
 
     @Override
@@ -122,6 +132,21 @@ public class Preferences extends fr.jmmc.oiexplorer.core.Preferences {
         setPreferenceAndSaveToFile(RESULTS_COLUMNS_VISIBLE, visibleColumns);
     }
 
+    /**
+     * @return convergence threshold to stop running jobs or 0 if disabled
+     */
+    public double getConvergenceThreshold() {
+        return Math.max(0.0, getPreferenceAsDouble(CONVERGENCE_THRESHOLD));
+    }
+
+    /**
+     * @return remote UWS endpoints ('url' or 'url|maxJobs' separated by commas) or empty to use the default server
+     */
+    public String getRemoteEndpoints() {
+        final String endpoints = getPreference(REMOTE_ENDPOINTS);
+        return (endpoints != null) ? endpoints.trim() : "";
+    }
+
     private static List<String> generateAllColumns() {
         // All results columns order list, as of default (collected by FEST OImagingDocJUnitTest @ 2021.12.21)
         final List<String> COLUMNS_ALL = Arrays.asList(
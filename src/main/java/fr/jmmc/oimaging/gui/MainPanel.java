@@ -8,6 +8,7 @@ package fr.jmmc.oimaging.gui;
 import fr.jmmc.jmcs.App;
 import fr.jmmc.jmcs.gui.action.ActionRegistrar;
 import fr.jmmc.jmcs.gui.component.MessagePane;
+import fr.jmmc.jmcs.gui.component.StatusBar;
 import fr.jmmc.jmcs.gui.task.TaskSwingWorkerExecutor;
 import fr.jmmc.jmcs.gui.util.FieldSliderAdapter;
 import fr.jmmc.jmcs.gui.util.SwingUtils;
@@ -16,12 +17,15 @@ import fr.jmmc.oiexplorer.core.model.OIFitsCollectionManager;
 import fr.jmmc.oiexplorer.core.model.oi.Plot;
 import fr.jmmc.oiexplorer.core.model.oi.SubsetDefinition;
 import fr.jmmc.oiexplorer.core.model.plot.PlotDefinition;
+import fr.jmmc.oimaging.gui.action.CancelRunAction;
 import fr.jmmc.oimaging.gui.action.DeleteSelectionAction;
 import fr.jmmc.oimaging.gui.action.ExportFitsImageAction;
 import fr.jmmc.oimaging.gui.action.ExportOIFitsAction;
 import fr.jmmc.oimaging.gui.action.LoadOIFitsAction;
 import fr.jmmc.oimaging.gui.action.LoadResultAsInputAction;
+import fr.jmmc.oimaging.gui.action.ForceRunAction;
 import fr.jmmc.oimaging.gui.action.RunAction;
+import fr.jmmc.oimaging.gui.action.SweepAction;
 import fr.jmmc.oimaging.gui.action.RunMoreIterationsAction;
 import fr.jmmc.oimaging.gui.action.SetAsInitImgAction;
 import fr.jmmc.oimaging.interop.SendFitsAction;
@@ -31,8 +35,12 @@ import fr.jmmc.oimaging.model.IRModelEvent;
 import fr.jmmc.oimaging.model.IRModelEventListener;
 import fr.jmmc.oimaging.model.IRModelEventType;
 import fr.jmmc.oimaging.model.IRModelManager;
+import fr.jmmc.oimaging.model.ResultListChange;
+import fr.jmmc.oimaging.services.ResultStore;
+import fr.jmmc.oimaging.services.ServiceJob;
 import fr.jmmc.oimaging.services.ServiceList;
 import fr.jmmc.oimaging.services.ServiceResult;
+import fr.jmmc.oimaging.services.Workspace;
 import fr.jmmc.oitools.image.FitsImageHDU;
 import fr.jmmc.oitools.image.FitsUnit;
 import fr.jmmc.oitools.image.ImageOiConstants;
@@ -90,6 +98,8 @@ public class MainPanel extends javax.swing.JPanel implements IRModelEventListene
  /* actions */
     private DeleteSelectionAction deleteSelectionAction;
     private RunAction runAction;
+    private Action forceRunAction;
+    private Action sweepAction;
     private Action exportOiFitsAction;
     private Action sendOiFitsAction;
     private Action exportFitsImageAction;
@@ -97,6 +107,8 @@ public class MainPanel extends javax.swing.JPanel implements IRModelEventListene
     private Action loadResultAsInputAction;
     private Action runMoreIterationsAction;
     private Action setAsInitImgAction;
+    /** identifier of the running job whose execution log is followed */
+    private int liveLogJobId = 0;
 
     /** Flag set to true while the GUI is being updated by model else false. */
     private boolean syncingUI = false;
@@ -302,6 +314,11 @@ public class MainPanel extends javax.swing.JPanel implements IRModelEventListene
         deleteSelectionAction = (DeleteSelectionAction) ActionRegistrar.getInstance().get(DeleteSelectionAction.className, DeleteSelectionAction.actionName);
         runAction = (RunAction) ActionRegistrar.getInstance().get(RunAction.className, RunAction.actionName);
         jButtonRun.setAction(runAction);
+        forceRunAction = ActionRegistrar.getInstance().get(ForceRunAction.className, ForceRunAction.actionName);
+        sweepAction = ActionRegistrar.getInstance().get(SweepAction.className, SweepAction.actionName);
+
+        jButtonCancelRun.setAction(ActionRegistrar.getInstance().get(CancelRunAction.className, CancelRunAction.actionName));
+        jButtonCancelRun.setText("Cancel");
 
         exportOiFitsAction = ActionRegistrar.getInstance().get(ExportOIFitsAction.className, ExportOIFitsAction.actionName);
         jButtonExportOIFits.setAction(exportOiFitsAction);
@@ -366,6 +383,7 @@ public class MainPanel extends javax.swing.JPanel implements IRModelEventListene
         softwareSettingsPanel = new fr.jmmc.oimaging.gui.SoftwareSettingsPanel();
         jPanelExecutionLog = new javax.swing.JPanel();
         jButtonRun = new javax.swing.JButton();
+        jButtonCancelRun = new javax.swing.JButton();
         jScrollPaneEditor = new javax.swing.JScrollPane();
         jEditorPane = new javax.swing.JEditorPane();
         viewerPanelInput = new fr.jmmc.oimaging.gui.ViewerPanel();
@@ -641,6 +659,16 @@ public class MainPanel extends javax.swing.JPanel implements IRModelEventListene
         gridBagConstraints.insets = new java.awt.Insets(2, 2, 2, 2);
         jPanelExecutionLog.add(jButtonRun, gridBagConstraints);
 
+        jButtonCancelRun.setText("[Cancel]");
+        jButtonCancelRun.setName("jButtonCancelRun"); // NOI18N
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 1;
+        gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
+        gridBagConstraints.weightx = 0.5;
+        gridBagConstraints.insets = new java.awt.Insets(2, 2, 2, 2);
+        jPanelExecutionLog.add(jButtonCancelRun, gridBagConstraints);
+
         jScrollPaneEditor.setMinimumSize(new java.awt.Dimension(100, 100));
         jScrollPaneEditor.setPreferredSize(new java.awt.Dimension(100, 100));
 
@@ -796,6 +824,9 @@ public class MainPanel extends javax.swing.JPanel implements IRModelEventListene
                     "Do you want to delete " + nSelected + " result(s) ?")) {
 
                 currentModel.removeServiceResults(jTablePanel.getSelectedRows());
+
+                StatusBar.show(nSelected + " result(s) deleted (" + Workspace.getInstance().getStatistics()
+                        + ", " + ResultStore.getInstance().getStatistics() + ").");
             }
         }
     }
@@ -864,6 +895,7 @@ public class MainPanel extends javax.swing.JPanel implements IRModelEventListene
     }
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JButton jButtonCancelRun;
     private javax.swing.JButton jButtonCompare;
     private javax.swing.JButton jButtonExportOIFits;
     private javax.swing.JButton jButtonLoadAsInput;
@@ -918,6 +950,12 @@ public class MainPanel extends javax.swing.JPanel implements IRModelEventListene
     public void onProcess(final IRModelEvent event) {
         logger.debug("onProcess {}", event);
 
+        if (!IRModelManager.getInstance().isLatest(event)) {
+            // a newer event of the same type is pending:
+            logger.debug("onProcess {} - stale event skipped", event);
+            return;
+        }
+
         switch (event.getType()) {
             case IRMODEL_CHANGED:
                 syncUI(event);
@@ -1101,6 +1139,8 @@ public class MainPanel extends javax.swing.JPanel implements IRModelEventListene
             // TODO make this idea more global and on an higher level Manager.setValid(true) e.g. ?
             final boolean modelOk = failures.isEmpty();
             runAction.setEnabled(modelOk);
+            forceRunAction.setEnabled(modelOk);
+            sweepAction.setEnabled(modelOk);
 
             final StringBuffer sb = new StringBuffer(256);
             if (modelOk) {
@@ -1115,6 +1155,8 @@ public class MainPanel extends javax.swing.JPanel implements IRModelEventListene
             // model result list:
             final List<ServiceResult> modelResults = currentModel.getResultSets();
             final ServiceResult lastResult = currentModel.getLastResultSet();
+            // pending result list changes (always consumed):
+            final List<ResultListChange> resultListChanges = currentModel.pollResultListChanges();
 
             // set the slider results boundaries
             if (modelResults.size() > 1) {
@@ -1138,19 +1180,29 @@ public class MainPanel extends javax.swing.JPanel implements IRModelEventListene
                     selectTwoTabsDisplayed(TABS.INPUT.ordinal());
                     break;
                 case IRMODEL_RESULT_LIST_CHANGED:
+                    // results only updated (keywords, lazy loading) ?
+                    boolean updateOnly = !resultListChanges.isEmpty();
+                    for (ResultListChange change : resultListChanges) {
+                        if (change.getKind() != ResultListChange.Kind.UPDATED) {
+                            updateOnly = false;
+                            break;
+                        }
+                    }
                     if (!modelResults.isEmpty()) {
-                        // update result table:
-                        jTablePanel.setResults(modelResults);
+                        // update result table (affected rows only):
+                        jTablePanel.updateResults(modelResults, resultListChanges);
                         showTablePanel(true);
 
-                        if (lastResult != null) {
+                        if (lastResult != null && !updateOnly) {
                             jTablePanel.setSelectedRow(lastResult);
 
                             // update input display because init image changed:
                             viewerPanelInput.displayModel(currentModel);
                         }
                     }
-                    selectTwoTabsDisplayed(TABS.RESULTS.ordinal());
+                    if (!updateOnly) {
+                        selectTwoTabsDisplayed(TABS.RESULTS.ordinal());
+                    }
                     break;
                 default:
                     break;
@@ -1164,6 +1216,42 @@ public class MainPanel extends javax.swing.JPanel implements IRModelEventListene
         return viewerPanelInput;
     }
 
+    /**
+     * Append the given log chunk of a running job to the execution log of the results viewer.
+     * The most recently started job is followed until another result is displayed.
+     * @param job running job
+     * @param chunk appended text
+     */
+    public void appendExecutionLog(final ServiceJob job, final String chunk) {
+        if (followJob(job)) {
+            viewerPanelResults.appendExecutionLog(chunk);
+        }
+    }
+
+    /**
+     * Display the given intermediate image of a running job as a live preview in the results viewer.
+     * The most recently started job is followed until another result is displayed.
+     * @param job running job
+     * @param hdu intermediate image
+     */
+    public void displaySnapshot(final ServiceJob job, final FitsImageHDU hdu) {
+        if (followJob(job)) {
+            viewerPanelResults.displaySnapshot(hdu);
+        }
+    }
+
+    /**
+     * @param job running job
+     * @return true if the results viewer follows the given job
+     */
+    private boolean followJob(final ServiceJob job) {
+        if (job.getId() > liveLogJobId) {
+            liveLogJobId = job.getId();
+            viewerPanelResults.startExecutionLogTail("Running job #" + job.getId() + " (" + job.getService() + ") ...");
+        }
+        return (job.getId() == liveLogJobId);
+    }
+
     /** return the active viewer panel. based on active tab.
      * @return viewerPanelInput, or viewerPanelResults, or null when no tabs selected (it should never happen).
      */
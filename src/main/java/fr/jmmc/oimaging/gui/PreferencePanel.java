@@ -86,6 +86,24 @@ public final class PreferencePanel extends javax.swing.JPanel implements Observe
                 }
             }
         });
+
+        this.jFieldConvergenceThreshold.addPropertyChangeListener("value", new PropertyChangeListener() {
+            @Override
+            public void propertyChange(final PropertyChangeEvent evt) {
+                final double thresholdNew = ((Number) jFieldConvergenceThreshold.getValue()).doubleValue();
+
+                if (thresholdNew < 0.0) {
+                    // invalid value :
+                    jFieldConvergenceThreshold.setValue(myPreferences.getPreferenceAsDouble(Preferences.CONVERGENCE_THRESHOLD));
+                }
+                try {
+                    // will fire triggerObserversNotification so update() will be called
+                    myPreferences.setPreference(Preferences.CONVERGENCE_THRESHOLD, Double.valueOf(((Number) jFieldConvergenceThreshold.getValue()).doubleValue()));
+                } catch (PreferencesException pe) {
+                    logger.error("property failure : ", pe);
+                }
+            }
+        });
     }
 
     /**
@@ -124,6 +142,11 @@ public final class PreferencePanel extends javax.swing.JPanel implements Observe
         jPanelPrefs = new javax.swing.JPanel();
         jLabelTargetSep = new javax.swing.JLabel();
         jFieldTargetSep = new javax.swing.JFormattedTextField();
+        jPanelRun = new javax.swing.JPanel();
+        jLabelConvergenceThreshold = new javax.swing.JLabel();
+        jFieldConvergenceThreshold = new javax.swing.JFormattedTextField();
+        jLabelRemoteEndpoints = new javax.swing.JLabel();
+        jFieldRemoteEndpoints = new javax.swing.JTextField();
         jPanelCommonPreferencesView = new fr.jmmc.jmcs.gui.component.CommonPreferencesView();
 
         setLayout(new javax.swing.BoxLayout(this, javax.swing.BoxLayout.LINE_AXIS));
@@ -243,6 +266,55 @@ public final class PreferencePanel extends javax.swing.JPanel implements Observe
         jPanelPrefs.add(jFieldTargetSep, gridBagConstraints);
 
         jPanelLayout.add(jPanelPrefs);
+
+        jPanelRun.setBorder(javax.swing.BorderFactory.createTitledBorder("Run"));
+        jPanelRun.setLayout(new java.awt.GridBagLayout());
+
+        jLabelConvergenceThreshold.setText("Auto-stop threshold (0 = off)");
+        jLabelConvergenceThreshold.setToolTipText("Running jobs are stopped once the change between intermediate images stays below this value");
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 0;
+        gridBagConstraints.anchor = java.awt.GridBagConstraints.EAST;
+        gridBagConstraints.insets = new java.awt.Insets(2, 2, 2, 6);
+        jPanelRun.add(jLabelConvergenceThreshold, gridBagConstraints);
+
+        jFieldConvergenceThreshold.setColumns(7);
+        jFieldConvergenceThreshold.setFormatterFactory(new javax.swing.text.DefaultFormatterFactory(new javax.swing.text.NumberFormatter(new java.text.DecimalFormat("0.0#####"))));
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 1;
+        gridBagConstraints.gridy = 0;
+        gridBagConstraints.insets = new java.awt.Insets(0, 0, 2, 2);
+        jPanelRun.add(jFieldConvergenceThreshold, gridBagConstraints);
+
+        jLabelRemoteEndpoints.setText("Remote servers");
+        jLabelRemoteEndpoints.setToolTipText("OImaging-uws servers ('url' or 'url|maxJobs' separated by commas); empty to use the default server");
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 1;
+        gridBagConstraints.anchor = java.awt.GridBagConstraints.EAST;
+        gridBagConstraints.insets = new java.awt.Insets(2, 2, 2, 6);
+        jPanelRun.add(jLabelRemoteEndpoints, gridBagConstraints);
+
+        jFieldRemoteEndpoints.setColumns(30);
+        jFieldRemoteEndpoints.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                jFieldRemoteEndpointsActionPerformed(evt);
+            }
+        });
+        jFieldRemoteEndpoints.addFocusListener(new java.awt.event.FocusAdapter() {
+            public void focusLost(java.awt.event.FocusEvent evt) {
+                jFieldRemoteEndpointsFocusLost(evt);
+            }
+        });
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 1;
+        gridBagConstraints.gridy = 1;
+        gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
+        gridBagConstraints.insets = new java.awt.Insets(0, 0, 2, 2);
+        jPanelRun.add(jFieldRemoteEndpoints, gridBagConstraints);
+
+        jPanelLayout.add(jPanelRun);
         jPanelLayout.add(jPanelCommonPreferencesView);
 
         jScrollPane.setViewportView(jPanelLayout);
@@ -277,22 +349,47 @@ public final class PreferencePanel extends javax.swing.JPanel implements Observe
         }
     }//GEN-LAST:event_jComboBoxInterpolationActionPerformed
 
+    private void jFieldRemoteEndpointsActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jFieldRemoteEndpointsActionPerformed
+        updateRemoteEndpoints();
+    }//GEN-LAST:event_jFieldRemoteEndpointsActionPerformed
+
+    private void jFieldRemoteEndpointsFocusLost(java.awt.event.FocusEvent evt) {//GEN-FIRST:event_jFieldRemoteEndpointsFocusLost
+        updateRemoteEndpoints();
+    }//GEN-LAST:event_jFieldRemoteEndpointsFocusLost
+
+    private void updateRemoteEndpoints() {
+        final String endpoints = this.jFieldRemoteEndpoints.getText().trim();
+        if (!endpoints.equals(this.myPreferences.getRemoteEndpoints())) {
+            try {
+                // will fire triggerObserversNotification so update() will be called
+                this.myPreferences.setPreference(Preferences.REMOTE_ENDPOINTS, endpoints);
+            } catch (PreferencesException pe) {
+                logger.error("property failure : ", pe);
+            }
+        }
+    }
+
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private fr.jmmc.oiexplorer.core.gui.ChartPreferencesView chartPreferencesView;
     private javax.swing.JButton jButtonResultsTableEditor;
     private javax.swing.JComboBox jComboBoxColorScale;
     private javax.swing.JComboBox jComboBoxInterpolation;
     private javax.swing.JComboBox jComboBoxLUT;
+    private javax.swing.JFormattedTextField jFieldConvergenceThreshold;
+    private javax.swing.JTextField jFieldRemoteEndpoints;
     private javax.swing.JFormattedTextField jFieldTargetSep;
     private javax.swing.JLabel jLabelColorScale;
+    private javax.swing.JLabel jLabelConvergenceThreshold;
     private javax.swing.JLabel jLabelInterpolation;
     private javax.swing.JLabel jLabelLutTable;
+    private javax.swing.JLabel jLabelRemoteEndpoints;
     private javax.swing.JLabel jLabelResultsTableEditor;
     private javax.swing.JLabel jLabelTargetSep;
     private fr.jmmc.jmcs.gui.component.CommonPreferencesView jPanelCommonPreferencesView;
     private javax.swing.JPanel jPanelLayout;
     private javax.swing.JPanel jPanelModelImage;
     private javax.swing.JPanel jPanelPrefs;
+    private javax.swing.JPanel jPanelRun;
     private javax.swing.JPanel jPanelTableOfResults;
     private javax.swing.JScrollPane jScrollPane;
     // End of variables declaration//GEN-END:variables
@@ -313,5 +410,7 @@ public final class PreferencePanel extends javax.swing.JPanel implements Observe
 
         // read prefs to set states of GUI elements
         this.jFieldTargetSep.setValue(this.myPreferences.getPreferenceAsDouble(Preferences.TARGET_MATCHER_SEPARATION));
+        this.jFieldConvergenceThreshold.setValue(this.myPreferences.getPreferenceAsDouble(Preferences.CONVERGENCE_THRESHOLD));
+        this.jFieldRemoteEndpoints.setText(this.myPreferences.getRemoteEndpoints());
     }
 }
@@ -13,6 +13,7 @@ import fr.jmmc.jmcs.util.NumberUtils;
 import fr.jmmc.oimaging.Preferences;
 import fr.jmmc.oimaging.gui.action.TableEditorAction;
 import static fr.jmmc.oimaging.model.IRModel.KEYWORD_RATING;
+import fr.jmmc.oimaging.model.ResultListChange;
 import fr.jmmc.oimaging.model.ResultSetTableModel;
 import fr.jmmc.oimaging.model.RatingCell;
 import fr.jmmc.oimaging.services.ServiceResult;
@@ -254,6 +255,52 @@ public final class ResultSetTablePanel extends javax.swing.JPanel implements Obs
         final List<String> prevAllColumns = myPreferences.getResultsAllColumns();
         getTableModel().setResults(results, prevAllColumns);
 
+        updateColumnsPreferences(prevAllColumns);
+    }
+
+    /**
+     * Apply the given result list changes to the table: only affected rows are updated
+     * and only new columns are merged. Fall back to setResults() on reset or inconsistency.
+     * @param results current result list of the model
+     * @param changes result list changes since the last update (IRModel.pollResultListChanges())
+     */
+    public void updateResults(final List<ServiceResult> results, final List<ResultListChange> changes) {
+        final ResultSetTableModel tableModel = getTableModel();
+        final List<String> prevAllColumns = myPreferences.getResultsAllColumns();
+        boolean columnsChanged = false;
+
+        for (ResultListChange change : changes) {
+            switch (change.getKind()) {
+                case ADDED:
+                    columnsChanged |= tableModel.addResults(change.getResults());
+                    break;
+                case REMOVED:
+                    tableModel.removeResults(change.getResults());
+                    break;
+                case UPDATED:
+                    columnsChanged |= tableModel.updateResults(change.getResults());
+                    break;
+                case RESET:
+                default:
+                    setResults(results);
+                    return;
+            }
+        }
+        if (tableModel.getRowCount() != results.size()) {
+            logger.debug("updateResults: table out of sync ({} rows / {} results), reset", tableModel.getRowCount(), results.size());
+            setResults(results);
+            return;
+        }
+        if (columnsChanged) {
+            updateColumnsPreferences(prevAllColumns);
+        }
+    }
+
+    /**
+     * Update all columns preferences if needed and show new columns
+     * @param prevAllColumns all columns before the table model update
+     */
+    private void updateColumnsPreferences(final List<String> prevAllColumns) {
         // Update all columns if needed:
         final List<String> newAllColumns = getTableModel().getColumnNames();
 
@@ -45,10 +45,13 @@ import java.awt.GridLayout;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -100,6 +103,9 @@ public class ViewerPanel extends javax.swing.JPanel implements ChangeListener {
     /** Flag set to true while the GUI is being updated by model else false. */
     private boolean syncingUI = false;
 
+    /** Flag set to true while the execution log shows the live log of a running job */
+    private boolean liveExecutionLog = false;
+
     public enum SHOW_MODE {
         MODEL,
         RESULT,
@@ -294,8 +300,60 @@ public class ViewerPanel extends javax.swing.JPanel implements ChangeListener {
         setTabMode(SHOW_MODE.MODEL);
     }
 
+    /**
+     * Show the live execution log of a running job: chunks are then appended by appendExecutionLog()
+     * until another result is displayed.
+     * @param header first line describing the running job
+     */
+    public void startExecutionLogTail(final String header) {
+        liveExecutionLog = true;
+        jEditorPaneExecutionLog.setText(header + "\n");
+    }
+
+    /**
+     * @return true if the execution log shows the live log of a running job
+     */
+    public boolean isExecutionLogTail() {
+        return liveExecutionLog;
+    }
+
+    /**
+     * Append the given chunk to the live execution log (no reload of the whole text)
+     * @param chunk text to append
+     */
+    public void appendExecutionLog(final String chunk) {
+        if (liveExecutionLog) {
+            final Document doc = jEditorPaneExecutionLog.getDocument();
+            try {
+                doc.insertString(doc.getLength(), chunk, null);
+                // follow the end of the log:
+                jEditorPaneExecutionLog.setCaretPosition(doc.getLength());
+            } catch (BadLocationException ble) {
+                logger.warn("appendExecutionLog: failure", ble);
+            }
+        }
+    }
+
+    /**
+     * Display the given intermediate image of the running job as a live preview
+     * (only while the live execution log is shown)
+     * @param hdu intermediate image
+     */
+    public void displaySnapshot(final FitsImageHDU hdu) {
+        if (liveExecutionLog) {
+            if (getShowMode() != SHOW_MODE.RESULT) {
+                setShowMode(SHOW_MODE.RESULT);
+                // Remove the grid view if any
+                jPanelImage.removeAll();
+                jPanelImage.setLayout(new BorderLayout());
+            }
+            displayImage(Collections.singletonList(hdu), hdu);
+        }
+    }
+
     public void displayResult(ServiceResult result) {
         setShowMode(SHOW_MODE.RESULT);
+        liveExecutionLog = false;
 
         // Remove the grid view if any
         jPanelImage.removeAll();
@@ -351,6 +409,7 @@ public class ViewerPanel extends javax.swing.JPanel implements ChangeListener {
     }
 
     public void displayGrid(List<ServiceResult> results) {
+        liveExecutionLog = false;
         setShowMode(SHOW_MODE.GRID);
 
         if (!results.isEmpty()) {
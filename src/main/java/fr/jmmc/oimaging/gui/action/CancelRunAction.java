@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.gui.action;
+
+import fr.jmmc.jmcs.gui.action.RegisteredAction;
+import fr.jmmc.jmcs.gui.component.StatusBar;
+import fr.jmmc.oimaging.model.IRModelManager;
+import fr.jmmc.oimaging.services.JobScheduler;
+import java.awt.event.ActionEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cancel all queued or running reconstruction jobs.
+ */
+public final class CancelRunAction extends RegisteredAction {
+
+    /** default serial UID for Serializable interface */
+    private static final long serialVersionUID = 1;
+    /** Class name. This name is used to register to the ActionRegistrar */
+    public final static String className = CancelRunAction.class.getName();
+    /** Action name. This name is used to register to the ActionRegistrar */
+    public final static String actionName = "cancelRun";
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(className);
+
+    /**
+     * Public constructor that automatically register the action in RegisteredAction.
+     */
+    public CancelRunAction() {
+        super(className, actionName);
+        // enabled while jobs are running:
+        setEnabled(false);
+    }
+
+    /**
+     * Handle the action event
+     * @param evt action event
+     */
+    @Override
+    public void actionPerformed(final ActionEvent evt) {
+        logger.debug("actionPerformed");
+
+        final int nJobs = JobScheduler.getInstance().getActiveJobCount();
+        if (nJobs != 0) {
+            JobScheduler.getInstance().cancelAll();
+            StatusBar.show("Cancelling " + nJobs + " process(es).");
+        }
+        RunAction.updateRunningState(IRModelManager.getInstance().getIRModel());
+    }
+}
@@ -0,0 +1,24 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.gui.action;
+
+/**
+ * Run the image reconstruction even if an identical run is in the result cache.
+ */
+public final class ForceRunAction extends RunAction {
+
+    /** default serial UID for Serializable interface */
+    private static final long serialVersionUID = 1;
+    /** Class name. This name is used to register to the ActionRegistrar */
+    public final static String className = ForceRunAction.class.getName();
+    /** Action name. This name is used to register to the ActionRegistrar */
+    public static final String actionName = "forceRun";
+
+    /**
+     * Public constructor that automatically register the action in RegisteredAction.
+     */
+    public ForceRunAction() {
+        super(className, actionName, true);
+    }
+}
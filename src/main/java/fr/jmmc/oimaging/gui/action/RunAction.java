@@ -9,19 +9,35 @@ import fr.jmmc.jmcs.gui.component.MessagePane;
 import fr.jmmc.jmcs.gui.component.StatusBar;
 import fr.jmmc.jmcs.gui.task.Task;
 import fr.jmmc.jmcs.gui.task.TaskSwingWorker;
-import fr.jmmc.jmcs.gui.task.TaskSwingWorkerExecutor;
+import fr.jmmc.jmcs.gui.util.SwingUtils;
 import fr.jmmc.jmcs.util.ImageUtils;
+import fr.jmmc.oimaging.OImaging;
+import fr.jmmc.oimaging.Preferences;
+import fr.jmmc.oimaging.gui.MainPanel;
 import fr.jmmc.oimaging.model.IRModel;
 import fr.jmmc.oimaging.model.IRModelManager;
+import fr.jmmc.oimaging.model.RunRequest;
+import fr.jmmc.oimaging.services.ExecutionStatus;
+import fr.jmmc.oimaging.services.JobJournal;
+import fr.jmmc.oimaging.services.JobScheduler;
+import fr.jmmc.oimaging.services.RemoteExecutionMode;
+import fr.jmmc.oimaging.services.ResultCache;
+import fr.jmmc.oimaging.services.ResultStore;
 import fr.jmmc.oimaging.services.Service;
+import fr.jmmc.oimaging.services.ServiceJob;
+import fr.jmmc.oimaging.services.ServiceJobListener;
+import fr.jmmc.oimaging.services.ServiceList;
+import fr.jmmc.oimaging.services.ServiceLogListener;
 import fr.jmmc.oimaging.services.ServiceResult;
+import fr.jmmc.oimaging.services.ServiceSnapshotListener;
+import fr.jmmc.oimaging.services.ServiceStatusListener;
+import fr.jmmc.oimaging.services.Workspace;
+import fr.jmmc.oitools.image.FitsImageHDU;
 import fr.nom.tam.fits.FitsException;
 import java.awt.event.ActionEvent;
-import java.io.File;
 import java.io.IOException;
 import java.net.UnknownHostException;
-import java.util.Date;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.Action;
 import javax.swing.ImageIcon;
 import org.apache.commons.httpclient.ConnectTimeoutException;
@@ -37,151 +53,288 @@ public class RunAction extends RegisteredAction {
     public final static String className = RunAction.class.getName();
     /** Action name. This name is used to register to the ActionRegistrar */
     public static final String actionName = "run";
-    /** Task Run IR */
-    public static final Task TASK_RUN_IR = new Task("RUN_IR");
     /**
-     * Spinner icon gif to decorate "cancel" label.
+     * Spinner icon gif to decorate the "run" label while jobs are running.
      */
     private static final ImageIcon spinnerIcon = ImageUtils.loadResourceIcon("fr/jmmc/jmcs/resource/image/spinner.gif");
 
+    /** run counter (one background task per run) */
+    private static final AtomicInteger RUN_COUNTER = new AtomicInteger();
+
+    /* members */
+    /** true to ignore the result cache */
+    private final boolean forceRun;
+
     public RunAction() {
+        this(className, actionName, false);
+    }
+
+    /**
+     * Constructor for sub classes
+     * @param className class name
+     * @param actionName action name
+     * @param forceRun true to ignore the result cache
+     */
+    protected RunAction(final String className, final String actionName, final boolean forceRun) {
         super(className, actionName);
+        this.forceRun = forceRun;
     }
 
-    private void setRunningState(final IRModel irModel, boolean running) {
+    /**
+     * Update the running state of the model and action labels according to the number of active jobs
+     * @param irModel model to update
+     */
+    static void updateRunningState(final IRModel irModel) {
+        final int nJobs = JobScheduler.getInstance().getActiveJobCount();
+        final boolean running = (nJobs != 0);
+
         irModel.setRunning(running);
-        putValue(Action.NAME, (running) ? "Cancel" : "Run");
-        putValue(Action.LARGE_ICON_KEY, running ? spinnerIcon : null);
 
-        // update associated RunMoreIterationsAction label and icon
-        Action runMoreIterationsAction = ActionRegistrar.getInstance().get(
+        final Action runAction = ActionRegistrar.getInstance().get(className, actionName);
+        if (runAction != null) {
+            runAction.putValue(Action.NAME, (running) ? "Run (" + nJobs + " running)" : "Run");
+            runAction.putValue(Action.LARGE_ICON_KEY, running ? spinnerIcon : null);
+        }
+
+        // update associated RunMoreIterationsAction icon
+        final Action runMoreIterationsAction = ActionRegistrar.getInstance().get(
                 RunMoreIterationsAction.CLASS_NAME, RunMoreIterationsAction.ACTION_NAME);
         if (runMoreIterationsAction != null) {
-            runMoreIterationsAction.putValue(RunMoreIterationsAction.NAME,
-                    running ? RunMoreIterationsAction.LABEL_CANCEL : RunMoreIterationsAction.LABEL_IDLE);
             runMoreIterationsAction.putValue(Action.LARGE_ICON_KEY, running ? spinnerIcon : null);
         }
+
+        final Action cancelRunAction = ActionRegistrar.getInstance().get(CancelRunAction.className, CancelRunAction.actionName);
+        if (cancelRunAction != null) {
+            cancelRunAction.setEnabled(running);
+        }
+    }
+
+    /**
+     * Re-attach the remote jobs submitted by a previous session (job journal)
+     * and delete the server-side jobs whose results were already stored locally
+     */
+    public static void reattachJobs() {
+        final JobJournal journal = JobJournal.getInstance();
+        if (journal == null) {
+            return;
+        }
+        RemoteExecutionMode.deleteStoredJobs();
+
+        final IRModel irModel = IRModelManager.getInstance().getIRModel();
+        int n = 0;
+        for (JobJournal.Entry entry : journal.getPendingJobs()) {
+            final Service service = ServiceList.getServiceByProgram(entry.getSoftware(), RemoteExecutionMode.INSTANCE);
+            if (service == null) {
+                logger.warn("No remote service available to re-attach: {}", entry);
+                continue;
+            }
+            try {
+                JobScheduler.getInstance().reattach(service, entry, new RunJobListener(irModel));
+                n++;
+            } catch (IllegalStateException ise) {
+                logger.warn("Can't re-attach remote job: {}", entry, ise);
+            }
+        }
+        if (n != 0) {
+            updateRunningState(irModel);
+            StatusBar.show(n + " remote job(s) of the previous session re-attached.");
+        }
     }
 
     @Override
     public void actionPerformed(ActionEvent e) {
-        // TODO: make a snapshot of the required information from model
         final IRModel irModel = IRModelManager.getInstance().getIRModel();
-        if (irModel.isRunning()) {
-            // cancel job
-            TaskSwingWorkerExecutor.cancelTask(TASK_RUN_IR);
-            StatusBar.show("Process cancelled.");
-        } else {
+        try {
+            // immutable snapshot of the required information from model (edits after this point do not affect the job):
+            final RunRequest request = irModel.createRunRequest();
+
+            StatusBar.show("Spawn " + request.getService() + " process");
+            // validate, write the job input file from the snapshot and submit a new job in background:
+            new RunSwingWorker(irModel, request, forceRun).executeTask();
+
+        } catch (FitsException fe) {
+            logger.error("Can't prepare temporary file before running process", fe);
+            StatusBar.show("Can't spawn new process: " + fe.getMessage());
+        } catch (IOException ioe) {
+            logger.error("Can't prepare temporary file before running process", ioe);
+            StatusBar.show("Can't spawn new process: " + ioe.getMessage());
+        }
+        updateRunningState(irModel);
+    }
+
+    /**
+     * Validate the input, write the job input file of one run request and submit its job in background
+     */
+    private static final class RunSwingWorker extends TaskSwingWorker<ServiceJob, Void> {
+
+        /* members */
+        /** model (running state) */
+        private final IRModel irModel;
+        /** run request */
+        private final RunRequest request;
+        /** true to ignore the result cache */
+        private final boolean forceRun;
+        /** failure or null */
+        private volatile Exception failure = null;
+
+        RunSwingWorker(final IRModel irModel, final RunRequest request, final boolean forceRun) {
+            // one task per run (not cancelled by the next run):
+            super(new Task("Run-" + RUN_COUNTER.incrementAndGet()));
+            this.irModel = irModel;
+            this.request = request;
+            this.forceRun = forceRun;
+        }
+
+        @Override
+        public ServiceJob computeInBackground() {
             try {
-                StatusBar.show("Spawn " + irModel.getSelectedService() + " process");
-                // change model state to lock it and extract its snapshot
-                setRunningState(irModel, true);
-                new RunFitActionWorker(irModel.getCliOptions(), irModel.prepareTempFile(), irModel, this).executeTask();
-            } catch (FitsException fe) {
-                setRunningState(irModel, false);
-                logger.error("Can't prepare temporary file before running process", fe);
-                StatusBar.show("Can't spawn new process: " + fe.getMessage());
-            } catch (IOException ioe) {
-                logger.error("Can't prepare temporary file before running process", ioe);
-                StatusBar.show("Can't spawn new process: " + ioe.getMessage());
-                setRunningState(irModel, false);
+                irModel.checkOIFits(request);
+
+                return JobScheduler.getInstance().submit(request.getService(), request.getCliOptions(), request.writeInputFile(),
+                        new RunJobListener(irModel), forceRun);
+            } catch (IOException | IllegalStateException e) {
+                logger.error("Can't prepare temporary file before running process", e);
+                failure = e;
+            }
+            return null;
+        }
+
+        @Override
+        public void refreshUI(final ServiceJob job) {
+            updateRunningState(irModel);
+            if (failure != null) {
+                StatusBar.show("Can't spawn new process: " + failure.getMessage());
             }
         }
     }
 
-    static final class RunFitActionWorker extends TaskSwingWorker<ServiceResult> {
+    /**
+     * Job listener that streams results into the IRModel and
+     * execution logs and intermediate images into the results viewer (using the Swing EDT)
+     */
+    static final class RunJobListener implements ServiceJobListener, ServiceLogListener, ServiceSnapshotListener, ServiceStatusListener {
 
-        private final String cliOptions;
-        private final File inputFile;
         private final IRModel irModel;
-        private final RunAction parentAction;
 
-        RunFitActionWorker(String cliOptions, File inputFile, IRModel irModel, RunAction runAction) {
-            super(TASK_RUN_IR);
-            this.cliOptions = cliOptions;
-            this.inputFile = inputFile;
+        RunJobListener(final IRModel irModel) {
             this.irModel = irModel; // only for callback
-            this.parentAction = runAction;
         }
 
         @Override
-        public ServiceResult computeInBackground() {
-            final Service service = irModel.getSelectedService();
-            ServiceResult result = null;
-            try {
-                result = service.getExecMode().reconstructsImage(service.getProgram(), cliOptions, inputFile);
-                result.setService(service);
+        public void jobDone(final ServiceJob job, final ServiceResult serviceResult) {
+            SwingUtils.invokeLaterEDT(new Runnable() {
+                @Override
+                public void run() {
+                    // job finished, we can change state and update model just after.
+                    updateRunningState(irModel);
 
-                if (result.getErrorMessage() == null) {
-                    // Result is valid only if the OIFITS file was downloaded successfully:
-                    boolean valid = result.getOifitsResultFile().exists();
-                    result.setValid(valid);
+                    irModel.addServiceResult(serviceResult);
 
-                    if (!valid) {
-                        result.setErrorMessage("No OIFits ouput (probably a server error occured) !");
+                    if (serviceResult.isFromCache()) {
+                        final ResultCache cache = ResultCache.getInstance();
+                        StatusBar.show("Result given by the cache"
+                                + ((cache != null) ? " (" + cache.getStatistics() + ")" : "") + ".");
+                    } else if (serviceResult.isConverged()) {
+                        StatusBar.show("Job #" + job.getId() + " done (" + serviceResult.getConvergedReason() + ").");
+                    } else {
+                        StatusBar.show("Job #" + job.getId() + " done (" + Workspace.getInstance().getStatistics()
+                                + ", " + ResultStore.getInstance().getStatistics() + ").");
                     }
                 }
-                return result;
-            } catch (IllegalStateException ise) {
-                logger.warn("computeInBackground: exception: ", ise);
-                throw ise;
-            } finally {
-                if (result != null) {
-                    result.setEndTime(new Date());
+            });
+        }
+
+        @Override
+        public void logAppended(final ServiceJob job, final String chunk) {
+            SwingUtils.invokeLaterEDT(new Runnable() {
+                @Override
+                public void run() {
+                    final MainPanel mainPanel = OImaging.getInstance().getMainPanel();
+                    if (mainPanel != null) {
+                        mainPanel.appendExecutionLog(job, chunk);
+                    }
                 }
-            }
+            });
         }
 
         @Override
-        public void refreshUI(ServiceResult serviceResult) {
-            // action finished, we can change state and update model just after.
-            parentAction.setRunningState(irModel, false);
-
-            if (!serviceResult.isCancelled()) {
-                this.irModel.addServiceResult(serviceResult);
-            } else {
-                StatusBar.show("Error occured during process : " + serviceResult.getErrorMessage());
-            }
+        public void snapshotLoaded(final ServiceJob job, final FitsImageHDU hdu, final int index, final double change) {
+            SwingUtils.invokeLaterEDT(new Runnable() {
+                @Override
+                public void run() {
+                    final MainPanel mainPanel = OImaging.getInstance().getMainPanel();
+                    if (mainPanel != null) {
+                        mainPanel.displaySnapshot(job, hdu);
+                    }
+                    StatusBar.show("Job #" + job.getId() + ": intermediate image " + index
+                            + ((Double.isNaN(change)) ? "" : " (change = " + String.format("%.2e", change) + ")"));
+                }
+            });
         }
 
-        /**
-         * Refresh GUI when no data (null returned or cancelled) invoked by the Swing Event Dispatcher Thread (Swing EDT)
-         * @param cancelled true if task cancelled; false if null returned by computeInBackground()
-         */
         @Override
-        public void refreshNoData(final boolean cancelled) {
-            // action finished, we can change state.
-            parentAction.setRunningState(irModel, false);
+        public void statusChanged(final ServiceJob job, final ExecutionStatus status) {
+            SwingUtils.invokeLaterEDT(new Runnable() {
+                @Override
+                public void run() {
+                    StatusBar.show("Job #" + job.getId() + ": " + status.name().toLowerCase() + "...");
+                }
+            });
         }
 
         @Override
-        public void handleException(ExecutionException ee) {
-            // action finished, we can change state.
-            parentAction.setRunningState(irModel, false);
-
-            // filter some exceptions to avoid feedback report
-            if (filterNetworkException(ee)) {
-                MessagePane.showErrorMessage("Please check your network setup", "Please check your network setup", ee);
-            } else {
-                super.handleException(ee);
-            }
+        public double getConvergenceThreshold() {
+            return Preferences.getInstance().getConvergenceThreshold();
+        }
 
-            StatusBar.show("Error occured during process");
+        @Override
+        public void jobCancelled(final ServiceJob job, final ServiceResult serviceResult) {
+            SwingUtils.invokeLaterEDT(new Runnable() {
+                @Override
+                public void run() {
+                    // job finished, we can change state.
+                    updateRunningState(irModel);
+
+                    StatusBar.show("Process cancelled"
+                            + (((serviceResult != null) && (serviceResult.getErrorMessage() != null))
+                            ? " : " + serviceResult.getErrorMessage() : "."));
+                }
+            });
         }
 
-        public boolean filterNetworkException(Exception e) {
-            Throwable c = getRootCause(e);
-            return c != null
-                    && (c instanceof UnknownHostException
-                    || c instanceof ConnectTimeoutException);
+        @Override
+        public void jobFailed(final ServiceJob job, final Exception e) {
+            SwingUtils.invokeLaterEDT(new Runnable() {
+                @Override
+                public void run() {
+                    // job finished, we can change state.
+                    updateRunningState(irModel);
+
+                    // filter some exceptions to avoid feedback report
+                    if (filterNetworkException(e)) {
+                        MessagePane.showErrorMessage("Please check your network setup", "Please check your network setup", e);
+                    } else {
+                        MessagePane.showErrorMessage("Error occured during process", e);
+                    }
+
+                    StatusBar.show("Error occured during process");
+                }
+            });
         }
+    }
 
-        private static Throwable getRootCause(final Throwable th) {
-            Throwable parent = th;
-            while (parent.getCause() != null) {
-                parent = parent.getCause();
-            }
-            return parent;
+    static boolean filterNetworkException(final Exception e) {
+        final Throwable c = getRootCause(e);
+        return c != null
+                && (c instanceof UnknownHostException
+                || c instanceof ConnectTimeoutException);
+    }
+
+    private static Throwable getRootCause(final Throwable th) {
+        Throwable parent = th;
+        while (parent.getCause() != null) {
+            parent = parent.getCause();
         }
+        return parent;
     }
 }
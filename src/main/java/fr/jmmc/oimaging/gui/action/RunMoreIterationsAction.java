@@ -34,9 +34,6 @@ public class RunMoreIterationsAction extends RegisteredAction {
      */
     public final static String ACTION_NAME = "runMoreIterations";
 
-    public final static String LABEL_IDLE = "Continue";
-    public final static String LABEL_CANCEL = "Cancel";
-
     /**
      * Public constructor that automatically register the action in RegisteredAction.
      */
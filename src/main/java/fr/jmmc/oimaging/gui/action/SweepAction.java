@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.gui.action;
+
+import fr.jmmc.jmcs.App;
+import fr.jmmc.jmcs.gui.action.RegisteredAction;
+import fr.jmmc.jmcs.gui.component.MessagePane;
+import fr.jmmc.jmcs.gui.component.StatusBar;
+import fr.jmmc.jmcs.gui.task.Task;
+import fr.jmmc.jmcs.gui.task.TaskSwingWorker;
+import fr.jmmc.oimaging.model.IRModel;
+import fr.jmmc.oimaging.model.IRModelManager;
+import fr.jmmc.oimaging.services.ParameterSweep;
+import fr.jmmc.oimaging.services.Service;
+import fr.jmmc.oimaging.services.ServiceJob;
+import fr.jmmc.oimaging.services.ServiceList;
+import fr.nom.tam.fits.FitsException;
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import javax.swing.JCheckBox;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JTextField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Run a parameter sweep (cartesian product of keyword values) using the current input.
+ */
+public final class SweepAction extends RegisteredAction {
+
+    /** default serial UID for Serializable interface */
+    private static final long serialVersionUID = 1;
+    /** Class name. This name is used to register to the ActionRegistrar */
+    public final static String className = SweepAction.class.getName();
+    /** Action name. This name is used to register to the ActionRegistrar */
+    public final static String actionName = "runSweep";
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(className);
+
+    /* members */
+    /** last sweep specification */
+    private String lastSpec = "RGL_WGT=1e-3:1e3:7:log";
+    /** last choice to use all execution modes */
+    private boolean lastUseAllModes = true;
+
+    /**
+     * Public constructor that automatically register the action in RegisteredAction.
+     */
+    public SweepAction() {
+        super(className, actionName);
+    }
+
+    /**
+     * Handle the action event
+     * @param evt action event
+     */
+    @Override
+    public void actionPerformed(final ActionEvent evt) {
+        logger.debug("actionPerformed");
+
+        final IRModel irModel = IRModelManager.getInstance().getIRModel();
+        final Service service = irModel.getSelectedService();
+
+        final JTextField specField = new JTextField(lastSpec, 40);
+        final JCheckBox allModesCheckBox = new JCheckBox("Use all execution modes (remote and local)", lastUseAllModes);
+
+        final JPanel panel = new JPanel(new BorderLayout());
+        panel.add(new JLabel("<html>Sweep axes for " + service + " separated by ';' :<br>"
+                + "KEYWORD=v1,v2,... or KEYWORD=min:max:steps[:log]</html>"), BorderLayout.NORTH);
+        panel.add(specField, BorderLayout.CENTER);
+        panel.add(allModesCheckBox, BorderLayout.SOUTH);
+
+        if (JOptionPane.showConfirmDialog(App.getFrame(), panel, "Parameter sweep",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            return;
+        }
+        lastSpec = specField.getText();
+        lastUseAllModes = allModesCheckBox.isSelected();
+
+        final List<Service> services = (lastUseAllModes) ? ServiceList.getCompatibleServices(service)
+                : Collections.singletonList(service);
+        try {
+            final ParameterSweep sweep = ParameterSweep.parse(lastSpec);
+            final List<ParameterSweep.Point> points = sweep.prepare(irModel);
+
+            StatusBar.show("Spawn " + points.size() + " " + service + " processes (sweep)");
+            // write input files and submit jobs in background:
+            new SweepSwingWorker(irModel, points, services).executeTask();
+
+        } catch (IllegalArgumentException iae) {
+            MessagePane.showErrorMessage("Invalid parameter sweep: " + iae.getMessage(), "Parameter sweep");
+        } catch (FitsException fe) {
+            logger.error("Can't prepare temporary file before running process", fe);
+            StatusBar.show("Can't spawn new process: " + fe.getMessage());
+        } catch (IOException ioe) {
+            logger.error("Can't prepare temporary file before running process", ioe);
+            StatusBar.show("Can't spawn new process: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Write the input file of every sweep point and submit its job as soon as it is ready
+     */
+    private static final class SweepSwingWorker extends TaskSwingWorker<Integer, ServiceJob> {
+
+        /* members */
+        /** model (running state) */
+        private final IRModel irModel;
+        /** sweep points */
+        private final List<ParameterSweep.Point> points;
+        /** compatible services */
+        private final List<Service> services;
+        /** job listener */
+        private final RunAction.RunJobListener listener;
+        /** first failure or null */
+        private volatile Exception failure = null;
+
+        SweepSwingWorker(final IRModel irModel, final List<ParameterSweep.Point> points, final List<Service> services) {
+            // one task per sweep (not cancelled by the next sweep):
+            super(new Task("Sweep-" + points.get(0).getCoordinates().get(ParameterSweep.SWEEP_ID)));
+            this.irModel = irModel;
+            this.points = points;
+            this.services = services;
+            this.listener = new RunAction.RunJobListener(irModel);
+        }
+
+        @Override
+        public Integer computeInBackground() {
+            int n = 0;
+            for (ParameterSweep.Point point : points) {
+                if (isCancelled()) {
+                    break;
+                }
+                try {
+                    publish(ParameterSweep.submit(point, services, listener));
+                    n++;
+                } catch (IOException | IllegalStateException e) {
+                    logger.error("Can't submit sweep point: {}", point, e);
+                    failure = e;
+                    break;
+                }
+            }
+            return Integer.valueOf(n);
+        }
+
+        @Override
+        protected void process(final List<ServiceJob> jobs) {
+            RunAction.updateRunningState(irModel);
+        }
+
+        @Override
+        public void refreshUI(final Integer n) {
+            RunAction.updateRunningState(irModel);
+            if (failure != null) {
+                StatusBar.show("Can't spawn sweep process " + (n + 1) + " / " + points.size() + ": " + failure.getMessage());
+            } else {
+                StatusBar.show(n + " sweep processes spawned");
+            }
+        }
+    }
+}
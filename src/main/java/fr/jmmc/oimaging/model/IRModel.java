@@ -6,12 +6,14 @@ package fr.jmmc.oimaging.model;
 import fr.jmmc.jmcs.gui.component.GenericListModel;
 import fr.jmmc.jmcs.gui.component.MessagePane;
 import fr.jmmc.jmcs.util.DateUtils;
-import fr.jmmc.jmcs.util.FileUtils;
 import fr.jmmc.jmcs.util.StringUtils;
 import fr.jmmc.oiexplorer.core.util.FitsImageUtils;
 import fr.jmmc.oimaging.services.Service;
 import fr.jmmc.oimaging.services.ServiceList;
 import fr.jmmc.oimaging.services.ServiceResult;
+import fr.jmmc.oimaging.services.InputFileCache;
+import fr.jmmc.oimaging.services.Workspace;
+import fr.jmmc.oitools.fits.FitsHeaderCard;
 import fr.jmmc.oitools.image.FitsImage;
 import fr.jmmc.oitools.image.FitsImageFile;
 import fr.jmmc.oitools.image.FitsImageHDU;
@@ -25,6 +27,7 @@ import fr.jmmc.oitools.meta.OIFitsStandard;
 import fr.jmmc.oitools.meta.Types;
 import fr.jmmc.oitools.model.OIFitsChecker;
 import fr.jmmc.oitools.model.OIFitsFile;
+import fr.jmmc.oitools.model.OIFitsLoader;
 import fr.jmmc.oitools.model.OIFitsWriter;
 import fr.jmmc.oitools.model.range.Range;
 import fr.nom.tam.fits.FitsDate;
@@ -33,8 +36,10 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -77,6 +82,8 @@ public final class IRModel {
 
     /** RegExp expression to match date (yyyy-MM-dd'T'HH:mm:ss) */
     private final static Pattern PATTERN_DATE = Pattern.compile("-\\d{4}-[01]\\d-[0123]\\dT\\d{2}:\\d{2}:\\d{2}");
+    /** max number of cached validation reports */
+    private final static int MAX_CHECK_REPORTS = 4;
 
     /* Members */
     /** Selected algorithm */
@@ -102,12 +109,15 @@ public final class IRModel {
      * Global list of FitsImageHDUs.
      * is used in the GUI for selecting an initial image or a regulation image.
      * unicity of HDU_NAME among the library.
+     * indexed by checksum and HDU_NAME (insertion order kept).
      */
-    private final List<FitsImageHDU> imageLibrary = new LinkedList<FitsImageHDU>();
+    private final ImageLibrary imageLibrary = new ImageLibrary();
     /** List model of target names */
     private final GenericListModel<String> targetListModel = new GenericListModel<String>(new ArrayList<String>(10), true);
     /** List of results */
     private final List<ServiceResult> serviceResults = new LinkedList<ServiceResult>();
+    /** pending changes of the result list (see pollResultListChanges) */
+    private final List<ResultListChange> resultListChanges = new ArrayList<ResultListChange>();
 
     /** 
      * Counter of results since startup.
@@ -123,10 +133,36 @@ public final class IRModel {
     /** export counter */
     private int exportCount;
 
+    /** version of the input data tables (incremented when an OIFits is loaded) */
+    private int inputDataVersion = 0;
+    /** version of the input images (incremented when INIT_IMG or RGL_PRIO HDUs change) */
+    private int inputImagesVersion = 0;
+    /** last written input file (reused while the input is unchanged) */
+    private final InputFileCache inputFileCache = new InputFileCache();
+    /** validation reports keyed by data hash (few entries, synchronized access) */
+    private final Map<String, String> checkReports = new LinkedHashMap<String, String>(8, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+            return size() > MAX_CHECK_REPORTS;
+        }
+    };
+
     protected IRModel() {
         reset();
     }
 
+    /**
+     * Create a standalone model (batch mode) using the given OIFits file as input.
+     * Note: this model is not managed by the IRModelManager (no event)
+     * @param oifitsFile oifits file to load
+     */
+    public IRModel(final OIFitsFile oifitsFile) {
+        this();
+        loadOifitsFile(oifitsFile);
+    }
+
     /**
      * Reset the main attributes of the model.
      */
@@ -146,43 +182,271 @@ public final class IRModel {
         resetOIFits();
     }
 
+    /**
+     * Write the input OIFits into a temporary file (or link the previous one if unchanged)
+     * then validate it (cached report if its data tables were already validated)
+     * @return temporary file
+     * @throws FitsException if the OIFits can not be written
+     * @throws IOException if the OIFits can not be written
+     */
     public File prepareTempFile() throws FitsException, IOException {
-        final OIFitsFile oiFitsFile = this.oifitsFile;
-        // validate OIFITS:
-        final OIFitsChecker checker = new OIFitsChecker();
-        oiFitsFile.check(checker);
-        // validation results
-        logger.info("validation results:\n{}", checker.getCheckReport());
+        final File tmpFile = createRunRequest().writeInputFile();
+        checkOIFits();
+        return tmpFile;
+    }
 
-        // store original filename
-        final String originalAbsoluteFilePath = oiFitsFile.getAbsoluteFilePath();
+    /**
+     * Write the input OIFits into a temporary file using the given keyword values
+     * instead of the current input parameters (left unchanged).
+     * Note: the OIFits is not validated (see checkOIFits())
+     * @param keywordValues keyword values (keyword name / value) to use
+     * @return temporary file
+     * @throws FitsException if the OIFits can not be written
+     * @throws IOException if the OIFits can not be written
+     * @throws IllegalArgumentException if a keyword is not supported by the selected service
+     */
+    public File prepareTempFile(final Map<String, Object> keywordValues) throws FitsException, IOException, IllegalArgumentException {
+        return createRunRequest(keywordValues).writeInputFile();
+    }
 
-        File tmpFile = null;
-        try {
-            // get target name:
-            String targetName = null;
-            if (oiFitsFile.hasOiTarget()) {
-                final String[] targets = oiFitsFile.getOiTarget().getTarget();
-                if (targets != null && targets.length >= 1) {
-                    targetName = StringUtils.replaceNonAlphaNumericCharsByUnderscore(targets[0]);
+    /**
+     * Take an immutable snapshot of the information required to run one job:
+     * the model content (data tables, images) is written once per version (see InputFileCache)
+     * and only the input parameter values are copied
+     * @return new run request
+     * @throws FitsException if the OIFits can not be written
+     * @throws IOException if the OIFits can not be written
+     */
+    public RunRequest createRunRequest() throws FitsException, IOException {
+        return newRunRequest(getImageOiData().getInputParam());
+    }
+
+    /**
+     * Take an immutable snapshot of the information required to run one job
+     * using the given keyword values instead of the current input parameters (left unchanged)
+     * @param keywordValues keyword values (keyword name / value) to use
+     * @return new run request
+     * @throws FitsException if the OIFits can not be written
+     * @throws IOException if the OIFits can not be written
+     * @throws IllegalArgumentException if a keyword is not supported by the selected service
+     * or if a value can not be written in the input parameter table
+     */
+    public RunRequest createRunRequest(final Map<String, Object> keywordValues) throws FitsException, IOException, IllegalArgumentException {
+        final ImageOiInputParam inputParam = getImageOiData().getInputParam();
+
+        // work on a copy of the input parameters:
+        final ImageOiInputParam params = new ImageOiInputParam();
+        for (KeywordMeta keywordMeta : inputParam.getKeywordsDesc().values()) {
+            if (!params.hasKeywordMeta(keywordMeta.getName())) {
+                params.addKeyword(keywordMeta);
+            }
+            params.setKeywordValue(keywordMeta.getName(), inputParam.getKeywordValue(keywordMeta.getName()));
+        }
+        setKeywordValues(params, keywordValues);
+
+        final RunRequest request = newRunRequest(params);
+        if (request == null) {
+            throw new IllegalArgumentException("Unable to write the keyword values " + keywordValues + " in the input parameters");
+        }
+        return request;
+    }
+
+    /**
+     * @param params input parameters (current or modified copy)
+     * @return new run request or null if the given parameter values can not be written
+     */
+    private RunRequest newRunRequest(final ImageOiInputParam params) throws FitsException, IOException {
+        final ImageOiInputParam inputParam = getImageOiData().getInputParam();
+
+        final Map<String, KeywordMeta> keywordsDesc = params.getKeywordsDesc();
+        final Map<String, Object> values = getKeywordValues(params);
+        final String fileName = createFileName();
+
+        // input file written from the current content (once per content version):
+        final Object contentKey = getInputContentKey();
+        InputFileCache.Entry input = inputFileCache.get(contentKey);
+
+        if (input == null || !InputFileCache.isWritable(input, keywordsDesc, values)) {
+            if (input != null && input.hasValues(getKeywordValues(inputParam))) {
+                // the current input parameters are already written:
+                return null;
+            }
+            input = inputFileCache.store(writeInputFile(fileName), contentKey, getKeywordValues(inputParam));
+
+            if (!InputFileCache.isWritable(input, keywordsDesc, values)) {
+                return null;
+            }
+        }
+        return new RunRequest(selectedService, cliOptions, fileName, inputParam.getExtName(), keywordsDesc, values, input);
+    }
+
+    private static Map<String, Object> getKeywordValues(final ImageOiInputParam params) {
+        final Map<String, KeywordMeta> keywordsDesc = params.getKeywordsDesc();
+        final Map<String, Object> values = new LinkedHashMap<String, Object>(keywordsDesc.size());
+        for (String keyword : keywordsDesc.keySet()) {
+            values.put(keyword, params.getKeywordValue(keyword));
+        }
+        return values;
+    }
+
+    private void setKeywordValues(final ImageOiInputParam params, final Map<String, Object> keywordValues) throws IllegalArgumentException {
+        // 2 passes: specific keywords may depend on other values (RGL_NAME):
+        for (int pass = 0; pass < 2; pass++) {
+            for (Map.Entry<String, Object> e : keywordValues.entrySet()) {
+                final KeywordMeta keywordMeta = params.getKeywordsDesc().get(e.getKey());
+                if (keywordMeta != null) {
+                    params.setKeywordValue(e.getKey(), toKeywordValue(keywordMeta, e.getValue()));
+                } else if (pass != 0) {
+                    throw new IllegalArgumentException("Keyword '" + e.getKey() + "' is not supported by " + selectedService);
                 }
             }
-            if (StringUtils.isEmpty(targetName)) {
-                targetName = "undefined-target";
+            // add keywords relating to the selected service:
+            selectedService.initSpecificParams(params, false);
+        }
+    }
+
+    private static Object toKeywordValue(final KeywordMeta keywordMeta, final Object value) {
+        if (value == null) {
+            return null;
+        }
+        switch (keywordMeta.getDataType()) {
+            case TYPE_INT:
+                return (value instanceof Number) ? Integer.valueOf(((Number) value).intValue()) : Integer.valueOf(value.toString());
+            case TYPE_DBL:
+                return (value instanceof Number) ? Double.valueOf(((Number) value).doubleValue()) : Double.valueOf(value.toString());
+            case TYPE_LOGICAL:
+                return (value instanceof Boolean) ? value : Boolean.valueOf("T".equalsIgnoreCase(value.toString()) || Boolean.parseBoolean(value.toString()));
+            default:
+                return value.toString();
+        }
+    }
+
+    /**
+     * Validate the input OIFits and log the validation report
+     */
+    public void checkOIFits() {
+        // data hash known only if the last written file matches the current input:
+        final String dataHash = inputFileCache.getDataHash(getInputContentKey());
+
+        String report = (dataHash != null) ? getCheckReport(dataHash) : null;
+        if (report == null) {
+            report = check(oifitsFile, dataHash);
+        } else {
+            logger.debug("checkOIFits: cached validation results for data {}", dataHash);
+        }
+        // validation results
+        logger.info("validation results:\n{}", report);
+    }
+
+    /**
+     * Validate the input file of the given run request and log the validation report;
+     * may be called from any thread (the written input file is loaded only if its data tables were not validated yet)
+     * @param request run request
+     * @throws IOException if the input file can not be loaded
+     */
+    public void checkOIFits(final RunRequest request) throws IOException {
+        final File inputFile = request.getInput().getFile();
+        // data hash known only if no other input file was written since:
+        final String dataHash = inputFileCache.getDataHash(request.getInput());
+
+        String report = (dataHash != null) ? getCheckReport(dataHash) : null;
+        if (report == null) {
+            try {
+                report = check(OIFitsLoader.loadOIFits(inputFile.getAbsolutePath()), dataHash);
+            } catch (FitsException fe) {
+                throw new IOException("Could not load the input file: " + inputFile.getAbsolutePath(), fe);
+            }
+        } else {
+            logger.debug("checkOIFits: cached validation results for data {}", dataHash);
+        }
+        // validation results
+        logger.info("validation results:\n{}", report);
+    }
+
+    /**
+     * Validate the given OIFits and cache its validation report
+     * @param checkedFile OIFits to validate
+     * @param dataHash hash of its data tables or null if unknown
+     * @return validation report
+     */
+    private String check(final OIFitsFile checkedFile, final String dataHash) {
+        final OIFitsChecker checker = new OIFitsChecker();
+        checkedFile.check(checker);
+        final String report = checker.getCheckReport();
+
+        if (dataHash != null) {
+            synchronized (checkReports) {
+                checkReports.put(dataHash, report);
             }
+        }
+        return report;
+    }
 
-            // use target name + current date:
-            tmpFile = FileUtils.getTempFile(targetName + "_" + DateUtils.now_datetime() + "_" + exportCount + ".fits");
+    /**
+     * @param dataHash hash of the data tables
+     * @return cached validation report or null
+     */
+    private String getCheckReport(final String dataHash) {
+        synchronized (checkReports) {
+            return checkReports.get(dataHash);
+        }
+    }
+
+    /**
+     * @return key of the input content except parameter values (data tables, images, extra header cards)
+     */
+    private Object getInputContentKey() {
+        final ImageOiInputParam inputParam = getImageOiData().getInputParam();
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append(inputDataVersion).append('|').append(inputImagesVersion);
+        if (inputParam.hasHeaderCards()) {
+            for (FitsHeaderCard card : inputParam.getHeaderCards()) {
+                sb.append('|').append(card.getKey()).append('=').append(card.getValue());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return file name of a new job input file (target name + current date)
+     */
+    private String createFileName() {
+        // get target name:
+        String targetName = null;
+        if (oifitsFile.hasOiTarget()) {
+            final String[] targets = oifitsFile.getOiTarget().getTarget();
+            if (targets != null && targets.length >= 1) {
+                targetName = StringUtils.replaceNonAlphaNumericCharsByUnderscore(targets[0]);
+            }
+        }
+        if (StringUtils.isEmpty(targetName)) {
+            targetName = "undefined-target";
+        }
+        // use target name + current date (new job directory in the workspace):
+        return targetName + "_" + DateUtils.now_datetime() + "_" + (exportCount++) + ".fits";
+    }
+
+    /**
+     * Write the whole input OIFits (current content and input parameters) into a new job file
+     * @param fileName file name
+     * @return written file
+     */
+    private File writeInputFile(final String fileName) throws FitsException, IOException {
+        // store original filename
+        final String originalAbsoluteFilePath = oifitsFile.getAbsoluteFilePath();
+        try {
+            final Workspace workspace = Workspace.getInstance();
+            final File tmpFile = workspace.createJobFile(fileName);
 
             // Pre-processing:
             // Ensure OIFITS File is correct.
-            OIFitsWriter.writeOIFits(tmpFile.getAbsolutePath(), oiFitsFile);
+            OIFitsWriter.writeOIFits(tmpFile.getAbsolutePath(), oifitsFile);
+            workspace.updateUsage(tmpFile);
+            return tmpFile;
         } finally {
             //restore filename
             oifitsFile.setAbsoluteFilePath(originalAbsoluteFilePath);
-            exportCount++;
         }
-        return tmpFile;
     }
 
     private void resetOIFits() {
@@ -210,6 +474,7 @@ public final class IRModel {
     private void loadOIFits(final OIFitsFile oifitsFile) {
         // change current model immediately:
         this.oifitsFile = oifitsFile;
+        this.inputDataVersion++;
 
         // load targets
         this.targetListModel.clear();
@@ -355,6 +620,8 @@ public final class IRModel {
             try {
                 FitsImageUtils.prepareImages(hdu);
                 prepHdus.add(hdu);
+                // start computing its checksum in background:
+                ImageChecksum.of(hdu);
             } catch (IllegalArgumentException iae) {
                 MessagePane.showErrorMessage("Unable to prepare images from HDU: " + hdu.getHduName(), iae);
             }
@@ -432,10 +699,9 @@ public final class IRModel {
     public boolean removeFitsImageHDU(final FitsImageHDU hdu) {
         boolean removed = false;
         // check if image is used ?
-        final int index = this.imageLibrary.indexOf(hdu);
+        final int index = this.imageLibrary.remove(hdu);
 
         if (index >= 0) {
-            this.imageLibrary.remove(index);
             removed = true;
 
             // cleanup references:
@@ -654,6 +920,7 @@ public final class IRModel {
         final List<FitsImageHDU> oifitsFileHDUs = oifitsFile.getFitsImageHDUs();
 
         oifitsFileHDUs.clear();
+        this.inputImagesVersion++;
 
         // init image
         if (!isImageNull(selectedInputImageHDU)) {
@@ -672,12 +939,12 @@ public final class IRModel {
      * @return imageLibrary read-only (all write will throw an exception).
      */
     public List<FitsImageHDU> getImageLibrary() {
-        return Collections.unmodifiableList(imageLibrary);
+        return imageLibrary.asList();
     }
 
     /** 
      * Add a FitsImageHDU to the library.
-     * the hdu is not added if there is already an checksum-equivalent one in the library.
+     * the hdu is not added if there is already an content-equivalent one in the library (see ImageChecksum).
      * @param hdu hdu to add to imageLibrary. its HDU_NAME can be modified.
      * @param altName alternative name to be used if HDU_NAME of the hdu is empty. (optional)
      * @return the equivalent hdu in the library.
@@ -709,7 +976,7 @@ public final class IRModel {
                 : (altName != null) ? altName.substring(0, Math.min(50, altName.length())) : null;
 
         if (StringUtils.isEmpty(tryHduName)) {
-            tryHduName = "UNDEFINED_" + hdu.getChecksum();
+            tryHduName = "UNDEFINED_" + Long.toHexString(ImageChecksum.of(hdu).getProvisional());
             logger.warn("Hdu has no hduName {}, using '{}'", hdu, tryHduName);
         }
         // hdu name is always set:
@@ -763,13 +1030,7 @@ public final class IRModel {
     }
 
     private boolean existHduNameInImageLibrary(final String hduName) {
-        // traverses the library until an equivalent HDU is found
-        for (FitsImageHDU libraryHDU : imageLibrary) {
-            if (libraryHDU.getHduName().equals(hduName)) {
-                return true;
-            }
-        }
-        return false;
+        return imageLibrary.containsName(hduName);
     }
 
     /**
@@ -787,36 +1048,14 @@ public final class IRModel {
      * return null when no equivalent HDU has been found, or when hdu is null.
      */
     private FitsImageHDU findInImageLibrary(final FitsImageHDU hdu) {
-        // no need to search if hdu is null
-        if (hdu == null) {
-            return null;
-        }
-        // traverses the library until an equivalent HDU is found
-        for (FitsImageHDU libraryHDU : imageLibrary) {
-            if (hduEquals(libraryHDU, hdu)) {
-                return libraryHDU; // return the HDU from the library, not the target one !
-            }
-        }
-        // when no equivalent HDU is found, return null
-        return null;
-    }
-
-    /** 
-     * Identity function to be used for HDUs in imageLibrary.
-     * @param first HDU to compare to second. (optional)
-     * @param second HDU to compare to first. (optional)
-     * @return true if both contains same reference,
-     * or if both are null, or if both have same checksum. false otherwise.
-     * return false if one of them has checksum = 0. The decision to compute expensively the checksum is on the caller.
-     */
-    private static boolean hduEquals(final FitsImageHDU first, final FitsImageHDU second) {
-        boolean match = FitsImageHDU.MATCHER.match(first, second);
-        if (logger.isDebugEnabled()) {
-            logger.debug("hdus {} and {} match: {}",
-                    (first == null) ? "null" : first.getHduName(),
-                    (second == null) ? "null" : second.getHduName(), match);
+        // same reference or same content (ImageChecksum computed in background,
+        // pixels compared while pending):
+        final FitsImageHDU libraryHDU = imageLibrary.find(hdu);
+        if (logger.isDebugEnabled() && (hdu != null)) {
+            logger.debug("hdu {} match: {}", hdu.getHduName(), (libraryHDU == null) ? "none" : libraryHDU.getHduName());
         }
-        return match;
+        // return the HDU from the library, not the target one !
+        return libraryHDU;
     }
 
     // --- ServiceResult handling ---
@@ -841,17 +1080,32 @@ public final class IRModel {
         }
         // last results is added at the beginning:
         getResultSets().add(0, serviceResult);
+        // keep its files in the workspace:
+        serviceResult.retain();
 
         if (serviceResult.isValid()) {
             serviceResult.setIndex(resultCounter.incrementAndGet());
 
-            postProcessOIFitsFile(serviceResult);
+            // prepare the result (also applied when reloaded from the result file):
+            serviceResult.prepareOIFitsFile(RESULT_PREPARER);
+        }
+        // notify model update
+        fireResultListChange(ResultListChange.Kind.ADDED, Collections.singletonList(serviceResult));
+    }
+
+    /**
+     * Prepare the OIFits payload of results: OImaging keywords, images and image identifiers
+     */
+    private static final ServiceResult.Preparer RESULT_PREPARER = new ServiceResult.Preparer() {
+        @Override
+        public void prepare(final ServiceResult serviceResult, final OIFitsFile oiFitsFile) {
+            postProcessOIFitsFile(serviceResult, oiFitsFile);
 
             // prepare images in the result
-            for (FitsImageHDU fihdu : serviceResult.getOifitsFile().getFitsImageHDUs()) {
+            for (FitsImageHDU fihdu : oiFitsFile.getFitsImageHDUs()) {
                 // set a hdu name if missing
                 if (fihdu.getHduName() == null || fihdu.getHduName().isEmpty()) {
-                    String filename = serviceResult.getOifitsFile().getFileName();
+                    String filename = oiFitsFile.getFileName();
                     if (filename == null || filename.isEmpty()) {
                         fihdu.setHduName("untitled");
                     } else { // use filename, maximum 50 characters
@@ -867,19 +1121,16 @@ public final class IRModel {
             }
 
             // better labels for images in the viewer panel
-            updateImageIdentifiers(serviceResult);
+            updateImageIdentifiers(oiFitsFile.getFitsImageHDUs(), "result#" + serviceResult.getIndex());
         }
-        // notify model update
-        IRModelManager.getInstance().fireIRModelResultListChanged(this);
-    }
+    };
 
     /** 
      * Add some OImaging specific keywords in the OIFitsFile.
-     * @param serviceResult required. serviceResult.getOiFitsFile() must not return null.
+     * @param serviceResult required.
+     * @param oiFitsFile OIFits payload of the result (required)
      */
-    private static void postProcessOIFitsFile(final ServiceResult serviceResult) {
-        final OIFitsFile oiFitsFile = serviceResult.getOifitsFile();
-
+    private static void postProcessOIFitsFile(final ServiceResult serviceResult, final OIFitsFile oiFitsFile) {
         final ImageOiOutputParam outputParams = oiFitsFile.getImageOiData().getOutputParam();
 
         outputParams.addKeyword(KEYWORD_RATING);
@@ -905,15 +1156,108 @@ public final class IRModel {
     }
 
     public void removeServiceResult(ServiceResult serviceResultToDelete) {
-        getResultSets().remove(serviceResultToDelete);
-        // notify model update
-        IRModelManager.getInstance().fireIRModelResultListChanged(this);
+        if (getResultSets().remove(serviceResultToDelete)) {
+            serviceResultToDelete.release();
+
+            // notify model update
+            fireResultListChange(ResultListChange.Kind.REMOVED, Collections.singletonList(serviceResultToDelete));
+        }
     }
 
     public void removeServiceResults(List<ServiceResult> selectedServicesList) {
-        getResultSets().removeAll(selectedServicesList);
+        final List<ServiceResult> removed = new ArrayList<ServiceResult>(selectedServicesList);
+        getResultSets().removeAll(removed);
+        for (ServiceResult serviceResult : removed) {
+            serviceResult.release();
+        }
         // notify model update
-        IRModelManager.getInstance().fireIRModelResultListChanged(this);
+        fireResultListChange(ResultListChange.Kind.REMOVED, removed);
+    }
+
+    /**
+     * Notify that the given results changed (keywords or metadata loaded)
+     * @param results updated results
+     */
+    void fireResultsUpdated(final List<ServiceResult> results) {
+        fireResultListChange(ResultListChange.Kind.UPDATED, new ArrayList<ServiceResult>(results));
+    }
+
+    /**
+     * Notify that the whole result list changed (session loaded)
+     */
+    void fireResultListReset() {
+        fireResultListChange(ResultListChange.Kind.RESET, Collections.<ServiceResult>emptyList());
+    }
+
+    /**
+     * Record the given change then fire an IRMODEL_RESULT_LIST_CHANGED event
+     * (changes are only recorded for the model managed by the IRModelManager)
+     */
+    private void fireResultListChange(final ResultListChange.Kind kind, final List<ServiceResult> results) {
+        final IRModelManager irModelManager = IRModelManager.getInstance();
+        if (irModelManager.getIRModel() == this) {
+            synchronized (resultListChanges) {
+                resultListChanges.add(new ResultListChange(kind, results));
+            }
+        }
+        irModelManager.fireIRModelResultListChanged(this);
+    }
+
+    /**
+     * Return and clear the pending changes of the result list (in order).
+     * Events may be merged so one IRMODEL_RESULT_LIST_CHANGED event may correspond to several changes (or none).
+     * @return pending changes (may be empty)
+     */
+    public List<ResultListChange> pollResultListChanges() {
+        synchronized (resultListChanges) {
+            final List<ResultListChange> changes = new ArrayList<ResultListChange>(resultListChanges);
+            resultListChanges.clear();
+            return changes;
+        }
+    }
+
+    /**
+     * Add a result restored from a session at the end of the result list (session order).
+     * Its OIFits payload is loaded on first use (see ServiceResult.deferOIFitsFile).
+     * Note: no event is fired (see IRModelManager.loadIRModel)
+     * @param serviceResult restored result (index set)
+     * @param outputKeywords output keyword values edited in memory when the session was saved (rating, comment ...)
+     */
+    void addRestoredServiceResult(final ServiceResult serviceResult, final Map<String, Object> outputKeywords) {
+        getResultSets().add(serviceResult);
+        // keep its files in the workspace:
+        serviceResult.retain();
+
+        if (serviceResult.getIndex() > resultCounter.get()) {
+            resultCounter.set(serviceResult.getIndex());
+        }
+        if (serviceResult.isValid()) {
+            serviceResult.deferOIFitsFile(outputKeywords.isEmpty() ? RESULT_PREPARER : new ServiceResult.Preparer() {
+                @Override
+                public void prepare(final ServiceResult result, final OIFitsFile oiFitsFile) {
+                    RESULT_PREPARER.prepare(result, oiFitsFile);
+
+                    // restore edited values (OImaging keywords added by the preparer):
+                    final ImageOiOutputParam outputParams = oiFitsFile.getImageOiData().getOutputParam();
+                    for (Map.Entry<String, Object> e : outputKeywords.entrySet()) {
+                        if (outputParams.hasKeywordMeta(e.getKey())) {
+                            outputParams.setKeywordValue(e.getKey(), e.getValue());
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Release the files of all results in the workspace (model discarded)
+     */
+    public void releaseServiceResults() {
+        for (ServiceResult serviceResult : getResultSets()) {
+            serviceResult.release();
+        }
+        // forget the last written input file:
+        inputFileCache.clear();
     }
 
     private void loadLog(final ServiceResult serviceResult) {
@@ -933,16 +1277,12 @@ public final class IRModel {
         updateImageIdentifiers(fitsImageHDU, "(mem)", 0);
     }
 
-    private void updateImageIdentifiers(ServiceResult serviceResult) {
-        updateImageIdentifiers(serviceResult.getOifitsFile().getFitsImageHDUs(), "result#" + serviceResult.getIndex());
-    }
-
     /** 
      * Update fitsImageIdentifier to be more user friendly in the GUI
      * @param fitsImageHDUs list of HDU to rename. the order will be used as the number so be exhaustive.
      * @param source where do the image come from. if from a run, it will be an index number. if not, the file name.
      */
-    private void updateImageIdentifiers(final List<FitsImageHDU> fitsImageHDUs, final String source) {
+    private static void updateImageIdentifiers(final List<FitsImageHDU> fitsImageHDUs, final String source) {
         int hduIndex = 0;
         for (FitsImageHDU fitsImageHDU : fitsImageHDUs) {
             updateImageIdentifiers(fitsImageHDU, source, hduIndex);
@@ -950,7 +1290,7 @@ public final class IRModel {
         }
     }
 
-    private void updateImageIdentifiers(final FitsImageHDU fitsImageHDU, final String source, final int hduIndex) {
+    private static void updateImageIdentifiers(final FitsImageHDU fitsImageHDU, final String source, final int hduIndex) {
         for (FitsImage fitsImage : fitsImageHDU.getFitsImages()) {
             String name = fitsImageHDU.getHduName() + " " + source + " hdu#" + hduIndex;
             if (fitsImage.getImageCount() > 1) {
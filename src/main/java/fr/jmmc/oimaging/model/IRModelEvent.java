@@ -14,21 +14,42 @@ import fr.jmmc.oiexplorer.core.model.event.GenericEvent;
  */
 public final class IRModelEvent extends GenericEvent<IRModelEventType, Object> {
 
+    /** model version of this event type when fired (see IRModelManager.isLatest) */
+    private final long version;
+
     /**
      * Public constructor dealing with an IR Model 
      * @param type event type
      */
     public IRModelEvent(final IRModelEventType type) {
-        this(type, null);
+        this(type, 0L);
+    }
+
+    /**
+     * Public constructor dealing with an IR Model 
+     * @param type event type
+     * @param version model version of this event type
+     */
+    public IRModelEvent(final IRModelEventType type, final long version) {
+        this(type, null, version);
     }
 
     /**
      * Private constructor dealing with an IR Model 
      * @param type event type
      * @param subjectId optional related object id
+     * @param version model version of this event type
      */
-    private IRModelEvent(final IRModelEventType type, final String subjectId) {
+    private IRModelEvent(final IRModelEventType type, final String subjectId, final long version) {
         super(type, subjectId);
+        this.version = version;
+    }
+
+    /**
+     * @return model version of this event type when fired
+     */
+    public long getVersion() {
+        return version;
     }
 
     /**
@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.model;
+
+import fr.jmmc.oiexplorer.core.model.event.EventNotifier;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.swing.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalescing dispatcher of IRModel events (used by IRModelManager).
+ *
+ * Events posted within the same frame are merged into a single event per type, dispatched to UI listeners
+ * (EventNotifier on the EDT) and to background listeners (single worker thread).
+ * Each posted event increments the version of its type so listeners can drop stale events
+ * when a newer one is pending (see isLatest).
+ */
+final class IRModelEventDispatcher {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(IRModelEventDispatcher.class.getName());
+
+    // Use -DIRModelEventDispatcher.frameMs=N to change the coalescing delay (ms)
+    private static final int FRAME_DELAY = Integer.getInteger("IRModelEventDispatcher.frameMs", 20);
+
+    /* members */
+    /** event notifiers (UI listeners) */
+    private final Map<IRModelEventType, EventNotifier<IRModelEvent, IRModelEventType, Object>> notifiers;
+    /** versions per event type */
+    private final Map<IRModelEventType, AtomicLong> versions = new EnumMap<IRModelEventType, AtomicLong>(IRModelEventType.class);
+    /** background listeners per event type */
+    private final Map<IRModelEventType, List<IRModelEventListener>> backgroundListeners
+                                                                    = new EnumMap<IRModelEventType, List<IRModelEventListener>>(IRModelEventType.class);
+    /** pending event sources per type (guarded by this) */
+    private final Map<IRModelEventType, Object> pendingSources = new EnumMap<IRModelEventType, Object>(IRModelEventType.class);
+    /** one-shot frame timer (EDT) */
+    private final Timer frameTimer;
+    /** background worker (lazily created) */
+    private ExecutorService backgroundExecutor = null;
+
+    /**
+     * Create a dispatcher for the given event notifiers
+     * @param notifiers event notifiers per event type
+     */
+    IRModelEventDispatcher(final Map<IRModelEventType, EventNotifier<IRModelEvent, IRModelEventType, Object>> notifiers) {
+        this.notifiers = notifiers;
+
+        for (IRModelEventType eventType : IRModelEventType.values()) {
+            versions.put(eventType, new AtomicLong(0L));
+            backgroundListeners.put(eventType, new CopyOnWriteArrayList<IRModelEventListener>());
+        }
+
+        this.frameTimer = new Timer(FRAME_DELAY, new ActionListener() {
+            @Override
+            public void actionPerformed(final ActionEvent ae) {
+                flush();
+            }
+        });
+        this.frameTimer.setRepeats(false);
+        this.frameTimer.setCoalesce(true);
+    }
+
+    /**
+     * Post an event to all listeners: it is merged with other events of the same type posted
+     * within the same frame then dispatched asynchronously
+     * @param type event type
+     * @param source event source
+     */
+    void post(final IRModelEventType type, final Object source) {
+        versions.get(type).incrementAndGet();
+
+        synchronized (this) {
+            if (pendingSources.containsKey(type)) {
+                // different sources: use the dispatcher as source to notify all listeners:
+                if (pendingSources.get(type) != source) {
+                    pendingSources.put(type, this);
+                }
+            } else {
+                pendingSources.put(type, source);
+            }
+        }
+        if (!frameTimer.isRunning()) {
+            frameTimer.start();
+        }
+    }
+
+    /**
+     * Queue an event immediately (not coalesced) to the given UI listener
+     * @param type event type
+     * @param source event source
+     * @param destination destination listener (null means all)
+     */
+    void queue(final IRModelEventType type, final Object source, final IRModelEventListener destination) {
+        notifiers.get(type).queueEvent(source, new IRModelEvent(type, getVersion(type)), destination);
+    }
+
+    /**
+     * Dispatch pending events (one per type)
+     */
+    private void flush() {
+        final Map<IRModelEventType, Object> sources;
+        synchronized (this) {
+            if (pendingSources.isEmpty()) {
+                return;
+            }
+            sources = new EnumMap<IRModelEventType, Object>(pendingSources);
+            pendingSources.clear();
+        }
+        for (Map.Entry<IRModelEventType, Object> e : sources.entrySet()) {
+            final IRModelEventType type = e.getKey();
+            final long version = getVersion(type);
+
+            logger.debug("flush: {} version {}", type, version);
+
+            notifiers.get(type).queueEvent(e.getValue(), new IRModelEvent(type, version), null);
+
+            final List<IRModelEventListener> listeners = backgroundListeners.get(type);
+            if (!listeners.isEmpty()) {
+                dispatchBackground(type, version, listeners);
+            }
+        }
+    }
+
+    private void dispatchBackground(final IRModelEventType type, final long version, final List<IRModelEventListener> listeners) {
+        getBackgroundExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                if (version != getVersion(type)) {
+                    logger.debug("dispatchBackground: stale {} version {} skipped", type, version);
+                    return;
+                }
+                final IRModelEvent event = new IRModelEvent(type, version);
+                event.resolveSubjectValue();
+
+                for (IRModelEventListener listener : listeners) {
+                    try {
+                        listener.onProcess(event);
+                    } catch (RuntimeException re) {
+                        logger.warn("Background listener failure: {}", listener, re);
+                    }
+                }
+            }
+        });
+    }
+
+    private synchronized ExecutorService getBackgroundExecutor() {
+        if (backgroundExecutor == null) {
+            backgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "IRModelEventDispatcher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return backgroundExecutor;
+    }
+
+    /**
+     * Register a background listener (notified on the worker thread, not on the EDT)
+     * @param type event type
+     * @param listener listener
+     */
+    void registerBackground(final IRModelEventType type, final IRModelEventListener listener) {
+        backgroundListeners.get(type).add(listener);
+    }
+
+    /**
+     * Unregister the given background listener from any event type
+     * @param listener listener
+     */
+    void unregisterBackground(final IRModelEventListener listener) {
+        for (List<IRModelEventListener> listeners : backgroundListeners.values()) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * @param type event type
+     * @return current version of the given event type
+     */
+    long getVersion(final IRModelEventType type) {
+        return versions.get(type).get();
+    }
+
+    /**
+     * @param event event
+     * @return true if no newer event of the same type was posted since the given event
+     */
+    boolean isLatest(final IRModelEvent event) {
+        return event.getVersion() >= getVersion(event.getType());
+    }
+}
@@ -6,12 +6,12 @@ package fr.jmmc.oimaging.model;
 import fr.jmmc.jmcs.data.MimeType;
 import fr.jmmc.jmcs.data.preference.SessionSettingsPreferences;
 import fr.jmmc.jmcs.gui.component.StatusBar;
+import fr.jmmc.jmcs.gui.util.SwingUtils;
 import fr.jmmc.jmcs.service.RecentFilesManager;
 import fr.jmmc.jmcs.util.FileUtils;
-import fr.jmmc.jmcs.util.jaxb.JAXBFactory;
-import fr.jmmc.jmcs.util.jaxb.JAXBUtils;
-import fr.jmmc.jmcs.util.jaxb.XmlBindException;
+import fr.jmmc.jmcs.util.concurrent.ParallelJobExecutor;
 import fr.jmmc.oiexplorer.core.model.event.EventNotifier;
+import fr.jmmc.oimaging.services.RemoteFileCache;
 import fr.jmmc.oimaging.services.ServiceResult;
 import fr.jmmc.oitools.image.FitsImageFile;
 import fr.jmmc.oitools.image.FitsImageHDU;
@@ -27,9 +27,11 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.ArrayList;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.EnumMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.httpclient.auth.AuthenticationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,13 +48,9 @@ public final class IRModelManager {
     /** fits extension including '.' (dot) character ie '.fits' */
     public final static String FITS_EXTENSION = "." + MimeType.OIFITS.getExtension();
 
-    /** package name for JAXB generated code */
-    //private final static String IRMODEL_JAXB_PATH = IRModel.class.getPackage().getName();
     /** Singleton pattern */
     private final static IRModelManager instance = new IRModelManager();
     /* members */
-    /** internal JAXB Factory */
-    private final JAXBFactory jf;
     /** flag to enable/disable firing events during startup (before calling start) */
     private boolean enableEvents = false;
 
@@ -63,6 +61,8 @@ public final class IRModelManager {
     /* event dispatchers */
     /** IRModelEventType event notifier map */
     private final EnumMap<IRModelEventType, EventNotifier<IRModelEvent, IRModelEventType, Object>> irModelManagerEventNotifierMap;
+    /** coalescing event dispatcher (model events) */
+    private final IRModelEventDispatcher eventDispatcher;
 
     /**
      * Return the Manager singleton
@@ -79,11 +79,6 @@ public final class IRModelManager {
     private IRModelManager() {
         super();
 
-//        this.jf = JAXBFactory.getInstance(IRMODEL_JAXB_PATH);
-        this.jf = null; // TODO
-
-        logger.debug("IRModelManager: JAXBFactory: {}", this.jf);
-
         this.irModelManagerEventNotifierMap = new EnumMap<IRModelEventType, EventNotifier<IRModelEvent, IRModelEventType, Object>>(IRModelEventType.class);
 
         int priority = 0;
@@ -94,6 +89,7 @@ public final class IRModelManager {
             this.irModelManagerEventNotifierMap.put(eventType, eventNotifier);
             priority += 10;
         }
+        this.eventDispatcher = new IRModelEventDispatcher(irModelManagerEventNotifierMap);
 
         // reset anyway:
         reset();
@@ -101,63 +97,74 @@ public final class IRModelManager {
 
     /* --- data of model handling ------------------------------------- */
     /**
-     * Load the IR Model at given URL
-     * @param file model file to load
+     * Load the IR Model (session file)
+     * @param file session file to load
      * @param checker optional OIFits checker instance (may be null)
      * @param listener progress listener
      * @throws IOException if an I/O exception occurred
      * @throws IllegalStateException if an unexpected exception occurred
-     * @throws XmlBindException if a JAXBException was caught while creating an unmarshaller
      */
     public void loadIRModel(final File file, final OIFitsChecker checker,
-                            final LoadIRModelListener listener) throws IOException, IllegalStateException, XmlBindException {
+                            final LoadIRModelListener listener) throws IOException, IllegalStateException {
         loadIRModel(file, checker, listener, false);
     }
 
     /**
-     * Load the IR Model at given URL or onl the include OIFits file references.
-     * @param file OIFits explorer collection file file to load
+     * Load the IR Model (session file) or only its input OIFits file.
+     * Results are loaded lazily (first use or background thread, see SessionArchive)
+     * @param file session file to load
      * @param checker optional OIFits checker instance (may be null)
      * @param listener progress listener
-     * @param appendOIFitsFilesOnly load only OIFits and skip plot+subset if true, else reset and load whole collection content
+     * @param appendOIFitsFilesOnly load only the input OIFits if true, else reset and load whole session content
      * @throws IOException if an I/O exception occurred
      * @throws IllegalStateException if an unexpected exception occurred
-     * @throws XmlBindException if a JAXBException was caught while creating an unmarshaller
      */
     public void loadIRModel(final File file, final OIFitsChecker checker,
-                            final LoadIRModelListener listener, final boolean appendOIFitsFilesOnly) throws IOException, IllegalStateException, XmlBindException {
+                            final LoadIRModelListener listener, final boolean appendOIFitsFilesOnly) throws IOException, IllegalStateException {
+        final long startTime = System.nanoTime();
+
+        if (appendOIFitsFilesOnly) {
+            loadOIFitsFile(SessionArchive.loadInput(file, checker));
+        } else {
+            // results of the previous model are no more used:
+            reset();
+
+            final List<ServiceResult> results = SessionArchive.load(file, checker, irModel);
+
+            postLoadIRModel(file);
 
-        final IRModel loadedModel = (IRModel) JAXBUtils.loadObject(file.toURI().toURL(), this.jf);
+            fireIRModelChanged();
+            irModel.fireResultListReset();
+
+            // load result OIFits files in background:
+            SessionArchive.loadResults(irModel, results);
+        }
+        logger.info("loadIRModel: duration = {} ms.", 1e-6d * (System.nanoTime() - startTime));
 
-        // TODO
-        // OIDataCollectionFileProcessor.onLoad(loadedUserCollection);
+        if (listener != null) {
+            listener.done(false);
+        }
     }
 
-    private void postLoadIRModel(final File file, final IRModel irModel, final OIFitsChecker checker) {
+    private void postLoadIRModel(final File file) {
 
         // after loadIRModel as it calls reset():
         setIRModelFile(file);
 
         // add given file to Open recent menu
         RecentFilesManager.addFile(file);
-
-        throw new IllegalStateException("TODO");
     }
 
     /**
-     * Load the IR Model at given URL
-     * @param file model file to load
+     * Save the IR Model (session file: input OIFits, image library and result files, see SessionArchive)
+     * @param file session file to save
      * @throws IOException if an I/O exception occurred
      * @throws IllegalStateException if an unexpected exception occurred
      */
     public void saveIRModel(final File file) throws IOException, IllegalStateException {
         final long startTime = System.nanoTime();
 
-        final IRModel saved = getIRModel();
-
-//        OIDataCollectionFileProcessor.onSave(savedUserCollection);
-        // TODO: may also save OIFits file copies into zip archive (xml + OIFits files) ??
-        JAXBUtils.saveObject(file, saved, this.jf);
+        SessionArchive.save(getIRModel(), file);
 
         setIRModelFile(file);
 
@@ -167,6 +174,15 @@ public final class IRModelManager {
         RecentFilesManager.addFile(file);
     }
 
+    /**
+     * Load the given OIFits files in parallel (ParallelJobExecutor) and merge them in memory as they arrive
+     * (file order), then load the merged OIFits in the IR Model.
+     * Note: each file is validated by its own checker (reports logged) if the given checker is not null.
+     * The merged file is written in background (see writeMergedFile()) so that its path becomes a real file.
+     * @param files OIFits files to load
+     * @param checker optional OIFits checker instance (may be null)
+     * @throws IOException if a fits file can not be loaded
+     */
     public void loadOIFitsFiles(File[] files, final OIFitsChecker checker) throws IOException {
         if (files == null || files.length == 0) {
             return;
@@ -175,33 +191,96 @@ public final class IRModelManager {
             loadOIFitsFile(files[0]);
             return;
         }
+        final long startTime = System.nanoTime();
+        final int nFiles = files.length;
+
+        // Load all OIFits files (blocking, parallel jobs), merged as they arrive:
+        final IncrementalMerge merge = new IncrementalMerge(nFiles);
+        final IOException[] failures = new IOException[nFiles];
+        final AtomicInteger loaded = new AtomicInteger(0);
+
+        final Runnable[] jobs = new Runnable[nFiles];
+        for (int i = 0; i < nFiles; i++) {
+            final int index = i;
+            final String fileLocation = files[i].getAbsolutePath();
+
+            jobs[i] = new Runnable() {
+                @Override
+                public void run() {
+                    // own checker as OIFitsChecker is not thread-safe:
+                    final OIFitsChecker fileChecker = (checker != null) ? new OIFitsChecker() : null;
+                    final OIFitsFile oiFitsFile;
+                    try {
+                        oiFitsFile = loadOIFits(fileLocation, fileChecker, false);
+                    } catch (IOException ioe) {
+                        failures[index] = ioe;
+                        return;
+                    }
+                    if (fileChecker != null) {
+                        logger.info("validation results for {}:\n{}", fileLocation, fileChecker.getCheckReport());
+                    }
+                    showStatus("loaded file " + loaded.incrementAndGet() + " / " + nFiles + ": " + fileLocation);
+
+                    merge.add(index, oiFitsFile);
+                }
+            };
+        }
 
-        // Load all OIFits files (blocking, not async):
-        final List<OIFitsFile> oiFitsFiles = new ArrayList<>(files.length);
-
-        for (File file : files) {
-            // may throw IOException:
-            final OIFitsFile oiFitsFile = loadOIFits(file.getAbsolutePath(), checker);
-            if (oiFitsFile != null) {
-                oiFitsFiles.add(oiFitsFile);
+        final ParallelJobExecutor jobExecutor = ParallelJobExecutor.getInstance();
+        if (jobExecutor.isEnabled()) {
+            jobExecutor.forkAndJoin("IRModelManager.loadOIFitsFiles", jobs);
+        } else {
+            for (Runnable job : jobs) {
+                job.run();
             }
         }
-
-        // Merge all into single temporary file:
-        final OIFitsFile mergedOIFitsFile = Merger.process(oiFitsFiles.toArray(new OIFitsFile[oiFitsFiles.size()]));
+        for (IOException ioe : failures) {
+            if (ioe != null) {
+                throw ioe;
+            }
+        }
+        final OIFitsFile mergedOIFitsFile = merge.getMerged();
         logger.debug("Merged OIFits file: {}", mergedOIFitsFile);
 
-        // Save temporary file:
+        logger.info("loadOIFitsFiles: {} files loaded and merged in {} ms.", nFiles, 1e-6d * (System.nanoTime() - startTime));
+
+        // loaded file must have a local file path (unique identifier), written in background:
         final File file = FileUtils.getTempFile("merged-", FITS_EXTENSION);
-        try {
-            StatusBar.show("saving merged file: " + file.getAbsolutePath());
-            OIFitsWriter.writeOIFits(file.getAbsolutePath(), mergedOIFitsFile);
-        } catch (FitsException fe) {
-            throw new IOException("Unable to save merged file : " + file.getAbsolutePath(), fe);
-        }
+        mergedOIFitsFile.setAbsoluteFilePath(file.getAbsolutePath());
 
-        // loaded file must represent a true local file:
         loadOIFitsFile(mergedOIFitsFile);
+
+        writeMergedFile(merge.getFiles(), file);
+    }
+
+    /**
+     * Write the merged file of the given OIFits files in background (the loaded merged OIFits is modified by the model
+     * so the given files are merged again); the file is written aside then renamed
+     * @param oiFitsFiles loaded OIFits files (file order)
+     * @param file merged file to write
+     */
+    private static void writeMergedFile(final OIFitsFile[] oiFitsFiles, final File file) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                final File tmpFile = new File(file.getPath() + ".part");
+                try {
+                    OIFitsWriter.writeOIFits(tmpFile.getAbsolutePath(), Merger.process(oiFitsFiles));
+                    Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    logger.info("Merged file written: {} ({} ms)", file, 1e-6d * (System.nanoTime() - start));
+                } catch (IOException ioe) {
+                    logger.warn("Unable to write the merged file: {}", file, ioe);
+                } catch (FitsException fe) {
+                    logger.warn("Unable to write the merged file: {}", file, fe);
+                } finally {
+                    tmpFile.delete();
+                }
+            }
+        }, "MergedFileWriter");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
     }
 
     public void loadOIFitsFile(File file) throws IOException {
@@ -227,6 +306,19 @@ public final class IRModelManager {
      * @throws IOException if a fits file can not be loaded
      */
     private static OIFitsFile loadOIFits(final String fileLocation, final OIFitsChecker checker) throws IOException {
+        return loadOIFits(fileLocation, checker, true);
+    }
+
+    /**
+     * (Download) and load the given OI Fits File with the given checker component
+     * @param fileLocation absolute File Path or remote URL
+     * @param checker checker component
+     * @param status true to show the loading status (EDT only)
+     * @return loaded OIFits File
+     * @throws IOException if a fits file can not be loaded
+     */
+    private static OIFitsFile loadOIFits(final String fileLocation, final OIFitsChecker checker,
+                                         final boolean status) throws IOException {
         //@todo test if file has already been loaded before going further ??
 
         final OIFitsFile oifitsFile;
@@ -236,11 +328,13 @@ public final class IRModelManager {
                 // TODO let the user customize the application file storage preference:
                 final String parentPath = SessionSettingsPreferences.getApplicationFileStorage();
 
-                final File localCopy = FileUtils.retrieveRemoteFile(fileLocation, parentPath, MimeType.OIFITS);
+                final File localCopy = retrieveRemoteFile(fileLocation, parentPath);
 
                 if (localCopy != null) {
                     // TODO: remove StatusBar !
-                    StatusBar.show("loading file: " + fileLocation + " ( local copy: " + localCopy.getAbsolutePath() + " )");
+                    if (status) {
+                        StatusBar.show("loading file: " + fileLocation + " ( local copy: " + localCopy.getAbsolutePath() + " )");
+                    }
 
                     oifitsFile = OIFitsLoader.loadOIFits(OIFitsStandard.VERSION_1, checker, localCopy.getAbsolutePath());
                     oifitsFile.setSourceURI(new URI(fileLocation));
@@ -250,7 +344,9 @@ public final class IRModelManager {
                 }
             } else {
                 // TODO: remove StatusBar !
-                StatusBar.show("loading file: " + fileLocation);
+                if (status) {
+                    StatusBar.show("loading file: " + fileLocation);
+                }
 
                 oifitsFile = OIFitsLoader.loadOIFits(OIFitsStandard.VERSION_1, checker, fileLocation);
             }
@@ -271,6 +367,37 @@ public final class IRModelManager {
         return oifitsFile;
     }
 
+    /**
+     * Retrieve the given remote file: HTTP(S) files are cached locally (see RemoteFileCache)
+     * @param fileLocation remote URL
+     * @param parentPath local folder used if the file is not cached
+     * @return local copy or null if the download failed
+     * @throws IOException if the remote file can not be retrieved
+     */
+    private static File retrieveRemoteFile(final String fileLocation, final String parentPath) throws IOException {
+        final RemoteFileCache cache = RemoteFileCache.getInstance();
+        if (cache != null && RemoteFileCache.isSupported(fileLocation)) {
+            final File localCopy = cache.get(fileLocation);
+            logger.info("retrieveRemoteFile: {}", cache.getStatistics());
+            return localCopy;
+        }
+        return FileUtils.retrieveRemoteFile(fileLocation, parentPath, MimeType.OIFITS);
+    }
+
+    /**
+     * Show the given status message (from any thread)
+     * @param message status message
+     */
+    private static void showStatus(final String message) {
+        SwingUtils.invokeLaterEDT(new Runnable() {
+            @Override
+            public void run() {
+                // TODO: remove StatusBar !
+                StatusBar.show(message);
+            }
+        });
+    }
+
     /**
      * Load OIDate from given OIFitsFile
      * @param oiFitsFile OIFits structure
@@ -316,7 +443,7 @@ public final class IRModelManager {
                 // TODO let the user customize the application file storage preference:
                 final String parentPath = SessionSettingsPreferences.getApplicationFileStorage();
 
-                final File localCopy = FileUtils.retrieveRemoteFile(fileLocation, parentPath, MimeType.OIFITS);
+                final File localCopy = retrieveRemoteFile(fileLocation, parentPath);
 
                 if (localCopy != null) {
                     // TODO: remove StatusBar !
@@ -423,6 +550,10 @@ public final class IRModelManager {
      * Reset the reference model.
      */
     public void reset() {
+        if (irModel != null) {
+            // results of the previous model are no more used:
+            irModel.releaseServiceResults();
+        }
         irModel = new IRModel();
         setIRModelFile(null);
 
@@ -458,6 +589,7 @@ public final class IRModelManager {
         for (final EventNotifier<IRModelEvent, IRModelEventType, Object> eventNotifier : this.irModelManagerEventNotifierMap.values()) {
             eventNotifier.unregister(listener);
         }
+        eventDispatcher.unregisterBackground(listener);
     }
 
     /**
@@ -472,6 +604,34 @@ public final class IRModelManager {
         fireIRModelChanged(null, listener);
     }
 
+    /**
+     * Bind the given non-UI listener to IRMODEL_CHANGED event: it is notified on a background thread
+     * (coalesced events only, stale events are skipped)
+     * @param listener listener to bind
+     */
+    public void bindBackgroundIRModelChangedEvent(final IRModelEventListener listener) {
+        eventDispatcher.registerBackground(IRModelEventType.IRMODEL_CHANGED, listener);
+    }
+
+    /**
+     * Bind the given non-UI listener to IRMODEL_RESULT_LIST_CHANGED event: it is notified on a background thread
+     * (coalesced events only, stale events are skipped)
+     * @param listener listener to bind
+     */
+    public void bindBackgroundIRModelResultListChangedEvent(final IRModelEventListener listener) {
+        eventDispatcher.registerBackground(IRModelEventType.IRMODEL_RESULT_LIST_CHANGED, listener);
+    }
+
+    /**
+     * Return true if no newer event of the same type was fired since the given event
+     * (listeners may skip stale events as the newer one will follow)
+     * @param event event to check
+     * @return true if the given event is the latest one of its type
+     */
+    public boolean isLatest(final IRModelEvent event) {
+        return eventDispatcher.isLatest(event);
+    }
+
     /**
      * Bind the given listener to IRMODEL_RESULT_LIST_CHANGED event and fire such event to initialize the listener properly
      * @param listener listener to bind
@@ -521,6 +681,7 @@ public final class IRModelManager {
 
     /**
      * This fires an IRMODEL_CHANGED event to given registered listener ASYNCHRONOUSLY !
+     * Events fired within the same frame are coalesced.
      * @param source event source
      */
     public void fireIRModelChanged(final Object source) {
@@ -540,13 +701,13 @@ public final class IRModelManager {
             if (logger.isDebugEnabled()) {
                 logger.debug("fireIRModelChanged TO {}", (destination != null) ? destination : "ALL");
             }
-            getIRModelChangedEventNotifier().queueEvent((source != null) ? source : this,
-                    new IRModelEvent(IRModelEventType.IRMODEL_CHANGED), destination);
+            postEvent(IRModelEventType.IRMODEL_CHANGED, source, destination);
         }
     }
 
     /**
      * This fires an IRMODEL_RESULT_LIST_CHANGED event to given registered listener ASYNCHRONOUSLY !
+     * Events fired within the same frame are coalesced.
      * @param source event source
      */
     public void fireIRModelResultListChanged(final Object source) {
@@ -564,8 +725,22 @@ public final class IRModelManager {
             if (logger.isDebugEnabled()) {
                 logger.debug("fireIRModelResultListChanged TO {}", (destination != null) ? destination : "ALL");
             }
-            getIRModelResultListChangedEventNotifier().queueEvent((source != null) ? source : this,
-                    new IRModelEvent(IRModelEventType.IRMODEL_RESULT_LIST_CHANGED), destination);
+            postEvent(IRModelEventType.IRMODEL_RESULT_LIST_CHANGED, source, destination);
+        }
+    }
+
+    /**
+     * Post the given model event: coalesced for all listeners or queued immediately for a single listener
+     * @param type event type
+     * @param source event source
+     * @param destination destination listener (null means all)
+     */
+    private void postEvent(final IRModelEventType type, final Object source, final IRModelEventListener destination) {
+        final Object eventSource = (source != null) ? source : this;
+        if (destination != null) {
+            eventDispatcher.queue(type, eventSource, destination);
+        } else {
+            eventDispatcher.post(type, eventSource);
         }
     }
 
@@ -591,4 +766,75 @@ public final class IRModelManager {
                     new IRModelEvent(IRModelEventType.RUN), destination);
         }
     }
+
+    /**
+     * Merge of OIFits files loaded in any order: the loaded files following the merged ones (file order)
+     * are merged at once by one loading thread while the others keep loading
+     */
+    private static final class IncrementalMerge {
+
+        /** loaded files (file order) */
+        private final OIFitsFile[] files;
+        /** index of the next file to merge */
+        private int next = 0;
+        /** true while a thread merges */
+        private boolean merging = false;
+        /** merged file (loaded files before next) */
+        private OIFitsFile merged = null;
+
+        IncrementalMerge(final int nFiles) {
+            this.files = new OIFitsFile[nFiles];
+        }
+
+        /**
+         * Add the given loaded file and merge the files following the merged ones unless another thread merges
+         * @param index file index
+         * @param oiFitsFile loaded file
+         */
+        void add(final int index, final OIFitsFile oiFitsFile) {
+            synchronized (this) {
+                files[index] = oiFitsFile;
+                if (merging) {
+                    // merged by the merging thread:
+                    return;
+                }
+                merging = true;
+            }
+            while (true) {
+                final OIFitsFile current;
+                final OIFitsFile nextFile;
+                synchronized (this) {
+                    if (next == files.length || files[next] == null) {
+                        merging = false;
+                        return;
+                    }
+                    current = merged;
+                    nextFile = files[next];
+                }
+                // merge out of the lock:
+                final OIFitsFile result = (current == null) ? nextFile : Merger.process(new OIFitsFile[]{current, nextFile});
+                synchronized (this) {
+                    merged = result;
+                    next++;
+                }
+            }
+        }
+
+        /**
+         * @return merged file (all files added)
+         */
+        synchronized OIFitsFile getMerged() {
+            if (next != files.length) {
+                throw new IllegalStateException("Missing files: " + next + " / " + files.length + " merged");
+            }
+            return merged;
+        }
+
+        /**
+         * @return loaded files (file order)
+         */
+        synchronized OIFitsFile[] getFiles() {
+            return files.clone();
+        }
+    }
 }
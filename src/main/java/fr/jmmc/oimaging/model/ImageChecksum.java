@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.model;
+
+import fr.jmmc.oitools.image.FitsImage;
+import fr.jmmc.oitools.image.FitsImageHDU;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content checksum of a FitsImageHDU used to deduplicate the image library.
+ *
+ * The full checksum (all image planes) is computed in parallel chunks by background threads
+ * as soon as the HDU is loaded. The provisional identity (image dimensions and a hash of sampled pixels,
+ * computed immediately) only selects candidates: HDUs match if their full checksums are equal or,
+ * while one of them is pending, if their pixels are equal.
+ */
+final class ImageChecksum {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(ImageChecksum.class.getName());
+
+    /** number of pixels per chunk */
+    private static final int CHUNK_PIXELS = 256 * 1024;
+    /** number of sampled pixels per image plane */
+    private static final int SAMPLES = 64;
+
+    /** checksum pool (daemon threads) */
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1), new ThreadFactory() {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "ImageChecksum-" + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    /** checksums of loaded HDUs (weak keys) */
+    private static final Map<FitsImageHDU, ImageChecksum> CHECKSUMS = new WeakHashMap<FitsImageHDU, ImageChecksum>();
+
+    /* members */
+    /** provisional identity (dimensions and sampled pixels) */
+    private final long provisional;
+    /** full checksum (pending until computed) */
+    private final CompletableFuture<Long> checksum;
+
+    /**
+     * Return the checksum of the given HDU: the first call starts its computation in background
+     * @param hdu FitsImageHDU (images prepared)
+     * @return checksum
+     */
+    static ImageChecksum of(final FitsImageHDU hdu) {
+        synchronized (CHECKSUMS) {
+            ImageChecksum cs = CHECKSUMS.get(hdu);
+            if (cs == null) {
+                cs = new ImageChecksum(hdu);
+                CHECKSUMS.put(hdu, cs);
+            }
+            return cs;
+        }
+    }
+
+    private ImageChecksum(final FitsImageHDU hdu) {
+        // copy the plane list (data arrays are shared):
+        final List<FitsImage> images = new ArrayList<FitsImage>(hdu.getFitsImages());
+        this.provisional = computeProvisional(images);
+        this.checksum = computeChecksum(hdu.getHduName(), images);
+    }
+
+    /**
+     * @return provisional identity (dimensions and sampled pixels)
+     */
+    long getProvisional() {
+        return provisional;
+    }
+
+    /**
+     * @return true if the full checksum is available
+     */
+    boolean isDone() {
+        return checksum.isDone();
+    }
+
+    /**
+     * @param hdu HDU
+     * @param other other HDU
+     * @return true if both HDUs have the same content: same provisional identities and
+     * full checksums when both are available, identical pixels otherwise
+     */
+    static boolean matches(final FitsImageHDU hdu, final FitsImageHDU other) {
+        final ImageChecksum cs = of(hdu);
+        final ImageChecksum otherCs = of(other);
+        if (cs.provisional != otherCs.provisional) {
+            return false;
+        }
+        if (cs.isDone() && otherCs.isDone()) {
+            return cs.checksum.join().longValue() == otherCs.checksum.join().longValue();
+        }
+        // checksum pending: exact comparison
+        return equalPixels(hdu.getFitsImages(), other.getFitsImages());
+    }
+
+    private static boolean equalPixels(final List<FitsImage> images, final List<FitsImage> others) {
+        if (images.size() != others.size()) {
+            return false;
+        }
+        for (int i = 0, len = images.size(); i < len; i++) {
+            final FitsImage image = images.get(i);
+            final FitsImage other = others.get(i);
+            if (image.getNbRows() != other.getNbRows() || image.getNbCols() != other.getNbCols()) {
+                return false;
+            }
+            final float[][] data = image.getData();
+            final float[][] otherData = other.getData();
+            if (data == otherData) {
+                continue;
+            }
+            if (data == null || otherData == null || data.length != otherData.length) {
+                return false;
+            }
+            for (int row = 0; row < data.length; row++) {
+                // same bits (NaN values included):
+                if (!Arrays.equals(data[row], otherData[row])) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static long computeProvisional(final List<FitsImage> images) {
+        long h = mix(0L, images.size());
+        for (FitsImage image : images) {
+            final int nbRows = image.getNbRows();
+            final int nbCols = image.getNbCols();
+            h = mix(mix(h, nbRows), nbCols);
+
+            final float[][] data = image.getData();
+            final long nPixels = (long) nbRows * nbCols;
+            if (data != null && nPixels != 0L) {
+                final long step = Math.max(1L, nPixels / SAMPLES);
+                for (long p = 0L; p < nPixels; p += step) {
+                    h = mix(h, Float.floatToIntBits(data[(int) (p / nbCols)][(int) (p % nbCols)]));
+                }
+            }
+        }
+        return fmix(h);
+    }
+
+    /**
+     * Compute the checksum of all planes in parallel chunks of rows
+     */
+    private static CompletableFuture<Long> computeChecksum(final String hduName, final List<FitsImage> images) {
+        final long start = System.nanoTime();
+        final List<CompletableFuture<Long>> chunks = new ArrayList<CompletableFuture<Long>>();
+
+        for (int i = 0; i < images.size(); i++) {
+            final FitsImage image = images.get(i);
+            final float[][] data = image.getData();
+            if (data == null) {
+                continue;
+            }
+            final int nbCols = Math.max(1, image.getNbCols());
+            final int chunkRows = Math.max(1, CHUNK_PIXELS / nbCols);
+            final long seed = mix(mix(i, image.getNbRows()), image.getNbCols());
+
+            for (int r = 0; r < data.length; r += chunkRows) {
+                final int rowStart = r;
+                final int rowEnd = Math.min(data.length, r + chunkRows);
+
+                chunks.add(CompletableFuture.supplyAsync(new Supplier<Long>() {
+                    @Override
+                    public Long get() {
+                        long h = mix(seed, rowStart);
+                        for (int row = rowStart; row < rowEnd; row++) {
+                            final float[] values = data[row];
+                            for (int col = 0; col < values.length; col++) {
+                                h = mix(h, Float.floatToIntBits(values[col]));
+                            }
+                        }
+                        return Long.valueOf(h);
+                    }
+                }, EXECUTOR));
+            }
+        }
+        final CompletableFuture<?>[] all = chunks.toArray(new CompletableFuture<?>[chunks.size()]);
+
+        return CompletableFuture.allOf(all).thenApply(new Function<Void, Long>() {
+            @Override
+            public Long apply(final Void v) {
+                // combine chunk hashes in order:
+                long h = mix(0L, chunks.size());
+                for (CompletableFuture<Long> chunk : chunks) {
+                    h = mix(h, chunk.join().longValue());
+                }
+                h = fmix(h);
+                logger.debug("checksum of HDU {}: {} ({} chunks in {} ms)", hduName, Long.toHexString(h), chunks.size(),
+                        1e-6d * (System.nanoTime() - start));
+                return Long.valueOf(h);
+            }
+        });
+    }
+
+    private static long mix(final long h, final long value) {
+        return (h ^ value) * 0x9E3779B97F4A7C15L + 0x632BE59BD9B4E019L;
+    }
+
+    /** final avalanche (MurmurHash3 fmix64) */
+    private static long fmix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageChecksum{provisional=" + Long.toHexString(provisional)
+                + ", checksum=" + (isDone() ? Long.toHexString(checksum.join().longValue()) : "pending") + '}';
+    }
+}
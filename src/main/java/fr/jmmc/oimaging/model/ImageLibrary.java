@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.model;
+
+import fr.jmmc.oitools.image.FitsImageHDU;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Image library (FitsImageHDUs in insertion order) indexed by content (ImageChecksum) and by HDU_NAME
+ * so that duplicate and name collision checks do not traverse the library.
+ *
+ * Note: HDU_NAME and images of library HDUs must not change while they belong to the library.
+ */
+final class ImageLibrary {
+
+    /* members */
+    /** HDUs in insertion order */
+    private final List<FitsImageHDU> hdus = new ArrayList<FitsImageHDU>();
+    /** read-only view */
+    private final List<FitsImageHDU> view = Collections.unmodifiableList(hdus);
+    /** HDUs (identity) */
+    private final Set<FitsImageHDU> members = Collections.newSetFromMap(new IdentityHashMap<FitsImageHDU, Boolean>());
+    /** HDUs keyed by provisional identity (dimensions and sampled pixels) */
+    private final Map<Long, List<FitsImageHDU>> byContent = new HashMap<Long, List<FitsImageHDU>>();
+    /** HDUs keyed by HDU_NAME */
+    private final Map<String, FitsImageHDU> byName = new HashMap<String, FitsImageHDU>();
+
+    ImageLibrary() {
+        super();
+    }
+
+    /**
+     * @return read-only list of HDUs in insertion order
+     */
+    List<FitsImageHDU> asList() {
+        return view;
+    }
+
+    int size() {
+        return hdus.size();
+    }
+
+    FitsImageHDU get(final int index) {
+        return hdus.get(index);
+    }
+
+    void clear() {
+        hdus.clear();
+        members.clear();
+        byContent.clear();
+        byName.clear();
+    }
+
+    /**
+     * Add the given HDU (no check)
+     * @param hdu HDU to add
+     */
+    void add(final FitsImageHDU hdu) {
+        hdus.add(hdu);
+        members.add(hdu);
+
+        final Long key = Long.valueOf(ImageChecksum.of(hdu).getProvisional());
+        List<FitsImageHDU> sameContent = byContent.get(key);
+        if (sameContent == null) {
+            sameContent = new ArrayList<FitsImageHDU>(1);
+            byContent.put(key, sameContent);
+        }
+        sameContent.add(hdu);
+        if (hdu.getHduName() != null) {
+            byName.put(hdu.getHduName(), hdu);
+        }
+    }
+
+    /**
+     * Remove the given HDU
+     * @param hdu HDU to remove
+     * @return its former index or -1 if not in the library
+     */
+    int remove(final FitsImageHDU hdu) {
+        if (!members.remove(hdu)) {
+            return -1;
+        }
+        int index = -1;
+        for (int i = 0, len = hdus.size(); i < len; i++) {
+            if (hdus.get(i) == hdu) {
+                index = i;
+                break;
+            }
+        }
+        hdus.remove(index);
+
+        final Long key = Long.valueOf(ImageChecksum.of(hdu).getProvisional());
+        final List<FitsImageHDU> sameContent = byContent.get(key);
+        if (sameContent != null) {
+            for (int i = 0; i < sameContent.size(); i++) {
+                if (sameContent.get(i) == hdu) {
+                    sameContent.remove(i);
+                    break;
+                }
+            }
+            if (sameContent.isEmpty()) {
+                byContent.remove(key);
+            }
+        }
+        if (hdu.getHduName() != null && byName.get(hdu.getHduName()) == hdu) {
+            byName.remove(hdu.getHduName());
+        }
+        return index;
+    }
+
+    /**
+     * @param hduName HDU_NAME
+     * @return true if an HDU of the library has the given name
+     */
+    boolean containsName(final String hduName) {
+        return byName.containsKey(hduName);
+    }
+
+    /**
+     * Find an equivalent HDU (same reference or same content, see ImageChecksum.matches)
+     * @param hdu HDU to look up (optional)
+     * @return HDU from the library or null if not found
+     */
+    FitsImageHDU find(final FitsImageHDU hdu) {
+        if (hdu == null) {
+            return null;
+        }
+        if (members.contains(hdu)) {
+            return hdu;
+        }
+        final List<FitsImageHDU> sameContent = byContent.get(Long.valueOf(ImageChecksum.of(hdu).getProvisional()));
+        if (sameContent != null) {
+            for (FitsImageHDU libraryHDU : sameContent) {
+                if (ImageChecksum.matches(libraryHDU, hdu)) {
+                    return libraryHDU;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return hdus.toString();
+    }
+}
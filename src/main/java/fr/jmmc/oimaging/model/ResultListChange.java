@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.model;
+
+import fr.jmmc.oimaging.services.ServiceResult;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One change of the result list of an IRModel (see IRModel.pollResultListChanges()),
+ * used to update the result table incrementally.
+ */
+public final class ResultListChange {
+
+    /** Kind of change */
+    public enum Kind {
+        /** results added at the beginning of the list (list order) */
+        ADDED,
+        /** results removed */
+        REMOVED,
+        /** results updated (keywords or metadata loaded) */
+        UPDATED,
+        /** whole list replaced */
+        RESET
+    }
+
+    /* members */
+    /** kind of change */
+    private final Kind kind;
+    /** related results */
+    private final List<ServiceResult> results;
+
+    ResultListChange(final Kind kind, final List<ServiceResult> results) {
+        this.kind = kind;
+        this.results = Collections.unmodifiableList(results);
+    }
+
+    /**
+     * @return kind of change
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return related results (read-only, empty for RESET)
+     */
+    public List<ServiceResult> getResults() {
+        return results;
+    }
+
+    @Override
+    public String toString() {
+        return "ResultListChange{" + kind + ", " + results.size() + " results}";
+    }
+}
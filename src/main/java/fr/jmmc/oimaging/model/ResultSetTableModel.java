@@ -19,9 +19,11 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import fr.jmmc.oitools.fits.FitsUtils;
-import fr.jmmc.oitools.model.OIFitsFile;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  *
@@ -37,10 +39,15 @@ public class ResultSetTableModel extends ColumnDescTableModel {
     public static final int HARD_CODED = 0;
     public static final int OUTPUT_PARAM = 1;
     public static final int INPUT_PARAM = 2;
+    public static final int SWEEP_PARAM = 3;
 
     /* members */
     /** results (another list copy) */
     private final List<ServiceResult> results;
+    /** columns keyed by name (fusion of result keywords, hard-coded columns and all known columns) */
+    private final Map<String, ColumnDesc> columnDescMap = new HashMap<>(64);
+    /** columns only known by name (all known columns missing in results) */
+    private final Set<ColumnDesc> placeholderColumns = Collections.newSetFromMap(new IdentityHashMap<ColumnDesc, Boolean>());
 
     @SuppressWarnings("CollectionWithoutInitialCapacity")
     public ResultSetTableModel() {
@@ -60,23 +67,11 @@ public class ResultSetTableModel extends ColumnDescTableModel {
 
         // Fusion of columns:
         // 1. we create a set of columns, uniques by getName()
-        final Map<String, ColumnDesc> columnDescMap = new HashMap<>(64);
+        columnDescMap.clear();
+        placeholderColumns.clear();
 
-        // 2. we add output columns to the set
-        for (ServiceResult result : results) {
-            if (result.getOifitsFile() != null) {
-                final ImageOiOutputParam outputParam = result.getOifitsFile().getImageOiData().getOutputParam();
-                processKeywordTable(columnDescMap, outputParam, OUTPUT_PARAM);
-            }
-        }
-
-        // 3. we add input columns to the set
-        for (ServiceResult result : results) {
-            if (result.getOifitsFile() != null) {
-                final ImageOiInputParam inputParam = result.getOifitsFile().getImageOiData().getInputParam();
-                processKeywordTable(columnDescMap, inputParam, INPUT_PARAM);
-            }
-        }
+        // 2. & 3. we add output, input and sweep columns to the set
+        addColumns(results);
 
         // 4. we add hardcoded columns to the set
         for (HardCodedColumn hcc : HardCodedColumn.values()) {
@@ -88,10 +83,126 @@ public class ResultSetTableModel extends ColumnDescTableModel {
         // 5. we add missing columns (from all known columns) to the set
         for (String columnName : allColumnNames) {
             if (!columnDescMap.containsKey(columnName)) {
-                columnDescMap.put(columnName, new ColumnDesc(columnName, Object.class));
+                final ColumnDesc placeholder = new ColumnDesc(columnName, Object.class);
+                columnDescMap.put(columnName, placeholder);
+                placeholderColumns.add(placeholder);
+            }
+        }
+
+        // 6. - 8. we fill the sorted column list
+        updateColumnList();
+
+        // notify changes
+        fireTableStructureChanged();
+        fireTableDataChanged();
+    }
+
+    /**
+     * Insert the given results at the beginning (same order) and merge only their new columns
+     * @param added new results
+     * @return true if columns were added (table structure changed)
+     */
+    public boolean addResults(final List<ServiceResult> added) {
+        if (added.isEmpty()) {
+            return false;
+        }
+        this.results.addAll(0, added);
+        fireTableRowsInserted(0, added.size() - 1);
+
+        return mergeColumns(added);
+    }
+
+    /**
+     * Remove the given results (columns are kept)
+     * @param removed removed results
+     */
+    public void removeResults(final List<ServiceResult> removed) {
+        for (ServiceResult result : removed) {
+            final int row = indexOf(result);
+            if (row != -1) {
+                this.results.remove(row);
+                fireTableRowsDeleted(row, row);
+            }
+        }
+    }
+
+    /**
+     * Refresh the rows of the given results and merge only their new columns
+     * @param updated updated results (keywords or metadata loaded)
+     * @return true if columns were added (table structure changed)
+     */
+    public boolean updateResults(final List<ServiceResult> updated) {
+        for (ServiceResult result : updated) {
+            final int row = indexOf(result);
+            if (row != -1) {
+                fireTableRowsUpdated(row, row);
+            }
+        }
+        return mergeColumns(updated);
+    }
+
+    /**
+     * @param result result
+     * @return row index of the given result or -1
+     */
+    private int indexOf(final ServiceResult result) {
+        for (int i = 0, len = results.size(); i < len; i++) {
+            if (results.get(i) == result) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean mergeColumns(final List<ServiceResult> newResults) {
+        if (addColumns(newResults)) {
+            updateColumnList();
+            fireTableStructureChanged();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Add output, input and sweep columns of the given results to the column set
+     * @param results results
+     * @return true if the column set changed
+     */
+    private boolean addColumns(final List<ServiceResult> results) {
+        boolean changed = false;
+
+        // 2. we add output columns to the set
+        for (ServiceResult result : results) {
+            // resident metadata (no OIFits payload reload):
+            final ImageOiOutputParam outputParam = result.getOutputParam();
+            if (outputParam != null) {
+                changed |= processKeywordTable(outputParam, OUTPUT_PARAM);
+            }
+        }
+
+        // 3. we add input columns to the set
+        for (ServiceResult result : results) {
+            final ImageOiInputParam inputParam = result.getInputParam();
+            if (inputParam != null) {
+                changed |= processKeywordTable(inputParam, INPUT_PARAM);
             }
         }
 
+        // 3b. we add sweep coordinate columns to the set
+        for (ServiceResult result : results) {
+            for (Map.Entry<String, Object> e : result.getSweepCoordinates().entrySet()) {
+                final String name = COLUMN_SWEEP_PREFIX + e.getKey();
+                if (!hasColumn(name)) {
+                    final Class<?> dataClass = (e.getValue() != null) ? e.getValue().getClass() : Object.class;
+                    putColumn(new ColumnDesc(name, dataClass, SWEEP_PARAM, null, "Sweep coordinate " + e.getKey()));
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    private void updateColumnList() {
         // 6. we clear the list
         listColumnDesc.clear();
 
@@ -101,11 +212,7 @@ public class ResultSetTableModel extends ColumnDescTableModel {
         // 8. sort the list
         listColumnDesc.sort(CMP_COLUMNS);
 
-        logger.debug("setResults: listColumnDesc: {}", listColumnDesc);
-
-        // notify changes
-        fireTableStructureChanged();
-        fireTableDataChanged();
+        logger.debug("updateColumnList: listColumnDesc: {}", listColumnDesc);
     }
 
     /** 
@@ -149,8 +256,8 @@ public class ResultSetTableModel extends ColumnDescTableModel {
 
         switch (columnDesc.getSource()) {
             case OUTPUT_PARAM:
-                if (result.getOifitsFile() != null) {
-                    outputParam = result.getOifitsFile().getImageOiData().getOutputParam();
+                outputParam = result.getOutputParam();
+                if (outputParam != null) {
                     Object value = getKeywordValue(outputParam, columnDesc.getName());
                     if (value != null) {
                         return value;
@@ -159,14 +266,16 @@ public class ResultSetTableModel extends ColumnDescTableModel {
                 // no break: if nothing has been found in OUTPUT we fallback to INPUT
                 logger.debug("No value found in Output params. fallback to input params.");
             case INPUT_PARAM:
-                if (result.getOifitsFile() != null) {
-                    inputParam = result.getOifitsFile().getImageOiData().getInputParam();
+                inputParam = result.getInputParam();
+                if (inputParam != null) {
                     Object value = getKeywordValue(inputParam, columnDesc.getName());
                     if (value != null) {
                         return value;
                     }
                 }
                 break;
+            case SWEEP_PARAM:
+                return result.getSweepCoordinates().get(columnDesc.getName().substring(COLUMN_SWEEP_PREFIX.length()));
             case HARD_CODED:
                 switch (HardCodedColumn.valueOf(columnDesc.getName())) {
                     case FILE:
@@ -210,44 +319,55 @@ public class ResultSetTableModel extends ColumnDescTableModel {
         } else if (columnDesc.getName().equals(KEYWORD_RATING.getName())) {
             setKeywordValue(result, OUTPUT_PARAM, KEYWORD_RATING.getName(), (Integer) value);
         }
+        // only repaint the edited cell:
+        fireTableCellUpdated(rowIndex, columnIndex);
     }
 
     private static void setKeywordValue(final ServiceResult result, int source, String keyword, Object value) {
-        final OIFitsFile oIFitsFile = result.getOifitsFile();
-
-        if (oIFitsFile == null) {
+        if (result.getInputParam() == null) {
             logger.info("Could not find the OiFitsFile in the ServiceResult.");
             return;
         }
 
+        // resident metadata (restored if the OIFits payload is reloaded):
         FitsTable fitsTable = null;
         switch (source) {
             case INPUT_PARAM:
-                fitsTable = oIFitsFile.getImageOiData().getInputParam();
+                fitsTable = result.getInputParam();
                 break;
             case OUTPUT_PARAM:
-                fitsTable = oIFitsFile.getImageOiData().getOutputParam();
+                fitsTable = result.getOutputParam();
                 break;
             case HARD_CODED:
                 logger.info("Cannot update HardCoded param.");
                 break;
+            case SWEEP_PARAM:
+                logger.info("Cannot update sweep param.");
+                break;
         }
         if (fitsTable != null) {
             fitsTable.setKeywordValue(keyword, value);
         }
     }
 
-    private static void processKeywordTable(final Map<String, ColumnDesc> columnDescMap, final FitsTable fitsTable, final int source) {
+    /**
+     * Add the keyword columns of the given table to the column set
+     * @return true if the column set changed
+     */
+    private boolean processKeywordTable(final FitsTable fitsTable, final int source) {
+        boolean changed = false;
+
         // keep column even if empty:
         for (KeywordMeta keyMeta : fitsTable.getKeywordsDesc().values()) {
             final String key = keyMeta.getName();
 
             // ignore standard FITS keywords:
-            if (!columnDescMap.containsKey(key) && !FitsUtils.isStandardKeyword(key)) {
+            if (!hasColumn(key) && !FitsUtils.isStandardKeyword(key)) {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Column[{}] data class: {}", key, keyMeta.getBaseClass());
                 }
-                columnDescMap.put(key, new ColumnDesc(key, keyMeta.getBaseClass(), source, null, keyMeta.getDescription()));
+                putColumn(new ColumnDesc(key, keyMeta.getBaseClass(), source, null, keyMeta.getDescription()));
+                changed = true;
             }
         }
         if (fitsTable.hasHeaderCards()) {
@@ -257,30 +377,48 @@ public class ResultSetTableModel extends ColumnDescTableModel {
 
                 // ignore standard FITS keywords:
                 if (!FitsUtils.isStandardKeyword(key)) {
-                    ColumnDesc columnDesc = columnDescMap.get(key);
-                    if (columnDesc != null) {
+                    if (hasColumn(key)) {
+                        final ColumnDesc columnDesc = columnDescMap.get(key);
                         if (columnDesc.getDataClass() == Object.class) {
                             // fix ColumnDesc.dataClass (= Object.class) if this value is not null:
                             final Object value = card.parseValue();
                             if (value != null) {
                                 logger.debug("Column[{}] set data class: {}", key, value.getClass());
                                 columnDesc.setDataClass(value.getClass());
+                                changed = true;
                             }
                         }
                     } else {
                         final Object value = card.parseValue();
                         final Class<?> dataClass = (value != null) ? value.getClass() : Object.class;
                         logger.debug("Column[{}] data class: {}", key, dataClass);
-                        columnDescMap.put(key, new ColumnDesc(key, dataClass, source, null, card.getComment()));
+                        putColumn(new ColumnDesc(key, dataClass, source, null, card.getComment()));
+                        changed = true;
                     }
                 }
             }
         }
+        return changed;
+    }
+
+    /**
+     * @return true if a column with the given name is given by results (placeholder columns are ignored)
+     */
+    private boolean hasColumn(final String name) {
+        final ColumnDesc columnDesc = columnDescMap.get(name);
+        return (columnDesc != null) && !placeholderColumns.contains(columnDesc);
+    }
+
+    private void putColumn(final ColumnDesc columnDesc) {
+        final ColumnDesc previous = columnDescMap.put(columnDesc.getName(), columnDesc);
+        if (previous != null) {
+            placeholderColumns.remove(previous);
+        }
     }
 
     /**
      * Method used to get param value from both either input or output params.
-     * @param fitsTable is obtained for example by calling serviceResult.getOifitsFile().getImageOiData().getInputParam(), must not be null
+     * @param fitsTable is obtained for example by calling serviceResult.getInputParam(), must not be null
      * @param paramKey the String key of the targeted param, can be empty or null but then will return null
      * @return param value if key found, null otherwise
      */
@@ -307,6 +445,8 @@ public class ResultSetTableModel extends ColumnDescTableModel {
     public final static String COLUMN_INDEX = "INDEX";
     public final static String COLUMN_JOB_DURATION = "JOB_DURATION";
     public final static String COLUMN_SUCCESS = "SUCCESS";
+    /** prefix of sweep coordinate column names */
+    public final static String COLUMN_SWEEP_PREFIX = "SWEEP_";
 
     /**
      * Enum for HardCoded Columns wrapping ColumnDesc
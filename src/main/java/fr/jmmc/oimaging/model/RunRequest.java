@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.model;
+
+import fr.jmmc.oimaging.services.InputFileCache;
+import fr.jmmc.oimaging.services.Service;
+import fr.jmmc.oitools.meta.KeywordMeta;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the information required to run one job (see IRModel.createRunRequest()):
+ * service, command line options, input parameter values and the input file written from the model content
+ * (data tables, images) when the snapshot was taken.
+ *
+ * The job input file is written from this snapshot only (see writeInputFile()): the written input file is linked
+ * or copied with its parameter header rewritten from the snapshot values, so it can be written on any thread
+ * while the model is edited.
+ */
+public final class RunRequest {
+
+    /* members */
+    /** selected service */
+    private final Service service;
+    /** command line options or null */
+    private final String cliOptions;
+    /** file name of the job input file */
+    private final String fileName;
+    /** extension name of the input parameter table */
+    private final String paramsExtName;
+    /** keyword descriptors of the input parameter table */
+    private final Map<String, KeywordMeta> keywordsDesc;
+    /** keyword values of the input parameter table (name / value) */
+    private final Map<String, Object> paramValues;
+    /** input file written from the model content */
+    private final InputFileCache.Entry input;
+
+    /**
+     * Create a snapshot (see IRModel.createRunRequest())
+     * @param service selected service
+     * @param cliOptions command line options or null
+     * @param fileName file name of the job input file
+     * @param paramsExtName extension name of the input parameter table
+     * @param keywordsDesc keyword descriptors of the input parameter table
+     * @param paramValues keyword values of the input parameter table (name / value)
+     * @param input input file written from the model content
+     */
+    RunRequest(final Service service, final String cliOptions, final String fileName, final String paramsExtName,
+               final Map<String, KeywordMeta> keywordsDesc, final Map<String, Object> paramValues,
+               final InputFileCache.Entry input) {
+        this.service = service;
+        this.cliOptions = cliOptions;
+        this.fileName = fileName;
+        this.paramsExtName = paramsExtName;
+        this.keywordsDesc = Collections.unmodifiableMap(new LinkedHashMap<String, KeywordMeta>(keywordsDesc));
+        this.paramValues = Collections.unmodifiableMap(new LinkedHashMap<String, Object>(paramValues));
+        this.input = input;
+    }
+
+    /**
+     * Write the job input file (new job directory) from this snapshot; may be called from any thread
+     * @return job input file
+     * @throws IOException if the input file can not be written
+     */
+    public File writeInputFile() throws IOException {
+        return InputFileCache.write(fileName, input, paramsExtName, keywordsDesc, paramValues);
+    }
+
+    /**
+     * @return input file written from the model content (shared by the requests of the same content)
+     */
+    public InputFileCache.Entry getInput() {
+        return input;
+    }
+
+    public Service getService() {
+        return service;
+    }
+
+    public String getCliOptions() {
+        return cliOptions;
+    }
+
+    public Map<String, KeywordMeta> getKeywordsDesc() {
+        return keywordsDesc;
+    }
+
+    public Map<String, Object> getParamValues() {
+        return paramValues;
+    }
+
+    /**
+     * @param name keyword name
+     * @return keyword value or null
+     */
+    public Object getParamValue(final String name) {
+        return paramValues.get(name);
+    }
+
+    @Override
+    public String toString() {
+        return "RunRequest[" + service + ", cliOptions: " + cliOptions + ", input: " + input + ", params: " + paramValues + ']';
+    }
+}
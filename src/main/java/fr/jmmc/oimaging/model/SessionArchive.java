@@ -0,0 +1,570 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.model;
+
+import fr.jmmc.jmcs.gui.util.SwingUtils;
+import fr.jmmc.jmcs.util.FileUtils;
+import fr.jmmc.oimaging.services.Service;
+import fr.jmmc.oimaging.services.ServiceList;
+import fr.jmmc.oimaging.services.ServiceResult;
+import fr.jmmc.oimaging.services.Workspace;
+import fr.jmmc.oitools.image.FitsImageFile;
+import fr.jmmc.oitools.image.FitsImageLoader;
+import fr.jmmc.oitools.image.FitsImageWriter;
+import fr.jmmc.oitools.image.ImageOiOutputParam;
+import fr.jmmc.oitools.meta.KeywordMeta;
+import fr.jmmc.oitools.meta.OIFitsStandard;
+import fr.jmmc.oitools.model.OIFitsChecker;
+import fr.jmmc.oitools.model.OIFitsFile;
+import fr.jmmc.oitools.model.OIFitsLoader;
+import fr.jmmc.oitools.model.OIFitsWriter;
+import fr.nom.tam.fits.FitsException;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Session container of an IRModel (zip archive):
+ * - session.properties: index (model state and result metadata), always the first entry
+ * - input.fits: input OIFits (data, parameters and selected images)
+ * - library.fits: image library
+ * - results/NNNNN/: input file, result OIFits file and execution log of every result
+ *
+ * Entries already compact (compressed or poorly compressible data) are stored instead of deflated.
+ * Loading reads the index first, extracts the result files into the workspace and
+ * loads their OIFits payloads lazily (first use or background thread).
+ */
+final class SessionArchive {
+
+    /** Logger */
+    private static final Logger logger = LoggerFactory.getLogger(SessionArchive.class.getName());
+
+    /** index entry (first entry) */
+    private static final String INDEX_ENTRY = "session.properties";
+    /** input OIFits entry */
+    private static final String INPUT_ENTRY = "input.fits";
+    /** image library entry */
+    private static final String LIBRARY_ENTRY = "library.fits";
+    /** result folder entry prefix */
+    private static final String RESULTS_DIR = "results/";
+    /** format name */
+    private static final String FORMAT = "oimaging-session";
+    /** format version */
+    private static final int VERSION = 1;
+
+    /* index keys */
+    private static final String KEY_FORMAT = "format";
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_SERVICE = "service";
+    private static final String KEY_CLI_OPTIONS = "cliOptions";
+    private static final String KEY_INPUT_IMAGE_VIEW = "inputImageView";
+    private static final String KEY_RESULTS = "results";
+    private static final String KEY_RESULT = "result.";
+    private static final String KEY_INPUT = "input";
+    private static final String KEY_INDEX = "index";
+    private static final String KEY_VALID = "valid";
+    private static final String KEY_CANCELLED = "cancelled";
+    private static final String KEY_FROM_CACHE = "fromCache";
+    private static final String KEY_ERROR = "error";
+    private static final String KEY_KILL_REASON = "killReason";
+    private static final String KEY_CONVERGED_REASON = "convergedReason";
+    private static final String KEY_START = "start";
+    private static final String KEY_END = "end";
+    private static final String KEY_SWEEP = "sweep.";
+    private static final String KEY_KEYWORD = "keyword.";
+
+    /** output keywords edited in memory (result table) */
+    private static final KeywordMeta[] EDITABLE_KEYWORDS = new KeywordMeta[]{
+        IRModel.KEYWORD_RATING, IRModel.KEYWORD_OIMAGING_COMMENT
+    };
+
+    /** size of the sample used to estimate the compressibility of an entry */
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    /** minimum gain (compressed sample) to deflate an entry */
+    private static final double MIN_GAIN = 0.1;
+    /** buffer size */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** number of results loaded in background between two result list notifications */
+    private static final int NOTIFY_BATCH = 50;
+
+    private SessionArchive() {
+        // no instance
+    }
+
+    /**
+     * Save the given model into the given session file
+     * @param irModel model to save
+     * @param file session file
+     * @throws IOException if an I/O exception occurred
+     */
+    static void save(final IRModel irModel, final File file) throws IOException {
+        final List<ServiceResult> results = new ArrayList<ServiceResult>(irModel.getResultSets());
+
+        // 1. index:
+        final Properties index = new Properties();
+        index.setProperty(KEY_FORMAT, FORMAT);
+        index.setProperty(KEY_VERSION, Integer.toString(VERSION));
+        if (irModel.getSelectedService() != null) {
+            index.setProperty(KEY_SERVICE, irModel.getSelectedService().getName());
+        }
+        if (irModel.getCliOptions() != null) {
+            index.setProperty(KEY_CLI_OPTIONS, irModel.getCliOptions());
+        }
+        if (irModel.getInputImageView() != null) {
+            index.setProperty(KEY_INPUT_IMAGE_VIEW, irModel.getInputImageView());
+        }
+        index.setProperty(KEY_RESULTS, Integer.toString(results.size()));
+
+        for (int i = 0, len = results.size(); i < len; i++) {
+            storeResult(index, KEY_RESULT + i + '.', results.get(i));
+        }
+
+        // 2. input OIFits and image library (temporary files):
+        final File inputFile = FileUtils.getTempFile("session-input-", IRModelManager.FITS_EXTENSION);
+        final File libraryFile = FileUtils.getTempFile("session-library-", IRModelManager.FITS_EXTENSION);
+
+        final File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".part");
+        try {
+            writeInput(irModel.getOifitsFile(), inputFile);
+
+            final boolean hasLibrary = !irModel.getImageLibrary().isEmpty();
+            if (hasLibrary) {
+                final FitsImageFile fits = new FitsImageFile();
+                fits.getFitsImageHDUs().addAll(irModel.getImageLibrary());
+                FitsImageWriter.write(libraryFile.getAbsolutePath(), fits);
+            }
+
+            // 3. archive (written aside then renamed):
+            try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE))) {
+                // fast compression (FITS data):
+                zos.setLevel(Deflater.BEST_SPEED);
+
+                final ZipEntry indexEntry = new ZipEntry(INDEX_ENTRY);
+                zos.putNextEntry(indexEntry);
+                index.store(zos, FORMAT);
+                zos.closeEntry();
+
+                addFile(zos, INPUT_ENTRY, inputFile);
+                if (hasLibrary) {
+                    addFile(zos, LIBRARY_ENTRY, libraryFile);
+                }
+
+                for (int i = 0, len = results.size(); i < len; i++) {
+                    final ServiceResult result = results.get(i);
+                    final String prefix = getResultDir(i) + result.getInputFile().getName();
+
+                    addFile(zos, prefix, result.getInputFile());
+                    addFile(zos, prefix + ServiceResult.RESULT_FILE_EXT, result.getOifitsResultFile());
+                    addFile(zos, prefix + ServiceResult.LOG_FILE_EXT, result.getExecutionLogResultFile());
+                }
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (FitsException fe) {
+            throw new IOException("Unable to write the session file: " + file.getAbsolutePath(), fe);
+        } finally {
+            deleteFile(inputFile);
+            deleteFile(libraryFile);
+            deleteFile(tmpFile);
+        }
+        logger.info("Session saved: {} ({} results, {} bytes)", file, results.size(), file.length());
+    }
+
+    /**
+     * Load the given session file into the given (empty) model.
+     * The result OIFits files are not loaded (see loadResults())
+     * @param file session file
+     * @param checker optional OIFits checker instance (may be null)
+     * @param irModel model to fill
+     * @return restored results (session order)
+     * @throws IOException if an I/O exception occurred or the file is not a session file
+     */
+    static List<ServiceResult> load(final File file, final OIFitsChecker checker, final IRModel irModel) throws IOException {
+        try (ZipFile zip = new ZipFile(file)) {
+            final Properties index = loadIndex(zip, file);
+
+            // 1. image library first (input images are matched to the library):
+            final ZipEntry libraryEntry = zip.getEntry(LIBRARY_ENTRY);
+            if (libraryEntry != null) {
+                final File libraryFile = extract(zip, libraryEntry, FileUtils.getTempFile("session-library-", IRModelManager.FITS_EXTENSION));
+                final FitsImageFile fits = FitsImageLoader.load(libraryFile.getAbsolutePath(), false, true);
+                irModel.addFitsImageHDUs(fits.getFitsImageHDUs(), fits.getFileName());
+            }
+
+            // 2. input OIFits:
+            irModel.loadOifitsFile(loadInput(zip, file, checker));
+
+            final Service service = ServiceList.getAvailableService(index.getProperty(KEY_SERVICE));
+            if (service != null) {
+                irModel.setSelectedService(service);
+                irModel.initSpecificParams(false);
+            }
+            irModel.setCliOptions(index.getProperty(KEY_CLI_OPTIONS));
+            if (index.getProperty(KEY_INPUT_IMAGE_VIEW) != null) {
+                irModel.setInputImageView(index.getProperty(KEY_INPUT_IMAGE_VIEW));
+            }
+
+            // 3. results (files extracted in the workspace, OIFits payloads loaded later):
+            final int nResults = Integer.parseInt(index.getProperty(KEY_RESULTS, "0"));
+            final List<ServiceResult> results = new ArrayList<ServiceResult>(nResults);
+
+            for (int i = 0; i < nResults; i++) {
+                final String key = KEY_RESULT + i + '.';
+                final String name = index.getProperty(key + KEY_INPUT);
+                if (name == null) {
+                    logger.warn("Session {}: missing result[{}]", file, i);
+                    continue;
+                }
+                final String prefix = getResultDir(i) + name;
+
+                final File inputFile = Workspace.getInstance().createJobFile(name);
+                final ServiceResult result = new ServiceResult(inputFile);
+
+                extract(zip, zip.getEntry(prefix), inputFile);
+                extract(zip, zip.getEntry(prefix + ServiceResult.RESULT_FILE_EXT), result.getOifitsResultFile());
+                extract(zip, zip.getEntry(prefix + ServiceResult.LOG_FILE_EXT), result.getExecutionLogResultFile());
+                Workspace.getInstance().updateUsage(inputFile);
+
+                final Map<String, Object> outputKeywords = restoreResult(index, key, result);
+
+                irModel.addRestoredServiceResult(result, outputKeywords);
+                results.add(result);
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Load only the input OIFits of the given session file
+     * @param file session file
+     * @param checker optional OIFits checker instance (may be null)
+     * @return input OIFits
+     * @throws IOException if an I/O exception occurred or the file is not a session file
+     */
+    static OIFitsFile loadInput(final File file, final OIFitsChecker checker) throws IOException {
+        try (ZipFile zip = new ZipFile(file)) {
+            loadIndex(zip, file);
+            return loadInput(zip, file, checker);
+        }
+    }
+
+    /**
+     * Load the OIFits payloads (and execution logs) of the given restored results in background
+     * and notify the result list changes until the given model is discarded
+     * @param irModel model
+     * @param results restored results
+     */
+    static void loadResults(final IRModel irModel, final List<ServiceResult> results) {
+        if (results.isEmpty()) {
+            return;
+        }
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                int n = 0;
+                List<ServiceResult> batch = new ArrayList<ServiceResult>(NOTIFY_BATCH);
+                for (ServiceResult result : results) {
+                    if (IRModelManager.getInstance().getIRModel() != irModel) {
+                        logger.info("Session loading aborted: model discarded");
+                        return;
+                    }
+                    try {
+                        result.loadExecutionLogFile();
+                    } catch (IOException ioe) {
+                        logger.error("Can't read content of executionLog file ", ioe);
+                    }
+                    // first use (already loaded if displayed meanwhile):
+                    result.getOifitsFile();
+                    batch.add(result);
+
+                    if ((++n % NOTIFY_BATCH == 0) || (n == results.size())) {
+                        fireResultsUpdated(irModel, batch);
+                        batch = new ArrayList<ServiceResult>(NOTIFY_BATCH);
+                    }
+                }
+                logger.info("Session: {} results loaded in {} ms", n, String.format("%.1f", 1e-6d * (System.nanoTime() - start)));
+            }
+        }, "SessionLoader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void fireResultsUpdated(final IRModel irModel, final List<ServiceResult> batch) {
+        SwingUtils.invokeLaterEDT(new Runnable() {
+            @Override
+            public void run() {
+                if (IRModelManager.getInstance().getIRModel() == irModel) {
+                    irModel.fireResultsUpdated(batch);
+                }
+            }
+        });
+    }
+
+    private static Properties loadIndex(final ZipFile zip, final File file) throws IOException {
+        final ZipEntry indexEntry = zip.getEntry(INDEX_ENTRY);
+        if (indexEntry == null) {
+            throw new IOException("Invalid session file (missing index): " + file.getAbsolutePath());
+        }
+        final Properties index = new Properties();
+        try (InputStream in = zip.getInputStream(indexEntry)) {
+            index.load(in);
+        }
+        if (!FORMAT.equals(index.getProperty(KEY_FORMAT))) {
+            throw new IOException("Invalid session file (format): " + file.getAbsolutePath());
+        }
+        final int version = Integer.parseInt(index.getProperty(KEY_VERSION, "0"));
+        if (version > VERSION) {
+            throw new IOException("Unsupported session file (version " + version + "): " + file.getAbsolutePath());
+        }
+        return index;
+    }
+
+    private static OIFitsFile loadInput(final ZipFile zip, final File file, final OIFitsChecker checker) throws IOException {
+        final ZipEntry inputEntry = zip.getEntry(INPUT_ENTRY);
+        if (inputEntry == null) {
+            throw new IOException("Invalid session file (missing input): " + file.getAbsolutePath());
+        }
+        final File inputFile = extract(zip, inputEntry, FileUtils.getTempFile("session-input-", IRModelManager.FITS_EXTENSION));
+        try {
+            return OIFitsLoader.loadOIFits(OIFitsStandard.VERSION_1, checker, inputFile.getAbsolutePath());
+        } catch (FitsException fe) {
+            throw new IOException("Could not load the session input: " + file.getAbsolutePath(), fe);
+        }
+    }
+
+    private static void writeInput(final OIFitsFile oiFitsFile, final File inputFile) throws IOException, FitsException {
+        // store original filename
+        final String originalAbsoluteFilePath = oiFitsFile.getAbsoluteFilePath();
+        try {
+            OIFitsWriter.writeOIFits(inputFile.getAbsolutePath(), oiFitsFile);
+        } finally {
+            //restore filename
+            oiFitsFile.setAbsoluteFilePath(originalAbsoluteFilePath);
+        }
+    }
+
+    private static void storeResult(final Properties index, final String key, final ServiceResult result) {
+        index.setProperty(key + KEY_INPUT, result.getInputFile().getName());
+        index.setProperty(key + KEY_INDEX, Integer.toString(result.getIndex()));
+        index.setProperty(key + KEY_VALID, Boolean.toString(result.isValid()));
+        index.setProperty(key + KEY_CANCELLED, Boolean.toString(result.isCancelled()));
+        index.setProperty(key + KEY_FROM_CACHE, Boolean.toString(result.isFromCache()));
+        if (result.getKillReason() != null) {
+            index.setProperty(key + KEY_KILL_REASON, result.getKillReason());
+        } else if (result.getErrorMessage() != null) {
+            index.setProperty(key + KEY_ERROR, result.getErrorMessage());
+        }
+        if (result.getConvergedReason() != null) {
+            index.setProperty(key + KEY_CONVERGED_REASON, result.getConvergedReason());
+        }
+        if (result.getStartTime() != null) {
+            index.setProperty(key + KEY_START, Long.toString(result.getStartTime().getTime()));
+        }
+        if (result.getEndTime() != null) {
+            index.setProperty(key + KEY_END, Long.toString(result.getEndTime().getTime()));
+        }
+        if (result.getService() != null) {
+            index.setProperty(key + KEY_SERVICE, result.getService().getName());
+        }
+        for (Map.Entry<String, Object> e : result.getSweepCoordinates().entrySet()) {
+            if (e.getValue() != null) {
+                index.setProperty(key + KEY_SWEEP + e.getKey(), e.getValue().toString());
+            }
+        }
+        if (result.isValid()) {
+            ImageOiOutputParam outputParam = result.getOutputParam();
+            if ((outputParam == null) && (result.getOifitsFile() != null)) {
+                // not loaded yet (restored session):
+                outputParam = result.getOutputParam();
+            }
+            if (outputParam != null) {
+                for (KeywordMeta keywordMeta : EDITABLE_KEYWORDS) {
+                    if (outputParam.hasKeywordMeta(keywordMeta.getName())) {
+                        final Object value = outputParam.getKeywordValue(keywordMeta.getName());
+                        if (value != null) {
+                            index.setProperty(key + KEY_KEYWORD + keywordMeta.getName(), value.toString());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Restore the result state from the index
+     * @return output keyword values edited in memory
+     */
+    private static Map<String, Object> restoreResult(final Properties index, final String key, final ServiceResult result) {
+        result.setIndex(Integer.parseInt(index.getProperty(key + KEY_INDEX, "0")));
+        result.setValid(Boolean.parseBoolean(index.getProperty(key + KEY_VALID)));
+        result.setCancelled(Boolean.parseBoolean(index.getProperty(key + KEY_CANCELLED)));
+        result.setFromCache(Boolean.parseBoolean(index.getProperty(key + KEY_FROM_CACHE)));
+        if (index.getProperty(key + KEY_KILL_REASON) != null) {
+            result.setKillReason(index.getProperty(key + KEY_KILL_REASON));
+        } else {
+            result.setErrorMessage(index.getProperty(key + KEY_ERROR));
+        }
+        result.setConvergedReason(index.getProperty(key + KEY_CONVERGED_REASON));
+        if (index.getProperty(key + KEY_START) != null) {
+            result.setStartTime(new Date(Long.parseLong(index.getProperty(key + KEY_START))));
+        }
+        if (index.getProperty(key + KEY_END) != null) {
+            result.setEndTime(new Date(Long.parseLong(index.getProperty(key + KEY_END))));
+        }
+        final Service service = ServiceList.getAvailableService(index.getProperty(key + KEY_SERVICE));
+        result.setService((service != null) ? service : ServiceList.getPreferedService());
+
+        final Map<String, Object> sweepCoordinates = new LinkedHashMap<String, Object>(4);
+        final Map<String, Object> outputKeywords = new LinkedHashMap<String, Object>(4);
+        final String sweepPrefix = key + KEY_SWEEP;
+        final String keywordPrefix = key + KEY_KEYWORD;
+
+        for (String name : index.stringPropertyNames()) {
+            if (name.startsWith(sweepPrefix)) {
+                sweepCoordinates.put(name.substring(sweepPrefix.length()), parseValue(index.getProperty(name)));
+            } else if (name.startsWith(keywordPrefix)) {
+                final String keyword = name.substring(keywordPrefix.length());
+                final String value = index.getProperty(name);
+                outputKeywords.put(keyword, IRModel.KEYWORD_RATING.getName().equals(keyword) ? parseValue(value) : value);
+            }
+        }
+        if (!sweepCoordinates.isEmpty()) {
+            result.setSweepCoordinates(sweepCoordinates);
+        }
+        return outputKeywords;
+    }
+
+    /**
+     * @return Integer, Double or String value
+     */
+    private static Object parseValue(final String value) {
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException nfe1) {
+            try {
+                return Double.valueOf(value);
+            } catch (NumberFormatException nfe2) {
+                return value;
+            }
+        }
+    }
+
+    private static String getResultDir(final int index) {
+        return String.format("%s%05d/", RESULTS_DIR, index);
+    }
+
+    /**
+     * Add the given file (if it exists): stored if already compact, deflated otherwise
+     */
+    private static void addFile(final ZipOutputStream zos, final String name, final File file) throws IOException {
+        if ((file == null) || !file.isFile()) {
+            return;
+        }
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setTime(file.lastModified());
+
+        if (isCompact(file)) {
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(file.length());
+            entry.setCompressedSize(file.length());
+            entry.setCrc(getCrc(file));
+        }
+        zos.putNextEntry(entry);
+        try (InputStream in = new FileInputStream(file)) {
+            copy(in, zos);
+        }
+        zos.closeEntry();
+    }
+
+    /**
+     * @return true if the given file is already compressed or if a sample (middle of the file) is poorly compressible
+     */
+    private static boolean isCompact(final File file) throws IOException {
+        final String name = file.getName().toLowerCase();
+        if (name.endsWith(".gz") || name.endsWith(".fz") || name.endsWith(".zip") || name.endsWith(".bz2")) {
+            return true;
+        }
+        final long length = file.length();
+        if (length < 2L * SAMPLE_SIZE) {
+            // small file (mostly FITS headers):
+            return false;
+        }
+        final byte[] sample = new byte[SAMPLE_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek((length - SAMPLE_SIZE) / 2L);
+            raf.readFully(sample);
+        }
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            final byte[] buffer = new byte[SAMPLE_SIZE];
+            long compressed = 0L;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(buffer);
+            }
+            return compressed > (1.0 - MIN_GAIN) * SAMPLE_SIZE;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static long getCrc(final File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Extract the given entry (if not null) into the given file
+     * @return file
+     */
+    private static File extract(final ZipFile zip, final ZipEntry entry, final File file) throws IOException {
+        if (entry != null) {
+            try (InputStream in = zip.getInputStream(entry)) {
+                Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        return file;
+    }
+
+    private static void copy(final InputStream in, final ZipOutputStream zos) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            zos.write(buffer, 0, n);
+        }
+    }
+
+    private static void deleteFile(final File file) {
+        if (file.exists() && !file.delete()) {
+            logger.debug("Unable to delete {}", file);
+        }
+    }
+}
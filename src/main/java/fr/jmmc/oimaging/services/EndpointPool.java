@@ -0,0 +1,330 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import fr.cnes.sitools.extensions.astro.application.uws.client.ClientUWS;
+import fr.cnes.sitools.extensions.astro.application.uws.client.ClientUWSException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import net.ivoa.xml.uws.v1.ExecutionPhase;
+import net.ivoa.xml.uws.v1.ShortJobDescription;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of UWS endpoints (OImaging-uws servers) with health checks and a concurrency limit per endpoint.
+ *
+ * New jobs go to the least loaded healthy endpoint: the load combines the jobs submitted by this client,
+ * the server queue depth (remaining jobs given by getJobs) and the measured latency.
+ * Endpoints failing (connection refused) are skipped until their next health check.
+ */
+final class EndpointPool {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(EndpointPool.class.getName());
+
+    // Use -DEndpointPool.checkPeriod=N to change the health check period (ms)
+    static final long CHECK_PERIOD = Math.max(100L, Long.getLong("EndpointPool.checkPeriod", 30000L));
+    // Use -DEndpointPool.retryPeriod=N to change the delay before checking a failed endpoint again (ms)
+    static final long RETRY_PERIOD = Math.max(100L, Long.getLong("EndpointPool.retryPeriod", 10000L));
+    /** latency (ms) worth one queued job when comparing endpoints */
+    private static final double LATENCY_PER_JOB = 500.0;
+    /** endpoint separator in the pool definition */
+    private static final String SEPARATORS = "[,;\\s]+";
+    /** concurrency limit separator in the pool definition */
+    private static final char LIMIT_SEPARATOR = '|';
+
+    /* members */
+    /** endpoints (immutable) */
+    private final List<Endpoint> endpoints;
+
+    /**
+     * Parse the pool definition: endpoints separated by commas or spaces, each given as 'url' or 'url|maxJobs'
+     * @param definition pool definition
+     * @param defaultMaxJobs concurrency limit used when not given
+     * @return endpoint pool (may be empty)
+     */
+    static EndpointPool parse(final String definition, final int defaultMaxJobs) {
+        final List<Endpoint> endpoints = new ArrayList<Endpoint>(4);
+        if (definition != null) {
+            for (String item : definition.trim().split(SEPARATORS)) {
+                if (item.isEmpty()) {
+                    continue;
+                }
+                String url = item;
+                int maxJobs = defaultMaxJobs;
+
+                final int pos = item.indexOf(LIMIT_SEPARATOR);
+                if (pos != -1) {
+                    url = item.substring(0, pos);
+                    try {
+                        maxJobs = Math.max(1, Integer.parseInt(item.substring(pos + 1)));
+                    } catch (NumberFormatException nfe) {
+                        logger.warn("Invalid concurrency limit for endpoint '{}'", item);
+                    }
+                }
+                if (!url.endsWith("/")) {
+                    url += '/';
+                }
+                endpoints.add(new Endpoint(url, maxJobs));
+            }
+        }
+        return new EndpointPool(endpoints);
+    }
+
+    EndpointPool(final List<Endpoint> endpoints) {
+        this.endpoints = Collections.unmodifiableList(endpoints);
+        logger.info("EndpointPool: {}", this.endpoints);
+    }
+
+    /**
+     * @return endpoints
+     */
+    List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @return true if this pool has no endpoint
+     */
+    boolean isEmpty() {
+        return endpoints.isEmpty();
+    }
+
+    /**
+     * @return sum of the concurrency limits
+     */
+    int getMaxJobs() {
+        int max = 0;
+        for (Endpoint endpoint : endpoints) {
+            max += endpoint.maxJobs;
+        }
+        return max;
+    }
+
+    /**
+     * @param url endpoint URL
+     * @return endpoint or null if not in this pool
+     */
+    Endpoint get(final String url) {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.url.equals(url)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Select the least loaded healthy endpoint (health checks are performed if needed) and reserve one job slot
+     * @param excluded endpoints to skip (failed for this job) or null
+     * @return selected endpoint (call release() once the job terminates)
+     * @throws ClientUWSException if no endpoint is available
+     */
+    Endpoint acquire(final Collection<Endpoint> excluded) throws ClientUWSException {
+        ClientUWSException lastFailure = null;
+
+        // check endpoints outside of the pool lock (network requests):
+        for (Endpoint endpoint : endpoints) {
+            if ((excluded == null || !excluded.contains(endpoint)) && endpoint.needsCheck()) {
+                final ClientUWSException cue = endpoint.check();
+                if (cue != null) {
+                    lastFailure = cue;
+                }
+            }
+        }
+
+        synchronized (this) {
+            Endpoint best = null;
+            double bestLoad = Double.MAX_VALUE;
+            boolean bestFree = false;
+
+            for (Endpoint endpoint : endpoints) {
+                if ((excluded != null && excluded.contains(endpoint)) || !endpoint.isHealthy()) {
+                    continue;
+                }
+                final boolean free = endpoint.running < endpoint.maxJobs;
+                final double load = endpoint.getLoad();
+                // prefer endpoints below their concurrency limit:
+                if ((free && !bestFree) || ((free == bestFree) && (load < bestLoad))) {
+                    best = endpoint;
+                    bestLoad = load;
+                    bestFree = free;
+                }
+            }
+            if (best != null) {
+                best.running++;
+                logger.debug("acquire: {} (load = {})", best, bestLoad);
+                return best;
+            }
+        }
+        if (lastFailure != null) {
+            throw lastFailure;
+        }
+        throw new ClientUWSException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, "No available endpoint !");
+    }
+
+    /**
+     * Reserve one job slot on the given endpoint (re-attached job)
+     * @param endpoint endpoint
+     */
+    synchronized void reserve(final Endpoint endpoint) {
+        endpoint.running++;
+    }
+
+    /**
+     * Release the job slot reserved on the given endpoint
+     * @param endpoint endpoint
+     */
+    synchronized void release(final Endpoint endpoint) {
+        if (endpoint.running > 0) {
+            endpoint.running--;
+        }
+    }
+
+    /**
+     * Mark the given endpoint as failed (connection refused ...) until its next health check
+     * @param endpoint endpoint
+     */
+    void failed(final Endpoint endpoint) {
+        logger.info("UWS service endpoint failed: '{}'", endpoint.url);
+        endpoint.setHealthy(false, -1L, 0);
+    }
+
+    /**
+     * Force health checks at the next acquire()
+     */
+    void reset() {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.lastCheck = 0L;
+        }
+    }
+
+    /**
+     * @param cue exception
+     * @return true if the exception corresponds to a connection failure (server down or unreachable)
+     */
+    static boolean isConnectionFailure(final ClientUWSException cue) {
+        if (cue.getStatus() != null && cue.getStatus().isConnectorError()) {
+            return true;
+        }
+        if ((cue.getCause() instanceof ResourceException) && ((ResourceException) cue.getCause()).getStatus().isConnectorError()) {
+            return true;
+        }
+        return RemoteExecutionMode.getRootCause(cue) instanceof ConnectException;
+    }
+
+    @Override
+    public String toString() {
+        return "EndpointPool" + endpoints;
+    }
+
+    /**
+     * One UWS endpoint
+     */
+    static final class Endpoint {
+
+        /** server URL */
+        final String url;
+        /** concurrency limit (jobs submitted by this client) */
+        final int maxJobs;
+        /** UWS client */
+        final ClientUWS client;
+        /** jobs submitted by this client and not terminated (guarded by the pool) */
+        int running = 0;
+        /* health state */
+        private volatile boolean healthy = true;
+        /** last health check (ms) or 0 if never checked */
+        private volatile long lastCheck = 0L;
+        /** smoothed latency (ms) */
+        private volatile double latency = 0.0;
+        /** remaining jobs on the server (all clients) */
+        private volatile int queueDepth = 0;
+
+        Endpoint(final String url, final int maxJobs) {
+            this.url = url;
+            this.maxJobs = maxJobs;
+            this.client = new ClientUWS(url, RemoteExecutionMode.SERVICE_PATH);
+        }
+
+        boolean isHealthy() {
+            return healthy;
+        }
+
+        double getLatency() {
+            return latency;
+        }
+
+        int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * @return load estimate (jobs): jobs submitted by this client or the server queue depth if larger,
+         * relative to the concurrency limit, plus the latency penalty
+         */
+        double getLoad() {
+            return ((double) Math.max(running, queueDepth)) / maxJobs + latency / LATENCY_PER_JOB;
+        }
+
+        boolean needsCheck() {
+            final long elapsed = System.currentTimeMillis() - lastCheck;
+            return elapsed >= ((healthy) ? CHECK_PERIOD : RETRY_PERIOD);
+        }
+
+        /**
+         * Check this endpoint: get the job list (queue depth and latency) or the home page if the job list is not available
+         * @return failure or null if healthy
+         */
+        ClientUWSException check() {
+            final long start = System.nanoTime();
+            try {
+                int depth = 0;
+                try {
+                    for (ShortJobDescription job : client.getJobs().getJobref()) {
+                        final ExecutionPhase phase = job.getPhase();
+                        if (phase == ExecutionPhase.EXECUTING || phase == ExecutionPhase.QUEUED
+                                || phase == ExecutionPhase.PENDING || phase == ExecutionPhase.HELD) {
+                            depth++;
+                        }
+                    }
+                } catch (ClientUWSException cue) {
+                    if (isConnectionFailure(cue)) {
+                        throw cue;
+                    }
+                    // job list not available (server policy): isAlive request
+                    client.getHomePage();
+                }
+                setHealthy(true, (System.nanoTime() - start) / 1000000L, depth);
+                logger.debug("check: {}", this);
+                return null;
+            } catch (ClientUWSException cue) {
+                logger.info("UWS service endpoint unreachable: '{}'", url);
+                setHealthy(false, -1L, 0);
+                return cue;
+            }
+        }
+
+        private void setHealthy(final boolean healthy, final long latency, final int queueDepth) {
+            this.healthy = healthy;
+            this.lastCheck = System.currentTimeMillis();
+            if (latency >= 0L) {
+                // exponential smoothing:
+                this.latency = (this.latency == 0.0) ? latency : 0.7 * this.latency + 0.3 * latency;
+            }
+            this.queueDepth = queueDepth;
+        }
+
+        @Override
+        public String toString() {
+            return "Endpoint{" + url + ", maxJobs=" + maxJobs + ", running=" + running + ", healthy=" + healthy
+                    + ", latency=" + String.format("%.1f", latency) + " ms, queueDepth=" + queueDepth + '}';
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads shared by all asynchronous executions (ServiceExecution):
+ * - one poller thread checking the state of every running process and scheduling the steps of remote jobs (short tasks only),
+ * - a small pool for blocking requests (upload, download, abort),
+ * - a pool for remote job phase requests (long-polling requests block up to 5 s): one thread per pending request,
+ *   idle threads die, so monitoring never delays transfers nor aborts,
+ * - a pool for concurrent result file downloads (single transfers that never wait for other tasks).
+ */
+final class ExecutionPoller {
+
+    // Use -DExecutionPoller.ioThreads=N to change the number of concurrent requests (upload, download, abort)
+    private static final int IO_THREADS = Math.max(1, Integer.getInteger("ExecutionPoller.ioThreads", 8));
+
+    /** shared poller (daemon thread) */
+    static final ScheduledExecutorService POLLER = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("ExecutionPoller"));
+
+    // Use -DExecutionPoller.downloadThreads=N to change the number of concurrent result file downloads
+    private static final int DOWNLOAD_THREADS = Math.max(1, Integer.getInteger("ExecutionPoller.downloadThreads", 4));
+
+    /** shared transfer pool (daemon threads) */
+    static final Executor IO;
+
+    /** shared remote job monitoring pool (daemon threads, one per pending phase request) */
+    static final Executor MONITORS;
+
+    /** shared result file download pool (daemon threads) */
+    static final Executor DOWNLOADS;
+
+    static {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("ExecutionIO"));
+        // let idle threads die:
+        executor.allowCoreThreadTimeOut(true);
+        IO = executor;
+
+        MONITORS = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new DaemonThreadFactory("ExecutionMonitor"));
+
+        final ThreadPoolExecutor downloads = new ThreadPoolExecutor(DOWNLOAD_THREADS, DOWNLOAD_THREADS, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("ResultDownload"));
+        downloads.allowCoreThreadTimeOut(true);
+        DOWNLOADS = downloads;
+    }
+
+    private ExecutionPoller() {
+        // no instance
+    }
+
+    /**
+     * Thread factory creating named daemon threads
+     */
+    static final class DaemonThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        DaemonThreadFactory(final String name) {
+            this.prefix = name + "-";
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, prefix + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
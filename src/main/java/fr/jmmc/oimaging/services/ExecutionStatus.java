@@ -0,0 +1,18 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+/**
+ * Status of a ServiceExecution (before its termination)
+ */
+public enum ExecutionStatus {
+    /** waiting for resources */
+    QUEUED,
+    /** sending the input file (remote) */
+    UPLOADING,
+    /** software running */
+    EXECUTING,
+    /** retrieving the result files (remote) */
+    DOWNLOADING
+}
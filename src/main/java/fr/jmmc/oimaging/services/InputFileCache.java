@@ -0,0 +1,414 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import fr.jmmc.oitools.meta.KeywordMeta;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Last input file written from one model (whole OIFits written by the caller), shared by the next runs
+ * while its content (data tables, images, other header cards) is unchanged:
+ * <ul>
+ * <li>same parameter values: the file is linked (or copied) into the new job directory</li>
+ * <li>other parameter values: the IMAGE-OI INPUT PARAM header is rewritten, other HDUs are copied</li>
+ * </ul>
+ * The content key (data and images identity) is given by the caller; the hash of the data tables
+ * (OI_* HDUs) is computed once per stored file.
+ */
+public final class InputFileCache {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(InputFileCache.class.getName());
+
+    /** max length of a string value in a single card */
+    private static final int MAX_STRING_LENGTH = 68;
+    /** structural keywords of the parameter table (kept as written) */
+    private static final Set<String> STRUCTURAL_KEYWORDS = new HashSet<String>(Arrays.asList(
+            "XTENSION", "BITPIX", "NAXIS", "NAXIS1", "NAXIS2", "PCOUNT", "GCOUNT", "TFIELDS", "EXTNAME", "EXTVER"
+    ));
+
+    /* members */
+    /** last written file or null */
+    private Entry entry = null;
+    /** hash of the data tables of the last written file (lazy) */
+    private String dataHash = null;
+
+    public InputFileCache() {
+        super();
+    }
+
+    /**
+     * Return the last written file if its content matches the given content key
+     * @param contentKey content key (data tables, images, other header cards)
+     * @return last written file or null if the whole input file must be written
+     */
+    public synchronized Entry get(final Object contentKey) {
+        if (entry == null || !contentKey.equals(entry.contentKey)) {
+            return null;
+        }
+        if (!entry.file.exists()) {
+            logger.debug("get: missing file {}", entry.file);
+            clear();
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Store the given input file (whole file written by the caller) for the next runs
+     * @param written written input file
+     * @param contentKey content key (data tables, images, other header cards)
+     * @param values keyword values of the written parameter table (name / value)
+     * @return stored entry
+     */
+    public synchronized Entry store(final File written, final Object contentKey, final Map<String, Object> values) {
+        final Entry newEntry = new Entry(written, contentKey, values);
+        set(newEntry);
+        return newEntry;
+    }
+
+    /**
+     * Return the hash of the data tables (OI_* HDUs) of the last written file (computed once per data content)
+     * @param contentKey current content key (data tables, images, other header cards)
+     * @return SHA-256 hash or null if unavailable (content changed since the last written file, no data table, I/O error)
+     */
+    public synchronized String getDataHash(final Object contentKey) {
+        if (entry == null || !contentKey.equals(entry.contentKey)) {
+            return null;
+        }
+        if (dataHash == null) {
+            try {
+                final long start = System.nanoTime();
+                dataHash = RemoteDatasets.computeHash(entry.file, RemoteDatasets.scan(entry.file));
+                logger.debug("getDataHash: {} in {} ms", dataHash, 1e-6d * (System.nanoTime() - start));
+            } catch (IOException ioe) {
+                logger.warn("Unable to compute the data hash of the input file: {}", entry.file, ioe);
+            }
+        }
+        return dataHash;
+    }
+
+    /**
+     * Return the hash of the data tables of the given written file if it is still the last written file
+     * @param input written file
+     * @return SHA-256 hash or null if unavailable (other file written since, no data table, I/O error)
+     */
+    public String getDataHash(final Entry input) {
+        return getDataHash(input.contentKey);
+    }
+
+    /**
+     * Forget the last written file
+     */
+    public synchronized void clear() {
+        set(null);
+    }
+
+    private void set(final Entry newEntry) {
+        final Workspace workspace = Workspace.getInstance();
+        if (newEntry != null) {
+            // protect its job directory while cached:
+            workspace.retain(newEntry.file);
+        }
+        if (this.entry != null) {
+            workspace.release(this.entry.file);
+        }
+        this.entry = newEntry;
+        this.dataHash = null;
+    }
+
+    /**
+     * Return true if the given parameter values can be written into the header of the given written file (see write)
+     * @param base written file (see store)
+     * @param keywordsDesc keyword descriptors of the input parameter table
+     * @param values keyword values of the input parameter table (name / value)
+     * @return true if every changed value fits in a single card
+     */
+    public static boolean isWritable(final Entry base, final Map<String, KeywordMeta> keywordsDesc, final Map<String, Object> values) {
+        for (KeywordMeta keyMeta : keywordsDesc.values()) {
+            final String key = keyMeta.getName();
+            if (!STRUCTURAL_KEYWORDS.contains(key) && !base.isUnchanged(key, values.get(key))
+                    && formatCard(keyMeta, values.get(key), null) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write a new input file for the given parameter values from the given written file (same content)
+     * @param fileName file name in the new job directory
+     * @param base written file (see store)
+     * @param extName extension name of the input parameter table
+     * @param keywordsDesc keyword descriptors of the input parameter table
+     * @param values keyword values of the input parameter table (name / value)
+     * @return new input file
+     * @throws IOException if the written file is no longer available or can not be copied,
+     * or if the parameter values can not be written (see isWritable)
+     */
+    public static File write(final String fileName, final Entry base, final String extName,
+                             final Map<String, KeywordMeta> keywordsDesc, final Map<String, Object> values) throws IOException {
+        if (!base.file.exists()) {
+            throw new IOException("Input file no longer available: " + base.file);
+        }
+        final long start = System.nanoTime();
+        final Workspace workspace = Workspace.getInstance();
+        final File newFile = workspace.createJobFile(fileName);
+        boolean done = false;
+        try {
+            if (base.hasValues(values)) {
+                try {
+                    Files.createLink(newFile.toPath(), base.file.toPath());
+                } catch (IOException | UnsupportedOperationException e) {
+                    logger.debug("write: link failure, copy {}", base.file, e);
+                    Files.copy(base.file.toPath(), newFile.toPath());
+                }
+                logger.info("Input file {} reused (unchanged) in {} ms", base.file.getName(), 1e-6d * (System.nanoTime() - start));
+            } else {
+                if (!writeWithParams(base, extName, keywordsDesc, values, newFile)) {
+                    throw new IOException("Unable to write the input parameters into " + newFile.getName());
+                }
+                logger.info("Input file {} reused (parameters updated) in {} ms", base.file.getName(), 1e-6d * (System.nanoTime() - start));
+            }
+            done = true;
+            // linked files are counted once:
+            workspace.updateUsage(newFile);
+            return newFile;
+        } finally {
+            if (!done) {
+                newFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Copy the last written file into the given file with the header of the parameter table updated
+     * @return true if written; false if the parameter table can not be updated in place
+     */
+    private static boolean writeWithParams(final Entry base, final String extName, final Map<String, KeywordMeta> keywordsDesc,
+                                           final Map<String, Object> values, final File outputFile) throws IOException {
+        final List<RemoteDatasets.Hdu> hdus = RemoteDatasets.scan(base.file);
+
+        try (FileChannel in = new FileInputStream(base.file).getChannel();
+                FileChannel out = new FileOutputStream(outputFile).getChannel()) {
+            boolean updated = false;
+
+            for (RemoteDatasets.Hdu hdu : hdus) {
+                if (hdu.extension && extName.equals(hdu.extName)) {
+                    final ByteBuffer header = updateHeader(in, hdu, base, keywordsDesc, values);
+                    if (header == null) {
+                        return false;
+                    }
+                    while (header.hasRemaining()) {
+                        out.write(header);
+                    }
+                    updated = true;
+                } else {
+                    RemoteDatasets.transfer(in, hdu, out);
+                }
+            }
+            return updated;
+        }
+    }
+
+    /**
+     * Rewrite the cards of changed keywords (cards of unchanged keywords are kept as written,
+     * cards of keywords no longer defined are removed and new keywords are added before END)
+     * @param base written file giving the written values
+     * @return updated HDU (header only as the parameter table has no row) or null if not supported
+     */
+    private static ByteBuffer updateHeader(final FileChannel in, final RemoteDatasets.Hdu hdu, final Entry base,
+                                           final Map<String, KeywordMeta> keywordsDesc, final Map<String, Object> values) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) hdu.length);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, hdu.offset + buffer.position()) < 0) {
+                throw new IOException("Truncated FITS file");
+            }
+        }
+        final byte[] bytes = buffer.array();
+        final List<String> cards = new ArrayList<String>();
+        final Set<String> done = new HashSet<String>();
+        boolean end = false;
+        // true to skip the continuation cards of a replaced or removed long string:
+        boolean skipContinue = false;
+
+        for (int c = 0; c + RemoteDatasets.CARD_LENGTH <= bytes.length; c += RemoteDatasets.CARD_LENGTH) {
+            final String card = new String(bytes, c, RemoteDatasets.CARD_LENGTH, StandardCharsets.US_ASCII);
+            final String key = card.substring(0, 8).trim();
+
+            if ("END".equals(key)) {
+                end = true;
+                break;
+            }
+            if ("CONTINUE".equals(key) && skipContinue) {
+                continue;
+            }
+            skipContinue = false;
+
+            if ("NAXIS2".equals(key) && !"0".equals(card.substring(10, 30).trim())) {
+                // rows are not supported:
+                return null;
+            }
+            if (STRUCTURAL_KEYWORDS.contains(key) || !base.values.containsKey(key)) {
+                // other header cards:
+                cards.add(card);
+            } else if (keywordsDesc.containsKey(key) && base.isUnchanged(key, values.get(key))) {
+                // keep the written card:
+                cards.add(card);
+                done.add(key);
+            } else {
+                skipContinue = true;
+
+                if (keywordsDesc.containsKey(key) && done.add(key)) {
+                    final String newCard = formatCard(keywordsDesc.get(key), values.get(key), getComment(card));
+                    if (newCard == null) {
+                        return null;
+                    }
+                    if (!newCard.isEmpty()) {
+                        cards.add(newCard);
+                    }
+                }
+            }
+        }
+        if (!end) {
+            return null;
+        }
+        // new keywords:
+        for (KeywordMeta keyMeta : keywordsDesc.values()) {
+            if (!STRUCTURAL_KEYWORDS.contains(keyMeta.getName()) && !done.contains(keyMeta.getName())) {
+                final String newCard = formatCard(keyMeta, values.get(keyMeta.getName()), keyMeta.getDescription());
+                if (newCard == null) {
+                    return null;
+                }
+                if (!newCard.isEmpty()) {
+                    cards.add(newCard);
+                }
+            }
+        }
+        cards.add("END");
+
+        final int nBlocks = (cards.size() * RemoteDatasets.CARD_LENGTH + RemoteDatasets.BLOCK_LENGTH - 1) / RemoteDatasets.BLOCK_LENGTH;
+        final byte[] header = new byte[nBlocks * RemoteDatasets.BLOCK_LENGTH];
+        Arrays.fill(header, (byte) ' ');
+        for (int i = 0; i < cards.size(); i++) {
+            final byte[] card = cards.get(i).getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(card, 0, header, i * RemoteDatasets.CARD_LENGTH, Math.min(card.length, RemoteDatasets.CARD_LENGTH));
+        }
+        return ByteBuffer.wrap(header);
+    }
+
+    /**
+     * Format the card of the given keyword (fixed format)
+     * @return card, empty string if the keyword has no value or null if its value can not be written in a single card
+     */
+    static String formatCard(final KeywordMeta keyMeta, final Object value, final String comment) {
+        if (value == null) {
+            return "";
+        }
+        final String formatted;
+        if (value instanceof String) {
+            final String str = ((String) value).replace("'", "''");
+            if (str.length() > MAX_STRING_LENGTH - 2) {
+                return null;
+            }
+            final StringBuilder sb = new StringBuilder(MAX_STRING_LENGTH).append('\'').append(str);
+            while (sb.length() < 9) {
+                sb.append(' ');
+            }
+            formatted = String.format("%-20s", sb.append('\'').toString());
+        } else if (value instanceof Boolean) {
+            formatted = String.format("%20s", ((Boolean) value) ? "T" : "F");
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short) {
+            formatted = String.format("%20s", value.toString());
+        } else if (value instanceof Number) {
+            final double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                return null;
+            }
+            formatted = String.format("%20s", Double.toString(d));
+        } else {
+            return null;
+        }
+        final StringBuilder card = new StringBuilder(RemoteDatasets.CARD_LENGTH);
+        card.append(String.format("%-8s", keyMeta.getName())).append("= ").append(formatted);
+
+        if (comment != null && !comment.isEmpty() && card.length() + 3 < RemoteDatasets.CARD_LENGTH) {
+            card.append(" / ").append(comment);
+        }
+        return (card.length() > RemoteDatasets.CARD_LENGTH) ? card.substring(0, RemoteDatasets.CARD_LENGTH) : card.toString();
+    }
+
+    /**
+     * @return comment of the given card or null
+     */
+    private static String getComment(final String card) {
+        final String value = card.substring(10);
+        final int quote = value.lastIndexOf('\'');
+        final int slash = value.indexOf('/', (quote != -1) ? quote : 0);
+        return (slash != -1) ? value.substring(slash + 1).trim() : null;
+    }
+
+    /**
+     * Input file written from the model (immutable)
+     */
+    public static final class Entry {
+
+        /** written file */
+        private final File file;
+        /** content key (data tables, images, other header cards) */
+        private final Object contentKey;
+        /** keyword values of the written parameter table (name / value) */
+        private final Map<String, Object> values;
+
+        Entry(final File file, final Object contentKey, final Map<String, Object> values) {
+            this.file = file;
+            this.contentKey = contentKey;
+            this.values = Collections.unmodifiableMap(new HashMap<String, Object>(values));
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @param values keyword values (name / value)
+         * @return true if this file was written with the given parameter values
+         */
+        public boolean hasValues(final Map<String, Object> values) {
+            return this.values.equals(values);
+        }
+
+        /**
+         * @param key keyword name
+         * @param value keyword value
+         * @return true if the given keyword was written with the given value
+         */
+        boolean isUnchanged(final String key, final Object value) {
+            return values.containsKey(key) && Objects.equals(value, values.get(key));
+        }
+
+        @Override
+        public String toString() {
+            return "InputFileCache.Entry{" + file.getName() + '}';
+        }
+    }
+}
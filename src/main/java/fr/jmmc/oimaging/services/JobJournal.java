@@ -0,0 +1,394 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import fr.jmmc.jmcs.data.preference.SessionSettingsPreferences;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of the remote (UWS) jobs submitted by this application,
+ * to re-attach running jobs and retrieve their results after a restart (or a crash).
+ *
+ * Each line is an event (tab separated): SUBMIT (endpoint, job id, software, cli options, input hash, input name),
+ * STORED once the results are stored locally (the server-side job may be deleted) and DELETED once the server-side job is deleted.
+ * A copy of the input file is kept (by content hash) until the job is deleted.
+ * The journal is compacted at startup (closed entries are dropped).
+ */
+public final class JobJournal {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(JobJournal.class.getName());
+
+    // Use -DJobJournal.disabled=true to disable the job journal (jobs can not be re-attached after a restart)
+    private static final boolean DISABLED = Boolean.getBoolean("JobJournal.disabled");
+
+    /** journal folder name (in the application file storage) */
+    private static final String JOURNAL_DIR = "job-journal";
+    /** journal file name */
+    private static final String JOURNAL_FILE = "journal.txt";
+    /** input file extension */
+    private static final String INPUT_FILE_EXT = ".input.fits";
+    /** field separator */
+    private static final char SEP = '\t';
+    /** events */
+    private static final String EVENT_SUBMIT = "SUBMIT";
+    private static final String EVENT_STORED = "STORED";
+    private static final String EVENT_DELETED = "DELETED";
+
+    /** Singleton */
+    private static JobJournal INSTANCE = null;
+
+    /* members */
+    /** journal directory */
+    private final File journalDir;
+    /** journal file */
+    private final File journalFile;
+    /** open entries (not deleted) keyed by endpoint + job id in submit order */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16);
+
+    /**
+     * Return the JobJournal singleton
+     * @return JobJournal singleton or null if disabled
+     */
+    public static synchronized JobJournal getInstance() {
+        if (INSTANCE == null && !DISABLED) {
+            INSTANCE = new JobJournal(new File(SessionSettingsPreferences.getApplicationFileStorage(), JOURNAL_DIR));
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Create a journal stored in the given directory
+     * @param journalDir journal directory
+     */
+    JobJournal(final File journalDir) {
+        this.journalDir = journalDir;
+        this.journalFile = new File(journalDir, JOURNAL_FILE);
+        load();
+    }
+
+    private void load() {
+        if (!journalDir.isDirectory() && !journalDir.mkdirs()) {
+            logger.warn("Unable to create the job journal directory: {}", journalDir);
+            return;
+        }
+        if (journalFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    replay(line);
+                }
+            } catch (IOException ioe) {
+                logger.warn("Unable to read the job journal: {}", journalFile, ioe);
+            }
+        }
+        compact();
+        logger.info("JobJournal: {} open entries in {}", entries.size(), journalDir);
+    }
+
+    /**
+     * Apply the given journal line
+     * @param line journal line
+     */
+    private void replay(final String line) {
+        final String[] fields = line.split(String.valueOf(SEP), -1);
+        if (fields.length < 4) {
+            // truncated line (crash while writing):
+            logger.debug("replay: ignoring line '{}'", line);
+            return;
+        }
+        final String key = getKey(fields[2], fields[3]);
+        if (EVENT_SUBMIT.equals(fields[0])) {
+            if (fields.length >= 8) {
+                try {
+                    entries.put(key, new Entry(fields[2], fields[3], fields[4], (fields[5].isEmpty()) ? null : fields[5],
+                            fields[6], fields[7], Long.parseLong(fields[1])));
+                } catch (NumberFormatException nfe) {
+                    logger.debug("replay: ignoring line '{}'", line);
+                }
+            }
+        } else if (EVENT_STORED.equals(fields[0])) {
+            final Entry entry = entries.get(key);
+            if (entry != null) {
+                entry.stored = true;
+            }
+        } else if (EVENT_DELETED.equals(fields[0])) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Rewrite the journal with open entries only and remove unused input files
+     */
+    private void compact() {
+        final File tmpFile = new File(journalDir, JOURNAL_FILE + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmpFile)) {
+            for (Entry entry : entries.values()) {
+                out.write(toSubmitLine(entry).getBytes(StandardCharsets.UTF_8));
+                if (entry.stored) {
+                    out.write(toLine(EVENT_STORED, entry).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IOException ioe) {
+            logger.warn("Unable to compact the job journal: {}", journalFile, ioe);
+            return;
+        }
+        try {
+            Files.move(tmpFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ioe) {
+            logger.warn("Unable to compact the job journal: {}", journalFile, ioe);
+        }
+
+        final Set<String> used = new HashSet<String>(entries.size());
+        for (Entry entry : entries.values()) {
+            used.add(entry.getInputFile().getName());
+        }
+        final File[] files = journalDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(INPUT_FILE_EXT) && !used.contains(file.getName())) {
+                    logger.debug("compact: deleting unused input file {}", file);
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Record a submitted job (copy its input file)
+     * @param endpoint UWS server URL
+     * @param jobId job identifier
+     * @param software software program
+     * @param cliOptions software options on command line or null
+     * @param inputFile input OIFits file
+     * @return new entry
+     * @throws IOException if the input file can not be copied or the journal can not be written
+     */
+    public synchronized Entry submitted(final String endpoint, final String jobId, final String software,
+                                        final String cliOptions, final File inputFile) throws IOException {
+
+        final Entry entry = new Entry(endpoint, jobId, software, clean(cliOptions), computeHash(inputFile),
+                clean(inputFile.getName()), System.currentTimeMillis());
+
+        final File inputCopy = entry.getInputFile();
+        if (!inputCopy.exists()) {
+            Files.copy(inputFile.toPath(), inputCopy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        append(toSubmitLine(entry));
+        entries.put(entry.getKey(), entry);
+
+        logger.debug("submitted: {}", entry);
+        return entry;
+    }
+
+    /**
+     * Record that the results of the given job are stored locally (the server-side job may be deleted)
+     * @param entry job entry
+     */
+    public synchronized void stored(final Entry entry) {
+        if (!entry.stored && entries.containsKey(entry.getKey())) {
+            entry.stored = true;
+            appendQuietly(toLine(EVENT_STORED, entry));
+        }
+    }
+
+    /**
+     * Record that the given job is deleted on the server (or lost): close its entry
+     * @param entry job entry
+     */
+    public synchronized void deleted(final Entry entry) {
+        if (entries.remove(entry.getKey()) != null) {
+            appendQuietly(toLine(EVENT_DELETED, entry));
+
+            // remove the input file if no longer used:
+            for (Entry other : entries.values()) {
+                if (other.getInputHash().equals(entry.getInputHash())) {
+                    return;
+                }
+            }
+            entry.getInputFile().delete();
+        }
+    }
+
+    /**
+     * @return entries of jobs whose results are not stored locally (to re-attach)
+     */
+    public synchronized List<Entry> getPendingJobs() {
+        final List<Entry> pending = new ArrayList<Entry>(entries.size());
+        for (Entry entry : entries.values()) {
+            if (!entry.stored) {
+                pending.add(entry);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * @return entries of jobs whose results are stored locally but not deleted on the server
+     */
+    public synchronized List<Entry> getStoredJobs() {
+        final List<Entry> stored = new ArrayList<Entry>(entries.size());
+        for (Entry entry : entries.values()) {
+            if (entry.stored) {
+                stored.add(entry);
+            }
+        }
+        return stored;
+    }
+
+    private void appendQuietly(final String line) {
+        try {
+            append(line);
+        } catch (IOException ioe) {
+            logger.warn("Unable to write the job journal: {}", journalFile, ioe);
+        }
+    }
+
+    private void append(final String line) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+            // survive crashes:
+            out.getChannel().force(false);
+        }
+    }
+
+    private static String toSubmitLine(final Entry entry) {
+        return EVENT_SUBMIT + SEP + entry.submitTime + SEP + entry.endpoint + SEP + entry.jobId + SEP + entry.software
+                + SEP + ((entry.cliOptions != null) ? entry.cliOptions : "") + SEP + entry.inputHash + SEP + entry.inputName + '\n';
+    }
+
+    private static String toLine(final String event, final Entry entry) {
+        return event + SEP + System.currentTimeMillis() + SEP + entry.endpoint + SEP + entry.jobId + '\n';
+    }
+
+    private static String getKey(final String endpoint, final String jobId) {
+        return endpoint + SEP + jobId;
+    }
+
+    /**
+     * @param value value or null
+     * @return value without tab or new line characters (journal format)
+     */
+    private static String clean(final String value) {
+        return (value != null) ? value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ') : null;
+    }
+
+    /**
+     * @param file file
+     * @return hexadecimal SHA-256 hash of the file content
+     * @throws IOException if the file can not be read
+     */
+    private static String computeHash(final File file) throws IOException {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException("SHA-256 not supported", nsae);
+        }
+        final byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                md.update(buffer, 0, n);
+            }
+        }
+        return ResultCache.toHex(md.digest());
+    }
+
+    /**
+     * Journal entry of one remote job
+     */
+    public final class Entry {
+
+        private final String endpoint;
+        private final String jobId;
+        private final String software;
+        private final String cliOptions;
+        private final String inputHash;
+        private final String inputName;
+        /** submit time (ms) */
+        private final long submitTime;
+        /** true if the results are stored locally (guarded by the journal) */
+        private boolean stored = false;
+
+        Entry(final String endpoint, final String jobId, final String software, final String cliOptions,
+              final String inputHash, final String inputName, final long submitTime) {
+            this.endpoint = endpoint;
+            this.jobId = jobId;
+            this.software = software;
+            this.cliOptions = cliOptions;
+            this.inputHash = inputHash;
+            this.inputName = inputName;
+            this.submitTime = submitTime;
+        }
+
+        String getKey() {
+            return JobJournal.getKey(endpoint, jobId);
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        public String getSoftware() {
+            return software;
+        }
+
+        public String getCliOptions() {
+            return cliOptions;
+        }
+
+        public String getInputHash() {
+            return inputHash;
+        }
+
+        /**
+         * @return name of the original input file
+         */
+        public String getInputName() {
+            return inputName;
+        }
+
+        /**
+         * @return copy of the input file kept in the journal directory
+         */
+        public File getInputFile() {
+            return new File(journalDir, inputHash + INPUT_FILE_EXT);
+        }
+
+        public long getSubmitTime() {
+            return submitTime;
+        }
+
+        @Override
+        public String toString() {
+            return "JobJournal.Entry{endpoint=" + endpoint + ", jobId=" + jobId + ", software=" + software
+                    + ", cliOptions=" + cliOptions + ", input=" + inputName + " (" + inputHash + "), submitTime=" + submitTime + '}';
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schedule reconstruction jobs with a bounded number of running jobs per OImagingExecutionMode
+ * so that several runs may be executed at the same time.
+ *
+ * The number of slots is given by OImagingExecutionMode.getMaxParallelJobs() (cores for local, server allowance for remote).
+ * Running jobs use the asynchronous execution API (ServiceExecution): no thread waits for their termination;
+ * a small worker pool only performs the short steps (result cache, result validation, listener notification).
+ */
+public final class JobScheduler {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(JobScheduler.class.getName());
+
+    // Use -DJobScheduler.workers=N to change the number of worker threads (cache and result handling)
+    private static final int WORKER_THREADS = Math.max(1, Integer.getInteger("JobScheduler.workers", 2));
+
+    /** Singleton */
+    private static final JobScheduler INSTANCE = new JobScheduler();
+
+    /* members */
+    /** slots per execution mode (singletons) */
+    private final Map<OImagingExecutionMode, Slots> slots = new IdentityHashMap<OImagingExecutionMode, Slots>(4);
+    /** active jobs (queued or running) */
+    private final List<ServiceJob> activeJobs = new CopyOnWriteArrayList<ServiceJob>();
+    /** worker pool */
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * Return the JobScheduler singleton
+     * @return JobScheduler singleton
+     */
+    public static JobScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    private JobScheduler() {
+        super();
+        workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new JobThreadFactory("worker"));
+        // let idle threads die:
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Submit a new job to the queue associated to the service execution mode
+     * @param service service to run
+     * @param cliOptions software options on command line or null
+     * @param inputFile input OIFits file
+     * @param listener listener notified when the job terminates (called by a worker thread)
+     * @return submitted job
+     * @throws IllegalStateException if the job can not be submitted
+     */
+    public ServiceJob submit(final Service service, final String cliOptions, final File inputFile,
+                             final ServiceJobListener listener) throws IllegalStateException {
+        return submit(service, cliOptions, inputFile, listener, false);
+    }
+
+    /**
+     * Submit a new job to the queue associated to the service execution mode
+     * @param service service to run
+     * @param cliOptions software options on command line or null
+     * @param inputFile input OIFits file
+     * @param listener listener notified when the job terminates (called by a worker thread)
+     * @param forceRun true to run the software even if the result is in the ResultCache
+     * @return submitted job
+     * @throws IllegalStateException if the job can not be submitted
+     */
+    public ServiceJob submit(final Service service, final String cliOptions, final File inputFile,
+                             final ServiceJobListener listener, final boolean forceRun) throws IllegalStateException {
+
+        if (workers.isShutdown()) {
+            throw new IllegalStateException("Unable to submit job: scheduler stopped");
+        }
+        final ServiceJob job = new ServiceJob(service, cliOptions, inputFile, listener, forceRun);
+
+        // keep the input file in the workspace until the job terminates:
+        Workspace.getInstance().retain(inputFile);
+
+        activeJobs.add(job);
+        getSlots(service.getExecMode()).add(job);
+        logger.debug("submit: {}", job);
+
+        dispatch(service.getExecMode());
+        return job;
+    }
+
+    /**
+     * Re-attach to a remote job submitted by a previous session (given by the job journal)
+     * @param service service of the remote job
+     * @param entry job journal entry
+     * @param listener listener notified when the job terminates (called by a worker thread)
+     * @return submitted job
+     * @throws IllegalStateException if the job can not be submitted
+     */
+    public ServiceJob reattach(final Service service, final JobJournal.Entry entry,
+                               final ServiceJobListener listener) throws IllegalStateException {
+
+        if (workers.isShutdown()) {
+            throw new IllegalStateException("Unable to re-attach job: scheduler stopped");
+        }
+        final ServiceJob job = new ServiceJob(service, entry.getCliOptions(), entry.getInputFile(), listener, false, entry);
+
+        Workspace.getInstance().retain(entry.getInputFile());
+
+        activeJobs.add(job);
+        getSlots(service.getExecMode()).add(job);
+        logger.debug("reattach: {}", job);
+
+        dispatch(service.getExecMode());
+        return job;
+    }
+
+    /**
+     * Start queued jobs while slots are available
+     * @param execMode execution mode
+     */
+    private void dispatch(final OImagingExecutionMode execMode) {
+        final Slots s = getSlots(execMode);
+        ServiceJob job;
+        while ((job = s.acquire()) != null) {
+            final ServiceJob next = job;
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        next.start();
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                logger.warn("dispatch: unable to start {}", next, ree);
+                next.cancelQueued();
+                jobFinished(next);
+            }
+        }
+    }
+
+    /**
+     * Called once the given job is terminated (running or never started): release its slot
+     * @param job terminated job
+     */
+    void jobFinished(final ServiceJob job) {
+        final OImagingExecutionMode execMode = job.getService().getExecMode();
+        getSlots(execMode).release(job);
+        jobTerminated(job);
+        // start the next queued job:
+        dispatch(execMode);
+    }
+
+    /**
+     * @return executor for the short steps of jobs (result cache, result validation, listener notification)
+     */
+    Executor getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Cancel the given job (queued or running)
+     * @param job job to cancel
+     * @return true if the job was cancelled; false if it was already terminated
+     */
+    boolean cancel(final ServiceJob job) {
+        if (job.cancelQueued()) {
+            // job not started: remove it from the queue or release its slot if dispatched
+            // (start() does nothing once cancelled)
+            jobFinished(job);
+            return true;
+        }
+        if (!job.isTerminated()) {
+            logger.debug("cancel: aborting {}", job);
+            // execution modes abort the process or the remote job:
+            return job.cancelRunning();
+        }
+        return false;
+    }
+
+    /**
+     * Cancel all active jobs
+     */
+    public void cancelAll() {
+        for (ServiceJob job : activeJobs) {
+            job.cancel();
+        }
+    }
+
+    /**
+     * @return copy of the active job list (queued or running)
+     */
+    public List<ServiceJob> getActiveJobs() {
+        return new ArrayList<ServiceJob>(activeJobs);
+    }
+
+    /**
+     * @return number of active jobs (queued or running)
+     */
+    public int getActiveJobCount() {
+        return activeJobs.size();
+    }
+
+    /**
+     * @param execMode execution mode
+     * @return number of active jobs (queued or running) using the given execution mode
+     */
+    public int getActiveJobCount(final OImagingExecutionMode execMode) {
+        int n = 0;
+        for (ServiceJob job : activeJobs) {
+            if (job.getService().getExecMode() == execMode) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return true if any job is queued or running
+     */
+    public boolean isRunning() {
+        return !activeJobs.isEmpty();
+    }
+
+    private void jobTerminated(final ServiceJob job) {
+        // remove first to let listeners see the updated job count:
+        if (activeJobs.remove(job)) {
+            try {
+                job.fireTerminated();
+            } finally {
+                // results kept by listeners hold their own reference:
+                Workspace.getInstance().release(job.getInputFile());
+            }
+        }
+    }
+
+    private Slots getSlots(final OImagingExecutionMode execMode) {
+        synchronized (slots) {
+            Slots s = slots.get(execMode);
+            if (s == null) {
+                s = new Slots(execMode);
+
+                logger.info("JobScheduler: {} created with {} slots", execMode.getClass().getSimpleName(), s.getMaxRunning());
+                slots.put(execMode, s);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Cancel all jobs and stop the worker pool
+     */
+    public void shutdown() {
+        cancelAll();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Queue and running jobs of one execution mode
+     */
+    private static final class Slots {
+
+        /** execution mode giving the maximum number of running jobs (may change) */
+        private final OImagingExecutionMode execMode;
+        /** queued jobs (FIFO) */
+        private final Deque<ServiceJob> queue = new ArrayDeque<ServiceJob>();
+        /** running jobs */
+        private final List<ServiceJob> running = new ArrayList<ServiceJob>();
+
+        Slots(final OImagingExecutionMode execMode) {
+            this.execMode = execMode;
+        }
+
+        int getMaxRunning() {
+            return Math.max(1, execMode.getMaxParallelJobs());
+        }
+
+        synchronized void add(final ServiceJob job) {
+            queue.addLast(job);
+        }
+
+        /**
+         * @return next queued job to start (slot acquired) or null if none or no free slot
+         */
+        synchronized ServiceJob acquire() {
+            if (running.size() < getMaxRunning()) {
+                final ServiceJob job = queue.pollFirst();
+                if (job != null) {
+                    running.add(job);
+                }
+                return job;
+            }
+            return null;
+        }
+
+        synchronized void release(final ServiceJob job) {
+            if (!running.remove(job)) {
+                queue.remove(job);
+            }
+        }
+    }
+
+    /**
+     * Thread factory creating daemon threads
+     */
+    private static final class JobThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        JobThreadFactory(final String name) {
+            this.prefix = "JobScheduler-" + name + "-";
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, prefix + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -7,10 +7,12 @@ import fr.jmmc.jmcs.util.FileUtils;
 import fr.jmmc.jmcs.util.StringUtils;
 import fr.jmmc.jmcs.util.runner.LocalLauncher;
 import fr.jmmc.jmcs.util.runner.RootContext;
-import fr.jmmc.jmcs.util.runner.RunState;
 import fr.jmmc.jmcs.util.runner.process.ProcessContext;
 import java.io.File;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,6 +31,11 @@ public final class LocalExecutionMode implements OImagingExecutionMode {
     /** task identifier for LocalExecutionMode */
     public final static String TASK_NAME = "LocalRunner";
 
+    /** maximum time (s) to wait for a killed process to terminate */
+    private final static long KILL_WAIT = 5L;
+    /** period (ms) to check the process state */
+    private final static long POLL_PERIOD = 200L;
+
     /** singleton */
     public static final LocalExecutionMode INSTANCE = new LocalExecutionMode();
 
@@ -43,9 +50,33 @@ public final class LocalExecutionMode implements OImagingExecutionMode {
      * @param cliOptions software options on command line or null
      * @param inputFilename input filename
      * @param result the service result pointing result file to write data into.
+     * @param logListener listener receiving the execution log while the software runs or null
+     * (also receiving intermediate images if it implements SnapshotWatcher.Listener)
+     * @throws IllegalStateException if the job can not be submitted to the job queue
+     */
+    public static void exec(final String software, final String cliOptions, final String inputFilename, final ServiceResult result,
+                            final LogTail.Listener logListener) throws IllegalStateException {
+
+        final ServiceExecution execution = new ServiceExecution(result);
+        start(software, cliOptions, inputFilename, execution, logListener);
+        execution.await();
+    }
+
+    /**
+     * Start the application (non blocking): the given execution terminates once the process exits.
+     *
+     * @param software software to run
+     * @param cliOptions software options on command line or null
+     * @param inputFilename input filename
+     * @param execution execution handle giving the service result to write data into.
+     * @param logListener listener receiving the execution log while the software runs or null
+     * (also receiving intermediate images if it implements SnapshotWatcher.Listener)
      * @throws IllegalStateException if the job can not be submitted to the job queue
      */
-    public static void exec(final String software, final String cliOptions, final String inputFilename, final ServiceResult result) throws IllegalStateException {
+    private static void start(final String software, final String cliOptions, final String inputFilename,
+                              final ServiceExecution execution, final LogTail.Listener logListener) throws IllegalStateException {
+
+        final ServiceResult result = execution.getResult();
 
         if (StringUtils.isEmpty(software)) {
             throw new IllegalArgumentException("empty application name !");
@@ -71,20 +102,180 @@ public final class LocalExecutionMode implements OImagingExecutionMode {
         } else {
             cmd = new String[]{software, cliOptions, inputFilename, outputFilename};
         }
-        final RunState state = exec(cmd, logFilename).getState();
 
-        // retrieve command execution status code
-        switch (state) {
-            case STATE_CANCELED:
-            case STATE_INTERRUPTED:
-            case STATE_KILLED:
-                result.setCancelled(true);
-                break;
-            default:
+        // resource governor:
+        final ResourceLimits limits = ResourceLimits.forProgram(software);
+        logger.info("exec: {}", limits);
+
+        // create the execution context with log file (working directory = workspace job directory):
+        final File workDir = result.getOifitsResultFile().getAbsoluteFile().getParentFile();
+        final RootContext jobContext = LocalLauncher.prepareMainJob(APP_NAME, USER_NAME,
+                (workDir != null) ? workDir.getAbsolutePath() : FileUtils.getTempDirPath(), logFilename);
+
+        LocalLauncher.prepareChildJob(jobContext, TASK_NAME, limits.wrapCommand(cmd));
+
+        // Puts the job in the job queue (can throw IllegalStateException if job not queued)
+        LocalLauncher.startJob(jobContext);
+
+        execution.setStatus(ExecutionStatus.EXECUTING);
+
+        // the shared poller checks the process state (no thread waits for the process):
+        new LocalProcessMonitor(jobContext, execution, limits, logListener).start();
+    }
+
+    /**
+     * Monitor one local process (scheduled on the shared ExecutionPoller):
+     * follow its log and intermediate images, enforce its wall-clock limit
+     * and terminate the execution once the process exits.
+     */
+    private static final class LocalProcessMonitor implements Runnable {
+
+        private final RootContext jobContext;
+        private final ServiceExecution execution;
+        private final ResourceLimits limits;
+        /** log follower or null */
+        private final LogTail logTail;
+        /** intermediate image watcher or null */
+        private final SnapshotWatcher snapshotWatcher;
+        /** wall-clock deadline (ms) or 0 */
+        private final long deadline;
+        /** reason of the kill by this monitor or null if not killed */
+        private String killReason = null;
+        /** true if killed by this monitor as the wall-clock limit was exceeded */
+        private boolean limitExceeded = false;
+        /** true once the execution is terminated */
+        private boolean done = false;
+        private ScheduledFuture<?> future = null;
+
+        LocalProcessMonitor(final RootContext jobContext, final ServiceExecution execution, final ResourceLimits limits,
+                            final LogTail.Listener logListener) {
+            this.jobContext = jobContext;
+            this.execution = execution;
+            this.limits = limits;
+
+            final ServiceResult result = execution.getResult();
+            // follow the log file while the process runs:
+            this.logTail = (logListener != null) ? LogTail.follow(result.getExecutionLogResultFile(), logListener) : null;
+            // follow intermediate images written next to the output file while the process runs:
+            this.snapshotWatcher = (logListener instanceof SnapshotWatcher.Listener)
+                    ? SnapshotWatcher.watch(result.getOifitsResultFile(), (SnapshotWatcher.Listener) logListener) : null;
+
+            this.deadline = (limits.getWallClock() != 0) ? System.currentTimeMillis() + limits.getWallClockMillis() : 0L;
+        }
+
+        void start() {
+            synchronized (this) {
+                future = ExecutionPoller.POLLER.scheduleWithFixedDelay(this, POLL_PERIOD, POLL_PERIOD, TimeUnit.MILLISECONDS);
+            }
+            execution.setAbortHandler(new Runnable() {
+                @Override
+                public void run() {
+                    kill("cancelled", false);
+                }
+            });
+        }
+
+        /**
+         * Kill the process then terminate the execution at once (job slot released once the process is destroyed)
+         * @param reason kill reason
+         * @param wallClock true if the wall-clock limit was exceeded
+         */
+        private void kill(final String reason, final boolean wallClock) {
+            synchronized (this) {
+                if (done || killReason != null) {
+                    return;
+                }
+                killReason = reason;
+                limitExceeded = wallClock;
+            }
+            logger.info("Job[{}] {}: killing it", jobContext.getId(), reason);
+            LocalLauncher.cancelOrKillJob(jobContext.getId());
+            terminated();
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!jobContext.getFuture().isDone()) {
+                    if (deadline != 0L && System.currentTimeMillis() >= deadline) {
+                        kill(limits.getWallClockReason(), true);
+                    }
+                    return;
+                }
+                terminated();
+            } catch (RuntimeException re) {
+                logger.warn("Job[{}] monitoring failure", jobContext.getId(), re);
+                stop();
+                execution.failed(re);
+            }
+        }
+
+        private void terminated() {
+            final String reason;
+            final boolean wallClock;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                reason = killReason;
+                wallClock = limitExceeded;
+            }
+            stop();
+
+            final ServiceResult result = execution.getResult();
+
+            if (reason != null) {
+                // killed by this monitor:
+                if (wallClock) {
+                    result.setKillReason(reason);
+                } else {
+                    result.setCancelled(true);
+                }
+            } else {
+                // retrieve command execution status code
+                switch (jobContext.getState()) {
+                    case STATE_CANCELED:
+                    case STATE_INTERRUPTED:
+                    case STATE_KILLED:
+                        result.setCancelled(true);
+                        break;
+                    default:
+                        // process stopped by its CPU time limit ?
+                        final ProcessContext pCtx = (ProcessContext) jobContext.getChildContexts().get(0);
+                        final String cpuReason = limits.getKillReason(pCtx.getExitCode());
+                        if (cpuReason != null) {
+                            logger.info("Job[{}] killed: {}", jobContext.getId(), cpuReason);
+                            result.setKillReason(cpuReason);
+                        }
+                }
+            }
+            execution.terminated();
+        }
+
+        private void stop() {
+            synchronized (this) {
+                if (future != null) {
+                    future.cancel(false);
+                }
+            }
+            if (logTail != null) {
+                logTail.stop();
+            }
+            if (snapshotWatcher != null) {
+                snapshotWatcher.stop();
+            }
         }
     }
 
-    private static RootContext exec(final String[] cmd, final String logFilename) {
+    /**
+     * Execute the given command and wait end of execution (used to test the software).
+     * @param cmd command line
+     * @param logFilename log filename or null
+     * @param logListener listener receiving the execution log while the process runs or null
+     * @return job context
+     */
+    private static RootContext exec(final String[] cmd, final String logFilename, final LogTail.Listener logListener) {
         // create the execution context with log file:
         final RootContext jobContext = LocalLauncher.prepareMainJob(APP_NAME, USER_NAME, FileUtils.getTempDirPath(), logFilename);
 
@@ -95,9 +286,11 @@ public final class LocalExecutionMode implements OImagingExecutionMode {
 
         final Long jobId = jobContext.getId();
 
+        // follow the log file while the process runs:
+        final LogTail logTail = (logListener != null && logFilename != null) ? LogTail.follow(new File(logFilename), logListener) : null;
+
         // Wait for process completion
         try {
-            // TODO: use timeout to kill (too long or hanging) jobs anyway ?
             // Wait for task to be done :
             jobContext.getFuture().get();
         } catch (InterruptedException ie) {
@@ -105,27 +298,92 @@ public final class LocalExecutionMode implements OImagingExecutionMode {
 
             LocalLauncher.cancelOrKillJob(jobId);
 
-            try {
-                // Wait for process to die:
-                jobContext.getFuture().get();
-            } catch (InterruptedException ie2) {
-                logger.debug("Job[{}] waitFor: interrupted 2 {}", jobId);
-            } catch (ExecutionException ee) {
-                logger.debug("Job[{}] waitFor: execution error", jobId, ee);
-            }
+            // Wait for process to die (limited to release the worker quickly):
+            waitKilled(jobContext);
             logger.debug("Job[{}] waitFor: interrupted, done", jobId);
 
         } catch (ExecutionException ee) {
             logger.info("exec: execution error", ee);
+        } finally {
+            if (logTail != null) {
+                logTail.stop();
+            }
         }
         return jobContext;
     }
 
+    /**
+     * Wait (a limited time) for the killed process to terminate
+     * @param jobContext job context
+     */
+    private static void waitKilled(final RootContext jobContext) {
+        try {
+            jobContext.getFuture().get(KILL_WAIT, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            logger.debug("Job[{}] waitKilled: interrupted", jobContext.getId());
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            logger.debug("Job[{}] waitKilled: execution error", jobContext.getId(), ee);
+        } catch (TimeoutException te) {
+            logger.warn("Job[{}] waitKilled: process still running after {} s", jobContext.getId(), KILL_WAIT);
+        }
+    }
+
+    @Override
+    public int getMaxParallelJobs() {
+        // one local process per core:
+        return Runtime.getRuntime().availableProcessors();
+    }
+
     @Override
     public ServiceResult reconstructsImage(final String software, final String cliOptions, final File inputFile) {
-        final ServiceResult result = new ServiceResult(inputFile);
-        LocalExecutionMode.exec(software, cliOptions, inputFile.getAbsolutePath(), result);
-        return result;
+        return reconstructsImage(software, cliOptions, inputFile, null);
+    }
+
+    @Override
+    public ServiceResult reconstructsImage(final String software, final String cliOptions, final File inputFile,
+                                           final LogTail.Listener logListener) {
+        return submit(software, cliOptions, inputFile, logListener).await();
+    }
+
+    @Override
+    public ServiceExecution submit(final String software, final String cliOptions, final File inputFile,
+                                   final LogTail.Listener logListener) {
+        final ServiceExecution execution = new ServiceExecution(new ServiceResult(inputFile));
+        try {
+            start(software, cliOptions, inputFile.getAbsolutePath(), execution, logListener);
+        } catch (RuntimeException re) {
+            execution.failed(re);
+        }
+        return execution;
+    }
+
+    @Override
+    public String getSoftwareIdentity(final String software) {
+        // installed program: its path, size and date change when the software is updated
+        final File program = findProgram(software);
+        return "local:" + ((program != null) ? program.getAbsolutePath() + '|' + program.length() + '|' + program.lastModified() : software);
+    }
+
+    /**
+     * @param software software name or path
+     * @return executable file (found in the PATH directories) or null if not found
+     */
+    private static File findProgram(final String software) {
+        if (software.indexOf(File.separatorChar) != -1) {
+            final File file = new File(software);
+            return (file.isFile()) ? file : null;
+        }
+        final String path = System.getenv("PATH");
+        if (path != null) {
+            for (String dir : path.split(File.pathSeparator)) {
+                final File file = new File(dir, software);
+                if (file.isFile() && file.canExecute()) {
+                    return file;
+                }
+            }
+        }
+        return null;
     }
 
     public boolean test(final String software) {
@@ -133,7 +391,7 @@ public final class LocalExecutionMode implements OImagingExecutionMode {
 
         final String[] cmd = new String[]{software};
 
-        final RootContext ctx = exec(cmd, null); // no written log
+        final RootContext ctx = exec(cmd, null, null); // no written log
         logger.debug("test: ctx: {}", ctx);
 
         // ignore state (ERROR always as service help returns code=1)
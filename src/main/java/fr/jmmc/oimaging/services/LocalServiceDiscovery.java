@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Discovery of the software programs installed locally (LocalExecutionMode):
+ * all programs are probed in parallel by background threads.
+ *
+ * Probe results are cached in a properties file keyed by the PATH entry holding the executable
+ * and its modification time, so unchanged installations are resolved without spawning any process.
+ */
+final class LocalServiceDiscovery {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(LocalServiceDiscovery.class.getName());
+
+    // Use -DLocalServiceDiscovery.noCache=true to probe programs at every startup
+    private static final boolean NO_CACHE = Boolean.getBoolean("LocalServiceDiscovery.noCache");
+    /** separator of cached values */
+    private static final char SEPARATOR = '|';
+
+    /**
+     * Callback interface notified when one program is resolved (called by a discovery thread)
+     */
+    interface Listener {
+
+        /**
+         * @param program software program
+         * @param available true if the program can be run locally
+         */
+        void programResolved(final String program, final boolean available);
+    }
+
+    /* members */
+    /** cache file */
+    private final File cacheFile;
+    /** cached probe results (program / 'PATH entry|mtime|available') */
+    private final Properties cache = new Properties();
+
+    /**
+     * Create a discovery using the given cache file
+     * @param cacheFile cache file (may not exist)
+     */
+    LocalServiceDiscovery(final File cacheFile) {
+        this.cacheFile = cacheFile;
+
+        if (!NO_CACHE && cacheFile.isFile()) {
+            try (InputStream in = new FileInputStream(cacheFile)) {
+                cache.load(in);
+            } catch (IOException ioe) {
+                logger.warn("Unable to read the local service cache: {}", cacheFile, ioe);
+            }
+        }
+    }
+
+    /**
+     * Resolve all given programs in parallel (background threads)
+     * @param programs software programs
+     * @param listener listener notified as soon as each program is resolved
+     * @return future completed once all programs are resolved (and the cache is saved)
+     */
+    CompletableFuture<Void> discover(final List<String> programs, final Listener listener) {
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, programs.size()),
+                new ExecutionPoller.DaemonThreadFactory("LocalServiceDiscovery"));
+
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[programs.size()];
+        for (int i = 0; i < futures.length; i++) {
+            final String program = programs.get(i);
+
+            futures[i] = CompletableFuture.supplyAsync(new Supplier<Boolean>() {
+                @Override
+                public Boolean get() {
+                    final boolean available = resolve(program);
+                    listener.programResolved(program, available);
+                    return Boolean.valueOf(available);
+                }
+            }, executor);
+        }
+        executor.shutdown();
+
+        return CompletableFuture.allOf(futures).whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(final Void v, final Throwable th) {
+                if (th != null) {
+                    logger.warn("Local service discovery failed: ", th);
+                }
+                save();
+            }
+        });
+    }
+
+    /**
+     * Resolve the given program: use the cached result if the executable did not change, probe it otherwise
+     * @param program software program
+     * @return true if the program can be run locally
+     */
+    boolean resolve(final String program) {
+        final File executable = findExecutable(program);
+        if (executable == null) {
+            logger.debug("resolve: '{}' not found in PATH", program);
+            return false;
+        }
+        final String key = executable.getParent() + SEPARATOR + executable.lastModified() + SEPARATOR;
+
+        final String cached;
+        synchronized (cache) {
+            cached = cache.getProperty(program);
+        }
+        if (cached != null && cached.startsWith(key)) {
+            final boolean available = Boolean.parseBoolean(cached.substring(key.length()));
+            logger.info("Local service '{}' (cached): {}", program, available);
+            return available;
+        }
+
+        final long start = System.nanoTime();
+        final boolean available = LocalExecutionMode.INSTANCE.test(program);
+        logger.info("Local service '{}' (probed in {} ms): {}", program, 1e-6d * (System.nanoTime() - start), available);
+
+        synchronized (cache) {
+            cache.setProperty(program, key + available);
+        }
+        return available;
+    }
+
+    /**
+     * Find the given program in the PATH directories
+     * @param program software program
+     * @return executable file or null if not found
+     */
+    static File findExecutable(final String program) {
+        final String path = System.getenv("PATH");
+        if (path != null) {
+            for (String dir : path.split(File.pathSeparator)) {
+                if (dir.isEmpty()) {
+                    continue;
+                }
+                final File file = new File(dir, program);
+                if (file.isFile() && file.canExecute()) {
+                    return file;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Save the cache file (atomic replace)
+     */
+    private void save() {
+        if (NO_CACHE) {
+            return;
+        }
+        final File parent = cacheFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            logger.warn("Unable to create the local service cache directory: {}", parent);
+            return;
+        }
+        final File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmpFile)) {
+            synchronized (cache) {
+                cache.store(out, "OImaging local services (program = PATH entry|mtime|available)");
+            }
+        } catch (IOException ioe) {
+            logger.warn("Unable to write the local service cache: {}", cacheFile, ioe);
+            return;
+        }
+        try {
+            Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ioe) {
+            logger.warn("Unable to write the local service cache: {}", cacheFile, ioe);
+        }
+    }
+}
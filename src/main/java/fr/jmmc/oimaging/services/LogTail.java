@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import fr.cnes.sitools.extensions.astro.application.uws.client.ClientUWS;
+import fr.cnes.sitools.extensions.astro.application.uws.client.ClientUWSException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Incremental execution log follower ('tail -f'):
+ * new log content is periodically read (local file through a NIO channel or
+ * remote UWS partial result through HTTP range requests) and pushed as text chunks to a listener.
+ */
+public final class LogTail {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(LogTail.class.getName());
+
+    /** UWS result identifier of the execution log */
+    public static final String RESULT_LOGFILE = "logfile";
+    /** polling period for local files (ms) */
+    static final long LOCAL_PERIOD = 500L;
+    // Use -DLogTail.remotePeriod=N (ms) to change the polling period of remote logs
+    static final long REMOTE_PERIOD = Math.max(500L, Long.getLong("LogTail.remotePeriod", 2000L));
+    /** maximum chunk read at once (bytes) */
+    private static final int MAX_CHUNK = 64 * 1024;
+
+    /** shared scheduler (daemon thread) */
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "LogTail");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Listener receiving appended log chunks (called by the LogTail thread)
+     */
+    public interface Listener {
+
+        /**
+         * @param chunk text appended to the log since the previous call
+         */
+        public void logAppended(final String chunk);
+    }
+
+    /**
+     * Source of log bytes
+     */
+    interface Source {
+
+        /**
+         * Read bytes available after the given offset
+         * @param offset number of bytes already read
+         * @return new bytes (empty if none) or null if the log is not available yet
+         * @throws IOException if the log can not be read
+         */
+        byte[] read(final long offset) throws IOException;
+    }
+
+    /**
+     * Follow the given local log file
+     * @param file log file (may not exist yet)
+     * @param listener listener receiving appended chunks
+     * @return started LogTail
+     */
+    public static LogTail follow(final File file, final Listener listener) {
+        return new LogTail(new FileSource(file), listener, LOCAL_PERIOD);
+    }
+
+    /**
+     * Follow the execution log of the given remote UWS job
+     * @param client UWS client
+     * @param jobId job identifier
+     * @param listener listener receiving appended chunks
+     * @return started LogTail
+     */
+    public static LogTail follow(final ClientUWS client, final String jobId, final Listener listener) {
+        return new LogTail(new UwsSource(client, jobId), listener, REMOTE_PERIOD);
+    }
+
+    /* members */
+    private final Source source;
+    private final Listener listener;
+    private final ScheduledFuture<?> future;
+    /** UTF-8 decoder keeping incomplete characters between chunks */
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    /** bytes not decoded yet (incomplete character) */
+    private ByteBuffer pending = ByteBuffer.allocate(0);
+    /** number of bytes read */
+    private long offset = 0L;
+    /** stop flag */
+    private boolean stopped = false;
+
+    LogTail(final Source source, final Listener listener, final long period) {
+        this.source = source;
+        this.listener = listener;
+        this.future = SCHEDULER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop following the log after reading the remaining content
+     */
+    public void stop() {
+        future.cancel(false);
+        // final read (synchronized with the scheduled poll):
+        synchronized (this) {
+            if (!stopped) {
+                poll();
+                stopped = true;
+            }
+        }
+    }
+
+    /**
+     * @return number of bytes read so far
+     */
+    public synchronized long getOffset() {
+        return offset;
+    }
+
+    synchronized void poll() {
+        if (stopped) {
+            return;
+        }
+        try {
+            byte[] bytes;
+            // read all available content:
+            while ((bytes = source.read(offset)) != null && bytes.length != 0) {
+                offset += bytes.length;
+                final String chunk = decode(bytes);
+                if (!chunk.isEmpty()) {
+                    listener.logAppended(chunk);
+                }
+                if (bytes.length < MAX_CHUNK) {
+                    break;
+                }
+            }
+        } catch (IOException ioe) {
+            logger.debug("LogTail: unable to read log", ioe);
+        } catch (RuntimeException re) {
+            logger.warn("LogTail: failure", re);
+        }
+    }
+
+    private String decode(final byte[] bytes) {
+        final ByteBuffer in = ByteBuffer.allocate(pending.remaining() + bytes.length);
+        in.put(pending).put(bytes).flip();
+
+        final CharBuffer out = CharBuffer.allocate(in.remaining() + 1);
+        decoder.decode(in, out, false);
+        // keep incomplete trailing bytes:
+        pending = in.slice();
+        out.flip();
+        return out.toString();
+    }
+
+    /**
+     * Local file read through a NIO channel
+     */
+    static final class FileSource implements Source {
+
+        private final File file;
+
+        FileSource(final File file) {
+            this.file = file;
+        }
+
+        @Override
+        public byte[] read(final long offset) throws IOException {
+            if (!file.exists()) {
+                return null;
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                final long available = channel.size() - offset;
+                if (available <= 0L) {
+                    return new byte[0];
+                }
+                final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(available, MAX_CHUNK));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        break;
+                    }
+                }
+                final byte[] bytes = new byte[buffer.position()];
+                buffer.flip();
+                buffer.get(bytes);
+                return bytes;
+            }
+        }
+    }
+
+    /**
+     * Remote UWS partial result (HTTP range request on the log result)
+     */
+    static final class UwsSource implements Source {
+
+        private final ClientUWS client;
+        private final String jobId;
+
+        UwsSource(final ClientUWS client, final String jobId) {
+            this.client = client;
+            this.jobId = jobId;
+        }
+
+        @Override
+        public byte[] read(final long offset) throws IOException {
+            try {
+                return client.getPartialResult(jobId, RESULT_LOGFILE, offset);
+            } catch (ClientUWSException cue) {
+                throw new IOException(cue);
+            }
+        }
+    }
+}
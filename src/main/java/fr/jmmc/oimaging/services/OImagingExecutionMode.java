@@ -20,4 +20,45 @@ public interface OImagingExecutionMode {
      */
     public ServiceResult reconstructsImage(final String software, final String cliOptions, final File inputFile);
 
+    /**
+     * Main basic interface with live execution log.
+     * @param software algorithm to run
+     * @param cliOptions software options on command line or null
+     * @param inputFile oifits file that must be used by the service.
+     * @param logListener listener receiving the execution log while the software runs or null
+     * (also receiving intermediate images if it implements SnapshotWatcher.Listener)
+     * @return the result file produced by the algorithm (oifits) as first file, program output as second file (text) if any
+     */
+    public ServiceResult reconstructsImage(final String software, final String cliOptions, final File inputFile,
+                                           final LogTail.Listener logListener);
+
+    /**
+     * Asynchronous interface: start the reconstruction and return at once.
+     * The returned handle completes once the software terminates (no thread waits for it),
+     * gives status callbacks and supports cancellation and composition (CompletableFuture).
+     * @param software algorithm to run
+     * @param cliOptions software options on command line or null
+     * @param inputFile oifits file that must be used by the service.
+     * @param logListener listener receiving the execution log while the software runs or null
+     * (also receiving intermediate images if it implements SnapshotWatcher.Listener)
+     * @return execution handle completed with the result (oifits and execution log files)
+     */
+    public ServiceExecution submit(final String software, final String cliOptions, final File inputFile,
+                                   final LogTail.Listener logListener);
+
+    /**
+     * Return the maximum number of jobs this execution mode can run at the same time.
+     * It is used by the JobScheduler to bound the number of running jobs of this execution mode (checked at each job start).
+     * @return maximum number of concurrent jobs (&gt; 0)
+     */
+    public int getMaxParallelJobs();
+
+    /**
+     * Return the identity of the given software on this execution mode (server or installed program)
+     * used to key the cached results (see ResultCache.computeKey): it changes when the software is updated.
+     * @param software algorithm to run
+     * @return software identity
+     */
+    public String getSoftwareIdentity(final String software);
+
 }
@@ -0,0 +1,393 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import fr.jmmc.jmcs.util.StringUtils;
+import fr.jmmc.oimaging.model.IRModel;
+import fr.jmmc.oimaging.model.RunRequest;
+import fr.nom.tam.fits.FitsException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parameter sweep over input parameter keywords (RGL_WGT, FOV, MAXITER, RGL_NAME ...):
+ * every axis gives a list of values for one keyword and the sweep runs the cartesian product
+ * of all axes as independent jobs in the JobScheduler.
+ *
+ * Sweep specification syntax (axes separated by ';'):
+ * <ul>
+ * <li>KEYWORD=v1,v2,v3 : list of values</li>
+ * <li>KEYWORD=min:max:steps : linear range</li>
+ * <li>KEYWORD=min:max:steps:log : logarithmic range</li>
+ * </ul>
+ * Example: "RGL_WGT=1e-3:1e3:7:log; RGL_NAME=compactness,hyperbolic"
+ */
+public final class ParameterSweep {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(ParameterSweep.class.getName());
+
+    /** sweep identifier coordinate */
+    public static final String SWEEP_ID = "ID";
+    /** maximum number of points in one sweep */
+    public static final int MAX_POINTS = 1000;
+
+    /** sweep counter */
+    private static final AtomicInteger SWEEP_COUNTER = new AtomicInteger(0);
+
+    /* members */
+    /** sweep axes */
+    private final List<Axis> axes = new ArrayList<Axis>(4);
+
+    /**
+     * Parse the given sweep specification
+     * @param spec sweep specification
+     * @return parameter sweep
+     * @throws IllegalArgumentException if the specification is invalid
+     */
+    public static ParameterSweep parse(final String spec) throws IllegalArgumentException {
+        final ParameterSweep sweep = new ParameterSweep();
+
+        if (spec != null) {
+            for (String axisSpec : spec.split(";")) {
+                axisSpec = axisSpec.trim();
+                if (axisSpec.isEmpty()) {
+                    continue;
+                }
+                final int pos = axisSpec.indexOf('=');
+                if (pos <= 0) {
+                    throw new IllegalArgumentException("Invalid sweep axis '" + axisSpec + "' (KEYWORD=values expected)");
+                }
+                final String keyword = axisSpec.substring(0, pos).trim().toUpperCase();
+                final String values = axisSpec.substring(pos + 1).trim();
+
+                if (values.indexOf(':') != -1) {
+                    final String[] parts = values.split(":");
+                    if (parts.length < 3 || parts.length > 4) {
+                        throw new IllegalArgumentException("Invalid sweep range '" + values + "' (min:max:steps[:log] expected)");
+                    }
+                    try {
+                        sweep.addRange(keyword, Double.parseDouble(parts[0].trim()), Double.parseDouble(parts[1].trim()),
+                                Integer.parseInt(parts[2].trim()), (parts.length == 4) && "log".equalsIgnoreCase(parts[3].trim()));
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException("Invalid sweep range '" + values + "'", nfe);
+                    }
+                } else {
+                    final List<Object> list = new ArrayList<Object>();
+                    for (String value : values.split(",")) {
+                        value = value.trim();
+                        if (!value.isEmpty()) {
+                            list.add(parseValue(value));
+                        }
+                    }
+                    sweep.addValues(keyword, list);
+                }
+            }
+        }
+        if (sweep.axes.isEmpty()) {
+            throw new IllegalArgumentException("Empty sweep specification");
+        }
+        return sweep;
+    }
+
+    private static Object parseValue(final String value) {
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException nfe) {
+            // not an integer
+        }
+        try {
+            return Double.valueOf(value);
+        } catch (NumberFormatException nfe) {
+            // not a number
+        }
+        return value;
+    }
+
+    /**
+     * Add a list of values for the given keyword
+     * @param keyword keyword name
+     * @param values values
+     * @return this
+     * @throws IllegalArgumentException if values is empty
+     */
+    public ParameterSweep addValues(final String keyword, final List<?> values) throws IllegalArgumentException {
+        if (StringUtils.isEmpty(keyword) || values == null || values.isEmpty()) {
+            throw new IllegalArgumentException("Missing values for sweep keyword '" + keyword + "'");
+        }
+        axes.add(new Axis(keyword, new ArrayList<Object>(values)));
+        return this;
+    }
+
+    /**
+     * Add a range of values for the given keyword
+     * @param keyword keyword name
+     * @param min first value
+     * @param max last value
+     * @param steps number of values (&gt;= 1)
+     * @param log true to use a logarithmic spacing
+     * @return this
+     * @throws IllegalArgumentException if the range is invalid
+     */
+    public ParameterSweep addRange(final String keyword, final double min, final double max, final int steps,
+                                   final boolean log) throws IllegalArgumentException {
+        if (steps < 1) {
+            throw new IllegalArgumentException("Invalid number of steps for sweep keyword '" + keyword + "': " + steps);
+        }
+        if (log && (min <= 0.0 || max <= 0.0)) {
+            throw new IllegalArgumentException("Invalid logarithmic range for sweep keyword '" + keyword + "': [" + min + ", " + max + "]");
+        }
+        final List<Object> values = new ArrayList<Object>(steps);
+        if (steps == 1) {
+            values.add(Double.valueOf(min));
+        } else if (log) {
+            final double lmin = Math.log10(min);
+            final double step = (Math.log10(max) - lmin) / (steps - 1);
+            for (int i = 0; i < steps; i++) {
+                values.add(Double.valueOf(Math.pow(10.0, lmin + i * step)));
+            }
+        } else {
+            final double step = (max - min) / (steps - 1);
+            for (int i = 0; i < steps; i++) {
+                values.add(Double.valueOf(min + i * step));
+            }
+        }
+        return addValues(keyword, values);
+    }
+
+    /**
+     * @return sweep axes
+     */
+    public List<Axis> getAxes() {
+        return Collections.unmodifiableList(axes);
+    }
+
+    /**
+     * @return number of points (product of axis sizes)
+     */
+    public int size() {
+        int n = 1;
+        for (Axis axis : axes) {
+            n *= axis.getValues().size();
+        }
+        return n;
+    }
+
+    /**
+     * Expand all axes (cartesian product)
+     * @return list of sweep points (keyword name / value in axis order)
+     */
+    public List<Map<String, Object>> expand() {
+        final int size = size();
+        final List<Map<String, Object>> points = new ArrayList<Map<String, Object>>(size);
+
+        final int nAxes = axes.size();
+        final int[] indices = new int[nAxes];
+
+        for (int i = 0; i < size; i++) {
+            // last axis varies the fastest:
+            int index = i;
+            for (int j = nAxes - 1; j >= 0; j--) {
+                final int len = axes.get(j).getValues().size();
+                indices[j] = index % len;
+                index /= len;
+            }
+            final Map<String, Object> point = new LinkedHashMap<String, Object>(nAxes * 2);
+            for (int j = 0; j < nAxes; j++) {
+                point.put(axes.get(j).getKeyword(), axes.get(j).getValues().get(indices[j]));
+            }
+            points.add(point);
+        }
+        return points;
+    }
+
+    /**
+     * Take one run request per sweep point using the current model state (validated once):
+     * input files are written later, from the run requests only (see submit(Point, ...)).
+     *
+     * Note: must be called from the Swing EDT (model access)
+     *
+     * @param irModel model giving input OIFits and cli options
+     * @return sweep points in expansion order
+     * @throws FitsException if the input file can not be written
+     * @throws IOException if the input file can not be written
+     * @throws IllegalArgumentException if the sweep is too large or a keyword is not supported
+     */
+    public List<Point> prepare(final IRModel irModel) throws FitsException, IOException, IllegalArgumentException {
+        final int size = size();
+        if (size > MAX_POINTS) {
+            throw new IllegalArgumentException("Too many sweep points: " + size + " > " + MAX_POINTS);
+        }
+        final int sweepId = SWEEP_COUNTER.incrementAndGet();
+        logger.info("Sweep[{}]: {} points", sweepId, size);
+
+        // validate once:
+        irModel.checkOIFits();
+
+        // take all run requests before submitting any job (fail fast):
+        final List<Map<String, Object>> points = expand();
+        final List<Point> requests = new ArrayList<Point>(size);
+        for (int i = 0; i < size; i++) {
+            final Map<String, Object> coords = new LinkedHashMap<String, Object>(points.get(i).size() * 2 + 2);
+            coords.put(SWEEP_ID, sweepId + "." + (i + 1));
+            coords.putAll(points.get(i));
+
+            requests.add(new Point(Collections.unmodifiableMap(coords), irModel.createRunRequest(points.get(i))));
+        }
+        return requests;
+    }
+
+    /**
+     * Write the input file of the given sweep point then submit its job to the JobScheduler
+     * on the least loaded execution mode among the given services.
+     *
+     * Note: may be called from any thread (no model access)
+     *
+     * @param point sweep point (see prepare)
+     * @param services compatible services (remote and local) to run
+     * @param listener listener notified when the job terminates (result tagged with sweep coordinates)
+     * @return submitted job
+     * @throws IOException if the input file can not be written
+     * @throws IllegalStateException if the job can not be submitted
+     */
+    public static ServiceJob submit(final Point point, final List<Service> services, final ServiceJobListener listener)
+            throws IOException, IllegalStateException {
+        final File inputFile = point.getRequest().writeInputFile();
+
+        return JobScheduler.getInstance().submit(getLeastLoadedService(services), point.getRequest().getCliOptions(),
+                inputFile, new SweepJobListener(point.getCoordinates(), listener));
+    }
+
+    private static Service getLeastLoadedService(final List<Service> services) {
+        final JobScheduler scheduler = JobScheduler.getInstance();
+        Service best = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (Service service : services) {
+            final OImagingExecutionMode execMode = service.getExecMode();
+            final double load = (scheduler.getActiveJobCount(execMode) + 1.0) / Math.max(1, execMode.getMaxParallelJobs());
+            if (load < bestLoad) {
+                best = service;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public String toString() {
+        return "ParameterSweep{" + axes + '}';
+    }
+
+    /**
+     * Sweep axis: one keyword and its values
+     */
+    public static final class Axis {
+
+        private final String keyword;
+        private final List<Object> values;
+
+        Axis(final String keyword, final List<Object> values) {
+            this.keyword = keyword;
+            this.values = Collections.unmodifiableList(values);
+        }
+
+        public String getKeyword() {
+            return keyword;
+        }
+
+        public List<Object> getValues() {
+            return values;
+        }
+
+        @Override
+        public String toString() {
+            return keyword + '=' + values;
+        }
+    }
+
+    /**
+     * Sweep point: sweep coordinates and the run request using them
+     */
+    public static final class Point {
+
+        private final Map<String, Object> coords;
+        private final RunRequest request;
+
+        Point(final Map<String, Object> coords, final RunRequest request) {
+            this.coords = coords;
+            this.request = request;
+        }
+
+        /**
+         * @return sweep coordinates (sweep identifier then keyword name / value in axis order)
+         */
+        public Map<String, Object> getCoordinates() {
+            return coords;
+        }
+
+        public RunRequest getRequest() {
+            return request;
+        }
+
+        @Override
+        public String toString() {
+            return "Point" + coords;
+        }
+    }
+
+    /**
+     * Listener wrapper tagging results with sweep coordinates (log chunks and status changes are forwarded)
+     */
+    private static final class SweepJobListener implements ServiceJobListener, ServiceLogListener, ServiceStatusListener {
+
+        private final Map<String, Object> coords;
+        private final ServiceJobListener delegate;
+
+        SweepJobListener(final Map<String, Object> coords, final ServiceJobListener delegate) {
+            this.coords = coords;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void jobDone(final ServiceJob job, final ServiceResult result) {
+            result.setSweepCoordinates(coords);
+            delegate.jobDone(job, result);
+        }
+
+        @Override
+        public void jobCancelled(final ServiceJob job, final ServiceResult result) {
+            if (result != null) {
+                result.setSweepCoordinates(coords);
+            }
+            delegate.jobCancelled(job, result);
+        }
+
+        @Override
+        public void jobFailed(final ServiceJob job, final Exception e) {
+            delegate.jobFailed(job, e);
+        }
+
+        @Override
+        public void logAppended(final ServiceJob job, final String chunk) {
+            if (delegate instanceof ServiceLogListener) {
+                ((ServiceLogListener) delegate).logAppended(job, chunk);
+            }
+        }
+
+        @Override
+        public void statusChanged(final ServiceJob job, final ExecutionStatus status) {
+            if (delegate instanceof ServiceStatusListener) {
+                ((ServiceStatusListener) delegate).statusChanged(job, status);
+            }
+        }
+    }
+}
@@ -0,0 +1,412 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import fr.cnes.sitools.extensions.astro.application.uws.client.ClientUWS;
+import fr.cnes.sitools.extensions.astro.application.uws.client.ClientUWSException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Upload of the input data (OI_* tables) once per session: the input file is split into
+ * the data part (OI_* binary tables) referenced by its content hash and the delta part
+ * (primary HDU, IMAGE-OI INPUT PARAM table and images) sent with each job.
+ *
+ * Server contract (optional, servers without the datasets resource get the full input file):
+ * <ul>
+ * <li>HEAD {server}oimaging/datasets: succeeds if datasets are supported</li>
+ * <li>HEAD {server}oimaging/datasets/{hash}: succeeds if the dataset is known, 404 otherwise</li>
+ * <li>PUT {server}oimaging/datasets/{hash}: store the data file (SHA-256 hash of its content)</li>
+ * <li>job creation: the 'datasetref' field gives the hash of the data part
+ * and the 'inputfile' field gives the delta part; the server rebuilds the input file
+ * (primary HDU of the delta part, data tables then the other HDUs of the delta part)</li>
+ * </ul>
+ */
+final class RemoteDatasets {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(RemoteDatasets.class.getName());
+
+    /** datasets path on the server */
+    static final String DATASETS_PATH = "oimaging/datasets";
+    /** form field giving the dataset hash */
+    static final String FIELD_DATASET_REF = "datasetref";
+    /** data file suffix */
+    private static final String DATA_FILE_EXT = ".data.fits";
+    /** delta file suffix */
+    private static final String DELTA_FILE_EXT = ".delta.fits";
+    /** data extension name prefix */
+    private static final String DATA_EXTNAME_PREFIX = "OI_";
+    /** FITS block length */
+    static final int BLOCK_LENGTH = 2880;
+    /** FITS card length */
+    static final int CARD_LENGTH = 80;
+    /** minimal primary header of the data file */
+    private static final String[] DATA_PRIMARY_HEADER = new String[]{
+        "SIMPLE  =                    T",
+        "BITPIX  =                    8",
+        "NAXIS   =                    0",
+        "EXTEND  =                    T",
+        "END"
+    };
+
+    /**
+     * Dataset of one input file
+     */
+    static final class Dataset {
+
+        /** SHA-256 hash of the data file */
+        final String hash;
+        /** delta file (primary HDU, parameters and images) */
+        final File deltaFile;
+        /** data size in bytes */
+        final long dataSize;
+
+        Dataset(final String hash, final File deltaFile, final long dataSize) {
+            this.hash = hash;
+            this.deltaFile = deltaFile;
+            this.dataSize = dataSize;
+        }
+
+        @Override
+        public String toString() {
+            return "Dataset{" + hash + ", " + deltaFile.getName() + ", " + dataSize + " bytes of data}";
+        }
+    }
+
+    /* members */
+    /** datasets support per server URL */
+    private final Map<String, Boolean> supported = new ConcurrentHashMap<String, Boolean>(4);
+    /** dataset hashes known by each server URL (uploaded or checked during this session) */
+    private final ConcurrentHashMap<String, Set<String>> known = new ConcurrentHashMap<String, Set<String>>(4);
+
+    RemoteDatasets() {
+        super();
+    }
+
+    /**
+     * Prepare the given input file for the given server: upload its data part if the server does not know it yet
+     * @param client UWS client of the server
+     * @param inputFile input OIFits file
+     * @return dataset (hash and delta file) or null to send the full input file (datasets not supported or no gain)
+     * @throws ClientUWSException if the upload failed
+     */
+    Dataset prepare(final ClientUWS client, final File inputFile) throws ClientUWSException {
+        if (!isSupported(client)) {
+            return null;
+        }
+        final String datasetsUrl = client.getServerURL() + DATASETS_PATH;
+
+        final List<Hdu> hdus;
+        final String hash;
+        try {
+            hdus = scan(inputFile);
+            hash = computeHash(inputFile, hdus);
+        } catch (IOException ioe) {
+            logger.warn("Unable to split the input file: {}", inputFile, ioe);
+            return null;
+        }
+        if (hash == null) {
+            // no data table:
+            return null;
+        }
+        long dataSize = 0L;
+        for (Hdu hdu : hdus) {
+            if (hdu.isData()) {
+                dataSize += hdu.length;
+            }
+        }
+
+        final Set<String> serverHashes = getKnown(client);
+        try {
+            if (!serverHashes.contains(hash)) {
+                final String datasetUrl = datasetsUrl + '/' + hash;
+                // uploaded by a previous session ?
+                if (!client.exists(datasetUrl)) {
+                    final File dataFile = Workspace.getInstance().getJobFile(inputFile, inputFile.getName() + DATA_FILE_EXT);
+                    write(inputFile, hdus, true, dataFile);
+                    try {
+                        final long start = System.nanoTime();
+                        client.uploadFile(datasetUrl, dataFile);
+                        logger.info("Dataset {} uploaded ({} bytes in {} ms)", hash, dataFile.length(), (System.nanoTime() - start) / 1000000L);
+                    } finally {
+                        dataFile.delete();
+                    }
+                } else {
+                    logger.info("Dataset {} already stored by '{}'", hash, client.getServerURL());
+                }
+                serverHashes.add(hash);
+            }
+            final File deltaFile = Workspace.getInstance().getJobFile(inputFile, inputFile.getName() + DELTA_FILE_EXT);
+            write(inputFile, hdus, false, deltaFile);
+
+            final Dataset dataset = new Dataset(hash, deltaFile, dataSize);
+            logger.debug("prepare: {}", dataset);
+            return dataset;
+        } catch (IOException ioe) {
+            logger.warn("Unable to split the input file: {}", inputFile, ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Forget the given dataset (rejected by the server): its data part will be uploaded again
+     * @param client UWS client of the server
+     * @param dataset dataset to forget
+     */
+    void forget(final ClientUWS client, final Dataset dataset) {
+        getKnown(client).remove(dataset.hash);
+        dataset.deltaFile.delete();
+    }
+
+    private Set<String> getKnown(final ClientUWS client) {
+        final String url = client.getServerURL();
+        Set<String> hashes = known.get(url);
+        if (hashes == null) {
+            hashes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(16));
+            final Set<String> previous = known.putIfAbsent(url, hashes);
+            if (previous != null) {
+                hashes = previous;
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * @param client UWS client of the server
+     * @return true if the server supports datasets (checked once per server)
+     */
+    private boolean isSupported(final ClientUWS client) {
+        final String url = client.getServerURL();
+        Boolean support = supported.get(url);
+        if (support == null) {
+            try {
+                support = Boolean.valueOf(client.exists(url + DATASETS_PATH));
+            } catch (ClientUWSException cue) {
+                if (EndpointPool.isConnectionFailure(cue)) {
+                    // check again later:
+                    return false;
+                }
+                support = Boolean.FALSE;
+            }
+            logger.info("Datasets supported by '{}': {}", url, support);
+            supported.put(url, support);
+        }
+        return support.booleanValue();
+    }
+
+    /**
+     * Compute the SHA-256 hash of the data file built from the given HDUs
+     * @return hexadecimal hash or null if there is no data table
+     */
+    static String computeHash(final File inputFile, final List<Hdu> hdus) throws IOException {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException("SHA-256 not supported", nsae);
+        }
+        md.update(getDataPrimaryHeader());
+
+        boolean hasData = false;
+        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        try (FileChannel in = new FileInputStream(inputFile).getChannel()) {
+            for (Hdu hdu : hdus) {
+                if (hdu.isData()) {
+                    hasData = true;
+                    long pos = hdu.offset;
+                    final long end = hdu.offset + hdu.length;
+                    while (pos < end) {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(buffer.capacity(), end - pos));
+                        final int n = in.read(buffer, pos);
+                        if (n < 0) {
+                            throw new IOException("Truncated FITS file: " + inputFile);
+                        }
+                        md.update(buffer.array(), 0, n);
+                        pos += n;
+                    }
+                }
+            }
+        }
+        return (hasData) ? ResultCache.toHex(md.digest()) : null;
+    }
+
+    /**
+     * Write the data file (minimal primary HDU and data tables) or the delta file (other HDUs)
+     */
+    private static void write(final File inputFile, final List<Hdu> hdus, final boolean data, final File outputFile) throws IOException {
+        try (FileChannel in = new FileInputStream(inputFile).getChannel();
+                FileChannel out = new FileOutputStream(outputFile).getChannel()) {
+            if (data) {
+                final ByteBuffer header = ByteBuffer.wrap(getDataPrimaryHeader());
+                while (header.hasRemaining()) {
+                    out.write(header);
+                }
+            }
+            for (int i = 0; i < hdus.size(); i++) {
+                final Hdu hdu = hdus.get(i);
+                // the primary HDU belongs to the delta file:
+                if ((i == 0) ? !data : (hdu.isData() == data)) {
+                    transfer(in, hdu, out);
+                }
+            }
+        }
+    }
+
+    static void transfer(final FileChannel in, final Hdu hdu, final FileChannel out) throws IOException {
+        long pos = hdu.offset;
+        final long end = hdu.offset + hdu.length;
+        while (pos < end) {
+            final long n = in.transferTo(pos, end - pos, out);
+            if (n <= 0) {
+                throw new IOException("Truncated FITS file");
+            }
+            pos += n;
+        }
+    }
+
+    private static byte[] getDataPrimaryHeader() {
+        final byte[] block = new byte[BLOCK_LENGTH];
+        Arrays.fill(block, (byte) ' ');
+        for (int i = 0; i < DATA_PRIMARY_HEADER.length; i++) {
+            final byte[] card = DATA_PRIMARY_HEADER[i].getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(card, 0, block, i * CARD_LENGTH, card.length);
+        }
+        return block;
+    }
+
+    /**
+     * Scan the HDUs of the given FITS file (headers only)
+     * @param file FITS file
+     * @return HDU list (primary HDU first)
+     * @throws IOException if the file is not a valid FITS file
+     */
+    static List<Hdu> scan(final File file) throws IOException {
+        final List<Hdu> hdus = new ArrayList<Hdu>(8);
+        final ByteBuffer block = ByteBuffer.allocate(BLOCK_LENGTH);
+
+        try (FileChannel in = new FileInputStream(file).getChannel()) {
+            final long size = in.size();
+            long pos = 0L;
+
+            while (pos < size) {
+                final long offset = pos;
+                String extName = null;
+                int bitpix = 0;
+                int naxis = 0;
+                long nElements = 1L;
+                long pcount = 0L;
+                long gcount = 1L;
+                boolean end = false;
+
+                while (!end) {
+                    block.clear();
+                    while (block.hasRemaining()) {
+                        if (in.read(block, pos + block.position()) < 0) {
+                            throw new IOException("Truncated FITS header in " + file);
+                        }
+                    }
+                    pos += BLOCK_LENGTH;
+
+                    for (int c = 0; c < BLOCK_LENGTH && !end; c += CARD_LENGTH) {
+                        final String card = new String(block.array(), c, CARD_LENGTH, StandardCharsets.US_ASCII);
+                        final String key = card.substring(0, 8).trim();
+
+                        if ("END".equals(key)) {
+                            end = true;
+                        } else if ("BITPIX".equals(key)) {
+                            bitpix = Integer.parseInt(getValue(card));
+                        } else if ("NAXIS".equals(key)) {
+                            naxis = Integer.parseInt(getValue(card));
+                        } else if (key.startsWith("NAXIS")) {
+                            nElements *= Long.parseLong(getValue(card));
+                        } else if ("PCOUNT".equals(key)) {
+                            pcount = Long.parseLong(getValue(card));
+                        } else if ("GCOUNT".equals(key)) {
+                            gcount = Long.parseLong(getValue(card));
+                        } else if ("EXTNAME".equals(key)) {
+                            extName = getValue(card).replace("'", "").trim();
+                        }
+                    }
+                }
+                final long dataLength = (naxis == 0) ? 0L : (Math.abs(bitpix) / 8) * gcount * (pcount + nElements);
+                pos += ((dataLength + BLOCK_LENGTH - 1) / BLOCK_LENGTH) * BLOCK_LENGTH;
+
+                if (pos > size) {
+                    throw new IOException("Truncated FITS data in " + file);
+                }
+                hdus.add(new Hdu(extName, offset, pos - offset, !hdus.isEmpty()));
+            }
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Invalid FITS header in " + file, nfe);
+        }
+        if (hdus.isEmpty()) {
+            throw new IOException("Empty FITS file: " + file);
+        }
+        return hdus;
+    }
+
+    private static String getValue(final String card) {
+        String value = card.substring(10);
+        // skip comment (outside string values):
+        final int quote = value.lastIndexOf('\'');
+        final int slash = value.indexOf('/', (quote != -1) ? quote : 0);
+        if (slash != -1) {
+            value = value.substring(0, slash);
+        }
+        return value.trim();
+    }
+
+    /**
+     * One HDU (location in the file)
+     */
+    static final class Hdu {
+
+        /** extension name or null */
+        final String extName;
+        /** offset of the header */
+        final long offset;
+        /** length (header and data) */
+        final long length;
+        /** true if this HDU is an extension */
+        final boolean extension;
+
+        Hdu(final String extName, final long offset, final long length, final boolean extension) {
+            this.extName = extName;
+            this.offset = offset;
+            this.length = length;
+            this.extension = extension;
+        }
+
+        /**
+         * @return true if this HDU is a data table (OI_*)
+         */
+        boolean isData() {
+            return extension && (extName != null) && extName.startsWith(DATA_EXTNAME_PREFIX);
+        }
+
+        @Override
+        public String toString() {
+            return "Hdu{" + extName + ", offset=" + offset + ", length=" + length + '}';
+        }
+    }
+}
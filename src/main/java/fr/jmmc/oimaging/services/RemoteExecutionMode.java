@@ -11,6 +11,14 @@ import java.io.File;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import net.ivoa.xml.uws.v1.ExecutionPhase;
 import net.ivoa.xml.uws.v1.JobSummary;
 import net.ivoa.xml.uws.v1.ResultReference;
@@ -20,6 +28,7 @@ import org.restlet.data.Status;
 import org.restlet.ext.html.FormData;
 import org.restlet.ext.html.FormDataSet;
 import org.restlet.representation.FileRepresentation;
+import org.restlet.resource.ResourceException;
 import org.restlet.util.Series;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,12 +46,19 @@ public final class RemoteExecutionMode implements OImagingExecutionMode {
     private static boolean USE_BETA = Boolean.getBoolean("RemoteExecution.beta")
             || ApplicationDescription.isBetaVersion();
 
+    // Use -DRemoteExecutionMode.maxJobs=N to change the number of jobs submitted at once to each uws server (default limit)
+    private static final int MAX_PARALLEL_JOBS = Math.max(1, Integer.getInteger("RemoteExecutionMode.maxJobs", 4));
+
+    // Use -DRemoteExecutionMode.noDatasets=true to always upload the full input file (no dataset reference)
+    private static final boolean NO_DATASETS = Boolean.getBoolean("RemoteExecutionMode.noDatasets");
+
     /** Class logger */
     private static final Logger _logger = LoggerFactory.getLogger(RemoteExecutionMode.class.getName());
 
-    public static final String SERVICE_PATH = "oimaging/oimaging";
+    /** input data uploaded once per server (null if disabled) */
+    private static final RemoteDatasets DATASETS = (NO_DATASETS) ? null : new RemoteDatasets();
 
-    private static final ClientFactory FACTORY = new ClientFactory();
+    public static final String SERVICE_PATH = "oimaging/oimaging";
 
     /** singleton */
     public static final RemoteExecutionMode INSTANCE = new RemoteExecutionMode();
@@ -50,6 +66,13 @@ public final class RemoteExecutionMode implements OImagingExecutionMode {
     @SuppressWarnings("StaticNonFinalUsedInInitialization")
     private static String SERVER_URL = getServerUrl(USE_LOCAL, USE_BETA);
 
+    /** endpoint pool definition (preferences) or null to use the default server */
+    private static String ENDPOINTS = null;
+
+    /** endpoint pool */
+    @SuppressWarnings("StaticNonFinalUsedInInitialization")
+    private static volatile EndpointPool POOL = createPool();
+
     private static String getServerUrl(final boolean local, final boolean beta) {
         return ((local) ? "http://127.0.0.1:8080/OImaging-uws/"
                 : ((beta) ? "http://oimaging-beta.jmmc.fr/OImaging-uws/"
@@ -59,7 +82,34 @@ public final class RemoteExecutionMode implements OImagingExecutionMode {
     public static void resolveRemoteServer() {
         SERVER_URL = getServerUrl(USE_LOCAL, USE_BETA);
         // reset to be sure:
-        FACTORY.reset();
+        POOL = createPool();
+    }
+
+    /**
+     * Define the pool of UWS endpoints used to balance remote jobs
+     * @param endpoints endpoints separated by commas or spaces, each given as 'url' or 'url|maxJobs';
+     * null or empty to use the default server only
+     */
+    public static void setEndpoints(final String endpoints) {
+        final String previous = ENDPOINTS;
+        if ((previous == null) ? (endpoints != null) : !previous.equals(endpoints)) {
+            ENDPOINTS = endpoints;
+            POOL = createPool();
+        }
+    }
+
+    private static EndpointPool createPool() {
+        final EndpointPool pool = EndpointPool.parse(ENDPOINTS, MAX_PARALLEL_JOBS);
+        return (pool.isEmpty()) ? EndpointPool.parse(SERVER_URL, MAX_PARALLEL_JOBS) : pool;
+    }
+
+    /**
+     * @param url endpoint URL
+     * @return client of the pool endpoint or a new client if the endpoint is not in the pool
+     */
+    private static ClientUWS getClient(final String url) {
+        final EndpointPool.Endpoint endpoint = POOL.get(url);
+        return (endpoint != null) ? endpoint.client : new ClientUWS(url, SERVICE_PATH);
     }
 
     public static boolean isUSE_LOCAL() {
@@ -78,77 +128,53 @@ public final class RemoteExecutionMode implements OImagingExecutionMode {
         RemoteExecutionMode.USE_BETA = beta;
     }
 
-    private final static class ClientFactory {
-
-        /** UWS client to execute IR on a remote server */
-        private ClientUWS uwsClient = null;
+    private RemoteExecutionMode() {
+        super();
+    }
 
-        ClientFactory() {
+    /**
+     * Remote job reference
+     */
+    private static final class RemoteJob {
+
+        final ClientUWS client;
+        final String jobId;
+        /** start time (ms) */
+        final long startTime;
+        /** job journal entry or null if the journal is disabled */
+        final JobJournal.Entry entry;
+        /** pool and endpoint running the job (slot reserved) or null */
+        private final EndpointPool pool;
+        private final EndpointPool.Endpoint endpoint;
+        /** true once the results are stored locally */
+        volatile boolean stored = false;
+
+        RemoteJob(final ClientUWS client, final String jobId, final long startTime, final JobJournal.Entry entry,
+                  final EndpointPool pool, final EndpointPool.Endpoint endpoint) {
+            this.client = client;
+            this.jobId = jobId;
+            this.startTime = startTime;
+            this.entry = entry;
+            this.pool = pool;
+            this.endpoint = endpoint;
         }
 
         /**
-         * try to connect to the OImaging server
-         * @return client
-         * @throws fr.cnes.sitools.extensions.astro.application.uws.client.ClientUWSException
+         * Release the endpoint slot (job terminated)
          */
-        public ClientUWS getClient() throws ClientUWSException {
-            if (uwsClient == null) {
-                ClientUWSException cue = null;
-                // Move it in a property file (or constant at least)
-                final String url = SERVER_URL;
-                try {
-                    final ClientUWS c = new ClientUWS(url, SERVICE_PATH);
-
-                    // Get home page as an isAlive request:
-                    if (c.getHomePage() != null) {
-                        uwsClient = c;
-                        _logger.info("UWS service endpoint : '{}'", url);
-                    }
-                } catch (ClientUWSException ce) {
-                    _logger.info("UWS service endpoint unreachable: '{}'", url);
-                    if (cue == null) {
-                        cue = ce;
-                    }
-                } catch (Exception e) {
-                    // we should avoid to catch Exception, please catch e just before
-                    _logger.info("UWS service endpoint unreachable: '{}'", url);
-                    throw new IllegalStateException("UWS service endpoint unreachable: '" + url + "'", e);
-                }
-                if (uwsClient == null) {
-                    if (cue != null) {
-                        throw cue;
-                    }
-                    throw new ClientUWSException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, "No available endpoint !");
-                }
+        void release() {
+            if (endpoint != null) {
+                pool.release(endpoint);
             }
-            return uwsClient;
-        }
-
-        public void reset() {
-            this.uwsClient = null;
         }
     }
 
-    private RemoteExecutionMode() {
-        super();
-    }
-
     /**
-     * Start the remote application and wait end of execution.
-     *
-     * @param software software to run
-     * @param cliOptions software options on command line or null
-     * @param inputFilename input filename
-     * @param result the service result pointing result file to write data into.
-     * @throws IllegalStateException if the job can not be submitted to the job queue
-     * @throws fr.cnes.sitools.extensions.astro.application.uws.client.ClientUWSException
-     * @throws java.net.URISyntaxException
-     * @throws java.io.IOException
+     * Create (upload the input file) and start the remote job
      */
-    @SuppressWarnings("SleepWhileInLoop")
-    public void callUwsOimagingService(final String software, final String cliOptions,
-                                       final String inputFilename, ServiceResult result)
-            throws IllegalStateException, ClientUWSException, URISyntaxException, IOException {
+    private static RemoteJob createJob(final String software, final String cliOptions, final String inputFilename,
+                                       final ServiceResult result, final ResourceLimits limits)
+            throws IllegalStateException, ClientUWSException, ConnectException {
 
         if (StringUtils.isEmpty(software)) {
             throw new IllegalArgumentException("empty application name !");
@@ -166,6 +192,108 @@ public final class RemoteExecutionMode implements OImagingExecutionMode {
         _logger.info("callUwsOimagingService: software={} cliOptions={} inputFilenane={}",
                 software, cliOptions, inputFilename);
 
+        final File inputFile = new File(inputFilename);
+
+        // create job on the least loaded endpoint (failover on connection failures):
+        final EndpointPool pool = POOL;
+        final List<EndpointPool.Endpoint> failed = new ArrayList<EndpointPool.Endpoint>(2);
+        EndpointPool.Endpoint endpoint = null;
+        String jobId = null;
+
+        while (jobId == null) {
+            try {
+                endpoint = pool.acquire(failed);
+            } catch (ClientUWSException cue) {
+                // no endpoint left:
+                final Throwable rootCause = getRootCause(cue);
+                if (rootCause instanceof ConnectException) {
+                    throw (ConnectException) rootCause;
+                }
+                throw cue;
+            }
+            RemoteDatasets.Dataset dataset = null;
+            try {
+                // upload the data tables once per server (continuation runs only send parameters and images):
+                dataset = (DATASETS != null) ? DATASETS.prepare(endpoint.client, inputFile) : null;
+                try {
+                    jobId = endpoint.client.createJob(createForm(software, cliOptions, inputFile, dataset, limits));
+                } catch (ClientUWSException cue) {
+                    if ((dataset == null) || EndpointPool.isConnectionFailure(cue)) {
+                        throw cue;
+                    }
+                    // dataset rejected (expired on the server ?): send the full input file
+                    _logger.info("Dataset {} rejected by '{}': {}", dataset.hash, endpoint.url, cue.getMessage());
+                    DATASETS.forget(endpoint.client, dataset);
+                    dataset = null;
+                    jobId = endpoint.client.createJob(createForm(software, cliOptions, inputFile, null, limits));
+                }
+                if (dataset != null) {
+                    _logger.info("Job[{}] input data referenced by dataset {} ({} bytes not uploaded)", jobId, dataset.hash, dataset.dataSize);
+                }
+            } catch (ClientUWSException cue) {
+                pool.release(endpoint);
+                if (EndpointPool.isConnectionFailure(cue)) {
+                    _logger.debug("Connection failure on '{}': ", endpoint.url, cue);
+                    // try another endpoint:
+                    pool.failed(endpoint);
+                    failed.add(endpoint);
+                } else {
+                    throw cue;
+                }
+            } finally {
+                if (dataset != null) {
+                    dataset.deltaFile.delete();
+                }
+            }
+        }
+        final ClientUWS client = endpoint.client;
+        _logger.info("Job[{}] submitted to '{}'", jobId, endpoint.url);
+
+        if (limits.getWallClock() != 0) {
+            // the job was created without autostart: the execution duration can only be set before the job starts
+            try {
+                try {
+                    client.setJobExecutionDuration(jobId, limits.getWallClock());
+                } catch (ClientUWSException cue) {
+                    _logger.warn("Job[{}] unable to set the execution duration", jobId, cue);
+                }
+                client.setStartJob(jobId);
+            } catch (ClientUWSException | RuntimeException e) {
+                // do not leave a pending job on the server:
+                try {
+                    client.deleteJobInfo(jobId);
+                } catch (ClientUWSException cue) {
+                    _logger.warn("Job[{}] unable to delete the pending job", jobId, cue);
+                }
+                pool.release(endpoint);
+                throw e;
+            }
+        }
+
+        // record the job to re-attach it after a restart:
+        JobJournal.Entry entry = null;
+        final JobJournal journal = JobJournal.getInstance();
+        if (journal != null) {
+            try {
+                entry = journal.submitted(client.getServerURL(), jobId, software, cliOptions, new File(inputFilename));
+            } catch (IOException ioe) {
+                _logger.warn("Job[{}] unable to write the job journal", jobId, ioe);
+            }
+        }
+        return new RemoteJob(client, jobId, System.currentTimeMillis(), entry, pool, endpoint);
+    }
+
+    /**
+     * Prepare the job creation form
+     * @param software software to run
+     * @param cliOptions software options on command line or null
+     * @param inputFile input OIFits file
+     * @param dataset dataset giving the data tables already uploaded (delta file sent) or null to send the full input file
+     * @param limits resource limits
+     * @return multipart form
+     */
+    static FormDataSet createForm(final String software, final String cliOptions, final File inputFile,
+                                  final RemoteDatasets.Dataset dataset, final ResourceLimits limits) {
         // prepare input of next uws call
         final FormDataSet formDataSet = new FormDataSet();
         formDataSet.setMultipart(true);
@@ -174,163 +302,590 @@ public final class RemoteExecutionMode implements OImagingExecutionMode {
 
         // TODO declare field name as constant ( and share them with server side )
         fdsEntries.add(new FormData("inputfile",
-                new FileRepresentation(new File(inputFilename), MediaType.IMAGE_ALL)));
+                new FileRepresentation((dataset != null) ? dataset.deltaFile : inputFile, MediaType.IMAGE_ALL)));
+        if (dataset != null) {
+            fdsEntries.add(new FormData(RemoteDatasets.FIELD_DATASET_REF, dataset.hash));
+        }
         fdsEntries.add(new FormData("software", software));
 
         if (cliOptions != null) {
             fdsEntries.add(new FormData("cliOptions", cliOptions));
         }
 
-        // start task in autostart mode
-        formDataSet.add("PHASE", "RUN");
+        if (limits.getWallClock() == 0) {
+            // start task in autostart mode
+            formDataSet.add("PHASE", "RUN");
+        }
+        return formDataSet;
+    }
 
-        // create job
-        ClientUWS client = null;
-        String jobId = null;
+    /**
+     * Abort the given remote job
+     */
+    private static void abortJob(final RemoteJob job) throws ClientUWSException {
+        _logger.debug("Job[{}] aborting ...", job.jobId);
+        job.client.setAbortJob(job.jobId);
+        _logger.debug("Job[{}] aborted.", job.jobId);
+    }
 
-        boolean retry = true;
-        while (client == null) {
-            // may throw IllegalStateException if no running service available:
-            client = FACTORY.getClient();
+    /**
+     * Fill the result according to the final phase of the given remote job (download result files)
+     */
+    private static void finishJob(final RemoteJob job, final ExecutionPhase phase, final boolean cancelled,
+                                  final ResourceLimits limits, final ServiceResult result)
+            throws ClientUWSException, URISyntaxException, IOException {
 
-            try {
-                jobId = client.createJob(formDataSet);
-            } catch (ClientUWSException cue) {
-                final Throwable rootCause = getRootCause(cue);
-                if (rootCause instanceof ConnectException) {
-                    if (retry) {
-                        _logger.debug("ConnectException caught: ", rootCause);
-                        // retry once if connect exception:
-                        retry = false;
-                        // reset to be sure:
-                        FACTORY.reset();
-                        client = null;
-                        jobId = null;
+        _logger.info("End of execution for job '{}' in phase '{}'", job.jobId, phase);
+
+        if (cancelled) {
+            result.setErrorMessage("Cancelled job.");
+        }
+        if (phase == ExecutionPhase.COMPLETED) {
+            prepareResult(job.client, job.jobId, result);
+        } else if (!cancelled || (phase != ExecutionPhase.ABORTED)) {
+            JobSummary jobInfo = job.client.getJobInfo(job.jobId);
+            _logger.error("Error in execution for job '{}': {} ", job.jobId, jobInfo.getErrorSummary());
+
+            result.setErrorMessage("Execution error: "
+                    + ((jobInfo.getErrorSummary() != null) ? jobInfo.getErrorSummary() : phase));
+        }
+        if (!cancelled && (phase == ExecutionPhase.ABORTED) && (limits.getWallClock() != 0)
+                && (System.currentTimeMillis() - job.startTime) >= limits.getWallClockMillis()) {
+            // aborted by the server once the execution duration is exceeded:
+            result.setKillReason(limits.getWallClockReason());
+        } else if (cancelled || (phase == ExecutionPhase.ABORTED)) {
+            result.setCancelled(true);
+        }
+        // results are stored locally, the server-side job may be deleted:
+        job.stored = true;
+        if (job.entry != null) {
+            JobJournal.getInstance().stored(job.entry);
+        }
+    }
+
+    /**
+     * Delete the given remote job (server-side cleanup) if its results are stored locally;
+     * otherwise the job is kept on the server to be re-attached after a restart (job journal)
+     */
+    private static void deleteJob(final RemoteJob job) {
+        if (!job.stored && (job.entry != null)) {
+            _logger.info("Job[{}] kept on the server: results not stored locally", job.jobId);
+            return;
+        }
+        // TODO: decide if cleanup is delayed on the server-side to collect datasets in error:
+        try {
+            job.client.deleteJobInfo(job.jobId);
+            if (job.entry != null) {
+                JobJournal.getInstance().deleted(job.entry);
+            }
+        } catch (ClientUWSException cue) {
+            _logger.warn("Can't delete job '{}'", job.jobId, cue);
+        }
+    }
+
+    /**
+     * Delete the remote jobs whose results were stored locally but not deleted on the server
+     * (previous session). Performed by the shared transfer pool.
+     */
+    public static void deleteStoredJobs() {
+        final JobJournal journal = JobJournal.getInstance();
+        if (journal == null) {
+            return;
+        }
+        for (final JobJournal.Entry entry : journal.getStoredJobs()) {
+            ExecutionPoller.IO.execute(new Runnable() {
+                @Override
+                public void run() {
+                    _logger.info("Deleting stored job '{}' on '{}'", entry.getJobId(), entry.getEndpoint());
+                    try {
+                        getClient(entry.getEndpoint()).deleteJobInfo(entry.getJobId());
+                        journal.deleted(entry);
+                    } catch (ClientUWSException cue) {
+                        if (isNotFound(cue)) {
+                            journal.deleted(entry);
+                        } else {
+                            _logger.warn("Can't delete job '{}'", entry.getJobId(), cue);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @param cue exception
+     * @return true if the server answered that the job does not exist (deleted or expired)
+     */
+    private static boolean isNotFound(final ClientUWSException cue) {
+        if (Status.CLIENT_ERROR_NOT_FOUND.equals(cue.getStatus())) {
+            return true;
+        }
+        return (cue.getCause() instanceof ResourceException)
+                && Status.CLIENT_ERROR_NOT_FOUND.equals(((ResourceException) cue.getCause()).getStatus());
+    }
+
+    /**
+     * Asynchronous remote execution: the job is created by the shared transfer pool,
+     * then its phase is checked step by step by an UwsJobMonitor (long-polling or polling with backoff,
+     * failed requests retried) and results are downloaded once the job reaches a final phase.
+     * Phase requests run on the monitoring pool (without holding any lock), uploads, downloads and aborts
+     * on the transfer pool; the shared poller only schedules the next step.
+     */
+    private static final class RemoteJobMonitor implements Runnable {
+
+        private final String software;
+        private final String cliOptions;
+        private final String inputFilename;
+        private final ServiceExecution execution;
+        private final LogTail.Listener logListener;
+        private final ResourceLimits limits;
+        /** journal entry of the job to re-attach or null */
+        private final JobJournal.Entry reattachEntry;
+        /* state (transfer and monitoring threads) */
+        private volatile RemoteJob job = null;
+        private volatile UwsJobMonitor monitor = null;
+        private volatile LogTail logTail = null;
+        private volatile SnapshotWatcher snapshotWatcher = null;
+        /** true once the monitoring is over (final phase reached, aborted or failed) */
+        private boolean finished = false;
+
+        RemoteJobMonitor(final String software, final String cliOptions, final String inputFilename,
+                         final ServiceExecution execution, final LogTail.Listener logListener) {
+            this(software, cliOptions, inputFilename, execution, logListener, null);
+        }
+
+        RemoteJobMonitor(final String software, final String cliOptions, final String inputFilename,
+                         final ServiceExecution execution, final LogTail.Listener logListener,
+                         final JobJournal.Entry reattachEntry) {
+            this.software = software;
+            this.cliOptions = cliOptions;
+            this.inputFilename = inputFilename;
+            this.execution = execution;
+            this.logListener = logListener;
+            this.limits = ResourceLimits.forProgram(software);
+            this.reattachEntry = reattachEntry;
+        }
+
+        void start() {
+            ExecutionPoller.IO.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (reattachEntry != null) {
+                        attach();
                     } else {
-                        // throw ConnectException
-                        throw (ConnectException) rootCause;
+                        upload();
                     }
-                } else {
-                    throw cue;
                 }
+            });
+        }
+
+        /**
+         * Re-attach to the job given by the journal entry (submitted by a previous session)
+         */
+        private void attach() {
+            _logger.info("Re-attaching job '{}' on '{}'", reattachEntry.getJobId(), reattachEntry.getEndpoint());
+            final EndpointPool pool = POOL;
+            final EndpointPool.Endpoint endpoint = pool.get(reattachEntry.getEndpoint());
+            if (endpoint != null) {
+                pool.reserve(endpoint);
             }
+            job = new RemoteJob((endpoint != null) ? endpoint.client : new ClientUWS(reattachEntry.getEndpoint(), SERVICE_PATH),
+                    reattachEntry.getJobId(), reattachEntry.getSubmitTime(), reattachEntry, pool, endpoint);
+            started();
         }
 
-        // Assume that first state is executing
-        ExecutionPhase phase = ExecutionPhase.EXECUTING;
+        private void upload() {
+            if (execution.isAbortRequested()) {
+                execution.getResult().setCancelled(true);
+                execution.terminated();
+                return;
+            }
+            final ServiceResult result = execution.getResult();
+            try {
+                execution.setStatus(ExecutionStatus.UPLOADING);
+                job = createJob(software, cliOptions, inputFilename, result, limits);
+            } catch (IllegalStateException ise) {
+                execution.failed(ise);
+                return;
+            } catch (IllegalArgumentException iae) {
+                execution.failed(iae);
+                return;
+            } catch (Exception e) {
+                execution.failed(toFailure(e));
+                return;
+            }
+            started();
+        }
 
-        boolean cancelled = false;
-        try {
-            // loop and query return status
-            while (phase == ExecutionPhase.EXECUTING) {
-                try {
-                    Thread.sleep(1000L);
-                } catch (InterruptedException ie) {
-                    _logger.debug("Interrupted.");
-                    result.setErrorMessage("Cancelled job.");
-
-                    _logger.debug("Job[{}] aborting ...", jobId);
-                    client.setAbortJob(jobId);
-                    _logger.debug("Job[{}] aborted.", jobId);
-
-                    cancelled = true;
-                    phase = ExecutionPhase.ABORTED;
-                    break;
+        /**
+         * Follow the created job
+         */
+        private void started() {
+            final ServiceResult result = execution.getResult();
+            execution.setStatus(ExecutionStatus.EXECUTING);
+
+            monitor = new UwsJobMonitor(job.client, job.jobId);
+            // follow the remote log (partial result) while the job runs:
+            logTail = (logListener != null) ? LogTail.follow(job.client, job.jobId, logListener) : null;
+            // and intermediate images (partial results):
+            snapshotWatcher = (logListener instanceof SnapshotWatcher.Listener)
+                    ? SnapshotWatcher.watch(job.client, job.jobId, result.getOifitsResultFile(), (SnapshotWatcher.Listener) logListener) : null;
+
+            execution.setAbortHandler(new Runnable() {
+                @Override
+                public void run() {
+                    // abort at once (the pending phase request if any is ignored):
+                    ExecutionPoller.IO.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (finish()) {
+                                download(ExecutionPhase.ABORTED, true);
+                            }
+                        }
+                    });
                 }
-                phase = client.getJobPhase(jobId);
+            });
+            schedule(0L);
+        }
 
-                _logger.debug("getJobPhase[{}] : {}", jobId, phase);
+        /**
+         * Run the next step on the monitoring pool after the given delay (scheduled by the shared poller)
+         * @param delay delay in milliseconds
+         */
+        private void schedule(final long delay) {
+            if (delay <= 0L) {
+                ExecutionPoller.MONITORS.execute(this);
+            } else {
+                ExecutionPoller.POLLER.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        ExecutionPoller.MONITORS.execute(RemoteJobMonitor.this);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        }
 
-                // TODO timeout ? or just wait 'Cancel' button
+        /**
+         * End the monitoring once
+         * @return true if the caller ends the monitoring; false if already ended (final phase, abort or failure)
+         */
+        private synchronized boolean finish() {
+            if (finished) {
+                return false;
             }
-            _logger.info("End of execution for job '{}' in phase '{}'", jobId, phase);
+            finished = true;
+            return true;
+        }
 
-            if (phase == ExecutionPhase.COMPLETED) {
-                prepareResult(client, jobId, result);
-            } else if (!cancelled || (phase != ExecutionPhase.ABORTED)) {
-                JobSummary jobInfo = client.getJobInfo(jobId);
-                _logger.error("Error in execution for job '{}': {} ", jobId, jobInfo.getErrorSummary());
+        private synchronized boolean isFinished() {
+            return finished;
+        }
 
-                result.setErrorMessage("Execution error: "
-                        + ((jobInfo.getErrorSummary() != null) ? jobInfo.getErrorSummary() : phase));
+        /**
+         * Check the job phase once (monitoring thread, blocking request made without holding the lock)
+         */
+        @Override
+        public void run() {
+            if (isFinished()) {
+                // already terminated (aborted meanwhile):
+                return;
             }
-            if (cancelled || (phase == ExecutionPhase.ABORTED)) {
-                result.setCancelled(true);
+            final ExecutionPhase phase;
+            try {
+                phase = monitor.poll();
+            } catch (ClientUWSException cue) {
+                if (!finish()) {
+                    return;
+                }
+                stopFollowers();
+                job.release();
+                if ((reattachEntry != null) && isNotFound(cue)) {
+                    // re-attached job deleted or expired on the server:
+                    execution.getResult().setErrorMessage("Remote job '" + job.jobId + "' not found (expired on the server ?)");
+                    JobJournal.getInstance().deleted(job.entry);
+                    execution.terminated();
+                } else {
+                    // no phase given by the server: the job is kept on the server (re-attached after a restart if journaled)
+                    _logger.warn("Job[{}] unable to get the phase", job.jobId, cue);
+                    execution.failed(toFailure(cue));
+                }
+                return;
             }
-        } finally {
-            // TODO: decide if cleanup is delayed on the server-side to collect datasets in error:
-            if (true) {
-                try {
-                    client.deleteJobInfo(jobId);
-                } catch (ClientUWSException cue) {
-                    _logger.warn("Can't delete job '{}'", jobId, cue);
+            if (!monitor.isTerminated()) {
+                schedule(monitor.getNextDelay());
+                return;
+            }
+            if (finish()) {
+                _logger.debug("Job[{}] monitoring requests: {} (long-polling: {})", job.jobId, monitor.getRequestCount(), monitor.isLongPolling());
+
+                // final phase: download results on the transfer pool
+                ExecutionPoller.IO.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        download(phase, false);
+                    }
+                });
+            }
+        }
+
+        private void stopFollowers() {
+            if (logTail != null) {
+                logTail.stop();
+            }
+            if (snapshotWatcher != null) {
+                snapshotWatcher.stop();
+            }
+        }
+
+        private void download(final ExecutionPhase phase, final boolean cancelled) {
+            stopFollowers();
+            try {
+                if (cancelled) {
+                    abortJob(job);
                 }
+                execution.setStatus(ExecutionStatus.DOWNLOADING);
+                finishJob(job, phase, cancelled, limits, execution.getResult());
+                execution.terminated();
+            } catch (Exception e) {
+                execution.failed(toFailure(e));
+            } finally {
+                job.release();
+                deleteJob(job);
             }
         }
     }
 
-    private static void prepareResult(final ClientUWS client, String jobId, ServiceResult result)
+    /**
+     * Download all result files of the given job concurrently (shared http client):
+     * the execution log, the result OIFits file and additional products stored as typed attachments
+     */
+    private static void prepareResult(final ClientUWS client, final String jobId, final ServiceResult result)
             throws ClientUWSException, URISyntaxException, IOException {
 
         final Results results = client.getJobResults(jobId);
 
+        final List<ResultTransfer> transfers = new ArrayList<ResultTransfer>(results.getResult().size());
+
         for (ResultReference resultRef : results.getResult()) {
             final String id = resultRef.getId();
             final String href = resultRef.getHref();
 
             if ("logfile".equals(id)) {
-                // get logfile
-                _logger.info("Downloading logfile from: {}", href);
-
-                if (client.downloadFile(resultRef.getHref(), result.getExecutionLogResultFile())) {
-                    _logger.info("logfile downloaded at: {}", result.getExecutionLogResultFile());
-                }
+                transfers.add(new ResultTransfer(client, jobId, id, href, result.getExecutionLogResultFile(), null));
             } else if ("outputfile".equals(id)) {
-                // get result file
-                _logger.info("Downloading outputfile from: {}", href);
+                transfers.add(new ResultTransfer(client, jobId, id, href, result.getOifitsResultFile(), null));
+            } else {
+                // additional product (intermediate image, convergence table ...):
+                final String name = (href != null) ? href.substring(href.lastIndexOf('/') + 1) : null;
+                final ResultAttachment.Type type = ResultAttachment.guessType(id, name);
+                final String ext = getExtension(name);
+
+                final File file = Workspace.getInstance().getJobFile(result.getInputFile(), result.getInputFile().getName() + '.'
+                        + StringUtils.replaceNonAlphaNumericCharsByUnderscore(id) + ext);
 
-                if (client.downloadFile(href, result.getOifitsResultFile())) {
-                    _logger.info("outputfile downloaded at: {}", result.getOifitsResultFile());
+                transfers.add(new ResultTransfer(client, jobId, id, href, file, type));
+            }
+        }
+
+        // start all transfers at once:
+        final long start = System.nanoTime();
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[transfers.size()];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = CompletableFuture.runAsync(transfers.get(i), ExecutionPoller.DOWNLOADS);
+        }
+        // transfers never fail (failures are kept):
+        CompletableFuture.allOf(futures).join();
+
+        final long duration = (System.nanoTime() - start) / 1000000L;
+        long bytes = 0L;
+        ClientUWSException failure = null;
+
+        for (ResultTransfer transfer : transfers) {
+            if (transfer.failure != null) {
+                if (transfer.type == null) {
+                    // required file:
+                    if (failure == null) {
+                        failure = transfer.failure;
+                    }
+                } else {
+                    _logger.warn("Job[{}] unable to download the result '{}': {}", jobId, transfer.id, transfer.failure.getMessage());
                 }
             } else {
-                // TODO: FIX such error
-                // store additional information
-                throw new IllegalStateException("UWS service returned more results than required : " + id);
+                bytes += transfer.file.length();
+                if (transfer.type != null) {
+                    result.addAttachment(new ResultAttachment(transfer.id, transfer.type, transfer.file, transfer.duration));
+                }
             }
         }
+        _logger.info("Job[{}] results downloaded: {} file(s), {} bytes in {} ms ({} KB/s)",
+                jobId, transfers.size(), bytes, duration, String.format("%.1f", getThroughput(bytes, duration)));
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @param name file name or null
+     * @return file extension (including '.') or ".dat" if missing
+     */
+    private static String getExtension(final String name) {
+        if (name != null) {
+            final String lowerName = name.toLowerCase();
+            if (lowerName.endsWith(".gz")) {
+                final int pos = lowerName.lastIndexOf('.', lowerName.length() - 4);
+                if (pos != -1) {
+                    return name.substring(pos);
+                }
+            }
+            final int pos = name.lastIndexOf('.');
+            if (pos != -1 && pos != name.length() - 1) {
+                return name.substring(pos);
+            }
+        }
+        return ".dat";
+    }
+
+    /**
+     * @param bytes transferred bytes
+     * @param duration transfer duration (ms)
+     * @return throughput (KB/s)
+     */
+    static double getThroughput(final long bytes, final long duration) {
+        return (bytes / 1024.0) / (Math.max(1L, duration) / 1000.0);
+    }
+
+    /**
+     * Download of one result file (ExecutionPoller.DOWNLOADS)
+     */
+    private static final class ResultTransfer implements Runnable {
+
+        private final ClientUWS client;
+        private final String jobId;
+        final String id;
+        private final String href;
+        final File file;
+        /** attachment type or null for required files (log, result OIFits) */
+        final ResultAttachment.Type type;
+        /** transfer duration (ms) */
+        volatile long duration = 0L;
+        /** failure or null */
+        volatile ClientUWSException failure = null;
+
+        ResultTransfer(final ClientUWS client, final String jobId, final String id, final String href,
+                       final File file, final ResultAttachment.Type type) {
+            this.client = client;
+            this.jobId = jobId;
+            this.id = id;
+            this.href = href;
+            this.file = file;
+            this.type = type;
+        }
+
+        @Override
+        public void run() {
+            _logger.info("Job[{}] downloading {} from: {}", jobId, id, href);
+            final long start = System.nanoTime();
+            try {
+                if (client.downloadFile(href, file)) {
+                    duration = (System.nanoTime() - start) / 1000000L;
+                    _logger.info("Job[{}] {} downloaded at: {} ({} bytes in {} ms, {} KB/s)", jobId, id, file,
+                            file.length(), duration, String.format("%.1f", getThroughput(file.length(), duration)));
+                }
+            } catch (ClientUWSException cue) {
+                failure = cue;
+            } catch (RuntimeException re) {
+                failure = new ClientUWSException(re);
+            }
+        }
+    }
+
+    @Override
+    public int getMaxParallelJobs() {
+        // server allowance (all endpoints):
+        return POOL.getMaxJobs();
+    }
+
+    @Override
+    public String getSoftwareIdentity(final String software) {
+        // the server gives no software version: the servers of the current pool identify it
+        final StringBuilder sb = new StringBuilder(64).append("remote:").append(software);
+        for (EndpointPool.Endpoint endpoint : POOL.getEndpoints()) {
+            sb.append('|').append(endpoint.url);
+        }
+        return sb.toString();
     }
 
     @Override
     public ServiceResult reconstructsImage(final String software, final String options, final File inputFile) {
+        return reconstructsImage(software, options, inputFile, null);
+    }
+
+    @Override
+    public ServiceResult reconstructsImage(final String software, final String options, final File inputFile,
+                                           final LogTail.Listener logListener) {
+        return submit(software, options, inputFile, logListener).await();
+    }
+
+    @Override
+    public ServiceExecution submit(final String software, final String options, final File inputFile,
+                                   final LogTail.Listener logListener) {
+        final ServiceExecution execution = new ServiceExecution(new ServiceResult(inputFile));
+        new RemoteJobMonitor(software, options, inputFile.getAbsolutePath(), execution, logListener).start();
+        return execution;
+    }
+
+    /**
+     * Re-attach to a remote job submitted by a previous session (given by the job journal):
+     * monitor it and download its results once terminated
+     * @param entry job journal entry
+     * @param logListener listener receiving the execution log while the software runs or null
+     * @return asynchronous execution
+     * @throws IOException if the input file can not be restored
+     */
+    public ServiceExecution reattach(final JobJournal.Entry entry, final LogTail.Listener logListener) throws IOException {
+        // restore the input file (original name) in a new job directory:
+        final Workspace workspace = Workspace.getInstance();
+        final File inputFile = workspace.createJobFile(entry.getInputName());
+        Files.copy(entry.getInputFile().toPath(), inputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        workspace.updateUsage(inputFile);
+
         final ServiceResult result = new ServiceResult(inputFile);
+        result.setStartTime(new Date(entry.getSubmitTime()));
 
-        Exception e = null;
-        try {
-            // TODO add log output retrieval
-            callUwsOimagingService(software, options, inputFile.getAbsolutePath(), result);
-        } catch (IllegalStateException ise) {
-            throw ise;
-        } catch (ClientUWSException ce) {
-            final Throwable rootCause = getRootCause(ce);
-            if (rootCause instanceof ConnectException) {
-                e = (ConnectException) rootCause;
-            } else {
-                e = ce;
+        final ServiceExecution execution = new ServiceExecution(result);
+
+        // keep the job directory while the remote job runs:
+        workspace.retain(inputFile);
+        execution.getTermination().whenComplete(new BiConsumer<ServiceResult, Throwable>() {
+            @Override
+            public void accept(final ServiceResult res, final Throwable th) {
+                workspace.release(inputFile);
             }
-        } catch (URISyntaxException use) {
-            e = use;
-        } catch (ConnectException ce) {
-            e = ce;
-        } catch (IOException ioe) {
-            e = ioe;
+        });
+
+        new RemoteJobMonitor(entry.getSoftware(), entry.getCliOptions(), inputFile.getAbsolutePath(), execution, logListener, entry).start();
+        return execution;
+    }
+
+    /**
+     * @param e exception
+     * @return IllegalStateException wrapping the given exception (or its root ConnectException)
+     */
+    private static IllegalStateException toFailure(final Exception e) {
+        if (e instanceof IllegalStateException) {
+            return (IllegalStateException) e;
         }
-        if (e != null) {
-            throw new IllegalStateException(e);
+        if (e instanceof ClientUWSException) {
+            final Throwable rootCause = getRootCause(e);
+            if (rootCause instanceof ConnectException) {
+                return new IllegalStateException(rootCause);
+            }
         }
-        return result;
+        return new IllegalStateException(e);
     }
 
-    private static Throwable getRootCause(final Throwable th) {
+    static Throwable getRootCause(final Throwable th) {
         Throwable parent = th;
         while (parent.getCause() != null) {
             parent = parent.getCause();
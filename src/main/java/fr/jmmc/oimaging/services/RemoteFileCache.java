@@ -0,0 +1,454 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import fr.jmmc.jmcs.data.preference.SessionSettingsPreferences;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk-backed LRU cache of remote files (OIFits, FITS images) keyed by URL.
+ *
+ * Cached files are revalidated with conditional requests (If-None-Match / If-Modified-Since):
+ * a 304 response reuses the local copy without downloading it again. Concurrent requests
+ * for the same URL share a single fetch. The cache size is bounded (least recently used entries are evicted first).
+ * Only HTTP(S) URLs are supported (see isSupported).
+ */
+public final class RemoteFileCache {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(RemoteFileCache.class.getName());
+
+    // Use -DRemoteFileCache.disabled=true to disable the remote file cache
+    private static final boolean DISABLED = Boolean.getBoolean("RemoteFileCache.disabled");
+    // Use -DRemoteFileCache.maxSizeMB=N to change the maximum cache size (MB)
+    private static final long MAX_SIZE = Math.max(1L, Long.getLong("RemoteFileCache.maxSizeMB", 512L)) * 1024L * 1024L;
+
+    /** cache folder name (in the application file storage) */
+    private static final String CACHE_DIR = "remote-cache";
+    /** entry metadata file extension */
+    private static final String META_FILE_EXT = ".properties";
+    /** temporary download file extension */
+    private static final String PART_FILE_EXT = ".part";
+    /** metadata keys */
+    private static final String KEY_URL = "url";
+    private static final String KEY_FILE = "file";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    /** connection timeouts (ms) */
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 60000;
+
+    /** Singleton */
+    private static RemoteFileCache INSTANCE = null;
+
+    /* members */
+    /** cache directory */
+    private final File cacheDir;
+    /** maximum size in bytes */
+    private final long maxSize;
+    /** entries (key = URL hash) in access order (LRU first) */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    /** current size in bytes */
+    private long size = 0L;
+    /** pending fetches per URL */
+    private final ConcurrentHashMap<String, FutureTask<File>> pending = new ConcurrentHashMap<String, FutureTask<File>>(8);
+    /** statistics */
+    private final AtomicLong hits = new AtomicLong(0L);
+    private final AtomicLong shared = new AtomicLong(0L);
+    private final AtomicLong downloads = new AtomicLong(0L);
+
+    /**
+     * Return the RemoteFileCache singleton
+     * @return RemoteFileCache singleton or null if disabled
+     */
+    public static synchronized RemoteFileCache getInstance() {
+        if (INSTANCE == null && !DISABLED) {
+            INSTANCE = new RemoteFileCache(new File(SessionSettingsPreferences.getApplicationFileStorage(), CACHE_DIR), MAX_SIZE);
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Create a cache stored in the given directory
+     * @param cacheDir cache directory
+     * @param maxSize maximum size in bytes
+     */
+    RemoteFileCache(final File cacheDir, final long maxSize) {
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+        load();
+    }
+
+    private void load() {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            logger.warn("Unable to create the remote file cache directory: {}", cacheDir);
+            return;
+        }
+        final File[] files = cacheDir.listFiles();
+        if (files != null) {
+            // oldest first to restore the LRU order:
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(final File f1, final File f2) {
+                    return Long.compare(f1.lastModified(), f2.lastModified());
+                }
+            });
+            for (File file : files) {
+                final String name = file.getName();
+                if (name.endsWith(PART_FILE_EXT)) {
+                    // interrupted download:
+                    file.delete();
+                } else if (name.endsWith(META_FILE_EXT)) {
+                    final String key = name.substring(0, name.length() - META_FILE_EXT.length());
+                    final Entry entry = readEntry(file);
+                    if (entry != null && entry.file.exists()) {
+                        entries.put(key, entry);
+                        size += entry.file.length();
+                    } else {
+                        file.delete();
+                    }
+                }
+            }
+        }
+        logger.info("RemoteFileCache: {} entries ({} bytes) in {}", entries.size(), size, cacheDir);
+        evict(null);
+    }
+
+    /**
+     * @param url remote file URL
+     * @return true if the given URL can be cached (HTTP or HTTPS)
+     */
+    public static boolean isSupported(final String url) {
+        final String lower = url.toLowerCase();
+        return lower.startsWith("http://") || lower.startsWith("https://");
+    }
+
+    /**
+     * Return the local copy of the given remote file: revalidated if cached, downloaded otherwise.
+     * Concurrent calls for the same URL share the same fetch.
+     * @param url remote file URL (HTTP or HTTPS)
+     * @return local copy (in the cache directory)
+     * @throws IOException if the file can not be retrieved
+     */
+    public File get(final String url) throws IOException {
+        final FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                return fetch(url);
+            }
+        });
+        FutureTask<File> fetch = pending.putIfAbsent(url, task);
+        if (fetch == null) {
+            fetch = task;
+            try {
+                task.run();
+            } finally {
+                pending.remove(url, task);
+            }
+        } else {
+            shared.incrementAndGet();
+            logger.debug("RemoteFileCache: waiting for the pending fetch of {}", url);
+        }
+        try {
+            return fetch.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while retrieving " + url, ie);
+        } catch (ExecutionException ee) {
+            final Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unable to retrieve " + url, cause);
+        }
+    }
+
+    private File fetch(final String url) throws IOException {
+        final String key = toKey(url);
+        final Entry cached;
+        synchronized (entries) {
+            final Entry entry = entries.get(key);
+            cached = (entry != null && entry.file.exists()) ? entry : null;
+        }
+
+        final HttpURLConnection conn;
+        final int code;
+        try {
+            conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            if (cached != null) {
+                if (cached.etag != null) {
+                    conn.setRequestProperty("If-None-Match", cached.etag);
+                }
+                if (cached.lastModified != null) {
+                    conn.setRequestProperty("If-Modified-Since", cached.lastModified);
+                }
+            }
+            code = conn.getResponseCode();
+        } catch (IOException ioe) {
+            if (cached != null) {
+                // offline: use the local copy
+                logger.warn("RemoteFileCache: unable to revalidate {}, using the cached copy", url, ioe);
+                hits.incrementAndGet();
+                return touch(key, cached);
+            }
+            throw ioe;
+        }
+        try {
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                hits.incrementAndGet();
+                logger.debug("RemoteFileCache hit (not modified): {}", url);
+                return touch(key, cached);
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unable to retrieve " + url + ": HTTP " + code + " " + conn.getResponseMessage());
+            }
+            return download(key, url, conn);
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private File download(final String key, final String url, final HttpURLConnection conn) throws IOException {
+        final long start = System.nanoTime();
+        final File file = new File(cacheDir, key + '-' + getFileName(url));
+        final File partFile = new File(cacheDir, key + PART_FILE_EXT);
+
+        try (InputStream in = conn.getInputStream(); OutputStream out = new FileOutputStream(partFile)) {
+            final byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException ioe) {
+            partFile.delete();
+            throw ioe;
+        }
+        final Entry entry = new Entry(url, file, conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
+
+        synchronized (entries) {
+            remove(key);
+            Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            writeEntry(key, entry);
+            entries.put(key, entry);
+            size += file.length();
+            evict(key);
+        }
+        downloads.incrementAndGet();
+        logger.info("RemoteFileCache: {} downloaded ({} bytes in {} ms)", url, file.length(), 1e-6d * (System.nanoTime() - start));
+        return file;
+    }
+
+    private File touch(final String key, final Entry entry) {
+        synchronized (entries) {
+            // update LRU order (in memory and on disk):
+            entries.get(key);
+            getMetaFile(key).setLastModified(System.currentTimeMillis());
+        }
+        return entry.file;
+    }
+
+    /**
+     * Remove all entries
+     */
+    public void clear() {
+        synchronized (entries) {
+            for (String key : entries.keySet().toArray(new String[entries.size()])) {
+                remove(key);
+            }
+        }
+    }
+
+    /**
+     * Evict least recently used entries while the cache size exceeds its maximum
+     * @param keep key to keep (just fetched) or null
+     */
+    private void evict(final String keep) {
+        final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            final Map.Entry<String, Entry> e = it.next();
+            if (!e.getKey().equals(keep)) {
+                it.remove();
+                size -= e.getValue().file.length();
+                deleteFiles(e.getKey(), e.getValue());
+                logger.debug("RemoteFileCache evict: {}", e.getValue().url);
+            }
+        }
+    }
+
+    private void remove(final String key) {
+        final Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.file.length();
+            deleteFiles(key, entry);
+        }
+    }
+
+    private void deleteFiles(final String key, final Entry entry) {
+        entry.file.delete();
+        getMetaFile(key).delete();
+    }
+
+    private File getMetaFile(final String key) {
+        return new File(cacheDir, key + META_FILE_EXT);
+    }
+
+    private void writeEntry(final String key, final Entry entry) throws IOException {
+        final Properties props = new Properties();
+        props.setProperty(KEY_URL, entry.url);
+        props.setProperty(KEY_FILE, entry.file.getName());
+        if (entry.etag != null) {
+            props.setProperty(KEY_ETAG, entry.etag);
+        }
+        if (entry.lastModified != null) {
+            props.setProperty(KEY_LAST_MODIFIED, entry.lastModified);
+        }
+        try (OutputStream out = new FileOutputStream(getMetaFile(key))) {
+            props.store(out, null);
+        }
+    }
+
+    private Entry readEntry(final File metaFile) {
+        final Properties props = new Properties();
+        try (InputStream in = new FileInputStream(metaFile)) {
+            props.load(in);
+        } catch (IOException ioe) {
+            logger.debug("RemoteFileCache: invalid entry {}", metaFile, ioe);
+            return null;
+        }
+        final String url = props.getProperty(KEY_URL);
+        final String fileName = props.getProperty(KEY_FILE);
+        if (url == null || fileName == null) {
+            return null;
+        }
+        return new Entry(url, new File(cacheDir, fileName), props.getProperty(KEY_ETAG), props.getProperty(KEY_LAST_MODIFIED));
+    }
+
+    /**
+     * @return file name of the given URL (path end without query) or "remote" if empty
+     */
+    private static String getFileName(final String url) {
+        String path = url;
+        final int query = path.indexOf('?');
+        if (query != -1) {
+            path = path.substring(0, query);
+        }
+        final String name = path.substring(path.lastIndexOf('/') + 1).replaceAll("[^A-Za-z0-9._-]", "_");
+        return (name.isEmpty()) ? "remote" : name;
+    }
+
+    private static String toKey(final String url) {
+        try {
+            final MessageDigest md = MessageDigest.getInstance("SHA-256");
+            // short key (64 bits) is enough to identify URLs:
+            return ResultCache.toHex(md.digest(url.getBytes(StandardCharsets.UTF_8))).substring(0, 16);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException("SHA-256 not supported", nsae);
+        }
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return cache size in bytes
+     */
+    public long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    /**
+     * @return number of requests served by the local copy (not modified or offline)
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of requests that waited for a pending fetch of the same URL
+     */
+    public long getShared() {
+        return shared.get();
+    }
+
+    /**
+     * @return number of downloads
+     */
+    public long getDownloads() {
+        return downloads.get();
+    }
+
+    /**
+     * @return hit ratio (requests not downloaded / all requests) in [0, 1]
+     */
+    public double getHitRatio() {
+        final long saved = hits.get() + shared.get();
+        final long total = saved + downloads.get();
+        return (total != 0L) ? ((double) saved) / total : 0.0;
+    }
+
+    /**
+     * @return statistics as a short message
+     */
+    public String getStatistics() {
+        return String.format("remote files: %d hits, %d shared, %d downloads (hit ratio %.0f%%), %d entries (%.1f MB)",
+                getHits(), getShared(), getDownloads(), 100.0 * getHitRatio(), getEntryCount(), getSize() / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Cached remote file
+     */
+    private static final class Entry {
+
+        /** remote URL */
+        final String url;
+        /** local copy */
+        final File file;
+        /** ETag header or null */
+        final String etag;
+        /** Last-Modified header or null */
+        final String lastModified;
+
+        Entry(final String url, final File file, final String etag, final String lastModified) {
+            this.url = url;
+            this.file = file;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+}
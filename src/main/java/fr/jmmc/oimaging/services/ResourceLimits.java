@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resource budget of one reconstruction job (0 means unlimited, the default: only limits set by the user apply):
+ * - wall-clock duration (local process killed, remote UWS execution duration),
+ * - CPU time and address space of local processes (shell ulimit, not available on Windows),
+ * - maximum number of threads of local processes (OMP_NUM_THREADS).
+ *
+ * Limits are defined by system properties, globally or per program (overriding the global value):
+ * -DResourceLimits.wallClock=N (s), -DResourceLimits.cpuTime=N (s), -DResourceLimits.memoryMB=N, -DResourceLimits.threads=N
+ * or -DResourceLimits.&lt;program&gt;.wallClock=N ... (for example -DResourceLimits.mira-ci.wallClock=600)
+ */
+public final class ResourceLimits {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(ResourceLimits.class.getName());
+
+    /** property prefix */
+    private static final String PREFIX = "ResourceLimits.";
+    /** exit code of a process killed by SIGXCPU (soft CPU time limit) */
+    static final int EXIT_CODE_SIGXCPU = 128 + 24;
+    /** grace period (s) between the soft CPU time limit (SIGXCPU) and the hard one (SIGKILL) */
+    static final int CPU_TIME_GRACE = 10;
+    /** true if the shell ulimit wrapper can be used */
+    private static final boolean USE_ULIMIT = !System.getProperty("os.name", "").toLowerCase().startsWith("windows");
+
+    /* members */
+    /** wall-clock limit (s) */
+    private final int wallClock;
+    /** CPU time limit (s) */
+    private final int cpuTime;
+    /** address space limit (MB) */
+    private final int memoryMB;
+    /** maximum number of threads */
+    private final int threads;
+
+    /**
+     * Return the resource limits of the given program
+     * @param program software program
+     * @return resource limits
+     */
+    public static ResourceLimits forProgram(final String program) {
+        return new ResourceLimits(
+                getLimit(program, "wallClock", 0),
+                getLimit(program, "cpuTime", 0),
+                getLimit(program, "memoryMB", 0),
+                getLimit(program, "threads", 0));
+    }
+
+    private static int getLimit(final String program, final String name, final int def) {
+        final Integer global = Integer.getInteger(PREFIX + name, def);
+        return Math.max(0, Integer.getInteger(PREFIX + program + '.' + name, global));
+    }
+
+    ResourceLimits(final int wallClock, final int cpuTime, final int memoryMB, final int threads) {
+        this.wallClock = wallClock;
+        this.cpuTime = cpuTime;
+        this.memoryMB = memoryMB;
+        this.threads = threads;
+    }
+
+    /**
+     * @return wall-clock limit (s) or 0 if unlimited
+     */
+    public int getWallClock() {
+        return wallClock;
+    }
+
+    /**
+     * @return wall-clock limit (ms) or 0 if unlimited
+     */
+    public long getWallClockMillis() {
+        return 1000L * wallClock;
+    }
+
+    /**
+     * @return CPU time limit (s) or 0 if unlimited
+     */
+    public int getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * @return address space limit (MB) or 0 if unlimited
+     */
+    public int getMemoryMB() {
+        return memoryMB;
+    }
+
+    /**
+     * @return maximum number of threads or 0 if unlimited
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Wrap the given command to apply the process limits:
+     * env OMP_NUM_THREADS=n sh -c 'ulimit -H -t cpu+grace; ulimit -S -t cpu; ulimit -v mem; exec "$@"' sh cmd...
+     * (the soft CPU time limit sends SIGXCPU so the termination is told apart from other kills)
+     * @param cmd command line
+     * @return command line applying the process limits (given command if no limit or not supported)
+     */
+    String[] wrapCommand(final String[] cmd) {
+        if (!USE_ULIMIT || (cpuTime == 0 && memoryMB == 0 && threads == 0)) {
+            return cmd;
+        }
+        final List<String> wrapped = new ArrayList<String>(cmd.length + 6);
+        if (threads != 0) {
+            wrapped.add("env");
+            wrapped.add("OMP_NUM_THREADS=" + threads);
+        }
+        if (cpuTime != 0 || memoryMB != 0) {
+            final StringBuilder script = new StringBuilder(64);
+            if (cpuTime != 0) {
+                script.append("ulimit -H -t ").append(cpuTime + CPU_TIME_GRACE).append("; ");
+                script.append("ulimit -S -t ").append(cpuTime).append("; ");
+            }
+            if (memoryMB != 0) {
+                script.append("ulimit -v ").append(1024L * memoryMB).append("; ");
+            }
+            script.append("exec \"$@\"");
+
+            wrapped.add("sh");
+            wrapped.add("-c");
+            wrapped.add(script.toString());
+            // $0:
+            wrapped.add("sh");
+        }
+        wrapped.addAll(Arrays.asList(cmd));
+
+        logger.debug("wrapCommand: {}", wrapped);
+        return wrapped.toArray(new String[wrapped.size()]);
+    }
+
+    /**
+     * Explain the termination of a local process due to its soft CPU time limit (SIGXCPU only:
+     * other signals like SIGKILL may come from anything else, and the memory limit makes allocations fail)
+     * @param exitCode process exit code
+     * @return kill reason or null if the process was not stopped by its CPU time limit
+     */
+    String getKillReason(final int exitCode) {
+        if (USE_ULIMIT && cpuTime != 0 && exitCode == EXIT_CODE_SIGXCPU) {
+            return "CPU time limit exceeded (" + cpuTime + " s)";
+        }
+        return null;
+    }
+
+    /**
+     * @return kill reason of a job exceeding its wall-clock limit
+     */
+    String getWallClockReason() {
+        return "Wall-clock limit exceeded (" + wallClock + " s)";
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceLimits{wallClock=" + wallClock + " s, cpuTime=" + cpuTime + " s, memory="
+                + memoryMB + " MB, threads=" + threads + '}';
+    }
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import java.io.File;
+
+/**
+ * Additional product of a reconstruction (intermediate image, convergence table ...)
+ * given by the UWS service besides the result OIFits file and the execution log.
+ */
+public final class ResultAttachment {
+
+    /** attachment type */
+    public enum Type {
+        /** FITS image (intermediate image ...) */
+        IMAGE,
+        /** text or votable table (convergence table ...) */
+        TABLE,
+        /** unknown product */
+        OTHER
+    }
+
+    /** table file extensions */
+    private static final String[] TABLE_EXTENSIONS = new String[]{".csv", ".tsv", ".txt", ".dat", ".vot", ".xml", ".json"};
+    /** image file extensions */
+    private static final String[] IMAGE_EXTENSIONS = new String[]{".fits", ".fits.gz", ".fit", ".png", ".jpg"};
+
+    /* members */
+    /** result identifier */
+    private final String id;
+    /** attachment type */
+    private final Type type;
+    /** local file */
+    private final File file;
+    /** downloaded size in bytes */
+    private final long size;
+    /** transfer duration (ms) */
+    private final long duration;
+
+    /**
+     * @param id result identifier
+     * @param type attachment type
+     * @param file local file
+     * @param duration transfer duration (ms)
+     */
+    public ResultAttachment(final String id, final Type type, final File file, final long duration) {
+        this.id = id;
+        this.type = type;
+        this.file = file;
+        this.size = file.length();
+        this.duration = duration;
+    }
+
+    /**
+     * Guess the type of the given result
+     * @param id result identifier
+     * @param name file name (from the result reference) or null
+     * @return attachment type
+     */
+    public static Type guessType(final String id, final String name) {
+        final String lowerId = id.toLowerCase();
+        if (lowerId.startsWith(SnapshotWatcher.RESULT_SNAPSHOT_PREFIX) || lowerId.contains("image")) {
+            return Type.IMAGE;
+        }
+        if (lowerId.contains("table") || lowerId.contains("conv")) {
+            return Type.TABLE;
+        }
+        if (name != null) {
+            final String lowerName = name.toLowerCase();
+            for (String ext : IMAGE_EXTENSIONS) {
+                if (lowerName.endsWith(ext)) {
+                    return Type.IMAGE;
+                }
+            }
+            for (String ext : TABLE_EXTENSIONS) {
+                if (lowerName.endsWith(ext)) {
+                    return Type.TABLE;
+                }
+            }
+        }
+        return Type.OTHER;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return transfer throughput (KB/s)
+     */
+    public double getThroughput() {
+        return RemoteExecutionMode.getThroughput(size, duration);
+    }
+
+    @Override
+    public String toString() {
+        return "ResultAttachment{" + id + ", " + type + ", " + file.getName() + ", " + size + " bytes, "
+                + String.format("%.1f", getThroughput()) + " KB/s}";
+    }
+}
@@ -0,0 +1,334 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import fr.jmmc.jmcs.data.preference.SessionSettingsPreferences;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk-backed LRU cache of reconstruction results (OIFits + log files) keyed by
+ * the hash of the input OIFits content, the software identity (execution mode, server or installed program)
+ * and the cli options.
+ *
+ * A cache hit gives a new ServiceResult (copies of the cached files) without running the software.
+ * Only valid results are stored. The cache size is bounded (least recently used entries are evicted first).
+ */
+public final class ResultCache {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(ResultCache.class.getName());
+
+    // Use -DResultCache.disabled=true to disable the result cache
+    private static final boolean DISABLED = Boolean.getBoolean("ResultCache.disabled");
+    // Use -DResultCache.maxSizeMB=N to change the maximum cache size (MB)
+    private static final long MAX_SIZE = Math.max(1L, Long.getLong("ResultCache.maxSizeMB", 512L)) * 1024L * 1024L;
+
+    /** cache folder name (in the application file storage) */
+    private static final String CACHE_DIR = "result-cache";
+    /** FITS card length */
+    private static final int CARD_LENGTH = 80;
+    /** FITS DATE card (write date changes at every export) */
+    private static final byte[] CARD_DATE = "DATE    =".getBytes(StandardCharsets.US_ASCII);
+
+    /** Singleton */
+    private static ResultCache INSTANCE = null;
+
+    /* members */
+    /** cache directory */
+    private final File cacheDir;
+    /** maximum size in bytes */
+    private final long maxSize;
+    /** entries (key / size in bytes) in access order (LRU first) */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(64, 0.75f, true);
+    /** current size in bytes */
+    private long size = 0L;
+    /** statistics */
+    private final AtomicLong hits = new AtomicLong(0L);
+    private final AtomicLong misses = new AtomicLong(0L);
+
+    /**
+     * Return the ResultCache singleton
+     * @return ResultCache singleton or null if disabled
+     */
+    public static synchronized ResultCache getInstance() {
+        if (INSTANCE == null && !DISABLED) {
+            INSTANCE = new ResultCache(new File(SessionSettingsPreferences.getApplicationFileStorage(), CACHE_DIR), MAX_SIZE);
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Create a cache stored in the given directory
+     * @param cacheDir cache directory
+     * @param maxSize maximum size in bytes
+     */
+    ResultCache(final File cacheDir, final long maxSize) {
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+        load();
+    }
+
+    private void load() {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            logger.warn("Unable to create the result cache directory: {}", cacheDir);
+            return;
+        }
+        final File[] files = cacheDir.listFiles();
+        if (files != null) {
+            // oldest first to restore the LRU order:
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(final File f1, final File f2) {
+                    return Long.compare(f1.lastModified(), f2.lastModified());
+                }
+            });
+            for (File file : files) {
+                final String name = file.getName();
+                if (name.endsWith(ServiceResult.RESULT_FILE_EXT)) {
+                    final String key = name.substring(0, name.length() - ServiceResult.RESULT_FILE_EXT.length());
+                    final long entrySize = file.length() + getLogFile(key).length();
+                    entries.put(key, Long.valueOf(entrySize));
+                    size += entrySize;
+                }
+            }
+        }
+        logger.info("ResultCache: {} entries ({} bytes) in {}", entries.size(), size, cacheDir);
+        evict();
+    }
+
+    /**
+     * Compute the cache key of a run
+     * @param softwareIdentity software identity (see OImagingExecutionMode.getSoftwareIdentity)
+     * @param cliOptions software options on command line or null
+     * @param inputFile input OIFits file
+     * @return hexadecimal hash
+     * @throws IOException if the input file can not be read
+     */
+    public static String computeKey(final String softwareIdentity, final String cliOptions, final File inputFile) throws IOException {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException("SHA-256 not supported", nsae);
+        }
+        md.update(softwareIdentity.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        if (cliOptions != null) {
+            md.update(cliOptions.trim().getBytes(StandardCharsets.UTF_8));
+        }
+        md.update((byte) 0);
+
+        // FITS files are sequences of 80 bytes cards / records:
+        final byte[] card = new byte[CARD_LENGTH];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(inputFile), 64 * 1024)) {
+            int n;
+            while ((n = readFully(in, card)) > 0) {
+                // skip the DATE card (write timestamp):
+                if (n != CARD_LENGTH || !startsWith(card, CARD_DATE)) {
+                    md.update(card, 0, n);
+                }
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * @param digest digest bytes
+     * @return hexadecimal string
+     */
+    static String toHex(final byte[] digest) {
+        final StringBuilder sb = new StringBuilder(2 * digest.length);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static int readFully(final InputStream in, final byte[] buffer) throws IOException {
+        int n = 0;
+        while (n < buffer.length) {
+            final int r = in.read(buffer, n, buffer.length - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        return n;
+    }
+
+    private static boolean startsWith(final byte[] card, final byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (card[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return a copy of the cached result for the given key
+     * @param key cache key
+     * @param inputFile input file of the new result
+     * @return new valid ServiceResult or null if not cached
+     */
+    public ServiceResult lookup(final String key, final File inputFile) {
+        final File oifitsFile = getOIFitsFile(key);
+        final File logFile = getLogFile(key);
+
+        synchronized (entries) {
+            if (entries.get(key) != null && oifitsFile.exists()) {
+                final ServiceResult result = new ServiceResult(inputFile);
+                try {
+                    Files.copy(oifitsFile.toPath(), result.getOifitsResultFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    if (logFile.exists()) {
+                        Files.copy(logFile.toPath(), result.getExecutionLogResultFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    // update LRU order on disk too:
+                    oifitsFile.setLastModified(System.currentTimeMillis());
+
+                    result.setValid(true);
+                    result.setFromCache(true);
+                    hits.incrementAndGet();
+                    logger.debug("ResultCache hit: {}", key);
+                    return result;
+                } catch (IOException ioe) {
+                    logger.warn("ResultCache: unable to read entry {}", key, ioe);
+                    remove(key);
+                }
+            }
+        }
+        misses.incrementAndGet();
+        logger.debug("ResultCache miss: {}", key);
+        return null;
+    }
+
+    /**
+     * Store the given valid result
+     * @param key cache key
+     * @param result valid result
+     */
+    public void store(final String key, final ServiceResult result) {
+        if (!result.isValid() || result.isCancelled() || result.getErrorMessage() != null
+                || !result.getOifitsResultFile().exists()) {
+            return;
+        }
+        final File oifitsFile = getOIFitsFile(key);
+        final File logFile = getLogFile(key);
+
+        synchronized (entries) {
+            try {
+                remove(key);
+                Files.copy(result.getOifitsResultFile().toPath(), oifitsFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                if (result.getExecutionLogResultFile().exists()) {
+                    Files.copy(result.getExecutionLogResultFile().toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                final long entrySize = oifitsFile.length() + logFile.length();
+                entries.put(key, Long.valueOf(entrySize));
+                size += entrySize;
+                logger.debug("ResultCache store: {} ({} bytes)", key, entrySize);
+                evict();
+            } catch (IOException ioe) {
+                logger.warn("ResultCache: unable to store entry {}", key, ioe);
+                remove(key);
+            }
+        }
+    }
+
+    /**
+     * Remove all entries
+     */
+    public void clear() {
+        synchronized (entries) {
+            for (String key : entries.keySet().toArray(new String[entries.size()])) {
+                remove(key);
+            }
+        }
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            final Map.Entry<String, Long> e = it.next();
+            it.remove();
+            size -= e.getValue();
+            deleteFiles(e.getKey());
+            logger.debug("ResultCache evict: {}", e.getKey());
+        }
+    }
+
+    private void remove(final String key) {
+        final Long entrySize = entries.remove(key);
+        if (entrySize != null) {
+            size -= entrySize;
+        }
+        deleteFiles(key);
+    }
+
+    private void deleteFiles(final String key) {
+        getOIFitsFile(key).delete();
+        getLogFile(key).delete();
+    }
+
+    private File getOIFitsFile(final String key) {
+        return new File(cacheDir, key + ServiceResult.RESULT_FILE_EXT);
+    }
+
+    private File getLogFile(final String key) {
+        return new File(cacheDir, key + ServiceResult.LOG_FILE_EXT);
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return cache size in bytes
+     */
+    public long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return statistics as a short message
+     */
+    public String getStatistics() {
+        final long h = hits.get();
+        final long total = h + misses.get();
+        return "cache hits: " + h + " / " + total
+                + ((total != 0L) ? " (" + Math.round((100.0 * h) / total) + "%)" : "")
+                + ", " + getEntryCount() + " entries, " + (getSize() / (1024L * 1024L)) + " MB";
+    }
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import fr.jmmc.oitools.model.OIFitsFile;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Memory-bounded store of the OIFits payloads of results (weighted LRU).
+ *
+ * Loaded OIFits files are kept resident while their total weight (estimated heap size) fits in the heap budget.
+ * Beyond the budget, least recently used payloads are only softly reachable from their ServiceResult
+ * (see ServiceResult.getOifitsFile()) and reloaded from their result file once collected.
+ * Lightweight metadata (parameter tables, job duration, execution log) always remain in ServiceResult.
+ */
+public final class ResultStore {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(ResultStore.class.getName());
+
+    // Use -DResultStore.maxHeapMB=N to change the heap budget of loaded results (MB); default is 1/4 of the max heap
+    private static final long BUDGET_MB = Long.getLong("ResultStore.maxHeapMB", 0L);
+    /** 1 MB */
+    private static final double MB = 1024.0 * 1024.0;
+
+    /** Singleton */
+    private static ResultStore INSTANCE = null;
+
+    /* members */
+    /** heap budget in bytes */
+    private final long budget;
+    /** resident payloads in access order (least recently used first) */
+    private final Map<ServiceResult, Payload> resident = new LinkedHashMap<ServiceResult, Payload>(64, 0.75f, true);
+    /** total weight of resident payloads in bytes */
+    private long usage = 0L;
+    /** number of reloaded payloads */
+    private final AtomicLong reloads = new AtomicLong(0L);
+
+    /**
+     * Return the ResultStore singleton
+     * @return ResultStore singleton
+     */
+    public static synchronized ResultStore getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new ResultStore((BUDGET_MB > 0L) ? (long) (BUDGET_MB * MB) : Runtime.getRuntime().maxMemory() / 4L);
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Create a store with the given heap budget
+     * @param budget heap budget in bytes
+     */
+    ResultStore(final long budget) {
+        this.budget = budget;
+        logger.info("ResultStore: heap budget = {} MB", String.format("%.0f", budget / MB));
+    }
+
+    /**
+     * Return the resident payload of the given result (marked as most recently used)
+     * @param result result
+     * @return OIFits file or null if not resident
+     */
+    synchronized OIFitsFile get(final ServiceResult result) {
+        final Payload payload = resident.get(result);
+        return (payload != null) ? payload.oiFitsFile : null;
+    }
+
+    /**
+     * Make the given payload resident (most recently used) then evict least recently used payloads
+     * while the total weight exceeds the budget (the given payload is always kept)
+     * @param result result
+     * @param oiFitsFile OIFits file
+     * @param weight estimated heap size in bytes
+     */
+    synchronized void put(final ServiceResult result, final OIFitsFile oiFitsFile, final long weight) {
+        final Payload previous = resident.remove(result);
+        if (previous != null) {
+            usage -= previous.weight;
+        }
+        resident.put(result, new Payload(oiFitsFile, weight));
+        usage += weight;
+
+        for (Iterator<Map.Entry<ServiceResult, Payload>> it = resident.entrySet().iterator(); it.hasNext();) {
+            if (usage <= budget) {
+                break;
+            }
+            final Map.Entry<ServiceResult, Payload> e = it.next();
+            if (e.getKey() != result) {
+                logger.debug("ResultStore: evicting result #{} ({} bytes)", e.getKey().getIndex(), e.getValue().weight);
+                usage -= e.getValue().weight;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove the payload of the given result (result discarded)
+     * @param result result
+     */
+    synchronized void remove(final ServiceResult result) {
+        final Payload previous = resident.remove(result);
+        if (previous != null) {
+            usage -= previous.weight;
+        }
+    }
+
+    /**
+     * Record one payload reloaded from its result file
+     */
+    void reloaded() {
+        reloads.incrementAndGet();
+    }
+
+    /**
+     * @return total weight of resident payloads in bytes
+     */
+    public synchronized long getUsage() {
+        return usage;
+    }
+
+    /**
+     * @return heap budget in bytes
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return number of resident payloads
+     */
+    public synchronized int getResidentCount() {
+        return resident.size();
+    }
+
+    /**
+     * @return number of payloads reloaded from their result file
+     */
+    public long getReloads() {
+        return reloads.get();
+    }
+
+    /**
+     * @return statistics (heap usage and budget)
+     */
+    public String getStatistics() {
+        return String.format("results: %.1f / %.0f MB in memory, %d loaded, %d reloads",
+                getUsage() / MB, budget / MB, getResidentCount(), getReloads());
+    }
+
+    /**
+     * Resident payload and its weight
+     */
+    private static final class Payload {
+
+        /** OIFits file */
+        final OIFitsFile oiFitsFile;
+        /** estimated heap size in bytes */
+        final long weight;
+
+        Payload(final OIFitsFile oiFitsFile, final long weight) {
+            this.oiFitsFile = oiFitsFile;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handle on one asynchronous reconstruction given by OImagingExecutionMode.submit():
+ * this future completes with the ServiceResult once the software terminates (no thread waits for it).
+ *
+ * It gives status callbacks (queued, uploading, executing, downloading) and supports cancellation:
+ * cancel() completes this future at once and aborts the process or the remote job;
+ * the partial result (cancelled flag, error message) is then given by getTermination() once the abort is done.
+ */
+public final class ServiceExecution extends CompletableFuture<ServiceResult> {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(ServiceExecution.class.getName());
+
+    /**
+     * Listener of status changes (called by the thread changing the status
+     * or by the thread adding the listener for the current status)
+     */
+    public interface StatusListener {
+
+        /**
+         * @param execution execution
+         * @param status new status
+         */
+        public void statusChanged(final ServiceExecution execution, final ExecutionStatus status);
+    }
+
+    /* members */
+    /** result being filled */
+    private final ServiceResult result;
+    /** completed once the execution really terminates (even if cancelled) */
+    private final CompletableFuture<ServiceResult> termination = new CompletableFuture<ServiceResult>();
+    /** status listeners (also used as lock to notify status changes in order) */
+    private final List<StatusListener> listeners = new ArrayList<StatusListener>(2);
+    /** current status */
+    private volatile ExecutionStatus status = ExecutionStatus.QUEUED;
+    /** abort action given by the execution mode (once started) */
+    private Runnable abortHandler = null;
+    /** true if abort was requested */
+    private boolean abortRequested = false;
+
+    ServiceExecution(final ServiceResult result) {
+        this.result = result;
+    }
+
+    /**
+     * @return result being filled (complete once terminated)
+     */
+    public ServiceResult getResult() {
+        return result;
+    }
+
+    /**
+     * @return future completed with the result once the execution really terminates (even if cancelled)
+     */
+    public CompletableFuture<ServiceResult> getTermination() {
+        return termination;
+    }
+
+    /**
+     * @return current status
+     */
+    public ExecutionStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * Add a status listener: it is notified at once of the current status
+     * (the status may change while the execution is submitted) then of every change, in order
+     * @param listener listener to add
+     */
+    public void addStatusListener(final StatusListener listener) {
+        synchronized (listeners) {
+            listeners.add(listener);
+            listener.statusChanged(this, status);
+        }
+    }
+
+    void setStatus(final ExecutionStatus status) {
+        synchronized (listeners) {
+            if (this.status != status) {
+                this.status = status;
+                for (StatusListener listener : listeners) {
+                    listener.statusChanged(this, status);
+                }
+            }
+        }
+    }
+
+    /**
+     * Define the abort action (called at most once, immediately if cancel was already requested)
+     * @param abortHandler abort action
+     */
+    void setAbortHandler(final Runnable abortHandler) {
+        final boolean abort;
+        synchronized (this) {
+            this.abortHandler = abortHandler;
+            abort = abortRequested;
+        }
+        if (abort) {
+            abortHandler.run();
+        }
+    }
+
+    /**
+     * @return true if abort was requested
+     */
+    synchronized boolean isAbortRequested() {
+        return abortRequested;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        final boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            final Runnable handler;
+            synchronized (this) {
+                abortRequested = true;
+                handler = abortHandler;
+            }
+            logger.debug("cancel: {}", result.getInputFile());
+            if (handler != null) {
+                handler.run();
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * Complete this execution (called by the execution mode once terminated)
+     */
+    void terminated() {
+        complete(result);
+        termination.complete(result);
+    }
+
+    /**
+     * Fail this execution (called by the execution mode)
+     * @param th failure
+     */
+    void failed(final Throwable th) {
+        completeExceptionally(th);
+        termination.completeExceptionally(th);
+    }
+
+    /**
+     * Blocking adapter: wait for the termination of this execution.
+     * If the current thread is interrupted, the execution is cancelled and its partial result returned.
+     * @return result
+     * @throws IllegalStateException if the execution failed
+     */
+    ServiceResult await() throws IllegalStateException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return termination.get();
+                } catch (InterruptedException ie) {
+                    logger.debug("await: interrupted");
+                    interrupted = true;
+                    cancel(true);
+                }
+            }
+        } catch (CancellationException ce) {
+            return result;
+        } catch (ExecutionException ee) {
+            final Throwable cause = ee.getCause();
+            if (cause instanceof IllegalStateException) {
+                throw (IllegalStateException) cause;
+            }
+            if (cause instanceof IllegalArgumentException) {
+                throw (IllegalArgumentException) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            if (interrupted) {
+                // restore the interrupted status:
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceExecution[" + status + "]{" + result.getInputFile() + '}';
+    }
+}
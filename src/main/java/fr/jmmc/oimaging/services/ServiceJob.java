@@ -0,0 +1,396 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One image reconstruction (service + cli options + input file) executed by the JobScheduler.
+ */
+public final class ServiceJob {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(ServiceJob.class.getName());
+
+    /** job counter */
+    private static final AtomicInteger JOB_COUNTER = new AtomicInteger(0);
+
+    /** Job life cycle */
+    public enum State {
+        QUEUED, RUNNING, DONE, CANCELLED, FAILED
+    }
+
+    /* members */
+    private final int id;
+    private final Service service;
+    private final String cliOptions;
+    private final File inputFile;
+    private final ServiceJobListener listener;
+    /** true to ignore the result cache */
+    private final boolean forceRun;
+    /** journal entry of the remote job to re-attach or null */
+    private final JobJournal.Entry reattachEntry;
+    private final AtomicReference<State> state = new AtomicReference<State>(State.QUEUED);
+    /** asynchronous execution (set once submitted) */
+    private ServiceExecution execution = null;
+    /** true if the running job was cancelled */
+    private boolean cancelRequested = false;
+    /** result (once executed) */
+    private volatile ServiceResult result = null;
+    /** failure (if any) */
+    private volatile Exception failure = null;
+    /** snapshot monitor (if the listener implements ServiceSnapshotListener) */
+    private volatile SnapshotMonitor snapshotMonitor = null;
+    /** true if the job was stopped once converged */
+    private volatile boolean converged = false;
+
+    ServiceJob(final Service service, final String cliOptions, final File inputFile,
+               final ServiceJobListener listener, final boolean forceRun) {
+        this(service, cliOptions, inputFile, listener, forceRun, null);
+    }
+
+    ServiceJob(final Service service, final String cliOptions, final File inputFile,
+               final ServiceJobListener listener, final boolean forceRun, final JobJournal.Entry reattachEntry) {
+        this.id = JOB_COUNTER.incrementAndGet();
+        this.service = service;
+        this.cliOptions = cliOptions;
+        this.inputFile = inputFile;
+        this.listener = listener;
+        this.forceRun = forceRun;
+        this.reattachEntry = reattachEntry;
+    }
+
+    /**
+     * Start the reconstruction: the result is given by the cache or the execution is submitted
+     * to the execution mode (asynchronous). Called by a JobScheduler worker.
+     */
+    void start() {
+        if (!state.compareAndSet(State.QUEUED, State.RUNNING)) {
+            // cancelled meanwhile:
+            return;
+        }
+        logger.debug("Job[{}] started: {}", id, this);
+        try {
+            execute();
+        } catch (RuntimeException re) {
+            // failed before the execution was submitted (cache, execution mode): release the job slot
+            finish(null, re, null, null);
+        }
+    }
+
+    /**
+     * Give the result from the cache or submit the execution to the execution mode (asynchronous)
+     */
+    private void execute() {
+        final ResultCache cache = (forceRun) ? null : ResultCache.getInstance();
+        String key = null;
+        if (cache != null) {
+            try {
+                key = ResultCache.computeKey(service.getExecMode().getSoftwareIdentity(service.getProgram()), cliOptions, inputFile);
+                // re-attached jobs are not looked up (running on the server):
+                final ServiceResult res = (reattachEntry != null) ? null : cache.lookup(key, inputFile);
+                if (res != null) {
+                    logger.info("Job[{}] result given by the cache ({})", id, cache.getStatistics());
+                    finish(res, null, null, null);
+                    return;
+                }
+            } catch (IOException ioe) {
+                logger.warn("Job[{}] unable to use the result cache: ", id, ioe);
+            }
+        }
+        final String cacheKey = key;
+
+        final ServiceExecution exec;
+        if (reattachEntry != null) {
+            try {
+                exec = RemoteExecutionMode.INSTANCE.reattach(reattachEntry, getExecutionListener());
+            } catch (IOException ioe) {
+                finish(null, new IllegalStateException("Unable to re-attach the remote job " + reattachEntry.getJobId(), ioe), null, null);
+                return;
+            }
+        } else {
+            exec = service.getExecMode().submit(service.getProgram(), cliOptions, inputFile, getExecutionListener());
+        }
+
+        if (listener instanceof ServiceStatusListener) {
+            final ServiceStatusListener statusListener = (ServiceStatusListener) listener;
+            // notified of the current status first (set while submitting):
+            exec.addStatusListener(new ServiceExecution.StatusListener() {
+                @Override
+                public void statusChanged(final ServiceExecution execution, final ExecutionStatus status) {
+                    statusListener.statusChanged(ServiceJob.this, status);
+                }
+            });
+        }
+        exec.getTermination().whenCompleteAsync(new BiConsumer<ServiceResult, Throwable>() {
+            @Override
+            public void accept(final ServiceResult res, final Throwable th) {
+                finish(res, th, cache, cacheKey);
+            }
+        }, JobScheduler.getInstance().getWorkers());
+
+        final boolean abort;
+        synchronized (this) {
+            this.execution = exec;
+            abort = cancelRequested;
+        }
+        if (abort) {
+            // cancelled while submitting:
+            exec.cancel(true);
+        }
+    }
+
+    /**
+     * Handle the termination of the execution (validate and cache the result) and release the job slot.
+     * Called by a JobScheduler worker.
+     * @param res result or null if failed
+     * @param th failure or null
+     * @param cache result cache to store the result into or null
+     * @param cacheKey result cache key or null
+     */
+    private void finish(final ServiceResult res, final Throwable th, final ResultCache cache, final String cacheKey) {
+        try {
+            if (th != null) {
+                final Throwable cause = (th instanceof CompletionException && th.getCause() != null) ? th.getCause() : th;
+                logger.warn("Job[{}] failed: ", id, cause);
+                this.failure = (cause instanceof Exception) ? (Exception) cause : new IllegalStateException(cause);
+            } else {
+                res.setService(service);
+
+                if (!res.isFromCache()) {
+                    if (converged) {
+                        // stopped on purpose (not cancelled by the user): forget the abort status and message
+                        res.setCancelled(false);
+                        res.setKillReason(null);
+                        res.setErrorMessage(null);
+                        res.setConvergedReason("Converged: stopped after " + snapshotMonitor.getCount()
+                                + " intermediate images (change = " + String.format("%.2e", snapshotMonitor.getLastChange()) + ")");
+                        logger.info("Job[{}] {}", id, res.getConvergedReason());
+
+                        if (!res.getOifitsResultFile().exists()) {
+                            // stopped before writing its output: the last intermediate image is the result
+                            try {
+                                snapshotMonitor.writeResult(inputFile, res.getOifitsResultFile());
+                            } catch (IOException ioe) {
+                                logger.warn("Job[{}] unable to write the converged image: ", id, ioe);
+                                res.setErrorMessage("Unable to write the converged image: " + ioe.getMessage());
+                            }
+                        }
+                    }
+
+                    if (res.getErrorMessage() == null) {
+                        // Result is valid only if the OIFITS file was downloaded successfully:
+                        final boolean valid = res.getOifitsResultFile().exists();
+                        res.setValid(valid);
+
+                        if (!valid) {
+                            res.setErrorMessage("No OIFits ouput (probably a server error occured) !");
+                        }
+                    }
+                    // converged results depend on the convergence threshold (not in the cache key):
+                    if (cacheKey != null && !res.isCancelled() && !res.isConverged()) {
+                        cache.store(cacheKey, res);
+                    }
+                }
+                res.setEndTime(new Date());
+            }
+        } catch (RuntimeException re) {
+            logger.warn("Job[{}] failed: ", id, re);
+            this.failure = re;
+        }
+        this.result = res;
+
+        if (failure != null) {
+            state.set(State.FAILED);
+        } else if (res.isCancelled()) {
+            state.set(State.CANCELLED);
+        } else {
+            state.set(State.DONE);
+        }
+        logger.debug("Job[{}] terminated: {}", id, this);
+
+        // result files (output, log, intermediate images) stored in the job directory:
+        Workspace.getInstance().updateUsage(inputFile);
+
+        JobScheduler.getInstance().jobFinished(this);
+    }
+
+    /**
+     * @return execution listener forwarding log chunks to the job listener if it implements ServiceLogListener
+     * and snapshots to the snapshot monitor if the job listener implements ServiceSnapshotListener
+     */
+    private LogTail.Listener getExecutionListener() {
+        LogTail.Listener logListener = null;
+        if (listener instanceof ServiceLogListener) {
+            final ServiceLogListener serviceLogListener = (ServiceLogListener) listener;
+            logListener = new LogTail.Listener() {
+                @Override
+                public void logAppended(final String chunk) {
+                    serviceLogListener.logAppended(ServiceJob.this, chunk);
+                }
+            };
+        }
+        if (listener instanceof ServiceSnapshotListener) {
+            final ServiceSnapshotListener snapshotListener = (ServiceSnapshotListener) listener;
+            this.snapshotMonitor = new SnapshotMonitor(this, snapshotListener, snapshotListener.getConvergenceThreshold());
+            return new SnapshotLogListener(logListener, snapshotMonitor);
+        }
+        return logListener;
+    }
+
+    /**
+     * Stop this running job as its snapshots converged
+     */
+    void stopConverged() {
+        if (!isTerminated()) {
+            converged = true;
+            cancel();
+        }
+    }
+
+    /**
+     * Notify the listener once the job is terminated
+     */
+    void fireTerminated() {
+        if (listener != null) {
+            switch (state.get()) {
+                case DONE:
+                    listener.jobDone(this, result);
+                    break;
+                case CANCELLED:
+                    listener.jobCancelled(this, result);
+                    break;
+                case FAILED:
+                    listener.jobFailed(this, failure);
+                    break;
+                default:
+                    logger.warn("Job[{}] not terminated: {}", id, this);
+            }
+        }
+    }
+
+    /**
+     * Mark this job as cancelled if it is still waiting in the queue
+     * @return true if the job was queued; false otherwise
+     */
+    boolean cancelQueued() {
+        return state.compareAndSet(State.QUEUED, State.CANCELLED);
+    }
+
+    /**
+     * Abort this running job (the process or the remote job is stopped asynchronously)
+     * @return true if the abort was requested; false if already requested or terminated
+     */
+    boolean cancelRunning() {
+        final ServiceExecution exec;
+        synchronized (this) {
+            if (cancelRequested) {
+                return false;
+            }
+            cancelRequested = true;
+            exec = execution;
+        }
+        // if not yet submitted, start() will cancel the execution:
+        return (exec == null) || exec.cancel(true);
+    }
+
+    /**
+     * Cancel this job (queued or running)
+     * @return true if the job was cancelled; false if it was already terminated
+     */
+    public boolean cancel() {
+        return JobScheduler.getInstance().cancel(this);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Service getService() {
+        return service;
+    }
+
+    public String getCliOptions() {
+        return cliOptions;
+    }
+
+    public File getInputFile() {
+        return inputFile;
+    }
+
+    public boolean isForceRun() {
+        return forceRun;
+    }
+
+    /**
+     * @return true if this job re-attaches a remote job submitted by a previous session
+     */
+    public boolean isReattached() {
+        return reattachEntry != null;
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    public boolean isTerminated() {
+        final State s = state.get();
+        return (s != State.QUEUED) && (s != State.RUNNING);
+    }
+
+    public ServiceResult getResult() {
+        return result;
+    }
+
+    public Exception getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return true if the job was stopped automatically once converged
+     */
+    public boolean isConverged() {
+        return converged;
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceJob[" + id + "][" + state.get() + "]{service=" + service
+                + ", cliOptions=" + cliOptions + ", inputFile=" + inputFile + ", forceRun=" + forceRun + '}';
+    }
+
+    /**
+     * Execution listener forwarding log chunks (optional) and snapshot files
+     */
+    private static final class SnapshotLogListener implements LogTail.Listener, SnapshotWatcher.Listener {
+
+        private final LogTail.Listener logListener;
+        private final SnapshotWatcher.Listener snapshotListener;
+
+        SnapshotLogListener(final LogTail.Listener logListener, final SnapshotWatcher.Listener snapshotListener) {
+            this.logListener = logListener;
+            this.snapshotListener = snapshotListener;
+        }
+
+        @Override
+        public void logAppended(final String chunk) {
+            if (logListener != null) {
+                logListener.logAppended(chunk);
+            }
+        }
+
+        @Override
+        public void snapshotAvailable(final File file) {
+            snapshotListener.snapshotAvailable(file);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+/**
+ * Callback interface notified when a ServiceJob terminates.
+ *
+ * Note: methods are called by the scheduler worker thread (NOT the Swing EDT).
+ */
+public interface ServiceJobListener {
+
+    /**
+     * The job completed (with or without error message in its result)
+     * @param job terminated job
+     * @param result service result (never null)
+     */
+    public void jobDone(final ServiceJob job, final ServiceResult result);
+
+    /**
+     * The job was cancelled before or during its execution
+     * @param job cancelled job
+     * @param result partial service result or null if the job never started
+     */
+    public void jobCancelled(final ServiceJob job, final ServiceResult result);
+
+    /**
+     * The job failed with an exception
+     * @param job failed job
+     * @param e exception
+     */
+    public void jobFailed(final ServiceJob job, final Exception e);
+}
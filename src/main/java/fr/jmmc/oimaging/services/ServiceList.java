@@ -3,15 +3,30 @@
  ******************************************************************************/
 package fr.jmmc.oimaging.services;
 
+import fr.jmmc.jmcs.Bootstrapper;
+import fr.jmmc.jmcs.data.preference.SessionSettingsPreferences;
 import fr.jmmc.jmcs.gui.component.GenericListModel;
+import fr.jmmc.jmcs.gui.util.SwingUtils;
 import fr.jmmc.jmcs.util.StringUtils;
 import fr.jmmc.oimaging.model.IRModel;
 import fr.jmmc.oimaging.services.software.SoftwareInputParam;
 import fr.jmmc.oitools.fits.FitsHeaderCard;
 import fr.jmmc.oitools.fits.FitsTable;
 import fr.jmmc.oitools.model.OIFitsFile;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.swing.ComboBoxModel;
+import javax.swing.SwingUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  *
@@ -19,7 +34,12 @@ import javax.swing.ComboBoxModel;
  */
 public final class ServiceList {
 
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(ServiceList.class.getName());
+
     private static final boolean ENABLE_LOCAL_MODE = true;
+    /** local service cache file name (in the application file storage) */
+    private static final String LOCAL_SERVICE_CACHE_FILE = "local-services.properties";
 
     public static final String SERVICE_BSMEM = "BSMEM";
     public static final String SERVICE_MIRA = "MIRA";
@@ -36,8 +56,12 @@ public final class ServiceList {
 
     /** Default service */
     final Service preferedService;
-    /** service list */
+    /** service list (GUI model updated by the Swing EDT) */
     final GenericListModel<Service> availableServices;
+    /** service list (thread-safe copy used by lookups) */
+    private final List<Service> services = new CopyOnWriteArrayList<Service>();
+    /** local service discovery (completed once all local programs are resolved) */
+    private final CompletableFuture<Void> discovery;
 
     private ServiceList() {
         final OImagingExecutionMode remoteExecutionMode = RemoteExecutionMode.INSTANCE;
@@ -49,47 +73,104 @@ public final class ServiceList {
         final SoftwareInputParam swParamSparco = SoftwareInputParam.newInstance(SERVICE_SPARCO);
         final SoftwareInputParam swParamWisard = SoftwareInputParam.newInstance(SERVICE_WISARD);
 
-        availableServices.add(new Service(SERVICE_BSMEM, CMD_BSMEM, remoteExecutionMode, "", swParamBsmem));
-        availableServices.add(new Service(SERVICE_MIRA, CMD_MIRA, remoteExecutionMode, "", swParamMira));
-        availableServices.add(new Service(SERVICE_SPARCO, CMD_SPARCO, remoteExecutionMode, "", swParamSparco));
+        services.add(new Service(SERVICE_BSMEM, CMD_BSMEM, remoteExecutionMode, "", swParamBsmem));
+        services.add(new Service(SERVICE_MIRA, CMD_MIRA, remoteExecutionMode, "", swParamMira));
+        services.add(new Service(SERVICE_SPARCO, CMD_SPARCO, remoteExecutionMode, "", swParamSparco));
         // TODO define prefered service in a preference:
         preferedService = new Service(SERVICE_WISARD, CMD_WISARD, remoteExecutionMode, "", swParamWisard);
-        availableServices.add(preferedService);
+        services.add(preferedService);
+
+        for (Service service : services) {
+            availableServices.add(service);
+        }
 
         if (ENABLE_LOCAL_MODE) {
             final LocalExecutionMode localExecutionMode = LocalExecutionMode.INSTANCE;
 
-            if (localExecutionMode.test(CMD_BSMEM)) {
-                availableServices.add(new Service(SERVICE_BSMEM + " (local)", CMD_BSMEM, localExecutionMode, "", swParamBsmem));
-            }
-            if (localExecutionMode.test(CMD_MIRA)) {
-                availableServices.add(new Service(SERVICE_MIRA + " (local)", CMD_MIRA, localExecutionMode, "", swParamMira));
-            }
-            if (localExecutionMode.test(CMD_SPARCO)) {
-                availableServices.add(new Service(SERVICE_SPARCO + " (local)", CMD_SPARCO, localExecutionMode, "", swParamSparco));
-            }
-            if (localExecutionMode.test(CMD_WISARD)) {
-                availableServices.add(new Service(SERVICE_WISARD + " (local)", CMD_WISARD, localExecutionMode, "", swParamWisard));
-            }
+            final Map<String, Service> localServices = new LinkedHashMap<String, Service>(8);
+            localServices.put(CMD_BSMEM, new Service(SERVICE_BSMEM + " (local)", CMD_BSMEM, localExecutionMode, "", swParamBsmem));
+            localServices.put(CMD_MIRA, new Service(SERVICE_MIRA + " (local)", CMD_MIRA, localExecutionMode, "", swParamMira));
+            localServices.put(CMD_SPARCO, new Service(SERVICE_SPARCO + " (local)", CMD_SPARCO, localExecutionMode, "", swParamSparco));
+            localServices.put(CMD_WISARD, new Service(SERVICE_WISARD + " (local)", CMD_WISARD, localExecutionMode, "", swParamWisard));
+
+            // probe local programs in background (parallel) and publish services as they resolve:
+            final LocalServiceDiscovery localDiscovery = new LocalServiceDiscovery(
+                    new File(SessionSettingsPreferences.getApplicationFileStorage(), LOCAL_SERVICE_CACHE_FILE));
+
+            discovery = localDiscovery.discover(new ArrayList<String>(localServices.keySet()), new LocalServiceDiscovery.Listener() {
+                @Override
+                public void programResolved(final String program, final boolean available) {
+                    if (available) {
+                        addService(localServices.get(program));
+                    }
+                }
+            });
+        } else {
+            discovery = CompletableFuture.completedFuture(null);
         }
     }
 
-    private static ServiceList getInstance() {
+    /**
+     * Publish the given service (discovery thread): add it to the lookup list then to the GUI model
+     * (using the Swing EDT unless headless)
+     * @param service service to add
+     */
+    private void addService(final Service service) {
+        services.add(service);
+
+        if (Bootstrapper.isHeadless() || SwingUtilities.isEventDispatchThread()) {
+            availableServices.add(service);
+        } else {
+            SwingUtils.invokeLaterEDT(new Runnable() {
+                @Override
+                public void run() {
+                    availableServices.add(service);
+                }
+            });
+        }
+    }
+
+    private static synchronized ServiceList getInstance() {
         if (_instance == null) {
             _instance = new ServiceList();
         }
         return _instance;
     }
 
+    /**
+     * Create the service list and start the local service discovery (background)
+     */
+    public static void start() {
+        getInstance();
+    }
+
     public static ComboBoxModel getAvailableServices() {
         return getInstance().availableServices;
     }
 
+    /**
+     * Wait until all local programs are resolved (local services published)
+     * @param timeout maximum time to wait (ms)
+     * @return true if the discovery is complete; false if timed out or interrupted
+     */
+    public static boolean waitForDiscovery(final long timeout) {
+        try {
+            getInstance().discovery.get(timeout, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            // already logged:
+            return true;
+        } catch (TimeoutException te) {
+            logger.warn("Local service discovery not complete after {} ms", timeout);
+        }
+        return false;
+    }
+
     public static Service getAvailableService(final String name) {
         if (!StringUtils.isEmpty(name)) {
-            final ComboBoxModel model = getInstance().availableServices;
-            for (int i = 0, len = model.getSize(); i < len; i++) {
-                final Service service = (Service) model.getElementAt(i);
+            for (Service service : getInstance().services) {
                 if (service.getName().equalsIgnoreCase(name)) {
                     return service;
                 }
@@ -98,6 +179,40 @@ public final class ServiceList {
         return null;
     }
 
+    /**
+     * Return the available service running the given program with the given execution mode
+     * @param program software program
+     * @param execMode execution mode
+     * @return service or null if not available
+     */
+    public static Service getServiceByProgram(final String program, final OImagingExecutionMode execMode) {
+        for (Service service : getInstance().services) {
+            if ((service.getExecMode() == execMode) && service.getProgram().equals(program)) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the available services sharing the same software parameters as the given service
+     * (e.g. remote and local modes of the same program), starting with the given service
+     * @param service reference service
+     * @return list of compatible services
+     */
+    public static List<Service> getCompatibleServices(final Service service) {
+        final List<Service> services = new ArrayList<Service>(2);
+        services.add(service);
+
+        for (Service other : getInstance().services) {
+            if ((other != service) && other.isCompatibleParams(service)
+                    && other.getProgram().equals(service.getProgram())) {
+                services.add(other);
+            }
+        }
+        return services;
+    }
+
     public static Service getPreferedService() {
         return getInstance().preferedService;
     }
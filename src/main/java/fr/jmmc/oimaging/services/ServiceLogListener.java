@@ -0,0 +1,20 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+/**
+ * Optional callback interface (implemented by a ServiceJobListener) receiving
+ * the execution log of a running ServiceJob incrementally.
+ *
+ * Note: methods are called by the LogTail thread (NOT the Swing EDT).
+ */
+public interface ServiceLogListener {
+
+    /**
+     * Text appended to the execution log of the given running job
+     * @param job running job
+     * @param chunk appended text
+     */
+    public void logAppended(final ServiceJob job, final String chunk);
+}
@@ -4,12 +4,21 @@
 package fr.jmmc.oimaging.services;
 
 import fr.jmmc.jmcs.util.FileUtils;
+import fr.jmmc.oitools.fits.FitsUtils;
+import fr.jmmc.oitools.image.ImageOiInputParam;
+import fr.jmmc.oitools.image.ImageOiOutputParam;
+import fr.jmmc.oitools.meta.KeywordMeta;
 import fr.jmmc.oitools.model.OIFitsFile;
 import fr.jmmc.oitools.model.OIFitsLoader;
 import fr.nom.tam.fits.FitsException;
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,7 +36,13 @@ public final class ServiceResult {
     // TODO int errorCode;
     private boolean cancelled = false;
     private boolean valid = false;
+    /** true if this result was given by the ResultCache (no execution) */
+    private boolean fromCache = false;
     private String errorMessage = null;
+    /** reason of the job termination by the resource governor (limit exceeded) or null */
+    private String killReason = null;
+    /** reason of the automatic stop once the intermediate images converged or null */
+    private String convergedReason = null;
     /** number received when added to the list of results */
     private int index;
     /** must be kept in sync with STRTDATE keyword in the OIFitsFile. */
@@ -44,8 +59,26 @@ public final class ServiceResult {
 
     private Service service;
 
+    /** sweep coordinates (keyword name / value) if this result belongs to a parameter sweep */
+    private Map<String, Object> sweepCoordinates = Collections.emptyMap();
+
+    /** additional products (intermediate images, convergence tables ...) */
+    private final List<ResultAttachment> attachments = new ArrayList<ResultAttachment>(0);
+
+    /** true while this result holds a reference on its workspace job directory */
+    private boolean retained = false;
+
     // Post process cached data
-    private OIFitsFile oiFitsFile = null;
+    /** OIFits payload: resident in the ResultStore while within its heap budget, softly reachable otherwise */
+    private SoftReference<OIFitsFile> oiFitsFileRef = null;
+    /** input parameters of the OIFits payload (resident metadata) */
+    private ImageOiInputParam inputParam = null;
+    /** output parameters of the OIFits payload (resident metadata, may be edited in memory) */
+    private ImageOiOutputParam outputParam = null;
+    /** preparer applied to the OIFits payload when loaded or reloaded */
+    private Preparer preparer = null;
+    /** true if the OIFits payload is loaded on first use (restored session) */
+    private boolean deferred = false;
     private String executionLog = null;
 
     /** the extension for fits file */
@@ -59,14 +92,15 @@ public final class ServiceResult {
 
     /**
      * Helper constructor that created result files using given inputfile name.
-     * inputFile must be a temporary filename.
+     * inputFile must be a temporary filename (in its workspace job directory).
      * The oifitsResultFile result get inpuFilename with .output.fits suffix.
      * The log file get inputFilename with .log.txt suffix.
+     * Both are created in the same job directory as the input file.
      */
     public ServiceResult(File inputFile) {
         this(inputFile,
-                FileUtils.getTempFile(inputFile.getName() + RESULT_FILE_EXT),
-                FileUtils.getTempFile(inputFile.getName() + LOG_FILE_EXT));
+                Workspace.getInstance().getJobFile(inputFile, inputFile.getName() + RESULT_FILE_EXT),
+                Workspace.getInstance().getJobFile(inputFile, inputFile.getName() + LOG_FILE_EXT));
     }
 
     /**
@@ -91,10 +125,10 @@ public final class ServiceResult {
         return oifitsResultFile;
     }
 
-    public void loadOIFitsFile() throws IOException, FitsException {
-        if ((oiFitsFile == null) && (oifitsResultFile != null) && oifitsResultFile.exists()) {
+    public synchronized void loadOIFitsFile() throws IOException, FitsException {
+        if ((getPayload() == null) && (oifitsResultFile != null) && oifitsResultFile.exists()) {
             try {
-                oiFitsFile = OIFitsLoader.loadOIFits(oifitsResultFile.getAbsolutePath());
+                load();
             } catch (IOException | FitsException e) {
                 setValid(false);
                 throw e;
@@ -102,10 +136,164 @@ public final class ServiceResult {
         }
     }
 
-    public OIFitsFile getOifitsFile() {
+    /**
+     * Set the preparer of the OIFits payload and apply it to the loaded payload if any.
+     * The preparer is applied again whenever the payload is reloaded from the result file.
+     * @param preparer preparer (keywords, images ...)
+     */
+    public synchronized void prepareOIFitsFile(final Preparer preparer) {
+        this.preparer = preparer;
+        final OIFitsFile oiFitsFile = getPayload();
+        if (oiFitsFile != null) {
+            preparer.prepare(this, oiFitsFile);
+            setPayload(oiFitsFile);
+        }
+    }
+
+    /**
+     * Defer loading the OIFits payload until first used (restored session).
+     * The given preparer is applied once loaded and whenever reloaded.
+     * @param preparer preparer (keywords, images ...)
+     */
+    public synchronized void deferOIFitsFile(final Preparer preparer) {
+        this.preparer = preparer;
+        this.deferred = true;
+    }
+
+    /**
+     * Load the result file (restoring the output keywords edited in memory if reloaded)
+     * @return loaded OIFits file
+     */
+    private OIFitsFile load() throws IOException, FitsException {
+        final long start = System.nanoTime();
+        final boolean reload = (inputParam != null);
+
+        final OIFitsFile oiFitsFile = OIFitsLoader.loadOIFits(oifitsResultFile.getAbsolutePath());
+
+        if (reload && outputParam != null) {
+            restoreKeywords(outputParam, oiFitsFile.getImageOiData().getOutputParam());
+        }
+        if (preparer != null) {
+            preparer.prepare(this, oiFitsFile);
+        }
+        setPayload(oiFitsFile);
+        deferred = false;
+
+        if (reload) {
+            ResultStore.getInstance().reloaded();
+            logger.info("Result #{} reloaded in {} ms", index, String.format("%.1f", 1e-6d * (System.nanoTime() - start)));
+        }
+        return oiFitsFile;
+    }
+
+    private static void restoreKeywords(final ImageOiOutputParam from, final ImageOiOutputParam to) {
+        for (KeywordMeta keyMeta : from.getKeywordsDesc().values()) {
+            final String key = keyMeta.getName();
+            if (!FitsUtils.isStandardKeyword(key)) {
+                if (!to.hasKeywordMeta(key)) {
+                    to.addKeyword(keyMeta);
+                }
+                to.setKeywordValue(key, from.getKeywordValue(key));
+            }
+        }
+    }
+
+    /**
+     * @return OIFits payload if resident or still softly reachable (made resident again), null otherwise
+     */
+    private OIFitsFile getPayload() {
+        final ResultStore store = ResultStore.getInstance();
+        OIFitsFile oiFitsFile = store.get(this);
+        if ((oiFitsFile == null) && (oiFitsFileRef != null)) {
+            oiFitsFile = oiFitsFileRef.get();
+            if (oiFitsFile != null) {
+                store.put(this, oiFitsFile, getPayloadWeight());
+            }
+        }
+        return oiFitsFile;
+    }
+
+    /**
+     * Drop the OIFits payload from memory as if it was evicted then collected (next use reloads the result file)
+     */
+    synchronized void clearPayload() {
+        ResultStore.getInstance().remove(this);
+        if (oiFitsFileRef != null) {
+            oiFitsFileRef.clear();
+        }
+    }
+
+    private void setPayload(final OIFitsFile oiFitsFile) {
+        this.oiFitsFileRef = new SoftReference<OIFitsFile>(oiFitsFile);
+        this.inputParam = oiFitsFile.getImageOiData().getInputParam();
+        this.outputParam = oiFitsFile.getImageOiData().getExistingOutputParam();
+        ResultStore.getInstance().put(this, oiFitsFile, getPayloadWeight());
+    }
+
+    /**
+     * @return estimated heap size of the OIFits payload (result file size)
+     */
+    private long getPayloadWeight() {
+        return Math.max(1L, (oifitsResultFile != null) ? oifitsResultFile.length() : 0L);
+    }
+
+    /**
+     * Keep the files of this result in the workspace (result kept by the model)
+     */
+    public synchronized void retain() {
+        if (!retained) {
+            retained = true;
+            Workspace.getInstance().retain(inputFile);
+        }
+    }
+
+    /**
+     * Release the files of this result in the workspace (result removed from the model):
+     * they may be deleted once the workspace quota is exceeded
+     */
+    public synchronized void release() {
+        if (retained) {
+            retained = false;
+            Workspace.getInstance().release(inputFile);
+            ResultStore.getInstance().remove(this);
+        }
+    }
+
+    /**
+     * Return the OIFits payload, reloaded from the result file if it was evicted from memory
+     * @return OIFits file or null if not loaded
+     */
+    public synchronized OIFitsFile getOifitsFile() {
+        OIFitsFile oiFitsFile = getPayload();
+        if ((oiFitsFile == null) && (inputParam != null || deferred) && (oifitsResultFile != null)) {
+            try {
+                oiFitsFile = load();
+            } catch (IOException | FitsException e) {
+                logger.error("Unable to load the result file: {}", oifitsResultFile, e);
+                if (deferred) {
+                    // never loaded:
+                    deferred = false;
+                    setValid(false);
+                }
+            }
+        }
         return oiFitsFile;
     }
 
+    /**
+     * @return input parameters of the OIFits payload (resident) or null if not loaded
+     */
+    public synchronized ImageOiInputParam getInputParam() {
+        return inputParam;
+    }
+
+    /**
+     * @return output parameters of the OIFits payload (resident) or null if missing or not loaded
+     */
+    public synchronized ImageOiOutputParam getOutputParam() {
+        return outputParam;
+    }
+
     public File getExecutionLogResultFile() {
         return executionLogResultFile;
     }
@@ -136,6 +324,14 @@ public final class ServiceResult {
         this.valid = valid;
     }
 
+    public boolean isFromCache() {
+        return fromCache;
+    }
+
+    public void setFromCache(boolean fromCache) {
+        this.fromCache = fromCache;
+    }
+
     public String getErrorMessage() {
         return errorMessage;
     }
@@ -144,6 +340,44 @@ public final class ServiceResult {
         this.errorMessage = errorMessage;
     }
 
+    /**
+     * @return reason of the job termination by the resource governor (limit exceeded) or null
+     */
+    public String getKillReason() {
+        return killReason;
+    }
+
+    /**
+     * Record that the job was killed due to a resource limit (also used as error message)
+     * @param killReason reason of the job termination
+     */
+    public void setKillReason(String killReason) {
+        this.killReason = killReason;
+        this.errorMessage = killReason;
+    }
+
+    /**
+     * @return true if the job was stopped automatically once its intermediate images converged
+     */
+    public boolean isConverged() {
+        return convergedReason != null;
+    }
+
+    /**
+     * @return reason of the automatic stop once the intermediate images converged or null
+     */
+    public String getConvergedReason() {
+        return convergedReason;
+    }
+
+    /**
+     * Record that the job was stopped automatically once its intermediate images converged (not cancelled)
+     * @param convergedReason reason of the automatic stop
+     */
+    public void setConvergedReason(String convergedReason) {
+        this.convergedReason = convergedReason;
+    }
+
     public Date getStartTime() {
         return this.startTime;
     }
@@ -182,6 +416,54 @@ public final class ServiceResult {
         this.service = service;
     }
 
+    /**
+     * @return sweep coordinates (keyword name / value) or an empty map if not part of a parameter sweep
+     */
+    public Map<String, Object> getSweepCoordinates() {
+        return sweepCoordinates;
+    }
+
+    /**
+     * @param sweepCoordinates sweep coordinates (keyword name / value)
+     */
+    public void setSweepCoordinates(final Map<String, Object> sweepCoordinates) {
+        this.sweepCoordinates = (sweepCoordinates != null) ? sweepCoordinates : Collections.<String, Object>emptyMap();
+    }
+
+    /**
+     * @return additional products (intermediate images, convergence tables ...) or an empty list
+     */
+    public List<ResultAttachment> getAttachments() {
+        synchronized (attachments) {
+            return new ArrayList<ResultAttachment>(attachments);
+        }
+    }
+
+    /**
+     * @param type attachment type
+     * @return additional products of the given type
+     */
+    public List<ResultAttachment> getAttachments(final ResultAttachment.Type type) {
+        final List<ResultAttachment> list = new ArrayList<ResultAttachment>(4);
+        synchronized (attachments) {
+            for (ResultAttachment attachment : attachments) {
+                if (attachment.getType() == type) {
+                    list.add(attachment);
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @param attachment additional product to add
+     */
+    public void addAttachment(final ResultAttachment attachment) {
+        synchronized (attachments) {
+            attachments.add(attachment);
+        }
+    }
+
     /**
      * @return the index
      */
@@ -196,4 +478,15 @@ public final class ServiceResult {
         this.index = index;
     }
 
+    /**
+     * Preparer of the OIFits payload (called when loaded or reloaded)
+     */
+    public interface Preparer {
+
+        /**
+         * @param result result
+         * @param oiFitsFile loaded OIFits file
+         */
+        public void prepare(final ServiceResult result, final OIFitsFile oiFitsFile);
+    }
 }
@@ -0,0 +1,31 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import fr.jmmc.oitools.image.FitsImageHDU;
+
+/**
+ * Optional callback interface (implemented by a ServiceJobListener) receiving
+ * the intermediate images (snapshots) of a running ServiceJob.
+ *
+ * Note: snapshotLoaded() is called by the SnapshotWatcher thread (NOT the Swing EDT).
+ */
+public interface ServiceSnapshotListener {
+
+    /**
+     * New intermediate image of the given running job
+     * @param job running job
+     * @param hdu loaded and prepared image HDU
+     * @param index snapshot index (1 for the first one)
+     * @param change relative image change since the previous snapshot (NaN for the first one)
+     */
+    public void snapshotLoaded(final ServiceJob job, final FitsImageHDU hdu, final int index, final double change);
+
+    /**
+     * Return the convergence threshold used to stop the job automatically
+     * once the relative change between successive snapshots stays below it
+     * @return convergence threshold or 0 to disable the automatic stop
+     */
+    public double getConvergenceThreshold();
+}
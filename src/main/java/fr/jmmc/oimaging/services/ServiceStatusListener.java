@@ -0,0 +1,20 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+/**
+ * Optional callback interface (implemented by a ServiceJobListener) receiving
+ * the execution status (uploading, executing, downloading) of a running ServiceJob.
+ *
+ * Note: statusChanged() is called by execution threads (NOT the Swing EDT).
+ */
+public interface ServiceStatusListener {
+
+    /**
+     * Execution status changed
+     * @param job running job
+     * @param status new status
+     */
+    public void statusChanged(final ServiceJob job, final ExecutionStatus status);
+}
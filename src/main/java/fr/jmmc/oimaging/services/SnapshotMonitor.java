@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import fr.jmmc.oiexplorer.core.util.FitsImageUtils;
+import fr.jmmc.oitools.image.FitsImage;
+import fr.jmmc.oitools.image.FitsImageFile;
+import fr.jmmc.oitools.image.FitsImageHDU;
+import fr.jmmc.oitools.image.FitsImageLoader;
+import fr.jmmc.oitools.model.OIFitsFile;
+import fr.jmmc.oitools.model.OIFitsLoader;
+import fr.jmmc.oitools.model.OIFitsWriter;
+import fr.nom.tam.fits.FitsException;
+import java.io.File;
+import java.io.IOException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Convergence monitor of a running job: snapshot files are loaded (and prepared) in the
+ * SnapshotWatcher thread, compared to the previous snapshot and given to the job listener.
+ *
+ * If a threshold is defined, the job is stopped once the relative image change
+ * stays below the threshold for STABLE_SNAPSHOTS successive snapshots.
+ */
+final class SnapshotMonitor implements SnapshotWatcher.Listener {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotMonitor.class.getName());
+
+    /** number of successive snapshots below the threshold to consider the run converged */
+    static final int STABLE_SNAPSHOTS = 2;
+
+    /* members */
+    private final ServiceJob job;
+    /** listener receiving loaded snapshots or null */
+    private final ServiceSnapshotListener listener;
+    /** convergence threshold (relative change) or 0 to disable the automatic stop */
+    private final double threshold;
+    /** number of loaded snapshots */
+    private int count = 0;
+    /** number of successive snapshots below the threshold */
+    private int stableCount = 0;
+    /** image data of the previous snapshot */
+    private float[][] previous = null;
+    /** last snapshot file */
+    private volatile File lastFile = null;
+    /** last relative change */
+    private volatile double lastChange = Double.NaN;
+
+    SnapshotMonitor(final ServiceJob job, final ServiceSnapshotListener listener, final double threshold) {
+        this.job = job;
+        this.listener = listener;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void snapshotAvailable(final File file) {
+        final FitsImageHDU hdu;
+        try {
+            hdu = load(file);
+        } catch (IOException ioe) {
+            logger.info("Job[{}] unable to load snapshot: {}", job.getId(), file, ioe);
+            return;
+        }
+        if (hdu == null) {
+            logger.debug("Job[{}] no image in snapshot: {}", job.getId(), file);
+            return;
+        }
+        final float[][] data = hdu.getFitsImages().get(0).getData();
+        final double change = relativeChange(previous, data);
+
+        count++;
+        previous = data;
+        lastFile = file;
+        lastChange = change;
+
+        logger.debug("Job[{}] snapshot[{}] change: {}", job.getId(), count, change);
+
+        if (listener != null) {
+            listener.snapshotLoaded(job, hdu, count, change);
+        }
+
+        if (threshold > 0.0) {
+            stableCount = (change < threshold) ? stableCount + 1 : 0;
+
+            if (stableCount >= STABLE_SNAPSHOTS) {
+                logger.info("Job[{}] converged after {} snapshots (change = {} < {}): stopping it",
+                        job.getId(), count, change, threshold);
+                job.stopConverged();
+            }
+        }
+    }
+
+    /**
+     * Load and prepare the first image HDU of the given FITS file
+     * @param file FITS file
+     * @return prepared image HDU or null if no image
+     * @throws IOException if the file can not be loaded
+     */
+    private static FitsImageHDU load(final File file) throws IOException {
+        final FitsImageFile fitsImageFile;
+        try {
+            fitsImageFile = FitsImageLoader.load(file.getAbsolutePath(), true, true);
+        } catch (FitsException fe) {
+            throw new IOException("Could not load the file : " + file, fe);
+        } catch (IllegalArgumentException iae) {
+            throw new IOException("Could not load the file : " + file, iae);
+        }
+        for (FitsImageHDU hdu : fitsImageFile.getFitsImageHDUs()) {
+            if (hdu.hasImages()) {
+                // prepare images (negative values, padding, orientation):
+                FitsImageUtils.prepareImages(hdu);
+                return hdu;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write the result OIFits of a run stopped before writing its output: the job input file
+     * with the last snapshot image as result image (first image HDU)
+     * @param inputFile job input file
+     * @param resultFile result OIFits file to write
+     * @throws IOException if no snapshot is available or the file can not be written
+     */
+    void writeResult(final File inputFile, final File resultFile) throws IOException {
+        final File file = lastFile;
+        if (file == null) {
+            throw new IOException("No intermediate image");
+        }
+        try {
+            final OIFitsFile oiFitsFile = OIFitsLoader.loadOIFits(inputFile.getAbsolutePath());
+
+            // raw image (not prepared):
+            for (FitsImageHDU hdu : FitsImageLoader.load(file.getAbsolutePath(), true, true).getFitsImageHDUs()) {
+                if (hdu.hasImages()) {
+                    oiFitsFile.getFitsImageHDUs().add(0, hdu);
+                    // output parameter table (OImaging keywords added once the result is prepared):
+                    oiFitsFile.getImageOiData().getOutputParam();
+
+                    OIFitsWriter.writeOIFits(resultFile.getAbsolutePath(), oiFitsFile);
+                    logger.info("Job[{}] result written from the snapshot: {}", job.getId(), file);
+                    return;
+                }
+            }
+        } catch (FitsException fe) {
+            throw new IOException("Could not write the file : " + resultFile, fe);
+        } catch (IllegalArgumentException iae) {
+            throw new IOException("Could not write the file : " + resultFile, iae);
+        }
+        throw new IOException("No image in the snapshot : " + file);
+    }
+
+    /**
+     * Compute the relative change between two images: |current - previous| / |current| (L2 norms)
+     * @param previous previous image data or null
+     * @param current current image data
+     * @return relative change or NaN if images can not be compared
+     */
+    static double relativeChange(final float[][] previous, final float[][] current) {
+        if (previous == null || current == null || previous.length != current.length) {
+            return Double.NaN;
+        }
+        double diff = 0.0;
+        double norm = 0.0;
+
+        for (int j = 0; j < current.length; j++) {
+            final float[] prevRow = previous[j];
+            final float[] row = current[j];
+            if (prevRow.length != row.length) {
+                return Double.NaN;
+            }
+            for (int i = 0; i < row.length; i++) {
+                final double d = row[i] - prevRow[i];
+                diff += d * d;
+                norm += row[i] * row[i];
+            }
+        }
+        return (norm > 0.0) ? Math.sqrt(diff / norm) : Double.NaN;
+    }
+
+    /**
+     * @return number of loaded snapshots
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * @return last relative change (NaN if undefined)
+     */
+    double getLastChange() {
+        return lastChange;
+    }
+}
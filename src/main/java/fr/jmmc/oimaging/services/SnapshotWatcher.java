@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import fr.cnes.sitools.extensions.astro.application.uws.client.ClientUWS;
+import fr.cnes.sitools.extensions.astro.application.uws.client.ClientUWSException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import net.ivoa.xml.uws.v1.ResultReference;
+import net.ivoa.xml.uws.v1.Results;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Intermediate image (snapshot) watcher of a running job:
+ * snapshots are FITS files written by the software next to its output file (local)
+ * named '&lt;output name without .fits&gt;-*.fits' or UWS partial results
+ * whose identifier starts with 'snapshot' (remote).
+ *
+ * New snapshots are periodically detected and given (as local files) to a listener, in their order of creation.
+ */
+public final class SnapshotWatcher {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotWatcher.class.getName());
+
+    /** UWS result identifier prefix of snapshots */
+    public static final String RESULT_SNAPSHOT_PREFIX = "snapshot";
+    /** polling period for local files (ms) */
+    static final long LOCAL_PERIOD = 1000L;
+    // Use -DSnapshotWatcher.remotePeriod=N (ms) to change the polling period of remote snapshots
+    static final long REMOTE_PERIOD = Math.max(1000L, Long.getLong("SnapshotWatcher.remotePeriod", 5000L));
+
+    /** shared scheduler (daemon thread) also used to load snapshots (off the EDT) */
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "SnapshotWatcher");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Listener receiving new snapshot files (called by the SnapshotWatcher thread)
+     */
+    public interface Listener {
+
+        /**
+         * @param file new snapshot file (complete)
+         */
+        public void snapshotAvailable(final File file);
+    }
+
+    /**
+     * Source of snapshot files
+     */
+    interface Source {
+
+        /**
+         * @return new snapshot files (complete) since the previous call in their order of creation
+         * @throws IOException if the snapshots can not be listed or retrieved
+         */
+        List<File> poll() throws IOException;
+
+        /**
+         * @return all snapshot files given so far
+         */
+        List<File> getFiles();
+    }
+
+    /**
+     * Watch snapshots written next to the given local output file
+     * @param outputFile output file of the software
+     * @param listener listener receiving snapshot files
+     * @return started SnapshotWatcher
+     */
+    public static SnapshotWatcher watch(final File outputFile, final Listener listener) {
+        return new SnapshotWatcher(new FileSource(outputFile), listener, LOCAL_PERIOD);
+    }
+
+    /**
+     * Watch snapshots given as partial results of the given remote UWS job
+     * @param client UWS client
+     * @param jobId job identifier
+     * @param outputFile local output file (snapshots are downloaded next to it)
+     * @param listener listener receiving snapshot files
+     * @return started SnapshotWatcher
+     */
+    public static SnapshotWatcher watch(final ClientUWS client, final String jobId, final File outputFile,
+                                        final Listener listener) {
+        return new SnapshotWatcher(new UwsSource(client, jobId, outputFile), listener, REMOTE_PERIOD);
+    }
+
+    /**
+     * @param outputFile output file of the software
+     * @return prefix of snapshot file names
+     */
+    static String getSnapshotPrefix(final File outputFile) {
+        final String name = outputFile.getName();
+        return ((name.endsWith(ServiceResult.FITS_FILE_EXT))
+                ? name.substring(0, name.length() - ServiceResult.FITS_FILE_EXT.length()) : name) + '-';
+    }
+
+    /* members */
+    private final Source source;
+    private final Listener listener;
+    private final ScheduledFuture<?> future;
+    /** number of snapshots given to the listener */
+    private int count = 0;
+    /** stop flag */
+    private boolean stopped = false;
+
+    SnapshotWatcher(final Source source, final Listener listener, final long period) {
+        this.source = source;
+        this.listener = listener;
+        this.future = SCHEDULER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop watching snapshots and delete their files except the last one
+     */
+    public void stop() {
+        future.cancel(false);
+        synchronized (this) {
+            if (!stopped) {
+                stopped = true;
+                final List<File> files = source.getFiles();
+                for (int i = 0, end = files.size() - 1; i < end; i++) {
+                    files.get(i).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of snapshots given to the listener
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    synchronized void poll() {
+        if (stopped) {
+            return;
+        }
+        try {
+            for (File file : source.poll()) {
+                count++;
+                logger.debug("snapshot[{}]: {}", count, file);
+                listener.snapshotAvailable(file);
+            }
+        } catch (IOException ioe) {
+            logger.debug("SnapshotWatcher: unable to get snapshots", ioe);
+        } catch (RuntimeException re) {
+            logger.warn("SnapshotWatcher: failure", re);
+        }
+    }
+
+    /**
+     * Snapshot files in the working directory
+     */
+    static final class FileSource implements Source {
+
+        private final File dir;
+        private final String prefix;
+        /** files given so far */
+        private final List<File> files = new ArrayList<File>();
+        /** file lengths seen by the previous poll (a file is complete once its length is stable) */
+        private final Map<String, Long> lengths = new HashMap<String, Long>();
+
+        FileSource(final File outputFile) {
+            this.dir = outputFile.getAbsoluteFile().getParentFile();
+            this.prefix = getSnapshotPrefix(outputFile);
+        }
+
+        @Override
+        public List<File> poll() {
+            final File[] candidates = dir.listFiles();
+            if (candidates == null) {
+                return new ArrayList<File>(0);
+            }
+            Arrays.sort(candidates, new Comparator<File>() {
+                @Override
+                public int compare(final File f1, final File f2) {
+                    final int cmp = Long.compare(f1.lastModified(), f2.lastModified());
+                    return (cmp != 0) ? cmp : f1.getName().compareTo(f2.getName());
+                }
+            });
+            final List<File> newFiles = new ArrayList<File>(2);
+            for (File file : candidates) {
+                final String name = file.getName();
+                if (name.startsWith(prefix) && name.endsWith(ServiceResult.FITS_FILE_EXT) && !files.contains(file)) {
+                    final Long length = Long.valueOf(file.length());
+                    if (length.longValue() != 0L && length.equals(lengths.put(name, length))) {
+                        lengths.remove(name);
+                        files.add(file);
+                        newFiles.add(file);
+                    }
+                }
+            }
+            return newFiles;
+        }
+
+        @Override
+        public List<File> getFiles() {
+            return files;
+        }
+    }
+
+    /**
+     * Remote UWS partial results (downloaded next to the local output file)
+     */
+    static final class UwsSource implements Source {
+
+        private final ClientUWS client;
+        private final String jobId;
+        private final File dir;
+        private final String prefix;
+        /** result identifiers already downloaded */
+        private final Set<String> resultIds = new HashSet<String>();
+        /** files given so far */
+        private final List<File> files = new ArrayList<File>();
+
+        UwsSource(final ClientUWS client, final String jobId, final File outputFile) {
+            this.client = client;
+            this.jobId = jobId;
+            this.dir = outputFile.getAbsoluteFile().getParentFile();
+            this.prefix = getSnapshotPrefix(outputFile);
+        }
+
+        @Override
+        public List<File> poll() throws IOException {
+            final List<File> newFiles = new ArrayList<File>(2);
+            try {
+                final Results results = client.getJobResults(jobId);
+
+                for (ResultReference resultRef : results.getResult()) {
+                    final String id = resultRef.getId();
+
+                    if (id != null && id.startsWith(RESULT_SNAPSHOT_PREFIX) && !resultIds.contains(id)) {
+                        final File file = new File(dir, prefix + id + ServiceResult.FITS_FILE_EXT);
+
+                        if (client.downloadFile(resultRef.getHref(), file)) {
+                            resultIds.add(id);
+                            files.add(file);
+                            newFiles.add(file);
+                        }
+                    }
+                }
+            } catch (ClientUWSException cue) {
+                throw new IOException(cue);
+            }
+            return newFiles;
+        }
+
+        @Override
+        public List<File> getFiles() {
+            return files;
+        }
+    }
+}
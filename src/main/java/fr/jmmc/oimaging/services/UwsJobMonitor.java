@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import fr.cnes.sitools.extensions.astro.application.uws.client.ClientUWS;
+import fr.cnes.sitools.extensions.astro.application.uws.client.ClientUWSException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import net.ivoa.xml.uws.v1.ExecutionPhase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Monitor one UWS job until it reaches a final phase (COMPLETED, ERROR, ABORTED, UNKNOWN):
+ * the caller checks the phase step by step (see poll) and schedules the next step after getNextDelay().
+ *
+ * Long-polling (UWS 1.1 WAIT) is used first: the server answers as soon as the phase changes.
+ * If the server does not block (UWS 1.0), the monitor falls back to phase polling
+ * with exponential backoff and jitter (reset on every phase change).
+ * Failed requests are retried with backoff: only MAX_ERRORS successive failures give up.
+ */
+final class UwsJobMonitor {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(UwsJobMonitor.class.getName());
+
+    // Use -DRemoteExecutionMode.longPolling=false to disable UWS 1.1 WAIT requests
+    static final boolean USE_LONG_POLLING = !"false".equalsIgnoreCase(System.getProperty("RemoteExecutionMode.longPolling"));
+    // Use -DRemoteExecutionMode.maxErrors=N to change the number of successive request failures before giving up
+    static final int MAX_ERRORS = Math.max(1, Integer.getInteger("RemoteExecutionMode.maxErrors", 5));
+    /** WAIT duration in seconds (also the upper bound of the cancel latency) */
+    static final int WAIT_SECONDS = 5;
+    /** minimal response time (ms) to consider that the server blocked the WAIT request */
+    static final long MIN_BLOCKING_TIME = 250L;
+    /** first polling delay (ms) */
+    static final long MIN_DELAY = 100L;
+    /** maximum polling delay (ms) */
+    static final long MAX_DELAY = 5000L;
+
+    /* members */
+    private final ClientUWS client;
+    private final String jobId;
+    /** true while the server honours WAIT requests */
+    private boolean longPolling;
+    /** last phase given by the server (null before the first answer) */
+    private ExecutionPhase phase = null;
+    /** true once the pending job was started */
+    private boolean started = false;
+    /** current polling delay (ms) */
+    private long delay = MIN_DELAY;
+    /** delay (ms) before the next step */
+    private long nextDelay = 0L;
+    /** number of successive request failures */
+    private int errorCount = 0;
+    /** number of monitoring requests sent to the server */
+    private int requestCount = 0;
+
+    UwsJobMonitor(final ClientUWS client, final String jobId) {
+        this(client, jobId, USE_LONG_POLLING);
+    }
+
+    UwsJobMonitor(final ClientUWS client, final String jobId, final boolean longPolling) {
+        this.client = client;
+        this.jobId = jobId;
+        this.longPolling = longPolling;
+    }
+
+    /**
+     * Check the job phase once (blocking request: long-polling waits up to WAIT_SECONDS for a phase change)
+     * and start the job once if it is pending (autostart not honoured)
+     * @return last phase given by the server (null if still unknown after a failed request)
+     * @throws ClientUWSException if the last MAX_ERRORS successive requests failed
+     */
+    ExecutionPhase poll() throws ClientUWSException {
+        try {
+            final ExecutionPhase newPhase;
+
+            if (longPolling) {
+                final long start = System.nanoTime();
+                requestCount++;
+                newPhase = client.waitJobPhase(jobId, phase, WAIT_SECONDS);
+
+                if ((newPhase == phase) && !isFinal(newPhase)
+                        && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < MIN_BLOCKING_TIME) {
+                    // the server does not support blocking WAIT requests:
+                    logger.info("Job[{}] UWS server ignores WAIT requests; using polling", jobId);
+                    longPolling = false;
+                }
+            } else {
+                requestCount++;
+                newPhase = client.getJobPhase(jobId);
+            }
+            errorCount = 0;
+
+            if (newPhase != phase) {
+                logger.debug("Job[{}] phase: {} -> {}", jobId, phase, newPhase);
+                phase = newPhase;
+                // phase change: poll faster again
+                delay = MIN_DELAY;
+            }
+
+            if ((phase == ExecutionPhase.PENDING) && !started) {
+                // autostart was not honoured: start the job once
+                logger.info("Job[{}] pending: starting it", jobId);
+                requestCount++;
+                client.setStartJob(jobId);
+                started = true;
+            } else if (phase == ExecutionPhase.HELD || phase == ExecutionPhase.SUSPENDED) {
+                logger.debug("Job[{}] {} by the server; waiting ...", jobId, phase);
+            }
+            nextDelay = (longPolling) ? 0L : backoff();
+        } catch (ClientUWSException cue) {
+            errorCount++;
+            if (errorCount >= MAX_ERRORS) {
+                logger.info("Job[{}] {} successive request failures: giving up", jobId, errorCount);
+                throw cue;
+            }
+            logger.info("Job[{}] request failure {} / {}: {}", jobId, errorCount, MAX_ERRORS, cue.getMessage());
+            nextDelay = backoff();
+        }
+        return phase;
+    }
+
+    /**
+     * @return jittered current delay then double it
+     */
+    private long backoff() {
+        final long next = jitter(delay);
+        delay = Math.min(2L * delay, MAX_DELAY);
+        return next;
+    }
+
+    /**
+     * @return delay (ms) before the next step (0 while long-polling as the request blocks)
+     */
+    long getNextDelay() {
+        return nextDelay;
+    }
+
+    /**
+     * @return last phase given by the server (null before the first answer)
+     */
+    ExecutionPhase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return true if the last phase given by the server is final
+     */
+    boolean isTerminated() {
+        return (phase != null) && isFinal(phase);
+    }
+
+    /**
+     * @return number of monitoring requests sent to the server
+     */
+    int getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * @return true if the server honours WAIT requests
+     */
+    boolean isLongPolling() {
+        return longPolling;
+    }
+
+    /**
+     * @param phase execution phase
+     * @return true if the given phase is final (no more phase change expected)
+     */
+    static boolean isFinal(final ExecutionPhase phase) {
+        switch (phase) {
+            case PENDING:
+            case QUEUED:
+            case EXECUTING:
+            case HELD:
+            case SUSPENDED:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Equal jitter: random delay in [delay / 2; delay] to spread requests of parallel jobs
+     * @param delay maximum delay
+     * @return jittered delay
+     */
+    static long jitter(final long delay) {
+        final long half = delay / 2L;
+        return half + ThreadLocalRandom.current().nextLong(half + 1L);
+    }
+}
@@ -0,0 +1,432 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import fr.jmmc.jmcs.util.FileUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Workspace of the temporary job files: one directory per job (input file, result OIFits file,
+ * execution log, intermediate images and attachments) inside one session directory.
+ *
+ * Job directories are reference counted (queued or running jobs and ServiceResult instances kept by the model).
+ * The disk usage is a running total updated when job files are stored (see updateUsage) or deleted;
+ * files hard linked into several job directories (see InputFileCache) are counted once.
+ * Once the disk usage exceeds the quota, the job directories are scanned again and unreferenced ones
+ * are deleted (least recently used first).
+ * The session directory is deleted when the application exits.
+ */
+public final class Workspace {
+
+    /** Class logger */
+    private static final Logger logger = LoggerFactory.getLogger(Workspace.class.getName());
+
+    // Use -DWorkspace.dir=path to change the workspace root directory (tmpfs like /dev/shm/oimaging for example)
+    private static final String ROOT_DIR = System.getProperty("Workspace.dir");
+    // Use -DWorkspace.quotaMB=N to change the disk quota (MB)
+    private static final long QUOTA = Math.max(1L, Long.getLong("Workspace.quotaMB", 1024L)) * 1024L * 1024L;
+    /** delay (ms) protecting new job directories not yet referenced */
+    private static final long FRESH_DELAY = 60000L;
+    /** delay (ms) before deleting sessions left by previous runs (crash) */
+    private static final long STALE_SESSION_DELAY = 7L * 24L * 3600L * 1000L;
+    /** workspace folder name (in the temporary directory) */
+    private static final String WORKSPACE_DIR = "oimaging-workspace";
+    /** session folder prefix */
+    private static final String SESSION_PREFIX = "session-";
+    /** job folder prefix */
+    private static final String JOB_PREFIX = "job-";
+    /** 1 MB */
+    private static final double MB = 1024.0 * 1024.0;
+
+    /** Singleton */
+    private static Workspace INSTANCE = null;
+
+    /* members */
+    /** session directory */
+    private final File sessionDir;
+    /** disk quota in bytes */
+    private final long quota;
+    /** job counter */
+    private final AtomicInteger jobCounter = new AtomicInteger(0);
+    /** job directories (directory name / job directory) */
+    private final Map<String, JobDir> jobDirs = new HashMap<String, JobDir>(64);
+    /** files counted in the disk usage (file key / counted file) */
+    private final Map<Object, CountedFile> files = new HashMap<Object, CountedFile>(256);
+    /** disk usage in bytes (running total) */
+    private long usage = 0L;
+
+    /**
+     * Return the Workspace singleton
+     * @return Workspace singleton
+     */
+    public static synchronized Workspace getInstance() {
+        if (INSTANCE == null) {
+            final File rootDir = (ROOT_DIR != null) ? new File(ROOT_DIR) : new File(FileUtils.getTempDirPath(), WORKSPACE_DIR);
+            INSTANCE = new Workspace(rootDir, QUOTA);
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Create a workspace session in the given root directory
+     * @param rootDir root directory
+     * @param quota disk quota in bytes
+     */
+    Workspace(final File rootDir, final long quota) {
+        this.quota = quota;
+        deleteStaleSessions(rootDir);
+        this.sessionDir = new File(rootDir, SESSION_PREFIX + System.currentTimeMillis());
+        if (!sessionDir.mkdirs()) {
+            logger.warn("Unable to create the workspace directory: {}", sessionDir);
+        }
+        logger.info("Workspace: {} (quota = {} MB)", sessionDir, String.format("%.0f", quota / MB));
+    }
+
+    /**
+     * @return session directory
+     */
+    public File getSessionDir() {
+        return sessionDir;
+    }
+
+    /**
+     * Create a new job directory and return the given file in it.
+     * The directory is protected a short time until referenced (see retain()).
+     * @param fileName file name
+     * @return file in the new job directory
+     */
+    public File createJobFile(final String fileName) {
+        final JobDir jobDir;
+        synchronized (this) {
+            jobDir = new JobDir(new File(sessionDir, String.format("%s%05d", JOB_PREFIX, jobCounter.incrementAndGet())));
+            jobDirs.put(jobDir.dir.getName(), jobDir);
+        }
+        if (!jobDir.dir.mkdirs()) {
+            logger.warn("Unable to create the job directory: {}", jobDir.dir);
+            return FileUtils.getTempFile(fileName);
+        }
+        return new File(jobDir.dir, fileName);
+    }
+
+    /**
+     * Return the given file in the job directory of the given job file
+     * @param jobFile file in a job directory (input file ...)
+     * @param fileName file name
+     * @return file in the same job directory or a temporary file if the job file is not in this workspace
+     */
+    public File getJobFile(final File jobFile, final String fileName) {
+        if (getJobDir(jobFile) != null) {
+            return new File(jobFile.getParentFile(), fileName);
+        }
+        return FileUtils.getTempFile(fileName);
+    }
+
+    /**
+     * Add one reference to the job directory of the given file
+     * @param jobFile file in a job directory (ignored if not in this workspace)
+     */
+    public void retain(final File jobFile) {
+        final JobDir jobDir = getJobDir(jobFile);
+        if (jobDir != null) {
+            synchronized (this) {
+                jobDir.refCount++;
+                jobDir.retained = true;
+                jobDir.lastAccess = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Remove one reference to the job directory of the given file:
+     * unreferenced job directories may be deleted once the quota is exceeded
+     * @param jobFile file in a job directory (ignored if not in this workspace)
+     */
+    public void release(final File jobFile) {
+        final JobDir jobDir = getJobDir(jobFile);
+        if (jobDir != null) {
+            synchronized (this) {
+                if (jobDir.refCount > 0) {
+                    jobDir.refCount--;
+                }
+                jobDir.lastAccess = System.currentTimeMillis();
+            }
+            checkQuota();
+        }
+    }
+
+    /**
+     * Update the disk usage with the files stored in the job directory of the given file
+     * (written, downloaded or deleted files) then check the quota
+     * @param jobFile file in a job directory (ignored if not in this workspace)
+     */
+    public void updateUsage(final File jobFile) {
+        final JobDir jobDir = getJobDir(jobFile);
+        if (jobDir != null) {
+            update(jobDir, scan(jobDir.dir));
+            checkQuota();
+        }
+    }
+
+    private JobDir getJobDir(final File jobFile) {
+        if (jobFile != null) {
+            final File parent = jobFile.getAbsoluteFile().getParentFile();
+            if (parent != null && sessionDir.equals(parent.getParentFile())) {
+                synchronized (this) {
+                    return jobDirs.get(parent.getName());
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * If the disk usage exceeds the quota, scan the job directories again (files not yet counted)
+     * and delete unreferenced job directories (least recently used first) while the disk usage exceeds the quota
+     */
+    public void checkQuota() {
+        final List<JobDir> dirs;
+        synchronized (this) {
+            if (usage <= quota) {
+                return;
+            }
+            dirs = new ArrayList<JobDir>(jobDirs.values());
+        }
+        // scan outside of the lock (file system):
+        for (JobDir jobDir : dirs) {
+            update(jobDir, scan(jobDir.dir));
+        }
+        Collections.sort(dirs, new Comparator<JobDir>() {
+            @Override
+            public int compare(final JobDir d1, final JobDir d2) {
+                return Long.compare(d1.lastAccess, d2.lastAccess);
+            }
+        });
+        final long now = System.currentTimeMillis();
+
+        for (JobDir jobDir : dirs) {
+            final long size;
+            synchronized (this) {
+                if (usage <= quota) {
+                    break;
+                }
+                if (jobDir.refCount != 0 || (!jobDir.retained && (now - jobDir.created) < FRESH_DELAY)) {
+                    continue;
+                }
+                if (jobDirs.remove(jobDir.dir.getName()) == null) {
+                    // evicted by another thread:
+                    continue;
+                }
+                size = getSize(jobDir);
+            }
+            logger.info("Workspace: evicting {} ({} bytes)", jobDir.dir.getName(), size);
+            delete(jobDir.dir);
+            update(jobDir, Collections.<Object, Long>emptyMap());
+        }
+        logger.debug("Workspace: usage = {} bytes", getUsage());
+    }
+
+    /**
+     * Replace the files counted for the given job directory (hard linked files are counted once)
+     * @param jobDir job directory
+     * @param newFiles files in the job directory (file key / size)
+     */
+    private synchronized void update(final JobDir jobDir, final Map<Object, Long> newFiles) {
+        if (!newFiles.isEmpty() && jobDirs.get(jobDir.dir.getName()) != jobDir) {
+            // evicted meanwhile:
+            return;
+        }
+        // files removed:
+        for (Object key : jobDir.files) {
+            if (!newFiles.containsKey(key)) {
+                final CountedFile file = files.get(key);
+                if (--file.links == 0) {
+                    files.remove(key);
+                    usage -= file.size;
+                }
+            }
+        }
+        // files added or changed:
+        for (Map.Entry<Object, Long> e : newFiles.entrySet()) {
+            CountedFile file = files.get(e.getKey());
+            if (file == null) {
+                file = new CountedFile();
+                files.put(e.getKey(), file);
+            }
+            if (!jobDir.files.contains(e.getKey())) {
+                file.links++;
+            }
+            usage += e.getValue() - file.size;
+            file.size = e.getValue();
+        }
+        jobDir.files.clear();
+        jobDir.files.addAll(newFiles.keySet());
+    }
+
+    /**
+     * @return size in bytes of the files counted for the given job directory (guarded by the workspace)
+     */
+    private long getSize(final JobDir jobDir) {
+        long size = 0L;
+        for (Object key : jobDir.files) {
+            size += files.get(key).size;
+        }
+        return size;
+    }
+
+    /**
+     * @return disk usage in bytes (running total)
+     */
+    public synchronized long getUsage() {
+        return usage;
+    }
+
+    /**
+     * @return disk quota in bytes
+     */
+    public long getQuota() {
+        return quota;
+    }
+
+    /**
+     * @return statistics (disk usage and quota)
+     */
+    public String getStatistics() {
+        final int nJobs;
+        synchronized (this) {
+            nJobs = jobDirs.size();
+        }
+        return String.format("workspace: %.1f / %.0f MB, %d jobs", getUsage() / MB, quota / MB, nJobs);
+    }
+
+    /**
+     * Delete the session directory (application exit)
+     */
+    public void shutdown() {
+        synchronized (this) {
+            jobDirs.clear();
+            files.clear();
+            usage = 0L;
+        }
+        logger.info("Workspace: deleting {}", sessionDir);
+        delete(sessionDir);
+    }
+
+    /**
+     * Delete sessions left by previous runs (not deleted at exit) once older than STALE_SESSION_DELAY
+     * @param rootDir root directory
+     */
+    private static void deleteStaleSessions(final File rootDir) {
+        final File[] sessions = rootDir.listFiles();
+        if (sessions != null) {
+            final long now = System.currentTimeMillis();
+            for (File session : sessions) {
+                if (session.isDirectory() && session.getName().startsWith(SESSION_PREFIX)
+                        && (now - session.lastModified()) > STALE_SESSION_DELAY) {
+                    logger.info("Workspace: deleting stale session {}", session);
+                    delete(session);
+                }
+            }
+        }
+    }
+
+    /**
+     * Scan the files of the given directory (sub directories included)
+     * @param dir directory
+     * @return files (file key identifying hard links or path / size)
+     */
+    private static Map<Object, Long> scan(final File dir) {
+        final Map<Object, Long> sizes = new HashMap<Object, Long>(8);
+        scan(dir, sizes);
+        return sizes;
+    }
+
+    private static void scan(final File dir, final Map<Object, Long> sizes) {
+        final File[] dirFiles = dir.listFiles();
+        if (dirFiles != null) {
+            for (File file : dirFiles) {
+                if (file.isDirectory()) {
+                    scan(file, sizes);
+                } else {
+                    Object key = null;
+                    long size;
+                    try {
+                        final BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                        key = attrs.fileKey();
+                        size = attrs.size();
+                    } catch (IOException ioe) {
+                        // deleted meanwhile:
+                        size = file.length();
+                    }
+                    sizes.put((key != null) ? key : file.getAbsoluteFile(), Long.valueOf(size));
+                }
+            }
+        }
+    }
+
+    private static void delete(final File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    delete(file);
+                } else if (!file.delete()) {
+                    logger.debug("Unable to delete {}", file);
+                }
+            }
+        }
+        if (!dir.delete()) {
+            logger.debug("Unable to delete {}", dir);
+        }
+    }
+
+    /**
+     * One job directory (guarded by the workspace)
+     */
+    private static final class JobDir {
+
+        /** directory */
+        final File dir;
+        /** creation time (ms) */
+        final long created;
+        /** number of references */
+        int refCount = 0;
+        /** true once referenced */
+        boolean retained = false;
+        /** last access (ms) */
+        long lastAccess;
+        /** keys of the files counted in the disk usage */
+        final Set<Object> files = new HashSet<Object>(8);
+
+        JobDir(final File dir) {
+            this.dir = dir;
+            this.created = System.currentTimeMillis();
+            this.lastAccess = created;
+        }
+    }
+
+    /**
+     * One file counted in the disk usage (guarded by the workspace)
+     */
+    private static final class CountedFile {
+
+        /** size in bytes */
+        long size = 0L;
+        /** number of job directories linking this file */
+        int links = 0;
+    }
+}
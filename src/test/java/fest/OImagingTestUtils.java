@@ -7,6 +7,7 @@ import static org.fest.swing.timing.Pause.*;
 import org.fest.swing.timing.Timeout;
 
 import fr.jmmc.jmcs.gui.task.TaskSwingWorkerExecutor;
+import fr.jmmc.oimaging.services.JobScheduler;
 import org.fest.swing.edt.GuiActionRunner;
 import org.fest.swing.edt.GuiQuery;
 import org.fest.swing.timing.Condition;
@@ -51,7 +52,8 @@ public final class OImagingTestUtils {
 
                     @Override
                     protected Boolean executeInEDT() {
-                        final boolean done = !TaskSwingWorkerExecutor.isTaskRunning();
+                        final boolean done = !TaskSwingWorkerExecutor.isTaskRunning()
+                                && !JobScheduler.getInstance().isRunning();
 
                         if (logger.isDebugEnabled()) {
                             logger.debug("checkRunningTasks : test = {}", done);
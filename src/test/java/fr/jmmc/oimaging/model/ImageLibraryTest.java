@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.model;
+
+import fr.jmmc.oitools.image.FitsImageHDU;
+import fr.jmmc.oitools.image.FitsImageUtils;
+import fr.jmmc.oitools.model.OIFitsLoader;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test ImageLibrary (insertion order, content and HDU_NAME indexes, removal)
+ */
+public class ImageLibraryTest {
+
+    /** OIFits test file (with an initial image) */
+    private static final String TEST_FILE = "src/test/resources/Bin_Ary--MIRC_H_with_img.fits";
+
+    @Test
+    public void testFindSameContent() throws Exception {
+        final ImageLibrary library = new ImageLibrary();
+        final FitsImageHDU hdu = loadImageHDU("A");
+        library.add(hdu);
+
+        Assert.assertSame(hdu, library.find(hdu));
+        Assert.assertNull(library.find(null));
+
+        // other instance with the same content:
+        final FitsImageHDU copy = loadImageHDU("B");
+        Assert.assertSame(hdu, library.find(copy));
+    }
+
+    @Test
+    public void testFindDifferentContent() throws Exception {
+        final ImageLibrary library = new ImageLibrary();
+        library.add(loadImageHDU("A"));
+
+        final FitsImageHDU other = loadImageHDU("B");
+        other.getFitsImages().get(0).getData()[0][0] += 1f;
+        Assert.assertNull(library.find(other));
+    }
+
+    @Test
+    public void testFindUnsampledDifference() throws Exception {
+        final ImageLibrary library = new ImageLibrary();
+        final FitsImageHDU hdu = loadImageHDU("A");
+        library.add(hdu);
+
+        // pixel not sampled by the provisional identity (checksums pending or not):
+        final FitsImageHDU other = loadImageHDU("B");
+        other.getFitsImages().get(0).getData()[0][1] += 1f;
+        Assert.assertEquals(ImageChecksum.of(hdu).getProvisional(), ImageChecksum.of(other).getProvisional());
+        Assert.assertNull(library.find(other));
+    }
+
+    @Test
+    public void testNamesAndOrder() throws Exception {
+        final ImageLibrary library = new ImageLibrary();
+        final FitsImageHDU first = loadImageHDU("A");
+        final FitsImageHDU second = loadImageHDU("B");
+        second.getFitsImages().get(0).getData()[0][0] += 1f;
+
+        library.add(first);
+        library.add(second);
+        Assert.assertEquals(Arrays.asList(first, second), library.asList());
+        Assert.assertTrue(library.containsName("A"));
+        Assert.assertTrue(library.containsName("B"));
+        Assert.assertFalse(library.containsName("C"));
+
+        // removal updates every index:
+        Assert.assertEquals(0, library.remove(first));
+        Assert.assertEquals(-1, library.remove(first));
+        Assert.assertEquals(1, library.size());
+        Assert.assertSame(second, library.get(0));
+        Assert.assertFalse(library.containsName("A"));
+        Assert.assertNull(library.find(first));
+        Assert.assertSame(second, library.find(second));
+
+        library.clear();
+        Assert.assertEquals(0, library.size());
+        Assert.assertFalse(library.containsName("B"));
+        Assert.assertNull(library.find(second));
+    }
+
+    /**
+     * @return first image HDU of the test file (loaded again, images prepared) named as given
+     */
+    static FitsImageHDU loadImageHDU(final String hduName) throws Exception {
+        final FitsImageHDU hdu = OIFitsLoader.loadOIFits(TEST_FILE).getFitsImageHDUs().get(0);
+        FitsImageUtils.prepareImages(hdu);
+        hdu.setHduName(hduName);
+        return hdu;
+    }
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.model;
+
+import fr.jmmc.oimaging.services.ServiceList;
+import fr.jmmc.oimaging.services.ServiceResult;
+import fr.jmmc.oimaging.services.Workspace;
+import fr.jmmc.oitools.image.ImageOiInputParam;
+import fr.jmmc.oitools.image.ImageOiOutputParam;
+import fr.jmmc.oitools.meta.KeywordMeta;
+import fr.jmmc.oitools.model.OIFitsFile;
+import fr.jmmc.oitools.model.OIFitsLoader;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test SessionArchive (zip round trip of the model state, result files and edited output keywords)
+ */
+public class SessionArchiveTest {
+
+    /** OIFits test file (with input and output parameters) */
+    private static final String TEST_FILE = "src/test/resources/Bin_Ary--MIRC_H_with_img.fits";
+
+    private File sessionFile = null;
+    private IRModel saved = null;
+    private IRModel loaded = null;
+
+    @Before
+    public void setUp() throws Exception {
+        sessionFile = File.createTempFile("SessionArchiveTest", ".zip");
+    }
+
+    @After
+    public void tearDown() {
+        if (saved != null) {
+            saved.releaseServiceResults();
+        }
+        if (loaded != null) {
+            loaded.releaseServiceResults();
+        }
+        sessionFile.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        saved = new IRModel(OIFitsLoader.loadOIFits(TEST_FILE));
+        saved.setCliOptions("-verbose");
+
+        // one valid result stored in the workspace:
+        final File inputFile = Workspace.getInstance().createJobFile("session.fits");
+        final ServiceResult result = new ServiceResult(inputFile);
+        Files.copy(new File(TEST_FILE).toPath(), inputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(new File(TEST_FILE).toPath(), result.getOifitsResultFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.write(result.getExecutionLogResultFile().toPath(), "iteration 1\ndone\n".getBytes(StandardCharsets.UTF_8));
+        Workspace.getInstance().updateUsage(inputFile);
+
+        result.setValid(true);
+        result.setService(ServiceList.getPreferedService());
+        result.setStartTime(new Date(1000000L));
+        result.setEndTime(new Date(1060000L));
+        result.setConvergedReason("image change below 1e-3");
+
+        final Map<String, Object> sweepCoordinates = new LinkedHashMap<String, Object>(4);
+        sweepCoordinates.put("MAXITER", Integer.valueOf(50));
+        sweepCoordinates.put("RGL_WGT", Double.valueOf(1e4));
+        result.setSweepCoordinates(sweepCoordinates);
+
+        saved.addServiceResult(result);
+
+        // output keywords edited in memory:
+        final ImageOiOutputParam outputParam = result.getOutputParam();
+        Assert.assertNotNull(outputParam);
+        outputParam.setKeywordValue(IRModel.KEYWORD_RATING.getName(), Integer.valueOf(4));
+        outputParam.setKeywordValue(IRModel.KEYWORD_OIMAGING_COMMENT.getName(), "best so far");
+
+        SessionArchive.save(saved, sessionFile);
+        Assert.assertTrue(sessionFile.length() > 0L);
+
+        loaded = new IRModel();
+        final List<ServiceResult> results = SessionArchive.load(sessionFile, null, loaded);
+
+        // model state:
+        Assert.assertEquals("-verbose", loaded.getCliOptions());
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(results, loaded.getResultSets());
+        assertSameParams(saved.getOifitsFile().getImageOiData().getInputParam(),
+                loaded.getOifitsFile().getImageOiData().getInputParam());
+
+        // result state:
+        final ServiceResult restored = results.get(0);
+        Assert.assertNotSame(result, restored);
+        Assert.assertEquals(result.getIndex(), restored.getIndex());
+        Assert.assertTrue(restored.isValid());
+        Assert.assertFalse(restored.isCancelled());
+        Assert.assertEquals(result.getService(), restored.getService());
+        Assert.assertEquals(result.getStartTime(), restored.getStartTime());
+        Assert.assertEquals(result.getEndTime(), restored.getEndTime());
+        Assert.assertEquals(result.getConvergedReason(), restored.getConvergedReason());
+        Assert.assertEquals(sweepCoordinates, restored.getSweepCoordinates());
+
+        // result files (extracted into the workspace):
+        Assert.assertArrayEquals(Files.readAllBytes(inputFile.toPath()),
+                Files.readAllBytes(restored.getInputFile().toPath()));
+        Assert.assertArrayEquals(Files.readAllBytes(result.getOifitsResultFile().toPath()),
+                Files.readAllBytes(restored.getOifitsResultFile().toPath()));
+        Assert.assertArrayEquals(Files.readAllBytes(result.getExecutionLogResultFile().toPath()),
+                Files.readAllBytes(restored.getExecutionLogResultFile().toPath()));
+
+        // edited output keywords restored on first use:
+        final OIFitsFile restoredFile = restored.getOifitsFile();
+        Assert.assertNotNull(restoredFile);
+        final ImageOiOutputParam restoredParam = restoredFile.getImageOiData().getOutputParam();
+        Assert.assertEquals(Integer.valueOf(4), restoredParam.getKeywordValue(IRModel.KEYWORD_RATING.getName()));
+        Assert.assertEquals("best so far", restoredParam.getKeywordValue(IRModel.KEYWORD_OIMAGING_COMMENT.getName()));
+    }
+
+    @Test
+    public void testLoadInput() throws Exception {
+        saved = new IRModel(OIFitsLoader.loadOIFits(TEST_FILE));
+        SessionArchive.save(saved, sessionFile);
+
+        final OIFitsFile input = SessionArchive.loadInput(sessionFile, null);
+        Assert.assertEquals(saved.getOifitsFile().getNbOiTables(), input.getNbOiTables());
+        assertSameParams(saved.getOifitsFile().getImageOiData().getInputParam(),
+                input.getImageOiData().getInputParam());
+    }
+
+    private static void assertSameParams(final ImageOiInputParam expected, final ImageOiInputParam actual) {
+        for (KeywordMeta keywordMeta : expected.getKeywordsDesc().values()) {
+            final String name = keywordMeta.getName();
+            Assert.assertEquals(name, expected.getKeywordValue(name), actual.getKeywordValue(name));
+        }
+    }
+}
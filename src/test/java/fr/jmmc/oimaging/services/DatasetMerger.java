@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Server side of RemoteDatasets used by the stand-in servers: rebuild the input file of a job
+ * from its delta file and the referenced data file
+ */
+final class DatasetMerger {
+
+    private DatasetMerger() {
+        // no instance
+    }
+
+    /**
+     * Rebuild the input file from the delta and data files:
+     * primary HDU of the delta file, extensions of the data file then extensions of the delta file
+     * @param deltaFile delta file
+     * @param dataFile data file
+     * @param outputFile input file to write
+     * @throws IOException if any I/O error occurs
+     */
+    static void merge(final File deltaFile, final File dataFile, final File outputFile) throws IOException {
+        final List<RemoteDatasets.Hdu> deltaHdus = RemoteDatasets.scan(deltaFile);
+        final List<RemoteDatasets.Hdu> dataHdus = RemoteDatasets.scan(dataFile);
+
+        try (FileChannel out = new FileOutputStream(outputFile).getChannel()) {
+            try (FileChannel in = new FileInputStream(deltaFile).getChannel()) {
+                // primary HDU first:
+                RemoteDatasets.transfer(in, deltaHdus.get(0), out);
+                // data tables before parameters and images (OIFitsWriter order):
+                try (FileChannel dataIn = new FileInputStream(dataFile).getChannel()) {
+                    for (int i = 1; i < dataHdus.size(); i++) {
+                        RemoteDatasets.transfer(dataIn, dataHdus.get(i), out);
+                    }
+                }
+                for (int i = 1; i < deltaHdus.size(); i++) {
+                    RemoteDatasets.transfer(in, deltaHdus.get(i), out);
+                }
+            }
+        }
+    }
+}
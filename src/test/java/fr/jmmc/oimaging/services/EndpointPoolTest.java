@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import fr.cnes.sitools.extensions.astro.application.uws.client.ClientUWSException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.restlet.data.Form;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test EndpointPool (health checks, load balancing and failover) against local stand-in UWS servers
+ */
+public class EndpointPoolTest {
+
+    protected static final Logger logger = LoggerFactory.getLogger(EndpointPoolTest.class.getName());
+
+    private final List<StandInUwsServer> servers = new ArrayList<StandInUwsServer>();
+
+    @After
+    public void tearDown() {
+        for (StandInUwsServer server : servers) {
+            server.stop();
+        }
+    }
+
+    private StandInUwsServer startServer(final int queueDepth, final long delay) throws IOException {
+        final StandInUwsServer server = new StandInUwsServer(queueDepth, delay);
+        servers.add(server);
+        return server;
+    }
+
+    private static EndpointPool createPool(final int maxJobs, final StandInUwsServer... servers) {
+        final StringBuilder sb = new StringBuilder(128);
+        for (StandInUwsServer server : servers) {
+            sb.append(server.getUrl()).append('|').append(maxJobs).append(", ");
+        }
+        return EndpointPool.parse(sb.toString(), 1);
+    }
+
+    @Test
+    public void testParse() {
+        final EndpointPool pool = EndpointPool.parse(" http://host1:8080/OImaging-uws|2, http://host2/OImaging-uws/ ", 3);
+
+        Assert.assertEquals(2, pool.getEndpoints().size());
+        Assert.assertEquals("http://host1:8080/OImaging-uws/", pool.getEndpoints().get(0).url);
+        Assert.assertEquals(2, pool.getEndpoints().get(0).maxJobs);
+        Assert.assertEquals(3, pool.getEndpoints().get(1).maxJobs);
+        Assert.assertEquals(5, pool.getMaxJobs());
+        Assert.assertNotNull(pool.get("http://host2/OImaging-uws/"));
+        Assert.assertTrue(EndpointPool.parse("  ", 3).isEmpty());
+    }
+
+    @Test
+    public void testLeastLoadedEndpoint() throws Exception {
+        final StandInUwsServer busy = startServer(6, 0L);
+        final StandInUwsServer idle = startServer(0, 0L);
+        final StandInUwsServer loaded = startServer(2, 0L);
+        final EndpointPool pool = createPool(4, busy, idle, loaded);
+
+        final EndpointPool.Endpoint endpoint = pool.acquire(null);
+        logger.info("least loaded: {}", pool);
+
+        Assert.assertEquals(idle.getUrl(), endpoint.url);
+        Assert.assertEquals(6, pool.get(busy.getUrl()).getQueueDepth());
+        // all endpoints were checked once:
+        Assert.assertEquals(1, busy.jobListRequests.get());
+        Assert.assertEquals(1, idle.jobListRequests.get());
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        final StandInUwsServer server1 = startServer(0, 0L);
+        final StandInUwsServer server2 = startServer(0, 0L);
+        final EndpointPool pool = createPool(1, server1, server2);
+
+        final EndpointPool.Endpoint first = pool.acquire(null);
+        final EndpointPool.Endpoint second = pool.acquire(null);
+        // each endpoint accepts one job:
+        Assert.assertNotSame(first, second);
+
+        pool.release(first);
+        Assert.assertSame(first, pool.acquire(null));
+    }
+
+    @Test
+    public void testLatencyPreference() throws Exception {
+        final StandInUwsServer slow = startServer(0, 400L);
+        final StandInUwsServer fast = startServer(0, 0L);
+        final EndpointPool pool = createPool(4, slow, fast);
+
+        final EndpointPool.Endpoint endpoint = pool.acquire(null);
+        logger.info("latency: {}", pool);
+
+        Assert.assertEquals(fast.getUrl(), endpoint.url);
+        Assert.assertTrue(pool.get(slow.getUrl()).getLatency() >= 400.0);
+    }
+
+    @Test
+    public void testJobListNotAvailable() throws Exception {
+        final StandInUwsServer server = startServer(0, 0L);
+        server.jobListAllowed = false;
+        final EndpointPool pool = createPool(2, server);
+
+        // health given by the home page:
+        Assert.assertEquals(server.getUrl(), pool.acquire(null).url);
+        Assert.assertEquals(1, server.homeRequests.get());
+    }
+
+    @Test
+    public void testDeadEndpointIsSkipped() throws Exception {
+        final StandInUwsServer dead = startServer(0, 0L);
+        final StandInUwsServer alive = startServer(3, 0L);
+        dead.stop();
+        final EndpointPool pool = createPool(2, dead, alive);
+
+        Assert.assertEquals(alive.getUrl(), pool.acquire(null).url);
+        Assert.assertFalse(pool.get(dead.getUrl()).isHealthy());
+    }
+
+    @Test
+    public void testFailoverOnConnectionFailure() throws Exception {
+        final StandInUwsServer primary = startServer(0, 0L);
+        final StandInUwsServer backup = startServer(1, 0L);
+        final EndpointPool pool = createPool(2, primary, backup);
+
+        final EndpointPool.Endpoint endpoint = pool.acquire(null);
+        Assert.assertEquals(primary.getUrl(), endpoint.url);
+
+        // the primary server goes down after its health check:
+        primary.stop();
+        try {
+            endpoint.client.createJob(new Form("software=test"));
+            Assert.fail("createJob should fail");
+        } catch (ClientUWSException cue) {
+            Assert.assertTrue("connection failure: " + cue, EndpointPool.isConnectionFailure(cue));
+            pool.release(endpoint);
+            pool.failed(endpoint);
+        }
+
+        final EndpointPool.Endpoint other = pool.acquire(Collections.singletonList(endpoint));
+        Assert.assertEquals(backup.getUrl(), other.url);
+        Assert.assertEquals("42", other.client.createJob(new Form("software=test")));
+        Assert.assertEquals(1, backup.createRequests.get());
+
+        // the failed endpoint is skipped until its next health check:
+        Assert.assertSame(other, pool.acquire(null));
+    }
+
+    @Test(expected = ClientUWSException.class)
+    public void testNoEndpointAvailable() throws Exception {
+        final StandInUwsServer dead1 = startServer(0, 0L);
+        final StandInUwsServer dead2 = startServer(0, 0L);
+        final EndpointPool pool = createPool(2, dead1, dead2);
+        dead1.stop();
+        dead2.stop();
+
+        pool.acquire(null);
+    }
+
+    /**
+     * Minimal UWS server giving its home page, a job list (queue depth) and accepting new jobs
+     */
+    private static final class StandInUwsServer extends StandInHttpServer {
+
+        private final int queueDepth;
+        private final long delay;
+        volatile boolean jobListAllowed = true;
+        final AtomicInteger homeRequests = new AtomicInteger(0);
+        final AtomicInteger jobListRequests = new AtomicInteger(0);
+        final AtomicInteger createRequests = new AtomicInteger(0);
+
+        StandInUwsServer(final int queueDepth, final long delay) throws IOException {
+            this.queueDepth = queueDepth;
+            this.delay = delay;
+            start();
+        }
+
+        String getUrl() {
+            return getURL(ROOT);
+        }
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ie) {
+                send(exchange, 500, "text/plain", "interrupted");
+                return;
+            }
+            final String path = exchange.getRequestURI().getPath();
+            final String jobsPath = ROOT + RemoteExecutionMode.SERVICE_PATH;
+
+            if (path.equals(ROOT)) {
+                homeRequests.incrementAndGet();
+                send(exchange, 200, "text/html", "<html>OImaging-uws</html>");
+            } else if (path.equals(jobsPath) && "POST".equals(exchange.getRequestMethod())) {
+                createRequests.incrementAndGet();
+                final InputStream in = exchange.getRequestBody();
+                while (in.read() != -1) {
+                    // consume the form
+                }
+                exchange.getResponseHeaders().add("Location", getUrl() + RemoteExecutionMode.SERVICE_PATH + "/42");
+                send(exchange, 303, "text/plain", "");
+            } else if (path.equals(jobsPath)) {
+                jobListRequests.incrementAndGet();
+                if (!jobListAllowed) {
+                    send(exchange, 403, "text/plain", "forbidden");
+                    return;
+                }
+                final StringBuilder sb = new StringBuilder(512);
+                sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                        .append("<uws:jobs xmlns:uws=\"http://www.ivoa.net/xml/UWS/v1.0\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">");
+                for (String phase : Arrays.asList("COMPLETED", "ERROR")) {
+                    sb.append("<uws:jobref id=\"done-").append(phase).append("\"><uws:phase>").append(phase).append("</uws:phase></uws:jobref>");
+                }
+                for (int i = 0; i < queueDepth; i++) {
+                    sb.append("<uws:jobref id=\"").append(i).append("\"><uws:phase>")
+                            .append((i % 2 == 0) ? "EXECUTING" : "QUEUED").append("</uws:phase></uws:jobref>");
+                }
+                sb.append("</uws:jobs>");
+                send(exchange, 200, "text/xml", sb.toString());
+            } else {
+                send(exchange, 404, "text/plain", "not found: " + path);
+            }
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import fr.jmmc.oitools.image.ImageOiInputParam;
+import fr.jmmc.oitools.meta.KeywordMeta;
+import fr.jmmc.oitools.meta.Types;
+import fr.jmmc.oitools.model.OIFitsFile;
+import fr.jmmc.oitools.model.OIFitsLoader;
+import fr.jmmc.oitools.model.OIFitsWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test InputFileCache (card formatting, parameter header rewrite and round trip against a full OIFits write)
+ */
+public class InputFileCacheTest {
+
+    /** FITS block size */
+    private static final int BLOCK_SIZE = 2880;
+    /** FITS card size */
+    private static final int CARD_SIZE = 80;
+    /** extension name of the input parameter table */
+    private static final String EXT_NAME = "IMAGE-OI INPUT PARAM";
+    /** OIFits test file (data tables, initial image and input parameters) */
+    private static final String TEST_FILE = "src/test/resources/Bin_Ary--MIRC_H_with_img.fits";
+
+    private static final KeywordMeta MAXITER = new KeywordMeta("MAXITER", "max iterations", Types.TYPE_INT);
+    private static final KeywordMeta RGL_WGT = new KeywordMeta("RGL_WGT", "regularization weight", Types.TYPE_DBL);
+    private static final KeywordMeta RGL_NAME = new KeywordMeta("RGL_NAME", "regularization name", Types.TYPE_CHAR);
+    private static final KeywordMeta USE_VIS = new KeywordMeta("USE_VIS", "use complex visibilities", Types.TYPE_LOGICAL);
+    private static final KeywordMeta AUTO_WGT = new KeywordMeta("AUTO_WGT", "automatic weight", Types.TYPE_LOGICAL);
+
+    private File tmpDir = null;
+    private final List<File> jobFiles = new ArrayList<File>();
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("InputFileCacheTest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : jobFiles) {
+            file.delete();
+        }
+        delete(tmpDir);
+    }
+
+    @Test
+    public void testFormatCard() {
+        // quotes doubled, string padded to 8 characters:
+        Assert.assertEquals("RGL_NAME= 'it''s   '          ", InputFileCache.formatCard(RGL_NAME, "it's", null));
+        Assert.assertEquals("RGL_NAME= 'compactness'       ", InputFileCache.formatCard(RGL_NAME, "compactness", null));
+        // numbers and logicals right aligned (column 30):
+        Assert.assertEquals("MAXITER =                  200", InputFileCache.formatCard(MAXITER, Integer.valueOf(200), null));
+        Assert.assertEquals("RGL_WGT =                100.0", InputFileCache.formatCard(RGL_WGT, Double.valueOf(100.0), null));
+        Assert.assertEquals("USE_VIS =                    F", InputFileCache.formatCard(USE_VIS, Boolean.FALSE, null));
+        Assert.assertEquals("USE_VIS =                    T / use", InputFileCache.formatCard(USE_VIS, Boolean.TRUE, "use"));
+        // no value:
+        Assert.assertEquals("", InputFileCache.formatCard(MAXITER, null, null));
+    }
+
+    @Test
+    public void testFormatCardLimits() {
+        // 68 characters between quotes:
+        final String max = repeat('x', 66);
+        // no room left for the comment:
+        Assert.assertEquals("RGL_NAME= '" + max + "'", InputFileCache.formatCard(RGL_NAME, max, "comment"));
+        Assert.assertNull(InputFileCache.formatCard(RGL_NAME, max + 'x', null));
+        // doubled quotes count:
+        Assert.assertNotNull(InputFileCache.formatCard(RGL_NAME, repeat('\'', 33), null));
+        Assert.assertNull(InputFileCache.formatCard(RGL_NAME, repeat('\'', 34), null));
+
+        // long comment truncated:
+        final String card = InputFileCache.formatCard(MAXITER, Integer.valueOf(200), repeat('c', 60));
+        Assert.assertEquals(CARD_SIZE, card.length());
+        Assert.assertTrue(card, card.startsWith("MAXITER =                  200 / ccc"));
+
+        // not representable:
+        Assert.assertNull(InputFileCache.formatCard(RGL_WGT, Double.valueOf(Double.NaN), null));
+        Assert.assertNull(InputFileCache.formatCard(RGL_WGT, Double.valueOf(Double.POSITIVE_INFINITY), null));
+        Assert.assertNull(InputFileCache.formatCard(RGL_NAME, new Object(), null));
+    }
+
+    @Test
+    public void testIsWritable() throws IOException {
+        final InputFileCache.Entry base = new InputFileCache.Entry(writeBase(), "content", getBaseValues());
+        final Map<String, KeywordMeta> desc = getKeywordsDesc();
+
+        final Map<String, Object> values = getValues();
+        Assert.assertTrue(InputFileCache.isWritable(base, desc, values));
+
+        values.put(RGL_NAME.getName(), repeat('x', 67));
+        Assert.assertFalse(InputFileCache.isWritable(base, desc, values));
+
+        values.put(RGL_NAME.getName(), "mem");
+        values.put(RGL_WGT.getName(), Double.valueOf(Double.NaN));
+        Assert.assertFalse(InputFileCache.isWritable(base, desc, values));
+    }
+
+    @Test
+    public void testUpdateHeader() throws IOException {
+        final File baseFile = writeBase();
+        final InputFileCache.Entry base = new InputFileCache.Entry(baseFile, "content", getBaseValues());
+
+        final File newFile = write(base, getValues());
+        Assert.assertEquals(0L, newFile.length() % BLOCK_SIZE);
+
+        final byte[] baseBytes = Files.readAllBytes(baseFile.toPath());
+        final byte[] newBytes = Files.readAllBytes(newFile.toPath());
+        // primary HDU and data table copied:
+        Assert.assertArrayEquals(Arrays.copyOfRange(baseBytes, 0, BLOCK_SIZE), Arrays.copyOfRange(newBytes, 0, BLOCK_SIZE));
+        Assert.assertArrayEquals(Arrays.copyOfRange(baseBytes, 2 * BLOCK_SIZE, baseBytes.length),
+                Arrays.copyOfRange(newBytes, 2 * BLOCK_SIZE, newBytes.length));
+
+        Assert.assertEquals(Arrays.asList(
+                "XTENSION= 'BINTABLE'",
+                "BITPIX  =                    8",
+                "NAXIS   =                    2",
+                "NAXIS1  =                    0",
+                "NAXIS2  =                    0",
+                "PCOUNT  =                    0",
+                "GCOUNT  =                    1",
+                "TFIELDS =                    0",
+                "EXTNAME = '" + EXT_NAME + "'",
+                // changed value, comment kept:
+                "MAXITER =                  500 / max iterations",
+                // unchanged card kept as written:
+                "RGL_WGT =                 100.",
+                // long string replaced (CONTINUE card removed):
+                "RGL_NAME= 'compactness'",
+                "USE_VIS =                    F",
+                // OLDKEY removed, new keyword added before END:
+                "AUTO_WGT=                    T / automatic weight",
+                "END"
+        ), readCards(newBytes, BLOCK_SIZE));
+    }
+
+    @Test
+    public void testUnchangedValuesLinked() throws IOException {
+        final File baseFile = writeBase();
+        final InputFileCache.Entry base = new InputFileCache.Entry(baseFile, "content", getBaseValues());
+
+        final File newFile = write(base, getBaseValues());
+        Assert.assertArrayEquals(Files.readAllBytes(baseFile.toPath()), Files.readAllBytes(newFile.toPath()));
+    }
+
+    @Test
+    public void testNotWritable() throws IOException {
+        final InputFileCache.Entry base = new InputFileCache.Entry(writeBase(), "content", getBaseValues());
+
+        final Map<String, Object> values = getValues();
+        values.put(RGL_WGT.getName(), Double.valueOf(Double.NaN));
+        try {
+            write(base, values);
+            Assert.fail("IOException expected");
+        } catch (IOException ioe) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final OIFitsFile oiFitsFile = OIFitsLoader.loadOIFits(TEST_FILE);
+        final ImageOiInputParam inputParam = oiFitsFile.getImageOiData().getInputParam();
+
+        // input file written once (whole file):
+        final File baseFile = new File(tmpDir, "base.fits");
+        OIFitsWriter.writeOIFits(baseFile.getAbsolutePath(), oiFitsFile);
+        final InputFileCache.Entry base = new InputFileCache.Entry(baseFile, "content", getKeywordValues(inputParam));
+
+        // next run: parameters only
+        final Map<String, Object> values = getKeywordValues(inputParam);
+        values.put(MAXITER.getName(), Integer.valueOf(50));
+        values.put(RGL_WGT.getName(), Double.valueOf(1e4));
+        final File rewritten = InputFileCache.write("rewritten.fits", base, inputParam.getExtName(), inputParam.getKeywordsDesc(), values);
+        jobFiles.add(rewritten);
+
+        // reference: whole file written with the same parameters
+        for (Map.Entry<String, Object> e : values.entrySet()) {
+            inputParam.setKeywordValue(e.getKey(), e.getValue());
+        }
+        final File reference = new File(tmpDir, "reference.fits");
+        OIFitsWriter.writeOIFits(reference.getAbsolutePath(), oiFitsFile);
+
+        final OIFitsFile expected = OIFitsLoader.loadOIFits(reference.getAbsolutePath());
+        final OIFitsFile actual = OIFitsLoader.loadOIFits(rewritten.getAbsolutePath());
+
+        Assert.assertEquals(getKeywordValues(expected.getImageOiData().getInputParam()),
+                getKeywordValues(actual.getImageOiData().getInputParam()));
+        Assert.assertEquals(Integer.valueOf(50), actual.getImageOiData().getInputParam().getKeywordValue(MAXITER.getName()));
+        Assert.assertEquals(expected.getNbOiTables(), actual.getNbOiTables());
+        Assert.assertEquals(expected.getOiDataList().size(), actual.getOiDataList().size());
+        Assert.assertEquals(expected.getFitsImageHDUs().size(), actual.getFitsImageHDUs().size());
+    }
+
+    private File write(final InputFileCache.Entry base, final Map<String, Object> values) throws IOException {
+        final File file = InputFileCache.write("input.fits", base, EXT_NAME, getKeywordsDesc(), values);
+        jobFiles.add(file);
+        return file;
+    }
+
+    private static Map<String, Object> getKeywordValues(final ImageOiInputParam params) {
+        final Map<String, Object> values = new LinkedHashMap<String, Object>();
+        for (String keyword : params.getKeywordsDesc().keySet()) {
+            values.put(keyword, params.getKeywordValue(keyword));
+        }
+        return values;
+    }
+
+    private static Map<String, KeywordMeta> getKeywordsDesc() {
+        final Map<String, KeywordMeta> desc = new LinkedHashMap<String, KeywordMeta>();
+        for (KeywordMeta keyMeta : new KeywordMeta[]{MAXITER, RGL_WGT, RGL_NAME, USE_VIS, AUTO_WGT}) {
+            desc.put(keyMeta.getName(), keyMeta);
+        }
+        return desc;
+    }
+
+    /**
+     * @return values written in the base file
+     */
+    private static Map<String, Object> getBaseValues() {
+        final Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put(MAXITER.getName(), Integer.valueOf(200));
+        values.put(RGL_WGT.getName(), Double.valueOf(100.0));
+        values.put(RGL_NAME.getName(), "mem-long-name");
+        values.put("OLDKEY", "x");
+        values.put(USE_VIS.getName(), Boolean.FALSE);
+        return values;
+    }
+
+    /**
+     * @return values of the next run
+     */
+    private static Map<String, Object> getValues() {
+        final Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put(MAXITER.getName(), Integer.valueOf(500));
+        values.put(RGL_WGT.getName(), Double.valueOf(100.0));
+        values.put(RGL_NAME.getName(), "compactness");
+        values.put(USE_VIS.getName(), Boolean.FALSE);
+        values.put(AUTO_WGT.getName(), Boolean.TRUE);
+        return values;
+    }
+
+    /**
+     * Write the base file: primary HDU, input parameter table (long string continued) and one data table
+     */
+    private File writeBase() throws IOException {
+        final StringBuilder sb = new StringBuilder(4 * BLOCK_SIZE);
+        appendHeader(sb, "SIMPLE  =                    T", "BITPIX  =                    8", "NAXIS   =                    0");
+        appendHeader(sb, "XTENSION= 'BINTABLE'", "BITPIX  =                    8", "NAXIS   =                    2",
+                "NAXIS1  =                    0", "NAXIS2  =                    0", "PCOUNT  =                    0",
+                "GCOUNT  =                    1", "TFIELDS =                    0", "EXTNAME = '" + EXT_NAME + "'",
+                "MAXITER =                  200 / max iterations", "RGL_WGT =                 100.",
+                "RGL_NAME= 'mem-long&'", "CONTINUE  '-name'", "OLDKEY  = 'x       '", "USE_VIS =                    F");
+        appendHeader(sb, "XTENSION= 'BINTABLE'", "BITPIX  =                    8", "NAXIS   =                    2",
+                "NAXIS1  =                    8", "NAXIS2  =                    1", "PCOUNT  =                    0",
+                "GCOUNT  =                    1", "TFIELDS =                    1", "TFORM1  = '1D      '", "EXTNAME = 'OI_DATA '");
+        // data block:
+        sb.append("01234567");
+        while (sb.length() % BLOCK_SIZE != 0) {
+            sb.append('\0');
+        }
+        final File file = new File(tmpDir, "base.fits");
+        Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    private static void appendHeader(final StringBuilder sb, final String... cards) {
+        for (String card : cards) {
+            appendCard(sb, card);
+        }
+        appendCard(sb, "END");
+        while (sb.length() % BLOCK_SIZE != 0) {
+            sb.append(' ');
+        }
+    }
+
+    private static void appendCard(final StringBuilder sb, final String card) {
+        sb.append(card);
+        for (int i = card.length(); i < CARD_SIZE; i++) {
+            sb.append(' ');
+        }
+    }
+
+    /**
+     * @return cards (trailing spaces removed) of the header starting at the given offset, END included
+     */
+    private static List<String> readCards(final byte[] bytes, final int offset) {
+        final List<String> cards = new ArrayList<String>();
+        for (int c = offset; c + CARD_SIZE <= bytes.length; c += CARD_SIZE) {
+            final String card = new String(bytes, c, CARD_SIZE, StandardCharsets.US_ASCII).replaceAll("\\s+$", "");
+            cards.add(card);
+            if ("END".equals(card)) {
+                break;
+            }
+        }
+        return cards;
+    }
+
+    private static String repeat(final char ch, final int count) {
+        final char[] chars = new char[count];
+        Arrays.fill(chars, ch);
+        return new String(chars);
+    }
+
+    private static void delete(final File file) {
+        if (file != null) {
+            final File[] files = file.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    delete(child);
+                }
+            }
+            file.delete();
+        }
+    }
+}
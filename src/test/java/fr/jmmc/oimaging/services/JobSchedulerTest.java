@@ -0,0 +1,454 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import fr.jmmc.oitools.image.FitsImageHDU;
+import fr.jmmc.oitools.model.OIFitsFile;
+import fr.jmmc.oitools.model.OIFitsLoader;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test JobScheduler (FIFO order, slot limit, cancellation of queued, dispatched and running jobs,
+ * convergence stop with or without output, status set while submitting, submission failure)
+ * using a fake execution mode completed by the test
+ */
+public class JobSchedulerTest {
+
+    /** max time (ms) to wait for asynchronous steps */
+    private static final long TIMEOUT = 10000L;
+    /** OIFits test file (with an image) */
+    private static final String TEST_FILE = "src/test/resources/Bin_Ary--MIRC_H_with_img.fits";
+
+    @Test
+    public void testFifo() throws Exception {
+        final FakeExecutionMode execMode = new FakeExecutionMode(1);
+        final RecordingListener listener = new RecordingListener();
+
+        final ServiceJob[] jobs = new ServiceJob[3];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = submit(execMode, "fifo-" + i, listener);
+        }
+        // started in submission order:
+        for (int i = 0; i < jobs.length; i++) {
+            execMode.waitStarted(i + 1);
+            Assert.assertEquals(jobs[i].getInputFile(), execMode.getInputFile(i));
+
+            for (int j = i + 1; j < jobs.length; j++) {
+                Assert.assertEquals(ServiceJob.State.QUEUED, jobs[j].getState());
+            }
+            execMode.complete(jobs[i]);
+            Assert.assertSame(jobs[i], listener.next());
+            Assert.assertEquals(ServiceJob.State.DONE, jobs[i].getState());
+        }
+        Assert.assertEquals(0, JobScheduler.getInstance().getActiveJobCount(execMode));
+    }
+
+    @Test
+    public void testSlotLimit() throws Exception {
+        final FakeExecutionMode execMode = new FakeExecutionMode(2);
+        final RecordingListener listener = new RecordingListener();
+
+        final ServiceJob[] jobs = new ServiceJob[4];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = submit(execMode, "slot-" + i, listener);
+        }
+        execMode.waitStarted(2);
+        // no free slot:
+        Thread.sleep(100L);
+        Assert.assertEquals(2, execMode.started.size());
+        Assert.assertEquals(ServiceJob.State.QUEUED, jobs[2].getState());
+        Assert.assertEquals(ServiceJob.State.QUEUED, jobs[3].getState());
+        Assert.assertEquals(4, JobScheduler.getInstance().getActiveJobCount(execMode));
+
+        // one slot released: only the next queued job is started
+        execMode.complete(jobs[1]);
+        Assert.assertSame(jobs[1], listener.next());
+        execMode.waitStarted(3);
+        Assert.assertEquals(jobs[2].getInputFile(), execMode.getInputFile(2));
+        Thread.sleep(100L);
+        Assert.assertEquals(ServiceJob.State.QUEUED, jobs[3].getState());
+
+        execMode.complete(jobs[0]);
+        Assert.assertSame(jobs[0], listener.next());
+        execMode.waitStarted(4);
+        Assert.assertEquals(jobs[3].getInputFile(), execMode.getInputFile(3));
+
+        execMode.complete(jobs[2]);
+        execMode.complete(jobs[3]);
+        listener.next();
+        listener.next();
+
+        for (ServiceJob job : jobs) {
+            Assert.assertEquals(ServiceJob.State.DONE, job.getState());
+        }
+        Assert.assertEquals(4, listener.done.size());
+        Assert.assertEquals(0, JobScheduler.getInstance().getActiveJobCount(execMode));
+    }
+
+    @Test
+    public void testCancelQueued() throws Exception {
+        final FakeExecutionMode execMode = new FakeExecutionMode(1);
+        final RecordingListener listener = new RecordingListener();
+
+        final ServiceJob running = submit(execMode, "running", listener);
+        final ServiceJob queued = submit(execMode, "queued", listener);
+        execMode.waitStarted(1);
+
+        // removed from the queue at once:
+        Assert.assertTrue(queued.cancel());
+        Assert.assertEquals(ServiceJob.State.CANCELLED, queued.getState());
+        Assert.assertSame(queued, listener.next());
+        Assert.assertTrue(listener.cancelled.contains(queued));
+        Assert.assertNull(queued.getResult());
+        Assert.assertFalse(queued.cancel());
+
+        Assert.assertEquals(ServiceJob.State.RUNNING, running.getState());
+        execMode.complete(running);
+        Assert.assertSame(running, listener.next());
+
+        // the cancelled job never started:
+        Thread.sleep(100L);
+        Assert.assertEquals(1, execMode.started.size());
+        Assert.assertEquals(0, JobScheduler.getInstance().getActiveJobCount(execMode));
+    }
+
+    @Test
+    public void testCancelDispatched() throws Exception {
+        final FakeExecutionMode execMode = new FakeExecutionMode(1);
+        final RecordingListener listener = new RecordingListener();
+
+        // keep every worker busy so that the dispatched job is not started yet:
+        final CountDownLatch busy = new CountDownLatch(1);
+        for (int i = 0; i < Integer.getInteger("JobScheduler.workers", 2); i++) {
+            JobScheduler.getInstance().getWorkers().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        busy.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        try {
+            // slot acquired, start() pending:
+            final ServiceJob dispatched = submit(execMode, "dispatched", listener);
+            Assert.assertTrue(dispatched.cancel());
+            Assert.assertEquals(ServiceJob.State.CANCELLED, dispatched.getState());
+            Assert.assertSame(dispatched, listener.next());
+            Assert.assertEquals(0, JobScheduler.getInstance().getActiveJobCount(execMode));
+        } finally {
+            busy.countDown();
+        }
+
+        // slot released:
+        final ServiceJob next = submit(execMode, "next", listener);
+        execMode.waitStarted(1);
+        Assert.assertEquals(next.getInputFile(), execMode.getInputFile(0));
+        execMode.complete(next);
+        Assert.assertSame(next, listener.next());
+        Assert.assertEquals(ServiceJob.State.DONE, next.getState());
+    }
+
+    @Test
+    public void testCancelRunning() throws Exception {
+        final FakeExecutionMode execMode = new FakeExecutionMode(1);
+        final RecordingListener listener = new RecordingListener();
+
+        final ServiceJob running = submit(execMode, "running", listener);
+        final ServiceJob queued = submit(execMode, "queued", listener);
+        execMode.waitStarted(1);
+
+        // the execution mode aborts the execution:
+        Assert.assertTrue(running.cancel());
+        Assert.assertSame(running, listener.next());
+        Assert.assertEquals(ServiceJob.State.CANCELLED, running.getState());
+        Assert.assertTrue(running.getResult().isCancelled());
+
+        // slot released:
+        execMode.waitStarted(2);
+        Assert.assertEquals(queued.getInputFile(), execMode.getInputFile(1));
+        execMode.complete(queued);
+        Assert.assertSame(queued, listener.next());
+        Assert.assertEquals(ServiceJob.State.DONE, queued.getState());
+    }
+
+    @Test
+    public void testConvergedNotCancelled() throws Exception {
+        final FakeExecutionMode execMode = new FakeExecutionMode(1);
+        final RecordingListener listener = new SnapshotRecordingListener();
+
+        final File inputFile = File.createTempFile("converged", ".fits");
+        final File outputFile = new File(inputFile.getPath() + ServiceResult.RESULT_FILE_EXT);
+        try {
+            final ServiceJob job = submit(execMode, inputFile, listener);
+            execMode.waitStarted(1);
+            // output written before the process is stopped:
+            Assert.assertTrue(outputFile.createNewFile());
+
+            // stopped by the snapshot monitor:
+            job.stopConverged();
+            Assert.assertSame(job, listener.next());
+
+            Assert.assertEquals(ServiceJob.State.DONE, job.getState());
+            Assert.assertTrue(job.isConverged());
+            Assert.assertTrue(listener.done.contains(job));
+            Assert.assertTrue(listener.cancelled.isEmpty());
+
+            final ServiceResult result = job.getResult();
+            Assert.assertFalse(result.isCancelled());
+            Assert.assertTrue(result.isConverged());
+            Assert.assertNotNull(result.getConvergedReason());
+            Assert.assertNull(result.getErrorMessage());
+            Assert.assertTrue(result.isValid());
+        } finally {
+            inputFile.delete();
+            outputFile.delete();
+        }
+    }
+
+    @Test
+    public void testConvergedWithoutOutput() throws Exception {
+        final FakeExecutionMode execMode = new FakeExecutionMode(1);
+        final RecordingListener listener = new SnapshotRecordingListener();
+
+        final File inputFile = File.createTempFile("converged", ".fits");
+        final File outputFile = new File(inputFile.getPath() + ServiceResult.RESULT_FILE_EXT);
+        try {
+            Files.copy(new File(TEST_FILE).toPath(), inputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            final ServiceJob job = submit(execMode, inputFile, listener);
+            execMode.waitStarted(1);
+
+            // same intermediate image: the snapshot monitor stops the job (no output written):
+            final SnapshotWatcher.Listener snapshotListener = (SnapshotWatcher.Listener) execMode.logListeners.get(0);
+            for (int i = 0; i <= SnapshotMonitor.STABLE_SNAPSHOTS; i++) {
+                snapshotListener.snapshotAvailable(new File(TEST_FILE));
+            }
+            Assert.assertSame(job, listener.next());
+
+            Assert.assertEquals(ServiceJob.State.DONE, job.getState());
+            Assert.assertTrue(job.isConverged());
+
+            // the last intermediate image is the result:
+            final ServiceResult result = job.getResult();
+            Assert.assertFalse(result.isCancelled());
+            Assert.assertTrue(result.isConverged());
+            Assert.assertNull(result.getErrorMessage());
+            Assert.assertTrue(result.isValid());
+            Assert.assertTrue(outputFile.exists());
+
+            final OIFitsFile oiFitsFile = OIFitsLoader.loadOIFits(outputFile.getAbsolutePath());
+            Assert.assertTrue(oiFitsFile.getFitsImageHDUs().get(0).hasImages());
+            Assert.assertNotNull(oiFitsFile.getImageOiData().getExistingOutputParam());
+        } finally {
+            inputFile.delete();
+            outputFile.delete();
+        }
+    }
+
+    @Test
+    public void testStatusSetWhileSubmitting() throws Exception {
+        final FakeExecutionMode execMode = new FakeExecutionMode(1);
+        final StatusRecordingListener listener = new StatusRecordingListener();
+
+        // status set by submit() before the job registers its listener:
+        final ServiceJob job = submit(execMode, "status", listener);
+        execMode.waitStarted(1);
+        Assert.assertEquals(ExecutionStatus.EXECUTING, listener.statuses.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        execMode.complete(job);
+        Assert.assertSame(job, listener.next());
+    }
+
+    @Test
+    public void testSubmitFailure() throws Exception {
+        final FakeExecutionMode execMode = new FakeExecutionMode(1);
+        execMode.failure = new IllegalArgumentException("bad server URL");
+        final RecordingListener listener = new RecordingListener();
+
+        final ServiceJob failed = submit(execMode, "failed", listener);
+        Assert.assertSame(failed, listener.next());
+        Assert.assertEquals(ServiceJob.State.FAILED, failed.getState());
+        Assert.assertSame(execMode.failure, failed.getFailure());
+
+        // slot released:
+        execMode.failure = null;
+        final ServiceJob next = submit(execMode, "next", listener);
+        execMode.waitStarted(1);
+        execMode.complete(next);
+        Assert.assertSame(next, listener.next());
+        Assert.assertEquals(ServiceJob.State.DONE, next.getState());
+    }
+
+
+    private static ServiceJob submit(final FakeExecutionMode execMode, final String name, final ServiceJobListener listener) {
+        return submit(execMode, new File(name + ".fits"), listener);
+    }
+
+    private static ServiceJob submit(final FakeExecutionMode execMode, final File inputFile, final ServiceJobListener listener) {
+        final Service service = new Service("Fake", "fake", execMode, null, null);
+        return JobScheduler.getInstance().submit(service, null, inputFile, listener, true);
+    }
+
+    /**
+     * Execution mode giving executions completed (or aborted) by the test
+     */
+    private static final class FakeExecutionMode implements OImagingExecutionMode {
+
+        private final int maxJobs;
+        final List<ServiceExecution> started = new CopyOnWriteArrayList<ServiceExecution>();
+        /** execution listeners (log and snapshots) of started executions */
+        final List<LogTail.Listener> logListeners = new CopyOnWriteArrayList<LogTail.Listener>();
+        /** failure thrown by submit() or null */
+        volatile RuntimeException failure = null;
+
+        FakeExecutionMode(final int maxJobs) {
+            this.maxJobs = maxJobs;
+        }
+
+        @Override
+        public ServiceResult reconstructsImage(final String software, final String cliOptions, final File inputFile) {
+            return reconstructsImage(software, cliOptions, inputFile, null);
+        }
+
+        @Override
+        public ServiceResult reconstructsImage(final String software, final String cliOptions, final File inputFile,
+                                               final LogTail.Listener logListener) {
+            return submit(software, cliOptions, inputFile, logListener).await();
+        }
+
+        @Override
+        public ServiceExecution submit(final String software, final String cliOptions, final File inputFile,
+                                       final LogTail.Listener logListener) {
+            if (failure != null) {
+                throw failure;
+            }
+            final ServiceExecution execution = new ServiceExecution(new ServiceResult(inputFile,
+                    new File(inputFile.getPath() + ServiceResult.RESULT_FILE_EXT),
+                    new File(inputFile.getPath() + ServiceResult.LOG_FILE_EXT)));
+
+            execution.setStatus(ExecutionStatus.EXECUTING);
+            execution.setAbortHandler(new Runnable() {
+                @Override
+                public void run() {
+                    // as RemoteExecutionMode:
+                    execution.getResult().setErrorMessage("Cancelled job.");
+                    execution.getResult().setCancelled(true);
+                    execution.terminated();
+                }
+            });
+            logListeners.add(logListener);
+            started.add(execution);
+            return execution;
+        }
+
+        @Override
+        public int getMaxParallelJobs() {
+            return maxJobs;
+        }
+
+        @Override
+        public String getSoftwareIdentity(final String software) {
+            return "fake:" + software;
+        }
+
+        File getInputFile(final int index) {
+            return started.get(index).getResult().getInputFile();
+        }
+
+        void complete(final ServiceJob job) {
+            for (ServiceExecution execution : started) {
+                if (execution.getResult().getInputFile().equals(job.getInputFile())) {
+                    execution.terminated();
+                    return;
+                }
+            }
+            Assert.fail("Job not started: " + job);
+        }
+
+        void waitStarted(final int count) throws InterruptedException {
+            final long end = System.currentTimeMillis() + TIMEOUT;
+            while (started.size() < count) {
+                if (System.currentTimeMillis() > end) {
+                    Assert.fail("Timeout: " + started.size() + " / " + count + " jobs started");
+                }
+                Thread.sleep(10L);
+            }
+        }
+    }
+
+    /**
+     * Listener recording terminated jobs
+     */
+    private static class RecordingListener implements ServiceJobListener {
+
+        private final BlockingQueue<ServiceJob> terminated = new LinkedBlockingQueue<ServiceJob>();
+        final List<ServiceJob> done = new CopyOnWriteArrayList<ServiceJob>();
+        final List<ServiceJob> cancelled = new CopyOnWriteArrayList<ServiceJob>();
+
+        @Override
+        public void jobDone(final ServiceJob job, final ServiceResult result) {
+            done.add(job);
+            terminated.add(job);
+        }
+
+        @Override
+        public void jobCancelled(final ServiceJob job, final ServiceResult result) {
+            cancelled.add(job);
+            terminated.add(job);
+        }
+
+        @Override
+        public void jobFailed(final ServiceJob job, final Exception e) {
+            terminated.add(job);
+        }
+
+        ServiceJob next() throws InterruptedException {
+            final ServiceJob job = terminated.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            Assert.assertNotNull("Timeout: no job terminated", job);
+            return job;
+        }
+    }
+
+    /**
+     * Listener recording terminated jobs and execution status changes
+     */
+    private static final class StatusRecordingListener extends RecordingListener implements ServiceStatusListener {
+
+        final BlockingQueue<ExecutionStatus> statuses = new LinkedBlockingQueue<ExecutionStatus>();
+
+        @Override
+        public void statusChanged(final ServiceJob job, final ExecutionStatus status) {
+            statuses.add(status);
+        }
+    }
+
+    /**
+     * Listener recording terminated jobs and monitoring their snapshots (convergence)
+     */
+    private static final class SnapshotRecordingListener extends RecordingListener implements ServiceSnapshotListener {
+
+        @Override
+        public void snapshotLoaded(final ServiceJob job, final FitsImageHDU hdu, final int index, final double change) {
+            // no snapshot
+        }
+
+        @Override
+        public double getConvergenceThreshold() {
+            return 1e-3;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test LogTail on a growing local file and on a local stand-in UWS server (partial log result)
+ */
+public class LogTailTest {
+
+    protected static final Logger logger = LoggerFactory.getLogger(LogTailTest.class.getName());
+
+    private static final String JOB_ID = "1";
+    private static final long PERIOD = 100L;
+    /** log lines (with multi-byte characters to check chunk decoding) */
+    private static final String[] LINES = new String[]{
+        "iter 1: chi2 = 12.5\n", "iter 2: chi2 = 8.1 \u00b5\n", "iter 3: chi2 = 4.2 \u00b0 ok\n", "done.\n"
+    };
+
+    @Test
+    public void testLocalFile() throws Exception {
+        final File file = File.createTempFile("LogTailTest", ".log.txt");
+        file.deleteOnExit();
+
+        final ChunkCollector collector = new ChunkCollector();
+        final LogTail tail = new LogTail(new LogTail.FileSource(file), collector, PERIOD);
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (String line : LINES) {
+                final byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                // write in 2 parts to split multi-byte characters:
+                out.write(bytes, 0, bytes.length / 2);
+                out.flush();
+                Thread.sleep(3 * PERIOD);
+                out.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+                out.flush();
+                Thread.sleep(3 * PERIOD);
+            }
+        }
+        // chunks arrive while the file is written:
+        Assert.assertTrue("chunks: " + collector.getChunkCount(), collector.getChunkCount() >= LINES.length);
+        tail.stop();
+
+        Assert.assertEquals(join(LINES), collector.getText());
+    }
+
+    @Test
+    public void testRemoteRange() throws Exception {
+        testRemote(true);
+    }
+
+    @Test
+    public void testRemoteFullContent() throws Exception {
+        testRemote(false);
+    }
+
+    private void testRemote(final boolean supportsRange) throws Exception {
+        final StandInLogServer server = new StandInLogServer(supportsRange);
+        try {
+            final ChunkCollector collector = new ChunkCollector();
+            final LogTail tail = new LogTail(new LogTail.UwsSource(server.getClient(), JOB_ID), collector, PERIOD);
+
+            // log not available yet:
+            Thread.sleep(3 * PERIOD);
+            Assert.assertEquals(0, collector.getChunkCount());
+
+            for (String line : LINES) {
+                server.append(line);
+                Thread.sleep(3 * PERIOD);
+                // each line is received within a few polling periods:
+                Assert.assertTrue(collector.getText().endsWith(line));
+            }
+            tail.stop();
+
+            Assert.assertEquals(join(LINES), collector.getText());
+            logger.info("remote (range = {}): {} requests, {} bytes sent", supportsRange, server.requests, server.getBytesSent());
+            if (supportsRange) {
+                // only appended bytes are transferred:
+                Assert.assertEquals(join(LINES).getBytes(StandardCharsets.UTF_8).length, server.getBytesSent());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static String join(final String[] lines) {
+        final StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line);
+        }
+        return sb.toString();
+    }
+
+    private static final class ChunkCollector implements LogTail.Listener {
+
+        private final List<String> chunks = new ArrayList<String>();
+
+        @Override
+        public synchronized void logAppended(final String chunk) {
+            chunks.add(chunk);
+        }
+
+        synchronized int getChunkCount() {
+            return chunks.size();
+        }
+
+        synchronized String getText() {
+            final StringBuilder sb = new StringBuilder();
+            for (String chunk : chunks) {
+                sb.append(chunk);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Minimal UWS server giving the growing log file of one job ({job}/results/logfile)
+     */
+    private static final class StandInLogServer extends StandInHttpServer {
+
+        private static final String CONTENT_TYPE = "text/plain; charset=UTF-8";
+
+        private final boolean supportsRange;
+        /** log content (null until the first append) */
+        private byte[] content = null;
+        int requests = 0;
+
+        StandInLogServer(final boolean supportsRange) throws IOException {
+            this.supportsRange = supportsRange;
+            start();
+        }
+
+        synchronized void append(final String text) {
+            final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            if (content == null) {
+                content = bytes;
+            } else {
+                final byte[] newContent = Arrays.copyOf(content, content.length + bytes.length);
+                System.arraycopy(bytes, 0, newContent, content.length, bytes.length);
+                content = newContent;
+            }
+        }
+
+        @Override
+        public synchronized void handle(final HttpExchange exchange) throws IOException {
+            requests++;
+            final String path = exchange.getRequestURI().getPath();
+            final String logPath = ROOT + RemoteExecutionMode.SERVICE_PATH + '/' + JOB_ID + "/results/" + LogTail.RESULT_LOGFILE;
+
+            if (!path.equals(logPath) || content == null) {
+                send(exchange, 404, CONTENT_TYPE, new byte[0]);
+                return;
+            }
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            if (supportsRange && range != null && range.startsWith("bytes=")) {
+                final String spec = range.substring("bytes=".length());
+                final int start = Integer.parseInt(spec.substring(0, spec.indexOf('-')));
+                if (start >= content.length) {
+                    exchange.getResponseHeaders().add("Content-Range", "bytes */" + content.length);
+                    send(exchange, 416, CONTENT_TYPE, new byte[0]);
+                    return;
+                }
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + (content.length - 1) + "/" + content.length);
+                send(exchange, 206, CONTENT_TYPE, Arrays.copyOfRange(content, start, content.length));
+            } else {
+                send(exchange, 200, CONTENT_TYPE, content);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test ParameterSweep (specification parsing, ranges, expansion and size limit)
+ */
+public class ParameterSweepTest {
+
+    private static final double EPSILON = 1e-9;
+
+    @Test
+    public void testParseValues() {
+        final ParameterSweep sweep = ParameterSweep.parse(" rgl_name = compactness, hyperbolic ;MAXITER=50,100,");
+
+        final List<ParameterSweep.Axis> axes = sweep.getAxes();
+        Assert.assertEquals(2, axes.size());
+        Assert.assertEquals("RGL_NAME", axes.get(0).getKeyword());
+        Assert.assertEquals(Arrays.<Object>asList("compactness", "hyperbolic"), axes.get(0).getValues());
+        Assert.assertEquals("MAXITER", axes.get(1).getKeyword());
+        Assert.assertEquals(Arrays.<Object>asList(Integer.valueOf(50), Integer.valueOf(100)), axes.get(1).getValues());
+        Assert.assertEquals(4, sweep.size());
+    }
+
+    @Test
+    public void testParseLinearRange() {
+        final List<Object> values = ParameterSweep.parse("FOV=10:20:5").getAxes().get(0).getValues();
+
+        Assert.assertEquals(5, values.size());
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(10.0 + 2.5 * i, ((Double) values.get(i)).doubleValue(), EPSILON);
+        }
+    }
+
+    @Test
+    public void testParseLogRange() {
+        final List<Object> values = ParameterSweep.parse("RGL_WGT=1e-3:1e3:7:LOG").getAxes().get(0).getValues();
+
+        Assert.assertEquals(7, values.size());
+        for (int i = 0; i < 7; i++) {
+            final double expected = Math.pow(10.0, i - 3);
+            Assert.assertEquals(expected, ((Double) values.get(i)).doubleValue(), expected * EPSILON);
+        }
+    }
+
+    @Test
+    public void testSingleStep() {
+        final List<Object> values = ParameterSweep.parse("FOV=12:20:1").getAxes().get(0).getValues();
+
+        Assert.assertEquals(Arrays.<Object>asList(Double.valueOf(12.0)), values);
+    }
+
+    @Test
+    public void testExpand() {
+        final List<Map<String, Object>> points = ParameterSweep.parse("A=1,2;B=x,y,z").expand();
+
+        Assert.assertEquals(6, points.size());
+        // last axis varies the fastest:
+        Assert.assertEquals(Integer.valueOf(1), points.get(0).get("A"));
+        Assert.assertEquals("x", points.get(0).get("B"));
+        Assert.assertEquals(Integer.valueOf(1), points.get(2).get("A"));
+        Assert.assertEquals("z", points.get(2).get("B"));
+        Assert.assertEquals(Integer.valueOf(2), points.get(3).get("A"));
+        Assert.assertEquals("x", points.get(3).get("B"));
+        Assert.assertEquals(Arrays.asList("A", "B"), Arrays.asList(points.get(5).keySet().toArray()));
+    }
+
+    @Test
+    public void testInvalidSpecifications() {
+        for (String spec : new String[]{
+            null, "", " ; ", "RGL_WGT", "=1,2", "FOV=", "FOV=1:2", "FOV=1:2:3:log:x",
+            "FOV=a:2:3", "FOV=1:2:x", "FOV=1:2:0", "RGL_WGT=0:1:3:log", "RGL_WGT=-1:1:3:log"
+        }) {
+            try {
+                ParameterSweep.parse(spec);
+                Assert.fail("IllegalArgumentException expected for '" + spec + "'");
+            } catch (IllegalArgumentException iae) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testTooManyPoints() throws Exception {
+        final ParameterSweep sweep = ParameterSweep.parse("A=1:2:10;B=1:2:10;C=1:2:11");
+        Assert.assertEquals(1100, sweep.size());
+        Assert.assertTrue(sweep.size() > ParameterSweep.MAX_POINTS);
+
+        try {
+            // rejected before any model access:
+            sweep.prepare(null);
+            Assert.fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException iae) {
+            Assert.assertTrue(iae.getMessage(), iae.getMessage().contains(String.valueOf(ParameterSweep.MAX_POINTS)));
+        }
+    }
+}
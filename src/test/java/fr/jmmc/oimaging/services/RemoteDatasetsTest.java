@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import fr.cnes.sitools.extensions.astro.application.uws.client.ClientUWS;
+import fr.cnes.sitools.extensions.astro.application.uws.client.ClientUWSException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test RemoteDatasets (data tables uploaded once, continuation runs sending only parameters and images)
+ * against a local stand-in UWS server
+ */
+public class RemoteDatasetsTest {
+
+    protected static final Logger logger = LoggerFactory.getLogger(RemoteDatasetsTest.class.getName());
+
+    private static final int BLOCK_LENGTH = 2880;
+    /** data table row count (~ 1 MB) */
+    private static final int DATA_ROWS = 4000;
+
+    private StandInUwsServer server = null;
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testSplitAndMerge() throws Exception {
+        final File inputFile = createInput("split", 1);
+
+        final List<RemoteDatasets.Hdu> hdus = RemoteDatasets.scan(inputFile);
+        Assert.assertEquals(5, hdus.size());
+        Assert.assertEquals("OI_TARGET", hdus.get(1).extName);
+        Assert.assertTrue(hdus.get(2).isData());
+        Assert.assertFalse(hdus.get(3).isData());
+        Assert.assertFalse(hdus.get(4).isData());
+
+        server = new StandInUwsServer(true);
+        final RemoteDatasets datasets = new RemoteDatasets();
+        final RemoteDatasets.Dataset dataset = datasets.prepare(server.getClient(), inputFile);
+        Assert.assertNotNull(dataset);
+
+        // the server rebuilds the original input file:
+        final File mergedFile = File.createTempFile("RemoteDatasetsTest", ".fits");
+        mergedFile.deleteOnExit();
+        DatasetMerger.merge(dataset.deltaFile, server.getDatasetFile(dataset.hash), mergedFile);
+
+        Assert.assertArrayEquals(Files.readAllBytes(inputFile.toPath()), Files.readAllBytes(mergedFile.toPath()));
+    }
+
+    @Test
+    public void testUploadOnce() throws Exception {
+        server = new StandInUwsServer(true);
+        final ClientUWS client = server.getClient();
+        final RemoteDatasets datasets = new RemoteDatasets();
+
+        final File firstInput = createInput("first", 1);
+        final File nextInput = createInput("next", 2);
+
+        final RemoteDatasets.Dataset first = datasets.prepare(client, firstInput);
+        Assert.assertNotNull(first);
+        Assert.assertEquals("42", client.createJob(RemoteExecutionMode.createForm("test", null, firstInput, first, ResourceLimits.forProgram("test"))));
+
+        // continuation: same data, new init image:
+        final RemoteDatasets.Dataset next = datasets.prepare(client, nextInput);
+        Assert.assertNotNull(next);
+        Assert.assertEquals(first.hash, next.hash);
+        Assert.assertEquals("42", client.createJob(RemoteExecutionMode.createForm("test", null, nextInput, next, ResourceLimits.forProgram("test"))));
+
+        logger.info("job requests: {} bytes, data: {} bytes", server.lastJobSize.get(), first.dataSize);
+
+        Assert.assertEquals(1, server.uploadRequests.get());
+        Assert.assertEquals(2, server.jobRequests.get());
+        Assert.assertEquals(first.hash, server.lastDatasetRef);
+        // only the primary HDU, parameters and image are sent:
+        Assert.assertTrue(server.lastJobSize.get() < first.dataSize / 10);
+    }
+
+    @Test
+    public void testDatasetStoredByPreviousSession() throws Exception {
+        server = new StandInUwsServer(true);
+        final File inputFile = createInput("previous", 1);
+
+        Assert.assertNotNull(new RemoteDatasets().prepare(server.getClient(), inputFile));
+        // new session (empty local state):
+        Assert.assertNotNull(new RemoteDatasets().prepare(server.getClient(), inputFile));
+
+        Assert.assertEquals(1, server.uploadRequests.get());
+    }
+
+    @Test
+    public void testDatasetForgotten() throws Exception {
+        server = new StandInUwsServer(true);
+        final ClientUWS client = server.getClient();
+        final RemoteDatasets datasets = new RemoteDatasets();
+        final File inputFile = createInput("forgotten", 1);
+
+        final RemoteDatasets.Dataset dataset = datasets.prepare(client, inputFile);
+        // the server purged its datasets:
+        server.datasets.clear();
+        try {
+            client.createJob(RemoteExecutionMode.createForm("test", null, inputFile, dataset, ResourceLimits.forProgram("test")));
+            Assert.fail("createJob should fail");
+        } catch (ClientUWSException cue) {
+            logger.info("rejected: {}", cue.getMessage());
+        }
+        datasets.forget(client, dataset);
+
+        Assert.assertNotNull(datasets.prepare(client, inputFile));
+        Assert.assertEquals(2, server.uploadRequests.get());
+    }
+
+    @Test
+    public void testServerWithoutDatasets() throws Exception {
+        server = new StandInUwsServer(false);
+        final File inputFile = createInput("legacy", 1);
+
+        // full input file sent:
+        Assert.assertNull(new RemoteDatasets().prepare(server.getClient(), inputFile));
+        Assert.assertEquals(0, server.uploadRequests.get());
+    }
+
+    /**
+     * Create an input file: primary HDU, 2 data tables, IMAGE-OI INPUT PARAM table and the init image
+     * @param name file name prefix
+     * @param seed image content
+     */
+    private static File createInput(final String name, final int seed) throws IOException {
+        final File file = File.createTempFile("RemoteDatasetsTest-" + name, ".fits");
+        file.deleteOnExit();
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            writeHeader(out, "SIMPLE  =                    T", "BITPIX  =                    8", "NAXIS   =                    0",
+                    "EXTEND  =                    T", "DATE    = '2024-01-0" + seed + "'");
+            writeTable(out, "OI_TARGET", 100, 1, 1);
+            writeTable(out, "OI_VIS2", 256, DATA_ROWS, 2);
+            writeTable(out, "IMAGE-OI INPUT PARAM", 0, 0, 0);
+            writeHeader(out, "XTENSION= 'IMAGE   '", "BITPIX  =                  -32", "NAXIS   =                    2",
+                    "NAXIS1  =                   32", "NAXIS2  =                   32", "PCOUNT  =                    0",
+                    "GCOUNT  =                    1", "EXTNAME = 'INIT_IMG' / init image " + seed);
+            writeData(out, 32 * 32 * 4, seed);
+        }
+        return file;
+    }
+
+    private static void writeTable(final OutputStream out, final String extName, final int rowLength, final int rows,
+                                   final int seed) throws IOException {
+        writeHeader(out, "XTENSION= 'BINTABLE'", "BITPIX  =                    8", "NAXIS   =                    2",
+                String.format("NAXIS1  = %20d", rowLength), String.format("NAXIS2  = %20d", rows),
+                "PCOUNT  =                    0", "GCOUNT  =                    1", "EXTNAME = '" + extName + "'");
+        writeData(out, rowLength * rows, seed);
+    }
+
+    private static void writeHeader(final OutputStream out, final String... cards) throws IOException {
+        final StringBuilder sb = new StringBuilder(BLOCK_LENGTH);
+        for (String card : cards) {
+            sb.append(String.format("%-80s", card));
+        }
+        sb.append(String.format("%-80s", "END"));
+        while (sb.length() % BLOCK_LENGTH != 0) {
+            sb.append(' ');
+        }
+        out.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void writeData(final OutputStream out, final int length, final int seed) throws IOException {
+        final byte[] data = new byte[((length + BLOCK_LENGTH - 1) / BLOCK_LENGTH) * BLOCK_LENGTH];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * seed);
+        }
+        out.write(data);
+    }
+
+    /**
+     * Minimal UWS server storing datasets (optional) and accepting new jobs
+     */
+    private static final class StandInUwsServer extends StandInHttpServer {
+
+        private final boolean supportsDatasets;
+        final Map<String, byte[]> datasets = new ConcurrentHashMap<String, byte[]>();
+        final AtomicInteger uploadRequests = new AtomicInteger(0);
+        final AtomicInteger jobRequests = new AtomicInteger(0);
+        final AtomicInteger lastJobSize = new AtomicInteger(0);
+        volatile String lastDatasetRef = null;
+
+        StandInUwsServer(final boolean supportsDatasets) throws IOException {
+            this.supportsDatasets = supportsDatasets;
+            start();
+        }
+
+        File getDatasetFile(final String hash) throws IOException {
+            final File file = File.createTempFile("RemoteDatasetsTest-dataset", ".fits");
+            file.deleteOnExit();
+            Files.write(file.toPath(), datasets.get(hash));
+            return file;
+        }
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            final String path = exchange.getRequestURI().getPath();
+            final String method = exchange.getRequestMethod();
+            final String datasetsPath = ROOT + RemoteDatasets.DATASETS_PATH;
+            final byte[] body = readBody(exchange.getRequestBody());
+
+            if (path.startsWith(datasetsPath) && supportsDatasets) {
+                final String hash = (path.length() > datasetsPath.length() + 1) ? path.substring(datasetsPath.length() + 1) : null;
+
+                if (hash == null) {
+                    send(exchange, 200, "text/plain", "");
+                } else if ("PUT".equals(method)) {
+                    uploadRequests.incrementAndGet();
+                    if (!hash.equals(sha256(body))) {
+                        send(exchange, 400, "text/plain", "hash mismatch");
+                        return;
+                    }
+                    datasets.put(hash, body);
+                    send(exchange, 201, "text/plain", "");
+                } else {
+                    send(exchange, datasets.containsKey(hash) ? 200 : 404, "text/plain", "");
+                }
+            } else if (path.equals(ROOT + RemoteExecutionMode.SERVICE_PATH) && "POST".equals(method)) {
+                jobRequests.incrementAndGet();
+                lastJobSize.set(body.length);
+
+                final String ref = getField(new String(body, StandardCharsets.ISO_8859_1), RemoteDatasets.FIELD_DATASET_REF);
+                if (ref != null && !datasets.containsKey(ref)) {
+                    send(exchange, 404, "text/plain", "unknown dataset: " + ref);
+                    return;
+                }
+                lastDatasetRef = ref;
+                exchange.getResponseHeaders().add("Location", getClient().getServerURL() + RemoteExecutionMode.SERVICE_PATH + "/42");
+                send(exchange, 303, "text/plain", "");
+            } else {
+                send(exchange, 404, "text/plain", "not found: " + path);
+            }
+        }
+
+        private static String getField(final String multipart, final String name) {
+            final int pos = multipart.indexOf("name=\"" + name + "\"");
+            if (pos == -1) {
+                return null;
+            }
+            final int start = multipart.indexOf("\r\n\r\n", pos) + 4;
+            return multipart.substring(start, multipart.indexOf("\r\n", start));
+        }
+
+        private static String sha256(final byte[] bytes) {
+            try {
+                return ResultCache.toHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
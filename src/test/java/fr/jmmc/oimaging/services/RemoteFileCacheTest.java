@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test RemoteFileCache (conditional requests, shared fetches, LRU eviction)
+ * against a local stand-in HTTP server
+ */
+public class RemoteFileCacheTest {
+
+    protected static final Logger logger = LoggerFactory.getLogger(RemoteFileCacheTest.class.getName());
+
+    private static final long MAX_SIZE = 1024L * 1024L;
+
+    private StandInFileServer server = null;
+    private File cacheDir = null;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDir = Files.createTempDirectory("RemoteFileCacheTest").toFile();
+        server = new StandInFileServer();
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+        if (cacheDir != null) {
+            final File[] files = cacheDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            cacheDir.delete();
+        }
+    }
+
+    @Test
+    public void testRevalidation() throws Exception {
+        final RemoteFileCache cache = new RemoteFileCache(cacheDir, MAX_SIZE);
+        final String url = server.put("/data/night1.fits", createContent(1000, 1), true);
+
+        final File first = cache.get(url);
+        Assert.assertArrayEquals(server.getContent("/data/night1.fits"), Files.readAllBytes(first.toPath()));
+        Assert.assertEquals(1, cache.getDownloads());
+
+        // not modified (ETag):
+        final File second = cache.get(url);
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getDownloads());
+        Assert.assertEquals(2, server.requests.get());
+        Assert.assertEquals(1, server.notModified.get());
+
+        // modified on the server:
+        server.put("/data/night1.fits", createContent(1000, 2), true);
+        final File third = cache.get(url);
+        Assert.assertArrayEquals(server.getContent("/data/night1.fits"), Files.readAllBytes(third.toPath()));
+        Assert.assertEquals(2, cache.getDownloads());
+
+        logger.info("testRevalidation: {}", cache.getStatistics());
+        Assert.assertEquals(1.0 / 3.0, cache.getHitRatio(), 1e-9);
+    }
+
+    @Test
+    public void testLastModified() throws Exception {
+        final String url = server.put("/data/night2.fits", createContent(500, 3), false);
+
+        new RemoteFileCache(cacheDir, MAX_SIZE).get(url);
+
+        // new session (entries restored from the cache directory):
+        final RemoteFileCache cache = new RemoteFileCache(cacheDir, MAX_SIZE);
+        Assert.assertEquals(1, cache.getEntryCount());
+        cache.get(url);
+
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(0, cache.getDownloads());
+        Assert.assertEquals(1, server.notModified.get());
+    }
+
+    @Test
+    public void testSharedFetch() throws Exception {
+        final RemoteFileCache cache = new RemoteFileCache(cacheDir, MAX_SIZE);
+        final String url = server.put("/data/slow.fits", createContent(2000, 4), true);
+        server.delay = new CountDownLatch(1);
+
+        final int nRequests = 4;
+        final ExecutorService executor = Executors.newFixedThreadPool(nRequests);
+        try {
+            final List<Future<File>> futures = new ArrayList<Future<File>>(nRequests);
+            for (int i = 0; i < nRequests; i++) {
+                futures.add(executor.submit(new Callable<File>() {
+                    @Override
+                    public File call() throws IOException {
+                        return cache.get(url);
+                    }
+                }));
+            }
+            // let all requests wait for the first fetch:
+            while (cache.getShared() < nRequests - 1) {
+                Thread.sleep(10L);
+            }
+            server.delay.countDown();
+
+            for (Future<File> future : futures) {
+                Assert.assertTrue(future.get(10L, TimeUnit.SECONDS).exists());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, server.requests.get());
+        Assert.assertEquals(1, cache.getDownloads());
+        Assert.assertEquals(nRequests - 1, cache.getShared());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        // room for 2 files:
+        final RemoteFileCache cache = new RemoteFileCache(cacheDir, 2500L);
+        final String url1 = server.put("/data/a.fits", createContent(1000, 5), true);
+        final String url2 = server.put("/data/b.fits", createContent(1000, 6), true);
+        final String url3 = server.put("/data/c.fits", createContent(1000, 7), true);
+
+        cache.get(url1);
+        cache.get(url2);
+        // url1 most recently used:
+        cache.get(url1);
+        cache.get(url3);
+
+        Assert.assertEquals(2, cache.getEntryCount());
+        Assert.assertTrue(cache.getSize() <= 2500L);
+
+        // url2 evicted, url1 still cached:
+        cache.get(url1);
+        cache.get(url2);
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(4, cache.getDownloads());
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotFound() throws Exception {
+        new RemoteFileCache(cacheDir, MAX_SIZE).get(server.getURL("/data/missing.fits"));
+    }
+
+    private static byte[] createContent(final int length, final int seed) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + seed);
+        }
+        return bytes;
+    }
+
+    /**
+     * Minimal HTTP server giving static files with ETag or Last-Modified validators
+     */
+    private static final class StandInFileServer extends StandInHttpServer {
+
+        private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+        private final Map<String, byte[]> contents = new ConcurrentHashMap<String, byte[]>();
+        private final Map<String, String> etags = new ConcurrentHashMap<String, String>();
+        private final AtomicInteger version = new AtomicInteger(0);
+        final AtomicInteger requests = new AtomicInteger(0);
+        final AtomicInteger notModified = new AtomicInteger(0);
+        volatile CountDownLatch delay = null;
+
+        StandInFileServer() throws IOException {
+            super("/");
+            start();
+        }
+
+        String put(final String path, final byte[] content, final boolean useETag) {
+            contents.put(path, content);
+            if (useETag) {
+                etags.put(path, "\"v" + version.incrementAndGet() + "\"");
+            } else {
+                etags.remove(path);
+            }
+            return getURL(path);
+        }
+
+        byte[] getContent(final String path) {
+            return contents.get(path);
+        }
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            final String path = exchange.getRequestURI().getPath();
+            final byte[] content = contents.get(path);
+
+            final CountDownLatch latch = delay;
+            if (latch != null) {
+                try {
+                    latch.await(10L, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (content == null) {
+                send(exchange, 404, null, new byte[0]);
+                return;
+            }
+            final String etag = etags.get(path);
+            final boolean unchanged;
+            if (etag != null) {
+                exchange.getResponseHeaders().add("ETag", etag);
+                unchanged = etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"));
+            } else {
+                exchange.getResponseHeaders().add("Last-Modified", LAST_MODIFIED);
+                unchanged = LAST_MODIFIED.equals(exchange.getRequestHeaders().getFirst("If-Modified-Since"));
+            }
+            if (unchanged) {
+                notModified.incrementAndGet();
+                send(exchange, 304, null, new byte[0]);
+            } else {
+                send(exchange, 200, null, content);
+            }
+        }
+    }
+}
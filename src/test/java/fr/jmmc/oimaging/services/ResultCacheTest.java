@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test ResultCache (cache key and LRU eviction)
+ */
+public class ResultCacheTest {
+
+    /** FITS block size */
+    private static final int BLOCK_SIZE = 2880;
+    /** size of one cached result file */
+    private static final int RESULT_SIZE = 1000;
+
+    private File tmpDir = null;
+    private File cacheDir = null;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("ResultCacheTest").toFile();
+        cacheDir = new File(tmpDir, "cache");
+    }
+
+    @After
+    public void tearDown() {
+        delete(tmpDir);
+    }
+
+    @Test
+    public void testKeyIgnoresDate() throws IOException {
+        final File input1 = writeFits("input1.fits", "DATE    = '2026-10-18T10:00:00'", "OBJECT  = 'HD 1234'");
+        final File input2 = writeFits("input2.fits", "DATE    = '2026-10-18T11:30:00'", "OBJECT  = 'HD 1234'");
+
+        Assert.assertEquals(ResultCache.computeKey("local:mira", "-pixelsize=0.1", input1),
+                ResultCache.computeKey("local:mira", "-pixelsize=0.1", input2));
+        // cli options are trimmed:
+        Assert.assertEquals(ResultCache.computeKey("local:mira", "-pixelsize=0.1", input1),
+                ResultCache.computeKey("local:mira", " -pixelsize=0.1 ", input2));
+    }
+
+    @Test
+    public void testKeyChanges() throws IOException {
+        final File input = writeFits("input.fits", "DATE    = '2026-10-18T10:00:00'", "OBJECT  = 'HD 1234'");
+        final File other = writeFits("other.fits", "DATE    = '2026-10-18T10:00:00'", "OBJECT  = 'HD 5678'");
+
+        final String key = ResultCache.computeKey("local:mira", null, input);
+
+        // content:
+        Assert.assertFalse(key.equals(ResultCache.computeKey("local:mira", null, other)));
+        // cli options:
+        Assert.assertFalse(key.equals(ResultCache.computeKey("local:mira", "-verb=1", input)));
+        // execution mode or server:
+        Assert.assertFalse(key.equals(ResultCache.computeKey("remote:mira|http://oimaging.jmmc.fr/OImaging-uws/", null, input)));
+        // software version (installed program):
+        Assert.assertFalse(key.equals(ResultCache.computeKey("local:/usr/bin/mira|1000|1", null, input)));
+        Assert.assertFalse(ResultCache.computeKey("local:/usr/bin/mira|1000|1", null, input)
+                .equals(ResultCache.computeKey("local:/usr/bin/mira|1000|2", null, input)));
+    }
+
+    @Test
+    public void testLruEviction() throws IOException {
+        // room for 2 results:
+        final ResultCache cache = new ResultCache(cacheDir, 5L * RESULT_SIZE / 2L);
+
+        cache.store("a", createResult("a"));
+        cache.store("b", createResult("b"));
+        Assert.assertEquals(2, cache.getEntryCount());
+        Assert.assertEquals(2L * RESULT_SIZE, cache.getSize());
+
+        // a becomes the most recently used entry:
+        final ServiceResult hit = lookup(cache, "a");
+        Assert.assertNotNull(hit);
+        Assert.assertTrue(hit.isValid());
+        Assert.assertTrue(hit.isFromCache());
+
+        // b is evicted:
+        cache.store("c", createResult("c"));
+        Assert.assertEquals(2, cache.getEntryCount());
+        Assert.assertEquals(2L * RESULT_SIZE, cache.getSize());
+        Assert.assertNull(lookup(cache, "b"));
+        Assert.assertNotNull(lookup(cache, "a"));
+        Assert.assertNotNull(lookup(cache, "c"));
+
+        Assert.assertEquals(3L, cache.getHits());
+        Assert.assertEquals(1L, cache.getMisses());
+    }
+
+    @Test
+    public void testInvalidResultNotStored() throws IOException {
+        final ResultCache cache = new ResultCache(cacheDir, 10L * RESULT_SIZE);
+
+        final ServiceResult cancelled = createResult("cancelled");
+        cancelled.setCancelled(true);
+        cache.store("cancelled", cancelled);
+
+        final ServiceResult invalid = createResult("invalid");
+        invalid.setValid(false);
+        cache.store("invalid", invalid);
+
+        Assert.assertEquals(0, cache.getEntryCount());
+    }
+
+    private ServiceResult lookup(final ResultCache cache, final String key) {
+        final ServiceResult result = cache.lookup(key, new File(tmpDir, key + "-lookup.fits"));
+        if (result != null) {
+            result.getOifitsResultFile().delete();
+            result.getExecutionLogResultFile().delete();
+        }
+        return result;
+    }
+
+    private ServiceResult createResult(final String name) throws IOException {
+        final File inputFile = new File(tmpDir, name + ".fits");
+        final ServiceResult result = new ServiceResult(inputFile,
+                new File(tmpDir, name + ServiceResult.RESULT_FILE_EXT),
+                new File(tmpDir, name + ServiceResult.LOG_FILE_EXT));
+
+        final byte[] content = new byte[RESULT_SIZE];
+        Arrays.fill(content, (byte) name.charAt(0));
+        Files.write(result.getOifitsResultFile().toPath(), content);
+        result.setValid(true);
+        return result;
+    }
+
+    private File writeFits(final String name, final String... cards) throws IOException {
+        final StringBuilder sb = new StringBuilder(BLOCK_SIZE);
+        appendCard(sb, "SIMPLE  =                    T");
+        for (String card : cards) {
+            appendCard(sb, card);
+        }
+        appendCard(sb, "END");
+        while (sb.length() % BLOCK_SIZE != 0) {
+            sb.append(' ');
+        }
+        final File file = new File(tmpDir, name);
+        Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    private static void appendCard(final StringBuilder sb, final String card) {
+        sb.append(card);
+        for (int i = card.length(); i < 80; i++) {
+            sb.append(' ');
+        }
+    }
+
+    private static void delete(final File file) {
+        if (file != null) {
+            final File[] files = file.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    delete(child);
+                }
+            }
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import fr.jmmc.oimaging.model.IRModel;
+import fr.jmmc.oitools.image.ImageOiOutputParam;
+import fr.jmmc.oitools.meta.OIFitsStandard;
+import fr.jmmc.oitools.model.OIFitsFile;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test ResultStore (weighted LRU) and the reload of evicted result payloads (edited output keywords restored)
+ */
+public class ResultStoreTest {
+
+    /** OIFits test file (with output parameters) */
+    private static final String TEST_FILE = "src/test/resources/Bin_Ary--MIRC_H_with_img.fits";
+
+    private File tmpDir = null;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("ResultStoreTest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = tmpDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        tmpDir.delete();
+    }
+
+    @Test
+    public void testWeightedLru() {
+        // room for 2.5 payloads of weight 1000:
+        final ResultStore store = new ResultStore(2500L);
+
+        final ServiceResult r1 = createResult("r1");
+        final ServiceResult r2 = createResult("r2");
+        final ServiceResult r3 = createResult("r3");
+        final OIFitsFile f1 = new OIFitsFile(OIFitsStandard.VERSION_1);
+        final OIFitsFile f2 = new OIFitsFile(OIFitsStandard.VERSION_1);
+        final OIFitsFile f3 = new OIFitsFile(OIFitsStandard.VERSION_1);
+
+        store.put(r1, f1, 1000L);
+        store.put(r2, f2, 1000L);
+        Assert.assertEquals(2000L, store.getUsage());
+
+        // r1 becomes the most recently used:
+        Assert.assertSame(f1, store.get(r1));
+
+        // r2 is evicted:
+        store.put(r3, f3, 1000L);
+        Assert.assertNull(store.get(r2));
+        Assert.assertSame(f1, store.get(r1));
+        Assert.assertSame(f3, store.get(r3));
+        Assert.assertEquals(2, store.getResidentCount());
+        Assert.assertEquals(2000L, store.getUsage());
+
+        // weight updated in place:
+        store.put(r3, f3, 1500L);
+        Assert.assertEquals(2500L, store.getUsage());
+        Assert.assertEquals(2, store.getResidentCount());
+
+        // heavier than the budget: kept alone
+        final ServiceResult r4 = createResult("r4");
+        final OIFitsFile f4 = new OIFitsFile(OIFitsStandard.VERSION_1);
+        store.put(r4, f4, 5000L);
+        Assert.assertSame(f4, store.get(r4));
+        Assert.assertEquals(1, store.getResidentCount());
+        Assert.assertEquals(5000L, store.getUsage());
+
+        store.remove(r4);
+        Assert.assertEquals(0, store.getResidentCount());
+        Assert.assertEquals(0L, store.getUsage());
+    }
+
+    @Test
+    public void testReloadRestoresEditedKeywords() throws Exception {
+        final ServiceResult result = createResult("reload");
+        Files.copy(new File(TEST_FILE).toPath(), result.getOifitsResultFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        result.loadOIFitsFile();
+        final OIFitsFile loaded = result.getOifitsFile();
+        Assert.assertNotNull(loaded);
+
+        // output keywords edited in memory (result table):
+        final ImageOiOutputParam outputParam = result.getOutputParam();
+        Assert.assertNotNull(outputParam);
+        outputParam.addKeyword(IRModel.KEYWORD_RATING);
+        outputParam.setKeywordValue(IRModel.KEYWORD_RATING.getName(), Integer.valueOf(4));
+        outputParam.addKeyword(IRModel.KEYWORD_OIMAGING_COMMENT);
+        outputParam.setKeywordValue(IRModel.KEYWORD_OIMAGING_COMMENT.getName(), "best so far");
+
+        // payload evicted then collected:
+        final long reloads = ResultStore.getInstance().getReloads();
+        result.clearPayload();
+
+        final OIFitsFile reloaded = result.getOifitsFile();
+        Assert.assertNotNull(reloaded);
+        Assert.assertNotSame(loaded, reloaded);
+        Assert.assertEquals(reloads + 1L, ResultStore.getInstance().getReloads());
+
+        final ImageOiOutputParam reloadedParam = reloaded.getImageOiData().getOutputParam();
+        Assert.assertEquals(Integer.valueOf(4), reloadedParam.getKeywordValue(IRModel.KEYWORD_RATING.getName()));
+        Assert.assertEquals("best so far", reloadedParam.getKeywordValue(IRModel.KEYWORD_OIMAGING_COMMENT.getName()));
+        Assert.assertSame(reloadedParam, result.getOutputParam());
+
+        // resident again:
+        Assert.assertSame(reloaded, result.getOifitsFile());
+        Assert.assertEquals(reloads + 1L, ResultStore.getInstance().getReloads());
+
+        ResultStore.getInstance().remove(result);
+    }
+
+    private ServiceResult createResult(final String name) {
+        final File inputFile = new File(tmpDir, name + ServiceResult.FITS_FILE_EXT);
+        return new ServiceResult(inputFile,
+                new File(tmpDir, name + ServiceResult.RESULT_FILE_EXT),
+                new File(tmpDir, name + ServiceResult.LOG_FILE_EXT));
+    }
+}
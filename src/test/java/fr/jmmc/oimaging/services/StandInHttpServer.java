@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import fr.cnes.sitools.extensions.astro.application.uws.client.ClientUWS;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in HTTP server (JDK http server on a free port) shared by the remote service tests:
+ * subclasses handle the requests and call start() once initialized.
+ */
+abstract class StandInHttpServer implements HttpHandler {
+
+    /** root path of the stand-in UWS service */
+    static final String ROOT = "/OImaging-uws/";
+
+    /* members */
+    private final HttpServer http;
+    /** number of bytes sent in response bodies */
+    private final AtomicLong bytesSent = new AtomicLong(0L);
+
+    /**
+     * Create a server handling the requests under ROOT
+     * @throws IOException if the server can not be created
+     */
+    StandInHttpServer() throws IOException {
+        this(ROOT);
+    }
+
+    /**
+     * Create a server handling the requests under the given path
+     * @param contextPath root path of the handled requests
+     * @throws IOException if the server can not be created
+     */
+    StandInHttpServer(final String contextPath) throws IOException {
+        http = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        http.createContext(contextPath, this);
+        http.setExecutor(Executors.newCachedThreadPool());
+    }
+
+    final void start() {
+        http.start();
+    }
+
+    final void stop() {
+        http.stop(0);
+    }
+
+    /**
+     * @param path absolute path
+     * @return URL of the given path on this server
+     */
+    final String getURL(final String path) {
+        return "http://127.0.0.1:" + http.getAddress().getPort() + path;
+    }
+
+    /**
+     * @return UWS client of the service under ROOT
+     */
+    final ClientUWS getClient() {
+        return new ClientUWS(getURL(ROOT), RemoteExecutionMode.SERVICE_PATH);
+    }
+
+    /**
+     * @return number of bytes sent in response bodies
+     */
+    final long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Send the response (UTF-8 text) and close the exchange
+     * @param exchange http exchange
+     * @param code HTTP status code
+     * @param contentType content type
+     * @param text response body (empty for none)
+     * @throws IOException if the response can not be sent
+     */
+    final void send(final HttpExchange exchange, final int code, final String contentType,
+                    final String text) throws IOException {
+        send(exchange, code, contentType, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Send the response (no body for HEAD requests) and close the exchange
+     * @param exchange http exchange
+     * @param code HTTP status code
+     * @param contentType content type or null
+     * @param bytes response body (empty for none)
+     * @throws IOException if the response can not be sent
+     */
+    final void send(final HttpExchange exchange, final int code, final String contentType,
+                    final byte[] bytes) throws IOException {
+        final boolean hasBody = (bytes.length != 0) && !"HEAD".equals(exchange.getRequestMethod());
+        if (contentType != null) {
+            exchange.getResponseHeaders().add("Content-Type", contentType);
+        }
+        exchange.sendResponseHeaders(code, hasBody ? bytes.length : -1);
+        if (hasBody) {
+            final OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+            bytesSent.addAndGet(bytes.length);
+        }
+        exchange.close();
+    }
+
+    /**
+     * @param in request body
+     * @return request body content
+     * @throws IOException if the request body can not be read
+     */
+    static byte[] readBody(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
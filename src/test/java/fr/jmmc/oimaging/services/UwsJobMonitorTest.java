@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import fr.cnes.sitools.extensions.astro.application.uws.client.ClientUWSException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntUnaryOperator;
+import net.ivoa.xml.uws.v1.ExecutionPhase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test UwsJobMonitor (long-polling, backoff and request failures) against a local stand-in UWS server
+ */
+public class UwsJobMonitorTest {
+
+    protected static final Logger logger = LoggerFactory.getLogger(UwsJobMonitorTest.class.getName());
+
+    private static final String JOB_ID = "1";
+    /** max time (ms) to wait for a final phase */
+    private static final long TIMEOUT = 30000L;
+
+    private StandInUwsServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StandInUwsServer();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testLongPolling() throws Exception {
+        server.supportsWait = true;
+        server.startJob(ExecutionPhase.EXECUTING, 2000L);
+
+        final UwsJobMonitor monitor = new UwsJobMonitor(server.getClient(), JOB_ID, true);
+        final ExecutionPhase phase = waitForFinalPhase(monitor);
+        final long latency = server.getLatency();
+
+        logger.info("long-polling: requests = {} latency = {} ms", monitor.getRequestCount(), latency);
+
+        Assert.assertEquals(ExecutionPhase.COMPLETED, phase);
+        Assert.assertTrue(monitor.isLongPolling());
+        // fixed 1s polling needs 2 requests and up to 1s latency:
+        Assert.assertTrue("requests: " + monitor.getRequestCount(), monitor.getRequestCount() <= 2);
+        Assert.assertTrue("latency: " + latency, latency < 250L);
+    }
+
+    @Test
+    public void testPollingFallback() throws Exception {
+        server.supportsWait = false;
+        server.startJob(ExecutionPhase.EXECUTING, 300L);
+
+        final UwsJobMonitor monitor = new UwsJobMonitor(server.getClient(), JOB_ID, true);
+        final ExecutionPhase phase = waitForFinalPhase(monitor);
+        final long latency = server.getLatency();
+
+        logger.info("polling fallback: requests = {} latency = {} ms", monitor.getRequestCount(), latency);
+
+        Assert.assertEquals(ExecutionPhase.COMPLETED, phase);
+        Assert.assertFalse(monitor.isLongPolling());
+        // fixed 1s polling gives 700 ms latency for this job:
+        Assert.assertTrue("latency: " + latency, latency < 700L);
+        Assert.assertTrue("requests: " + monitor.getRequestCount(), monitor.getRequestCount() <= 8);
+    }
+
+    @Test
+    public void testBackoffLimitsRequests() throws Exception {
+        server.supportsWait = false;
+        server.startJob(ExecutionPhase.EXECUTING, 6000L);
+
+        final UwsJobMonitor monitor = new UwsJobMonitor(server.getClient(), JOB_ID, false);
+        final ExecutionPhase phase = waitForFinalPhase(monitor);
+
+        logger.info("backoff: requests = {} latency = {} ms", monitor.getRequestCount(), server.getLatency());
+
+        Assert.assertEquals(ExecutionPhase.COMPLETED, phase);
+        // requests grow with log(duration) up to one per MAX_DELAY:
+        Assert.assertTrue("requests: " + monitor.getRequestCount(), monitor.getRequestCount() <= 9);
+    }
+
+    @Test
+    public void testQueuedAndHeldPhases() throws Exception {
+        server.supportsWait = true;
+        server.startJob(ExecutionPhase.QUEUED, 900L);
+        server.heldPhases = true;
+
+        final UwsJobMonitor monitor = new UwsJobMonitor(server.getClient(), JOB_ID, true);
+        final ExecutionPhase phase = waitForFinalPhase(monitor);
+
+        logger.info("queued/held: requests = {}", monitor.getRequestCount());
+
+        // the monitor must not stop before the job completes:
+        Assert.assertEquals(ExecutionPhase.COMPLETED, phase);
+        Assert.assertTrue(server.getLatency() >= 0L);
+    }
+
+    @Test
+    public void testPendingJobIsStarted() throws Exception {
+        server.supportsWait = true;
+        server.startJob(ExecutionPhase.PENDING, 200L);
+
+        final UwsJobMonitor monitor = new UwsJobMonitor(server.getClient(), JOB_ID, true);
+        final ExecutionPhase phase = waitForFinalPhase(monitor);
+
+        Assert.assertEquals(ExecutionPhase.COMPLETED, phase);
+        Assert.assertEquals(1, server.runRequests.get());
+    }
+
+    @Test
+    public void testRequestFailuresRetried() throws Exception {
+        server.supportsWait = true;
+        server.startJob(ExecutionPhase.EXECUTING, 500L);
+        server.failures.set(UwsJobMonitor.MAX_ERRORS - 1);
+
+        final UwsJobMonitor monitor = new UwsJobMonitor(server.getClient(), JOB_ID, true);
+        final ExecutionPhase phase = waitForFinalPhase(monitor);
+
+        // a failed request does not give the ERROR phase:
+        Assert.assertEquals(ExecutionPhase.COMPLETED, phase);
+        Assert.assertEquals(0, server.failures.get());
+    }
+
+    @Test
+    public void testRequestFailuresLimit() throws Exception {
+        server.supportsWait = false;
+        server.startJob(ExecutionPhase.EXECUTING, 60000L);
+        server.failures.set(Integer.MAX_VALUE);
+
+        final UwsJobMonitor monitor = new UwsJobMonitor(server.getClient(), JOB_ID, false);
+        for (int i = 1; i < UwsJobMonitor.MAX_ERRORS; i++) {
+            Assert.assertNull(monitor.poll());
+            Assert.assertTrue(monitor.getNextDelay() > 0L);
+        }
+        try {
+            monitor.poll();
+            Assert.fail("ClientUWSException expected");
+        } catch (ClientUWSException cue) {
+            // expected
+        }
+        Assert.assertEquals(UwsJobMonitor.MAX_ERRORS, monitor.getRequestCount());
+    }
+
+    /**
+     * Check the phase step by step like RemoteJobMonitor (next step after getNextDelay())
+     * @param monitor job monitor
+     * @return final phase
+     */
+    private static ExecutionPhase waitForFinalPhase(final UwsJobMonitor monitor) throws Exception {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!monitor.isTerminated()) {
+            Assert.assertTrue("timeout", System.currentTimeMillis() < deadline);
+            Thread.sleep(monitor.getNextDelay());
+            monitor.poll();
+        }
+        return monitor.getPhase();
+    }
+
+    /**
+     * Minimal UWS server handling one job (phase, job summary with WAIT / PHASE and phase=RUN)
+     */
+    private static final class StandInUwsServer extends StandInHttpServer {
+
+        private final Object lock = new Object();
+        volatile boolean supportsWait = true;
+        volatile boolean heldPhases = false;
+        final AtomicInteger runRequests = new AtomicInteger(0);
+        /** number of next requests answered by a server error */
+        final AtomicInteger failures = new AtomicInteger(0);
+        /* job state (guarded by lock) */
+        private ExecutionPhase initialPhase;
+        private long duration;
+        private long startTime;
+        private long endTime = -1L;
+        /** time when the client observed the final phase */
+        private long observedTime = -1L;
+
+        StandInUwsServer() throws IOException {
+            start();
+        }
+
+        void startJob(final ExecutionPhase phase, final long duration) {
+            synchronized (lock) {
+                this.initialPhase = phase;
+                this.duration = duration;
+                this.startTime = (phase == ExecutionPhase.PENDING) ? -1L : System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * @return delay between the job end and the client observing it (ms)
+         */
+        long getLatency() {
+            synchronized (lock) {
+                return observedTime - endTime;
+            }
+        }
+
+        private ExecutionPhase getPhase() {
+            synchronized (lock) {
+                if (startTime < 0L) {
+                    return initialPhase;
+                }
+                final long elapsed = System.currentTimeMillis() - startTime;
+                if (elapsed >= duration) {
+                    if (endTime < 0L) {
+                        endTime = startTime + duration;
+                    }
+                    return ExecutionPhase.COMPLETED;
+                }
+                if (initialPhase == ExecutionPhase.QUEUED) {
+                    // QUEUED then HELD then EXECUTING:
+                    final long third = duration / 3L;
+                    if (elapsed < third) {
+                        return ExecutionPhase.QUEUED;
+                    }
+                    if (heldPhases && elapsed < 2L * third) {
+                        return ExecutionPhase.HELD;
+                    }
+                }
+                return ExecutionPhase.EXECUTING;
+            }
+        }
+
+        private ExecutionPhase observe(final ExecutionPhase phase) {
+            if (phase == ExecutionPhase.COMPLETED) {
+                synchronized (lock) {
+                    if (observedTime < 0L) {
+                        observedTime = System.currentTimeMillis();
+                    }
+                }
+            }
+            return phase;
+        }
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            try {
+                if (failures.getAndUpdate(new IntUnaryOperator() {
+                    @Override
+                    public int applyAsInt(final int n) {
+                        return Math.max(0, n - 1);
+                    }
+                }) > 0) {
+                    send(exchange, 500, "text/plain", "server error");
+                    return;
+                }
+                final String path = exchange.getRequestURI().getPath();
+                final String query = exchange.getRequestURI().getQuery();
+                final String jobPath = ROOT + RemoteExecutionMode.SERVICE_PATH + '/' + JOB_ID;
+
+                if (path.equals(jobPath + "/phase")) {
+                    if ("POST".equals(exchange.getRequestMethod())) {
+                        // phase=RUN
+                        runRequests.incrementAndGet();
+                        synchronized (lock) {
+                            if (startTime < 0L) {
+                                startTime = System.currentTimeMillis();
+                                initialPhase = ExecutionPhase.EXECUTING;
+                            }
+                        }
+                        exchange.getResponseHeaders().add("Location", getURL(jobPath));
+                        send(exchange, 303, "text/plain", "");
+                    } else {
+                        send(exchange, 200, "text/plain", observe(getPhase()).value());
+                    }
+                } else if (path.equals(jobPath)) {
+                    ExecutionPhase phase = getPhase();
+
+                    if (supportsWait && (query != null) && query.contains("WAIT=")) {
+                        final int wait = Integer.parseInt(getParam(query, "WAIT"));
+                        final String expected = getParam(query, "PHASE");
+                        final ExecutionPhase from = (expected != null) ? ExecutionPhase.fromValue(expected) : phase;
+
+                        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(wait);
+                        while ((phase == from) && !UwsJobMonitor.isFinal(phase) && (System.nanoTime() < deadline)) {
+                            Thread.sleep(10L);
+                            phase = getPhase();
+                        }
+                    }
+                    send(exchange, 200, "text/xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                            + "<uws:job xmlns:uws=\"http://www.ivoa.net/xml/UWS/v1.0\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">"
+                            + "<uws:jobId>" + JOB_ID + "</uws:jobId>"
+                            + "<uws:phase>" + observe(phase).value() + "</uws:phase>"
+                            + "</uws:job>");
+                } else {
+                    send(exchange, 404, "text/plain", "not found: " + path);
+                }
+            } catch (InterruptedException ie) {
+                send(exchange, 500, "text/plain", "interrupted");
+            }
+        }
+
+        private static String getParam(final String query, final String name) {
+            for (String param : query.split("&")) {
+                if (param.startsWith(name + '=')) {
+                    return param.substring(name.length() + 1);
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * JMMC project ( http://www.jmmc.fr ) - Copyright (C) CNRS.
+ ******************************************************************************/
+package fr.jmmc.oimaging.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test Workspace (reference counting, running disk usage with hard links counted once, LRU eviction)
+ */
+public class WorkspaceTest {
+
+    /** size of one job file */
+    private static final int FILE_SIZE = 1000;
+
+    private File rootDir = null;
+    private Workspace workspace = null;
+
+    @Before
+    public void setUp() throws IOException {
+        rootDir = Files.createTempDirectory("WorkspaceTest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        if (workspace != null) {
+            workspace.shutdown();
+        }
+        rootDir.delete();
+    }
+
+    @Test
+    public void testRetainRelease() throws IOException {
+        workspace = new Workspace(rootDir, 3L * FILE_SIZE / 2L);
+
+        final File a = createJobFile("a.fits");
+        workspace.retain(a);
+        workspace.retain(a);
+        workspace.updateUsage(a);
+        Assert.assertEquals(FILE_SIZE, workspace.getUsage());
+
+        // over quota but every job directory is referenced:
+        final File b = createJobFile("b.fits");
+        workspace.retain(b);
+        workspace.updateUsage(b);
+        Assert.assertEquals(2L * FILE_SIZE, workspace.getUsage());
+        Assert.assertTrue(a.exists());
+        Assert.assertTrue(b.exists());
+
+        // still one reference:
+        workspace.release(a);
+        Assert.assertTrue(a.exists());
+
+        // last reference removed:
+        workspace.release(b);
+        Assert.assertFalse(b.exists());
+        Assert.assertFalse(b.getParentFile().exists());
+        Assert.assertTrue(a.exists());
+        Assert.assertEquals(FILE_SIZE, workspace.getUsage());
+    }
+
+    @Test
+    public void testEvictionOrder() throws Exception {
+        workspace = new Workspace(rootDir, 7L * FILE_SIZE / 2L);
+
+        final File a = createReleasedJobFile("a.fits");
+        final File b = createReleasedJobFile("b.fits");
+        final File c = createReleasedJobFile("c.fits");
+        Assert.assertEquals(3L * FILE_SIZE, workspace.getUsage());
+
+        // b then a become the least recently used:
+        touch(b);
+        touch(a);
+        touch(c);
+
+        final File d = createJobFile("d.fits");
+        workspace.retain(d);
+        workspace.updateUsage(d);
+        Assert.assertFalse(b.exists());
+        Assert.assertTrue(a.exists());
+        Assert.assertTrue(c.exists());
+        Assert.assertEquals(3L * FILE_SIZE, workspace.getUsage());
+
+        final File e = createJobFile("e.fits");
+        workspace.retain(e);
+        workspace.updateUsage(e);
+        Assert.assertFalse(a.exists());
+        Assert.assertTrue(c.exists());
+        Assert.assertTrue(d.exists());
+        Assert.assertEquals(3L * FILE_SIZE, workspace.getUsage());
+    }
+
+    @Test
+    public void testHardLinksCountedOnce() throws IOException {
+        workspace = new Workspace(rootDir, 10L * FILE_SIZE);
+
+        final File a = createJobFile("a.fits");
+        workspace.updateUsage(a);
+
+        // same input file linked into another job directory (see InputFileCache):
+        final File b = workspace.createJobFile("b.fits");
+        Files.createLink(b.toPath(), a.toPath());
+        workspace.updateUsage(b);
+        Assert.assertEquals(FILE_SIZE, workspace.getUsage());
+
+        // still linked by b:
+        Assert.assertTrue(a.delete());
+        workspace.updateUsage(a);
+        Assert.assertEquals(FILE_SIZE, workspace.getUsage());
+
+        Assert.assertTrue(b.delete());
+        workspace.updateUsage(b);
+        Assert.assertEquals(0L, workspace.getUsage());
+    }
+
+    @Test
+    public void testUsageUpdatedOnStore() throws IOException {
+        workspace = new Workspace(rootDir, 10L * FILE_SIZE);
+
+        final File a = createJobFile("a.fits");
+        // not counted until stored:
+        Assert.assertEquals(0L, workspace.getUsage());
+        workspace.updateUsage(a);
+        Assert.assertEquals(FILE_SIZE, workspace.getUsage());
+
+        // result files stored in the same job directory:
+        write(workspace.getJobFile(a, "a.fits" + ServiceResult.RESULT_FILE_EXT));
+        workspace.updateUsage(a);
+        Assert.assertEquals(2L * FILE_SIZE, workspace.getUsage());
+    }
+
+    private File createReleasedJobFile(final String name) throws Exception {
+        final File file = createJobFile(name);
+        workspace.retain(file);
+        workspace.updateUsage(file);
+        workspace.release(file);
+        return file;
+    }
+
+    private void touch(final File file) throws InterruptedException {
+        // distinct access times:
+        Thread.sleep(10L);
+        workspace.retain(file);
+        workspace.release(file);
+    }
+
+    private File createJobFile(final String name) throws IOException {
+        final File file = workspace.createJobFile(name);
+        write(file);
+        return file;
+    }
+
+    private static void write(final File file) throws IOException {
+        Files.write(file.toPath(), new byte[FILE_SIZE]);
+    }
+}